@@ -20,6 +20,7 @@ package org.drftpd;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -44,11 +45,23 @@ public class ActiveConnection extends Connection {
 
 	private boolean _useSSLClientHandshake;
 
+	private boolean _useChannel;
+
 	public ActiveConnection(SSLContext ctx, InetSocketAddress addr,
 			boolean useSSLClientHandshake) {
+		this(ctx, addr, useSSLClientHandshake, false);
+	}
+
+	/**
+	 * @param useChannel if true and ctx==null, the Socket will have a
+	 * {@link SocketChannel}
+	 */
+	public ActiveConnection(SSLContext ctx, InetSocketAddress addr,
+			boolean useSSLClientHandshake, boolean useChannel) {
 		_addr = addr;
 		_ctx = ctx;
 		_useSSLClientHandshake = useSSLClientHandshake;
+		_useChannel = useChannel;
 	}
 
 	public Socket connect(String[] cipherSuites, int bufferSize) throws IOException {
@@ -70,7 +83,11 @@ public class ActiveConnection extends Connection {
 			sslsock.startHandshake();
 			_sock = sslsock;
 		} else {
-			_sock = SocketFactory.getDefault().createSocket();
+			if (_useChannel) {
+				_sock = SocketChannel.open().socket();
+			} else {
+				_sock = SocketFactory.getDefault().createSocket();
+			}
 			if (bufferSize > 0) {
 				_sock.setReceiveBufferSize(bufferSize);
 			}
@@ -29,6 +29,7 @@ import javax.net.ssl.SSLSocket;
 
 import org.apache.log4j.Logger;
 import org.drftpd.slave.Connection;
+import org.drftpd.util.ChannelServerSocketFactory;
 import org.drftpd.util.PortRange;
 
 /**
@@ -53,9 +54,25 @@ public class PassiveConnection extends Connection {
 	 */
 	public PassiveConnection(SSLContext ctx, PortRange portRange,
 			boolean useSSLClientMode) throws IOException {
+		this(ctx, portRange, useSSLClientMode, false);
+	}
+
+	/**
+	 * @param ctx
+	 * @param portRange
+	 * @param useSSLClientMode
+	 * @param useChannel
+	 *             if true and ctx==null, the accepted Socket will have a
+	 *             {@link java.nio.channels.SocketChannel}
+	 * @throws IOException
+	 */
+	public PassiveConnection(SSLContext ctx, PortRange portRange,
+			boolean useSSLClientMode, boolean useChannel) throws IOException {
 		_useSSLClientMode = useSSLClientMode;
 		if (ctx != null) {
 			_serverSocket = portRange.getPort(ctx.getServerSocketFactory());
+		} else if (useChannel) {
+			_serverSocket = portRange.getPort(ChannelServerSocketFactory.getDefault());
 		} else {
 			_serverSocket = portRange.getPort(ServerSocketFactory.getDefault());
 		}
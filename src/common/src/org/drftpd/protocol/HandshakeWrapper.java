@@ -24,10 +24,13 @@ import java.io.Serializable;
  * @author fr0w
  * @version $Id$
  */
-@SuppressWarnings("serial")
 public class HandshakeWrapper implements Serializable {
+	// value computed before _codecVersion was added, keeps older slaves compatible
+	private static final long serialVersionUID = -7628871864421559526L;
+
 	private boolean _status;
 	private Exception _exception;
+	private int _codecVersion;
 
 	/**
 	 * @return true if *all* plugins were found on the slave-side
@@ -67,6 +70,18 @@ public class HandshakeWrapper implements Serializable {
 		_exception = e;
 	}
 	
+	/**
+	 * @return the highest message codec version supported by the slave, 0 when
+	 * the slave only supports Java serialization (older slaves never set it).
+	 */
+	public int getCodecVersion() {
+		return _codecVersion;
+	}
+
+	public void setCodecVersion(int codecVersion) {
+		_codecVersion = codecVersion;
+	}
+
 	public String toString() {
 		return getClass().getName() + "[pluginStatus="+pluginStatus()+"]";
 	}
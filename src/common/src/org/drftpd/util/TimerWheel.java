@@ -0,0 +1,110 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A hashed timer wheel, keeps a large number of deadlines and finds the
+ * expired ones without looking at the others.<br>
+ * Deadlines are rounded up to the next tick, items are never returned
+ * before their deadline but may be returned up to one tick late.<br>
+ * This class isn't thread safe, it's meant to be driven by a single thread.
+ * @version $Id$
+ */
+public class TimerWheel<T> {
+
+	private long _tickMillis;
+
+	private ArrayList<LinkedList<Entry<T>>> _slots;
+
+	private long _currentTick;
+
+	private int _size;
+
+	/**
+	 * @param tickMillis the resolution of the wheel
+	 * @param slots the number of slots, deadlines further away than
+	 * slots * tickMillis are kept in the wheel for more than one turn.
+	 */
+	public TimerWheel(long tickMillis, int slots) {
+		_tickMillis = tickMillis;
+		_slots = new ArrayList<LinkedList<Entry<T>>>(slots);
+		for (int i = 0; i < slots; i++) {
+			_slots.add(new LinkedList<Entry<T>>());
+		}
+		_currentTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * @param item
+	 * @param deadline time in milliseconds after which
+	 * {@link #expire(long)} returns the item.
+	 */
+	public void schedule(T item, long deadline) {
+		long tick = (deadline + _tickMillis - 1) / _tickMillis;
+		if (tick <= _currentTick) {
+			tick = _currentTick + 1;
+		}
+		_slots.get((int) (tick % _slots.size())).add(new Entry<T>(item, deadline));
+		_size++;
+	}
+
+	/**
+	 * Removes and returns the items whose deadline is before now.
+	 * @param now
+	 */
+	public ArrayList<T> expire(long now) {
+		ArrayList<T> expired = new ArrayList<T>();
+		long nowTick = now / _tickMillis;
+		if (nowTick <= _currentTick) {
+			return expired;
+		}
+		long ticks = Math.min(nowTick - _currentTick, _slots.size());
+		for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+			Iterator<Entry<T>> iter = _slots.get((int) (tick % _slots.size())).iterator();
+			while (iter.hasNext()) {
+				Entry<T> entry = iter.next();
+				if (entry._deadline <= now) {
+					iter.remove();
+					_size--;
+					expired.add(entry._item);
+				}
+			}
+		}
+		_currentTick = nowTick;
+		return expired;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	private static class Entry<T> {
+		private T _item;
+
+		private long _deadline;
+
+		private Entry(T item, long deadline) {
+			_item = item;
+			_deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class TimerWheelTest extends TestCase {
+
+	public void testExpire() {
+		long now = System.currentTimeMillis();
+		TimerWheel<String> wheel = new TimerWheel<String>(1000, 8);
+		wheel.expire(now);
+		wheel.schedule("soon", now + 1500);
+		wheel.schedule("later", now + 20000);
+		wheel.schedule("past", now - 5000);
+		assertEquals(3, wheel.size());
+
+		List<String> expired = wheel.expire(now + 1000);
+		assertEquals(1, expired.size());
+		assertEquals("past", expired.get(0));
+
+		expired = wheel.expire(now + 2000);
+		assertEquals(1, expired.size());
+		assertEquals("soon", expired.get(0));
+
+		// more than a turn later, the remaining entry must still be found
+		assertTrue(wheel.expire(now + 19999).isEmpty());
+		expired = wheel.expire(now + 30000);
+		assertEquals(1, expired.size());
+		assertEquals("later", expired.get(0));
+		assertEquals(0, wheel.size());
+	}
+}
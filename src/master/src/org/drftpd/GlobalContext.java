@@ -43,6 +43,7 @@ import org.drftpd.event.MessageEvent;
 import org.drftpd.event.UnloadPluginEvent;
 import org.drftpd.exceptions.FatalException;
 import org.drftpd.exceptions.SlaveFileException;
+import org.drftpd.master.ChecksumQueue;
 import org.drftpd.master.CommitManager;
 import org.drftpd.master.ConnectionManager;
 import org.drftpd.master.SlaveManager;
@@ -276,6 +277,7 @@ public class GlobalContext {
 				} catch (InterruptedException e) {
 				}
 			}
+			VirtualFileSystem.getVirtualFileSystem().getEventCoalescer().flush();
 			while (GlobalContext.getEventService().getQueueSize() > 0) {
 				logger.info("Waiting for queued events to be processed - " + 
 						GlobalContext.getEventService().getQueueSize() + " remaining");
@@ -292,6 +294,7 @@ public class GlobalContext {
 				} catch (InterruptedException e) {
 				}
 			}
+			ChecksumQueue.getChecksumQueue().save();
 			logger.info("Shutdown complete, exiting");
 			WrapperManager.stop(0);
 		}
@@ -337,7 +340,8 @@ public class GlobalContext {
 		_config = new ConfigManager();
 		_config.reload();
 
-		CommitManager.getCommitManager().start();
+		getEventService().configure(getConfig().getMainProperties());
+		CommitManager.getCommitManager().start(getConfig().getMainProperties());
 		_timeManager = new TimeManager();
 		loadPluginsConfig();
 		loadUserManager(getConfig().getMainProperties());
@@ -356,6 +360,7 @@ public class GlobalContext {
 		} catch (SlaveFileException e) {
 			throw new RuntimeException(e);
 		}
+		ChecksumQueue.getChecksumQueue().start(getConfig().getMainProperties());
 		listenForSlaves();
 		loadSlaveSelectionManager(getConfig().getMainProperties());
 		loadSectionManager(getConfig().getMainProperties());
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 
 import org.drftpd.util.GroupPosition;
@@ -128,9 +129,18 @@ public class RankUtils {
 			}
 		}
 
-		Collections.sort(ret, new UserComparator(type, sort));
+		return sortUploaders(ret, type, sort);
+	}
 
-		return ret;
+	/**
+	 * Sorts uploaders which have already been tallied, as
+	 * {@link #userSort(Collection, String, String)} does.
+	 */
+	public static Collection<UploaderPosition> sortUploaders(List<UploaderPosition> uploaders,
+			String type, String sort) {
+		Collections.sort(uploaders, new UserComparator(type, sort));
+
+		return uploaders;
 	}
 }
 
@@ -17,38 +17,331 @@
  */
 package org.drftpd.event;
 
+import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
 import org.bushe.swing.event.ThreadSafeEventService;
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
 
 /**
+ * Asynchronous events are spread over several queues, each drained by its
+ * own thread, by a key so events with the same key are still published in
+ * order: the topic, the top level directory of the inode for VFS events and
+ * of the directory for FTP events, or else the class of the event. The whole
+ * tree below a top level directory shares the key, a directory and the files
+ * created in it are never published out of order. A rename from one top
+ * level directory to another is keyed by both, it is published after the
+ * events queued before it for the source and before the events queued after
+ * it for the destination.<br>
+ * Subscribers annotated with {@link EventDelivery} are called by the
+ * threads of their lane instead, so a slow subscriber only delays itself.
+ * Events published synchronously are delivered to every subscriber before
+ * the publish returns, lanes included.
  * @author djb61
  * @version $Id$
  */
 public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
+	private static final Logger logger = Logger.getLogger(AsyncThreadSafeEventService.class);
 
-	private LinkedBlockingQueue<QueuedAsyncEvent> _eventQueue = new LinkedBlockingQueue<QueuedAsyncEvent>();
+	private static final Object NO_DELIVERY = new Object();
+
+	private volatile EventShard[] _shards;
+
+	private Properties _cfg = new Properties();
+
+	private ConcurrentHashMap<String, EventLane> _lanes = new ConcurrentHashMap<String, EventLane>();
+
+	private ConcurrentHashMap<Class<?>, Object> _deliveries = new ConcurrentHashMap<Class<?>, Object>();
+
+	private ThreadLocal<Long> _publishedTime = new ThreadLocal<Long>();
+
+	// queues the two halves of an event keyed by two directories at once
+	private final Object _crossLock = new Object();
 
 	public AsyncThreadSafeEventService() {
 		super();
-		new Thread(new EventHandler()).start();
+		_shards = new EventShard[] { new EventShard(0) };
+	}
+
+	/**
+	 * Starts the number of threads set by event.threads in master.conf and
+	 * keeps the settings of the lanes.<br>
+	 * This must be done before anything publishes events for the VFS, until
+	 * then a single thread publishes every event.
+	 * @param cfg
+	 */
+	public synchronized void configure(Properties cfg) {
+		_cfg = cfg;
+		int count = Math.max(1, Integer.parseInt(cfg.getProperty("event.threads", "4")));
+		if (count <= _shards.length) {
+			return;
+		}
+		EventShard[] shards = new EventShard[count];
+		System.arraycopy(_shards, 0, shards, 0, _shards.length);
+		for (int i = _shards.length; i < count; i++) {
+			shards[i] = new EventShard(i);
+		}
+		_shards = shards;
 	}
 
 	public void publishAsync(Object event) {
-		_eventQueue.add(new QueuedAsyncEvent(event));
+		add(getKey(null, event), new QueuedAsyncEvent(event));
 	}
 
 	public void publishAsync(Type genericType, Object event) {
-		_eventQueue.add(new QueuedAsyncEvent(genericType,event));
+		add(getKey(null, event), new QueuedAsyncEvent(genericType,event));
+	}
+
+	/**
+	 * Queues an event keyed by two directories on the thread of the
+	 * destination, that thread waits for the thread of the source to reach
+	 * the point the event was queued at before publishing it.
+	 */
+	private void add(Object key, QueuedAsyncEvent event) {
+		if (key instanceof CrossKey) {
+			CrossKey cross = (CrossKey) key;
+			EventShard source = getShard(cross._source);
+			EventShard destination = getShard(cross._destination);
+			if (source != destination) {
+				event._barrier = new CountDownLatch(1);
+				// both halves are queued together so two renames crossing each
+				// other cannot wait for one another
+				synchronized (_crossLock) {
+					source.add(new QueuedAsyncEvent(event._barrier));
+					destination.add(event);
+				}
+				return;
+			}
+			key = cross._destination;
+		}
+		getShard(key).add(event);
 	}
 
 	public void publishAsync(String topicName, Object eventObj) {
-		_eventQueue.add(new QueuedAsyncEvent(topicName,eventObj));
+		getShard(topicName).add(new QueuedAsyncEvent(topicName,eventObj));
 	}
 
+	/**
+	 * @return the number of events waiting to be published or delivered to a lane.
+	 */
 	public int getQueueSize() {
-		return _eventQueue.size();
+		int size = 0;
+		for (EventShard shard : _shards) {
+			size += shard._queue.size();
+		}
+		for (EventLane lane : _lanes.values()) {
+			size += lane.getQueueSize();
+		}
+		return size;
+	}
+
+	public int getThreadCount() {
+		return _shards.length;
+	}
+
+	public long getPublished() {
+		long published = 0;
+		for (EventShard shard : _shards) {
+			published += shard._published.get();
+		}
+		return published;
+	}
+
+	/**
+	 * @return the average time, in milliseconds, asynchronous events waited
+	 * before being published.
+	 */
+	public long getAverageLag() {
+		long published = 0;
+		long lag = 0;
+		for (EventShard shard : _shards) {
+			published += shard._published.get();
+			lag += shard._totalLag.get();
+		}
+		return published == 0 ? 0 : lag / published;
+	}
+
+	public long getMaxLag() {
+		long max = 0;
+		for (EventShard shard : _shards) {
+			max = Math.max(max, shard._maxLag.get());
+		}
+		return max;
+	}
+
+	public Collection<EventLane> getLanes() {
+		return Collections.unmodifiableCollection(_lanes.values());
+	}
+
+	/**
+	 * Events below the same top level directory keep their order, a
+	 * directory and everything created in it share the key.
+	 */
+	private Object getKey(String topic, Object event) {
+		if (topic != null) {
+			return topic;
+		}
+		if (event instanceof VirtualFileSystemEvent) {
+			String root = getRoot(((VirtualFileSystemEvent) event).getImmutableInode().getPath());
+			if (event instanceof VirtualFileSystemRenameEvent) {
+				String source = getRoot(((VirtualFileSystemRenameEvent) event).getSource().getPath());
+				if (!source.equals(root)) {
+					return new CrossKey(source, root);
+				}
+			}
+			return root;
+		}
+		if (event instanceof DirectoryFtpEvent) {
+			return getRoot(((DirectoryFtpEvent) event).getDirectory().getPath());
+		}
+		return event == null ? "" : event.getClass().getName();
+	}
+
+	/**
+	 * @return the top level directory the path is in, / for the root itself
+	 */
+	static String getRoot(String path) {
+		int index = path.indexOf('/', 1);
+		return index == -1 ? path : path.substring(0, index);
+	}
+
+	/**
+	 * Waits for the other half of an event keyed by two directories.
+	 */
+	static void awaitBarrier(CountDownLatch barrier) {
+		while (true) {
+			try {
+				barrier.await();
+				return;
+			} catch (InterruptedException e) {
+				// Do nothing just loop and try again
+			}
+		}
+	}
+
+	private EventShard getShard(Object key) {
+		EventShard[] shards = _shards;
+		return shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Hands asynchronous events to the lanes of the subscribers declaring one and
+	 * calls the other subscribers directly.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void publish(Object event, String topic, Object eventObj, List subscribers,
+			List vetoSubscribers, StackTraceElement[] callingStack) {
+		Long published = _publishedTime.get();
+		if (published == null || subscribers == null || subscribers.isEmpty()
+				|| (vetoSubscribers != null && !vetoSubscribers.isEmpty())) {
+			// a synchronous publish returns once every subscriber has been called,
+			// vetoes must be checked before any subscriber is called
+			super.publish(event, topic, eventObj, subscribers, vetoSubscribers, callingStack);
+			return;
+		}
+		List<Object> direct = null;
+		Object key = null;
+		long queued = published;
+		for (Object subscriber : subscribers) {
+			EventLane lane = getLane(subscriber);
+			if (lane == null) {
+				if (direct == null) {
+					direct = new ArrayList<Object>(subscribers.size());
+				}
+				direct.add(subscriber);
+				continue;
+			}
+			if (key == null) {
+				key = getKey(topic, event);
+			}
+			lane.submit(new EventLane.LaneEvent(event, topic, eventObj, subscriber, queued), key);
+		}
+		if (direct != null) {
+			super.publish(event, topic, eventObj, direct, vetoSubscribers, callingStack);
+		}
+	}
+
+	/**
+	 * Called by the lanes to deliver an event to one of their subscribers.
+	 */
+	protected void deliver(EventLane.LaneEvent event) {
+		List<Object> subscribers = Collections.singletonList(event._subscriber);
+		super.publish(event._event, event._topic, event._eventObj, subscribers, null, null);
+	}
+
+	private EventLane getLane(Object subscriber) {
+		Object target = getTarget(subscriber);
+		Object delivery = _deliveries.get(target.getClass());
+		if (delivery == null) {
+			delivery = target.getClass().getAnnotation(EventDelivery.class);
+			if (delivery == null || !((EventDelivery) delivery).async()) {
+				delivery = NO_DELIVERY;
+			}
+			_deliveries.put(target.getClass(), delivery);
+		}
+		if (delivery == NO_DELIVERY) {
+			return null;
+		}
+		EventDelivery ed = (EventDelivery) delivery;
+		EventLane lane = _lanes.get(ed.lane());
+		if (lane == null) {
+			synchronized (_lanes) {
+				lane = _lanes.get(ed.lane());
+				if (lane == null) {
+					lane = createLane(ed);
+					_lanes.put(ed.lane(), lane);
+				}
+			}
+		}
+		return lane;
+	}
+
+	private EventLane createLane(EventDelivery ed) {
+		String prefix = "event.lane." + ed.lane() + ".";
+		int threads = Integer.parseInt(_cfg.getProperty(prefix + "threads", String.valueOf(ed.threads())));
+		int queue = Integer.parseInt(_cfg.getProperty(prefix + "queue", String.valueOf(ed.queueSize())));
+		EventDelivery.Overflow overflow = ed.overflow();
+		String overflowName = _cfg.getProperty(prefix + "overflow");
+		if (overflowName != null) {
+			try {
+				overflow = EventDelivery.Overflow.valueOf(overflowName.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.error("Unknown overflow policy " + overflowName + " for event lane " + ed.lane());
+			}
+		}
+		logger.debug("Created event lane " + ed.lane() + " with " + threads + " threads, queue of "
+				+ queue + ", overflow " + overflow);
+		return new EventLane(ed.lane(), threads, queue, ed.ordered(), overflow, this);
+	}
+
+	/**
+	 * Subscribers registered through annotations are wrapped by a proxy, the
+	 * declaration is on the object they call.
+	 */
+	private Object getTarget(Object subscriber) {
+		try {
+			Method m = subscriber.getClass().getMethod("getProxiedSubscriber");
+			Object target = m.invoke(subscriber);
+			if (target != null) {
+				return target;
+			}
+		} catch (NoSuchMethodException e) {
+			// not a proxy
+		} catch (Exception e) {
+			logger.debug("Unable to find the subscriber behind " + subscriber, e);
+		}
+		return subscriber;
 	}
 
 	private static class QueuedAsyncEvent {
@@ -56,6 +349,10 @@ public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 		private Object _event;
 		private String _topic;
 		private Type _genericType;
+		private long _queued = System.currentTimeMillis();
+		// set on both halves of an event keyed by two directories
+		private CountDownLatch _barrier;
+		private boolean _marker;
 
 		private QueuedAsyncEvent(Object event) {
 			_event = event;
@@ -71,6 +368,14 @@ public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 			_event = event;
 		}
 
+		/**
+		 * The half queued for the source, it only opens the barrier.
+		 */
+		private QueuedAsyncEvent(CountDownLatch barrier) {
+			_barrier = barrier;
+			_marker = true;
+		}
+
 		private Object getEvent() {
 			return _event;
 		}
@@ -84,24 +389,75 @@ public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 		}
 	}
 
-	private class EventHandler implements Runnable {
+	private class EventShard implements Runnable {
+
+		private LinkedBlockingQueue<QueuedAsyncEvent> _queue = new LinkedBlockingQueue<QueuedAsyncEvent>();
+
+		private AtomicLong _published = new AtomicLong();
+
+		private AtomicLong _totalLag = new AtomicLong();
+
+		private AtomicLong _maxLag = new AtomicLong();
+
+		private EventShard(int index) {
+			Thread t = new Thread(this, "AsyncEventHandler-" + index);
+			t.start();
+		}
+
+		private void add(QueuedAsyncEvent event) {
+			_queue.add(event);
+		}
 
 		public void run() {
-			Thread.currentThread().setName("AsyncEventHandler");
 			while (true) {
 				try {
-					QueuedAsyncEvent queuedEvent = _eventQueue.take();
-					if (queuedEvent.getTopic() != null) {
-						publish(queuedEvent.getTopic(),queuedEvent.getEvent());
-					} else if (queuedEvent.getGenericType() != null) {
-						publish(queuedEvent.getGenericType(),queuedEvent.getEvent());
-					} else {
-						publish(queuedEvent.getEvent());
+					QueuedAsyncEvent queuedEvent = _queue.take();
+					if (queuedEvent._marker) {
+						queuedEvent._barrier.countDown();
+						continue;
+					}
+					if (queuedEvent._barrier != null) {
+						awaitBarrier(queuedEvent._barrier);
+					}
+					long lag = System.currentTimeMillis() - queuedEvent._queued;
+					_totalLag.addAndGet(lag);
+					if (lag > _maxLag.get()) {
+						_maxLag.set(lag);
+					}
+					_publishedTime.set(queuedEvent._queued);
+					try {
+						if (queuedEvent.getTopic() != null) {
+							publish(queuedEvent.getTopic(),queuedEvent.getEvent());
+						} else if (queuedEvent.getGenericType() != null) {
+							publish(queuedEvent.getGenericType(),queuedEvent.getEvent());
+						} else {
+							publish(queuedEvent.getEvent());
+						}
+					} finally {
+						_publishedTime.remove();
+						_published.incrementAndGet();
 					}
 				} catch (InterruptedException e) {
 					// Do nothing just loop and try again
+				} catch (Throwable t) {
+					logger.error("Exception publishing an event", t);
 				}
 			}
 		}
 	}
+
+	/**
+	 * The key of an event which has to keep its order with the events of two
+	 * directories, a rename from one to the other.
+	 */
+	static class CrossKey {
+		final Object _source;
+
+		final Object _destination;
+
+		CrossKey(Object source, Object destination) {
+			_source = source;
+			_destination = destination;
+		}
+	}
 }
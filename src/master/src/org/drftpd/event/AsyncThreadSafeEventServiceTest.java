@@ -0,0 +1,84 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.bushe.swing.event.EventSubscriber;
+
+/**
+ * Tests the keys events are ordered by and how the events reach subscribers
+ * declaring a lane.
+ * @version $Id$
+ */
+public class AsyncThreadSafeEventServiceTest extends TestCase {
+
+	public AsyncThreadSafeEventServiceTest(String fName) {
+		super(fName);
+	}
+
+	public void testRoot() {
+		// a directory and what is created in it must share the key
+		assertEquals("/mp3", AsyncThreadSafeEventService.getRoot("/mp3"));
+		assertEquals("/mp3", AsyncThreadSafeEventService.getRoot("/mp3/release"));
+		assertEquals("/mp3", AsyncThreadSafeEventService.getRoot("/mp3/release/cd1/file.mp3"));
+		assertEquals("/", AsyncThreadSafeEventService.getRoot("/"));
+	}
+
+	public void testSyncPublish() {
+		AsyncThreadSafeEventService service = new AsyncThreadSafeEventService();
+		LaneSubscriber subscriber = new LaneSubscriber(1);
+		service.subscribe(String.class, subscriber);
+		service.publish("sync");
+		// delivered before publish returned, on the publishing thread
+		assertEquals(Collections.singletonList(Thread.currentThread().getName()), subscriber._threads);
+		assertTrue(service.getLanes().isEmpty());
+	}
+
+	public void testAsyncPublish() throws InterruptedException {
+		AsyncThreadSafeEventService service = new AsyncThreadSafeEventService();
+		LaneSubscriber subscriber = new LaneSubscriber(1);
+		service.subscribe(String.class, subscriber);
+		service.publishAsync("async");
+		assertTrue(subscriber._done.await(5, TimeUnit.SECONDS));
+		assertEquals("EventLane-test-0", subscriber._threads.get(0));
+		assertEquals(1, service.getLanes().size());
+	}
+
+	@EventDelivery(lane = "test")
+	public static class LaneSubscriber implements EventSubscriber<String> {
+		private List<String> _threads = Collections.synchronizedList(new ArrayList<String>());
+
+		private CountDownLatch _done;
+
+		private LaneSubscriber(int events) {
+			_done = new CountDownLatch(events);
+		}
+
+		public void onEvent(String event) {
+			_threads.add(Thread.currentThread().getName());
+			_done.countDown();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.event;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how the events a subscriber receives from the
+ * {@link AsyncThreadSafeEventService} are delivered.<br>
+ * By default a subscriber is called by the thread publishing the event, for
+ * asynchronous events one of the event service's threads, so a slow
+ * subscriber delays every other subscriber. An asynchronous subscriber is
+ * called by the threads of its lane instead, subscribers sharing a lane
+ * receive the events in the order they were published.<br>
+ * The values can be overridden in master.conf with
+ * event.lane.&lt;lane&gt;.threads, .queue and .overflow
+ * @version $Id$
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface EventDelivery {
+
+	public enum Overflow {
+		/** the publisher waits for room in the queue */
+		BLOCK,
+		/** the event is dropped for the subscribers of the lane */
+		DISCARD,
+		/** the publisher calls the subscriber itself */
+		CALLER_RUNS
+	}
+
+	/**
+	 * @return the name of the lane
+	 */
+	String lane();
+
+	/**
+	 * @return false to be called by the publishing thread like any other subscriber
+	 */
+	boolean async() default true;
+
+	/**
+	 * @return true to keep the order of the events with the same key
+	 * (same directory or topic) when the lane has more than one thread,
+	 * false to let any thread take the next event.
+	 */
+	boolean ordered() default true;
+
+	int threads() default 1;
+
+	int queueSize() default 10000;
+
+	Overflow overflow() default Overflow.BLOCK;
+}
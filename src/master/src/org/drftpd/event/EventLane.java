@@ -0,0 +1,248 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.event;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Queues and delivers events to the subscribers declaring the same
+ * {@link EventDelivery#lane()}.
+ * @version $Id$
+ */
+public class EventLane {
+	private static final Logger logger = Logger.getLogger(EventLane.class);
+
+	private String _name;
+
+	private EventDelivery.Overflow _overflow;
+
+	private int _queueSize;
+
+	private ArrayList<LinkedBlockingQueue<LaneEvent>> _queues = new ArrayList<LinkedBlockingQueue<LaneEvent>>();
+
+	private AsyncThreadSafeEventService _service;
+
+	private AtomicLong _delivered = new AtomicLong();
+
+	private AtomicLong _discarded = new AtomicLong();
+
+	private AtomicLong _totalLag = new AtomicLong();
+
+	private AtomicLong _maxLag = new AtomicLong();
+
+	private final Object _crossLock = new Object();
+
+	/**
+	 * @param name
+	 * @param threads
+	 * @param queueSize maximum number of events waiting for each thread
+	 * when ordered, for all of them otherwise.
+	 * @param ordered
+	 * @param overflow
+	 * @param service
+	 */
+	protected EventLane(String name, int threads, int queueSize, boolean ordered,
+			EventDelivery.Overflow overflow, AsyncThreadSafeEventService service) {
+		_name = name;
+		_overflow = overflow;
+		_queueSize = queueSize;
+		_service = service;
+		threads = Math.max(1, threads);
+		int queues = ordered ? threads : 1;
+		for (int i = 0; i < queues; i++) {
+			_queues.add(new LinkedBlockingQueue<LaneEvent>(queueSize));
+		}
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new LaneWorker(_queues.get(i % queues)),
+					"EventLane-" + name + "-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * @param event
+	 * @param key events with the same key are delivered in order, an event
+	 * keyed by two directories keeps its order with the events of both
+	 */
+	protected void submit(LaneEvent event, Object key) {
+		if (key instanceof AsyncThreadSafeEventService.CrossKey) {
+			AsyncThreadSafeEventService.CrossKey cross = (AsyncThreadSafeEventService.CrossKey) key;
+			LinkedBlockingQueue<LaneEvent> source = getQueue(cross._source);
+			LinkedBlockingQueue<LaneEvent> destination = getQueue(cross._destination);
+			if (source != destination) {
+				event._barrier = new CountDownLatch(1);
+				synchronized (_crossLock) {
+					if (!source.offer(new LaneEvent(event._barrier))) {
+						// the order with the source is lost rather than waiting for room
+						event._barrier.countDown();
+					}
+					submit(event, destination);
+				}
+				return;
+			}
+			key = cross._destination;
+		}
+		submit(event, getQueue(key));
+	}
+
+	private LinkedBlockingQueue<LaneEvent> getQueue(Object key) {
+		return _queues.get((key.hashCode() & Integer.MAX_VALUE) % _queues.size());
+	}
+
+	private void submit(LaneEvent event, LinkedBlockingQueue<LaneEvent> queue) {
+		if (queue.offer(event)) {
+			return;
+		}
+		switch (_overflow) {
+		case BLOCK:
+			try {
+				queue.put(event);
+			} catch (InterruptedException e) {
+				_discarded.incrementAndGet();
+			}
+			break;
+		case CALLER_RUNS:
+			deliver(event);
+			break;
+		default:
+			if (_discarded.incrementAndGet() % 1000 == 1) {
+				logger.warn("Event lane " + _name + " is full, discarded " + _discarded.get() + " events so far");
+			}
+		}
+	}
+
+	private void deliver(LaneEvent event) {
+		if (event._barrier != null) {
+			AsyncThreadSafeEventService.awaitBarrier(event._barrier);
+		}
+		long lag = System.currentTimeMillis() - event._queued;
+		_totalLag.addAndGet(lag);
+		long max = _maxLag.get();
+		while (lag > max && !_maxLag.compareAndSet(max, lag)) {
+			max = _maxLag.get();
+		}
+		try {
+			_service.deliver(event);
+		} catch (Throwable t) {
+			logger.error("Exception delivering " + event._event + " to " + event._subscriber, t);
+		}
+		_delivered.incrementAndGet();
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public int getQueueSize() {
+		int size = 0;
+		for (LinkedBlockingQueue<LaneEvent> queue : _queues) {
+			size += queue.size();
+		}
+		return size;
+	}
+
+	public int getMaxQueueSize() {
+		return _queueSize * _queues.size();
+	}
+
+	public long getDelivered() {
+		return _delivered.get();
+	}
+
+	public long getDiscarded() {
+		return _discarded.get();
+	}
+
+	/**
+	 * @return the average time, in milliseconds, between an event being
+	 * published and being delivered to a subscriber of this lane.
+	 */
+	public long getAverageLag() {
+		long delivered = _delivered.get();
+		return delivered == 0 ? 0 : _totalLag.get() / delivered;
+	}
+
+	public long getMaxLag() {
+		return _maxLag.get();
+	}
+
+	/**
+	 * An event waiting to be delivered to a single subscriber.
+	 */
+	protected static class LaneEvent {
+		protected Object _event;
+
+		protected String _topic;
+
+		protected Object _eventObj;
+
+		protected Object _subscriber;
+
+		protected long _queued;
+
+		// set on both halves of an event keyed by two directories
+		private CountDownLatch _barrier;
+
+		private boolean _marker;
+
+		protected LaneEvent(Object event, String topic, Object eventObj, Object subscriber, long queued) {
+			_event = event;
+			_topic = topic;
+			_eventObj = eventObj;
+			_subscriber = subscriber;
+			_queued = queued;
+		}
+
+		/**
+		 * The half queued for the source, it only opens the barrier.
+		 */
+		private LaneEvent(CountDownLatch barrier) {
+			_barrier = barrier;
+			_marker = true;
+		}
+	}
+
+	private class LaneWorker implements Runnable {
+		private LinkedBlockingQueue<LaneEvent> _queue;
+
+		private LaneWorker(LinkedBlockingQueue<LaneEvent> queue) {
+			_queue = queue;
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					LaneEvent event = _queue.take();
+					if (event._marker) {
+						event._barrier.countDown();
+					} else {
+						deliver(event);
+					}
+				} catch (InterruptedException e) {
+					// Do nothing just loop and try again
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.bushe.swing.event.EventSubscriber;
+
+/**
+ * Tests the order events are delivered in by a lane and what happens when
+ * its queue is full.
+ * @version $Id$
+ */
+public class EventLaneTest extends TestCase {
+
+	private AsyncThreadSafeEventService _service;
+
+	private Subscriber _subscriber;
+
+	public EventLaneTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_service = new AsyncThreadSafeEventService();
+		_subscriber = new Subscriber();
+	}
+
+	private void submit(EventLane lane, String key, String event) {
+		lane.submit(new EventLane.LaneEvent(event, null, null, _subscriber, System.currentTimeMillis()), key);
+	}
+
+	public void testOrdered() throws InterruptedException {
+		EventLane lane = new EventLane("ordered", 4, 10000, true, EventDelivery.Overflow.BLOCK, _service);
+		int events = 1000;
+		_subscriber._done = new CountDownLatch(events * 3);
+		for (int i = 0; i < events; i++) {
+			submit(lane, "/a", "/a " + i);
+			submit(lane, "/b", "/b " + i);
+			submit(lane, "/c", "/c " + i);
+		}
+		assertTrue(_subscriber._done.await(5, TimeUnit.SECONDS));
+		int[] next = new int[3];
+		for (String event : _subscriber._events) {
+			int key = event.charAt(1) - 'a';
+			assertEquals(event.substring(0, 2) + " " + next[key]++, event);
+		}
+		assertEquals(events, next[0]);
+		assertEquals(events, next[1]);
+		assertEquals(events, next[2]);
+	}
+
+	/**
+	 * Fills a lane of one thread with room for a single event, returns once
+	 * the thread is busy with the first event and the second one is queued.
+	 */
+	private EventLane fill(EventDelivery.Overflow overflow) throws InterruptedException {
+		EventLane lane = new EventLane("full", 1, 1, true, overflow, _service);
+		_subscriber._entered = new CountDownLatch(1);
+		_subscriber._release = new CountDownLatch(1);
+		submit(lane, "/a", "block");
+		assertTrue(_subscriber._entered.await(5, TimeUnit.SECONDS));
+		submit(lane, "/a", "queued");
+		return lane;
+	}
+
+	public void testDiscard() throws InterruptedException {
+		_subscriber._done = new CountDownLatch(2);
+		EventLane lane = fill(EventDelivery.Overflow.DISCARD);
+		submit(lane, "/a", "discarded");
+		assertEquals(1, lane.getDiscarded());
+		_subscriber._release.countDown();
+		assertTrue(_subscriber._done.await(5, TimeUnit.SECONDS));
+		assertFalse(_subscriber._events.contains("discarded"));
+	}
+
+	public void testCallerRuns() throws InterruptedException {
+		_subscriber._done = new CountDownLatch(3);
+		EventLane lane = fill(EventDelivery.Overflow.CALLER_RUNS);
+		submit(lane, "/a", "caller");
+		assertEquals(Thread.currentThread().getName(),
+				_subscriber._threads.get(_subscriber._events.indexOf("caller")));
+		_subscriber._release.countDown();
+		assertTrue(_subscriber._done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, lane.getDiscarded());
+	}
+
+	public void testCrossKey() throws InterruptedException {
+		EventLane lane = new EventLane("cross", 2, 100, true, EventDelivery.Overflow.BLOCK, _service);
+		_subscriber._done = new CountDownLatch(3);
+		_subscriber._entered = new CountDownLatch(1);
+		_subscriber._release = new CountDownLatch(1);
+		submit(lane, "/a", "block");
+		assertTrue(_subscriber._entered.await(5, TimeUnit.SECONDS));
+		// "/a" and "/b" are delivered by different threads
+		lane.submit(new EventLane.LaneEvent("rename", null, null, _subscriber, System.currentTimeMillis()),
+				new AsyncThreadSafeEventService.CrossKey("/a", "/b"));
+		submit(lane, "/b", "/b after");
+		Thread.sleep(200);
+		assertEquals(1, _subscriber._events.size());
+		_subscriber._release.countDown();
+		assertTrue(_subscriber._done.await(5, TimeUnit.SECONDS));
+		assertEquals("block", _subscriber._events.get(0));
+		assertEquals("rename", _subscriber._events.get(1));
+		assertEquals("/b after", _subscriber._events.get(2));
+	}
+
+	private static class Subscriber implements EventSubscriber<String> {
+		private List<String> _events = Collections.synchronizedList(new ArrayList<String>());
+
+		private List<String> _threads = Collections.synchronizedList(new ArrayList<String>());
+
+		private CountDownLatch _done;
+
+		private CountDownLatch _entered;
+
+		private CountDownLatch _release;
+
+		public void onEvent(String event) {
+			synchronized (this) {
+				_events.add(event);
+				_threads.add(Thread.currentThread().getName());
+			}
+			if (event.equals("block")) {
+				_entered.countDown();
+				try {
+					_release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+			_done.countDown();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.event;
+
+import org.drftpd.master.RemoteSlave;
+import org.drftpd.master.RemoteTransfer;
+import org.drftpd.slave.TransferFailedException;
+
+/**
+ * Published when a slave reports a transfer as finished, whether or not it
+ * succeeded, so the transfer can be measured without looking up the file.
+ * @version $Id$
+ */
+public class SlaveTransferEvent extends Event {
+	private RemoteSlave _rslave;
+
+	private char _direction;
+
+	private long _transfered;
+
+	private long _elapsed;
+
+	private long _firstByteDelay;
+
+	private float _concurrency;
+
+	private boolean _failed;
+
+	public SlaveTransferEvent(RemoteSlave rslave, RemoteTransfer transfer) {
+		super("TRANSFERFINISHED", System.currentTimeMillis());
+		_rslave = rslave;
+		_direction = transfer.getTransferDirection();
+		_transfered = transfer.getTransfered();
+		_elapsed = transfer.getElapsed();
+		_firstByteDelay = transfer.getFirstByteDelay();
+		_concurrency = transfer.getConcurrency();
+		try {
+			transfer.getTransferStatus();
+		} catch (TransferFailedException e) {
+			_failed = true;
+		}
+	}
+
+	public RemoteSlave getRSlave() {
+		return _rslave;
+	}
+
+	public char getDirection() {
+		return _direction;
+	}
+
+	public long getTransfered() {
+		return _transfered;
+	}
+
+	public long getElapsed() {
+		return _elapsed;
+	}
+
+	/**
+	 * @see RemoteTransfer#getFirstByteDelay()
+	 */
+	public long getFirstByteDelay() {
+		return _firstByteDelay;
+	}
+
+	/**
+	 * @see RemoteTransfer#getConcurrency()
+	 */
+	public float getConcurrency() {
+		return _concurrency;
+	}
+
+	public boolean isFailed() {
+		return _failed;
+	}
+}
@@ -28,8 +28,11 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -113,7 +116,7 @@ public class BaseFtpConnection extends Session implements Runnable {
 	/**
 	 * Should this thread stop insted of continue looping?
 	 */
-	protected boolean _stopRequest = false;
+	protected volatile boolean _stopRequest = false;
 
 	protected String _stopRequestMessage;
 
@@ -127,6 +130,24 @@ public class BaseFtpConnection extends Session implements Runnable {
 
 	private AtomicInteger _commandCount = new AtomicInteger(0);
 
+	private AtomicInteger _executing = new AtomicInteger(0);
+
+	private static final AtomicLong _sessionIds = new AtomicLong(0);
+
+	private long _threadId;
+
+	/**
+	 * The channel of the socket accepted from the client, still used to
+	 * wait for data once the connection has been switched to SSL.
+	 */
+	private SocketChannel _channel;
+
+	private ControlSelector _controlSelector;
+
+	private boolean _sharedPool = false;
+
+	private boolean _started = false;
+
 	protected BaseFtpConnection() {
 	}
 
@@ -165,7 +186,7 @@ public class BaseFtpConnection extends Session implements Runnable {
 	 * Returns thread id number
 	 */
 	public long getThreadID() {
-		return _thread.getId();
+		return _threadId;
 	}
 	
 	/**
@@ -243,7 +264,33 @@ public class BaseFtpConnection extends Session implements Runnable {
 	 * Returns true if client is executing a command.
 	 */
 	public boolean isExecuting() {
-		return _pool.getActiveCount() > 0;
+		return _executing.get() > 0;
+	}
+
+	/**
+	 * Returns true if the connection can be handed to the {@link ControlSelector},
+	 * which puts the channel in non-blocking mode.<br>
+	 * Never while a command is executing, its replies are written through the
+	 * socket streams which only work on a blocking channel, the connection
+	 * parks on the first read timeout after the command finished.
+	 */
+	boolean canPark() throws IOException {
+		return _controlSelector != null && _channel != null && !isExecuting() && !_in.ready();
+	}
+
+	void setControlSelector(ControlSelector controlSelector) {
+		_controlSelector = controlSelector;
+	}
+
+	/**
+	 * Counts a command being handed to the command pool.
+	 */
+	void commandStarted() {
+		_executing.incrementAndGet();
+	}
+
+	void commandFinished() {
+		_executing.decrementAndGet();
 	}
 
 	public boolean isSecure() {
@@ -255,45 +302,32 @@ public class BaseFtpConnection extends Session implements Runnable {
 	}
 
 	/**
-	 * Server one FTP connection.
+	 * Server one FTP connection.<br>
+	 * When a {@link ControlSelector} is in use this returns whenever the
+	 * client has nothing more to say and is called again by the selector
+	 * once it does.
 	 */
 	public void run() {
-		_commandManager = GlobalContext.getConnectionManager().getCommandManager();
-		setCommands(GlobalContext.getConnectionManager().getCommands());
-		_lastActive = System.currentTimeMillis();
-		setCurrentDirectory(getGlobalContext().getRoot());
 		_thread = Thread.currentThread();
-		GlobalContext.getConnectionManager().dumpThreadPool();
-		
-		_lastActive = System.currentTimeMillis();
-		if (!GlobalContext.getConfig().getHideIps()) {
-			logger.info("Handling new request from "
-					+ getClientAddress().getHostAddress());
-			_thread.setName("FtpConn thread " + _thread.getId() + " from "
-					+ getClientAddress().getHostAddress());
-		} else {
-			logger.info("Handling new request from <iphidden>");
-			_thread.setName("FtpConn thread " + _thread.getId()
-					+ " from <iphidden>");
-		}
-		
-		_pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
-                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-                new CommandThreadFactory(_thread.getName()));
-
+		boolean parked = false;
 		try {
-			_controlSocket.setSoTimeout(1000);
-
-			if (GlobalContext.getGlobalContext().isShutdown()) {
-				stop(GlobalContext.getGlobalContext().getShutdownMessage());
+			if (!_started) {
+				_started = true;
+				startSession();
 			} else {
-				FtpReply response = new FtpReply(220, GlobalContext.getConfig().getLoginPrompt());
-				_out.print(response);
+				updateThreadName();
 			}
 
 			while (!_stopRequest) {
 				_out.flush();
 
+				if (canPark()) {
+					// nothing left to read, don't hold a thread until there is
+					parked = true;
+					_controlSelector.park(this);
+					return;
+				}
+
 				String commandLine = null;
 
 				try {
@@ -309,15 +343,9 @@ public class BaseFtpConnection extends Session implements Runnable {
 						stop("Socket unexpectedly closed");
 						break;
 					}
-					int idleTime;
-					try {
-						idleTime = getUser().getIdleTime();
-						if (idleTime > 0) {
-							_pool.setKeepAliveTime(idleTime, TimeUnit.SECONDS);
-						}
-					} catch (NoSuchUserException e) {
-						idleTime = 60;
-						// user not logged in yet
+					int idleTime = getIdleTimeout();
+					if (idleTime > 0 && !_sharedPool) {
+						_pool.setKeepAliveTime(idleTime, TimeUnit.SECONDS);
 					}
 					if (idleTime > 0
 							&& ((System.currentTimeMillis() - _lastActive) / 1000 >= idleTime)
@@ -348,7 +376,14 @@ public class BaseFtpConnection extends Session implements Runnable {
 				}
 
 				// execute command
-				_pool.execute(new CommandThread(_request, this));
+				commandStarted();
+				try {
+					_pool.execute(new CommandThread(_request, this));
+				} catch (RejectedExecutionException e) {
+					commandFinished();
+					stop("Too many commands are being executed, try again later");
+					break;
+				}
 				if (_request.getCommand().equalsIgnoreCase("AUTH")) {
 					while(!_authDone && !_stopRequest) {
 						Thread.sleep(100);
@@ -371,56 +406,141 @@ public class BaseFtpConnection extends Session implements Runnable {
 		} catch (Exception ex) {
 			logger.log(Level.INFO, "Exception, closing", ex);
 		} finally {
-			shutdownSocket();
+			if (!parked) {
+				closeSession();
+			}
 
-			if (isAuthenticated()) {
-				try {
-					getUser().updateLastAccessTime();
-				} catch (NoSuchUserException e) {
-					logger.error("User does not exist, yet user is authenticated, this is a bug");
-				}
-				
-				GlobalContext.getEventService().publishAsync(new ConnectionEvent(getUserNull(), "LOGOUT"));
+			Thread t = Thread.currentThread();
+			t.setName(ConnectionThreadFactory.getIdleThreadName(t.getId()));
+		}
+	}
+
+	private void startSession() throws IOException {
+		_commandManager = GlobalContext.getConnectionManager().getCommandManager();
+		setCommands(GlobalContext.getConnectionManager().getCommands());
+		_lastActive = System.currentTimeMillis();
+		setCurrentDirectory(getGlobalContext().getRoot());
+		GlobalContext.getConnectionManager().dumpThreadPool();
+		
+		setControlSelector(GlobalContext.getConnectionManager().getControlSelector());
+		if (_controlSelector != null) {
+			// threads are shared, they can't identify the session
+			_threadId = _sessionIds.incrementAndGet();
+		} else {
+			_threadId = _thread.getId();
+		}
+
+		_lastActive = System.currentTimeMillis();
+		if (!GlobalContext.getConfig().getHideIps()) {
+			logger.info("Handling new request from "
+					+ getClientAddress().getHostAddress());
+		} else {
+			logger.info("Handling new request from <iphidden>");
+		}
+		updateThreadName();
+		
+		ThreadPoolExecutor commandPool = GlobalContext.getConnectionManager().getCommandPool();
+		if (commandPool != null) {
+			_pool = commandPool;
+			_sharedPool = true;
+		} else {
+			_pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
+					60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new CommandThreadFactory(_thread.getName()));
+		}
+
+		_controlSocket.setSoTimeout(1000);
+
+		if (GlobalContext.getGlobalContext().isShutdown()) {
+			stop(GlobalContext.getGlobalContext().getShutdownMessage());
+		} else {
+			FtpReply response = new FtpReply(220, GlobalContext.getConfig().getLoginPrompt());
+			_out.print(response);
+		}
+	}
+
+	private void closeSession() {
+		shutdownSocket();
+
+		if (isAuthenticated()) {
+			try {
+				getUser().updateLastAccessTime();
+			} catch (NoSuchUserException e) {
+				logger.error("User does not exist, yet user is authenticated, this is a bug");
 			}
 			
-			if (isExecuting()) {
-				super.abortCommand();
-			}
-			getTransferState().reset();
+			GlobalContext.getEventService().publishAsync(new ConnectionEvent(getUserNull(), "LOGOUT"));
+		}
+		
+		if (isExecuting()) {
+			super.abortCommand();
+		}
+		getTransferState().reset();
+		if (_pool != null && !_sharedPool) {
 			_pool.shutdown();
-			GlobalContext.getConnectionManager().remove(this);
-			GlobalContext.getConnectionManager().dumpThreadPool();
-			
-			Thread t = Thread.currentThread();
-			t.setName(ConnectionThreadFactory.getIdleThreadName(t.getId()));
 		}
+		GlobalContext.getConnectionManager().remove(this);
+		GlobalContext.getConnectionManager().dumpThreadPool();
 	}
 
-	public void setAuthenticated(boolean authenticated) {
-		_authenticated = authenticated;
+	/**
+	 * @return the number of seconds the client can stay idle, 0 if there is no limit.
+	 */
+	public int getIdleTimeout() {
+		try {
+			return getUser().getIdleTime();
+		} catch (NoSuchUserException e) {
+			// user not logged in yet
+			return 60;
+		}
+	}
+
+	public SocketChannel getChannel() {
+		return _channel;
+	}
+
+	public boolean isStopRequested() {
+		return _stopRequest;
+	}
 
+	private void updateThreadName() {
+		String name = "FtpConn thread " + _threadId;
 		if (isAuthenticated()) {
 			try {
 				// If hideips is on, hide ip but not user/group
 				if (GlobalContext.getConfig().getHideIps()) {
-					_thread.setName("FtpConn thread " + _thread.getId()
-							+ " servicing " + _user + "/"
+					_thread.setName(name + " servicing " + _user + "/"
 							+ getUser().getGroup());
 				} else {
-					_thread.setName("FtpConn thread " + _thread.getId()
-							+ " from " + getClientAddress().getHostAddress()
+					_thread.setName(name + " from " + getClientAddress().getHostAddress()
 							+ " " + _user + "/" + getUser().getGroup());
 				}
 			} catch (NoSuchUserException e) {
 				logger
 						.error("User does not exist, yet user is authenticated, this is a bug");
 			}
+		} else if (!GlobalContext.getConfig().getHideIps()) {
+			_thread.setName(name + " from " + getClientAddress().getHostAddress());
+		} else {
+			_thread.setName(name + " from <iphidden>");
+		}
+	}
+
+	public void setAuthenticated(boolean authenticated) {
+		_authenticated = authenticated;
+
+		// with a ControlSelector the thread is renamed when the session resumes
+		if (isAuthenticated() && _controlSelector == null) {
+			updateThreadName();
 		}
 	}
 
 	public void setControlSocket(Socket socket) {
 		try {
 			_controlSocket = socket;
+			if (_channel == null) {
+				_channel = socket.getChannel();
+			}
 			_in = new BufferedReader(new InputStreamReader(_controlSocket
 					.getInputStream(), "ISO-8859-1"));
 
@@ -453,6 +573,9 @@ public class BaseFtpConnection extends Session implements Runnable {
 	public void stop() {
 		getTransferState().abort("Your connection is being shutdown");
 		_stopRequest = true;
+		if (_controlSelector != null) {
+			_controlSelector.wakeup(this);
+		}
 	}
 
 	public void stop(String message) {
@@ -594,6 +717,14 @@ public class BaseFtpConnection extends Session implements Runnable {
 		}
 
 		public void run() {
+			try {
+				runCommand();
+			} finally {
+				commandFinished();
+			}
+		}
+
+		private void runCommand() {
 			if (_commandCount.get() > 0 && !_ftpRequest.getCommand().equalsIgnoreCase("ABOR")) {
 				return;
 			}
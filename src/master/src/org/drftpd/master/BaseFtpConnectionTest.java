@@ -0,0 +1,102 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests when a control connection may be handed to the {@link ControlSelector}.
+ * @version $Id$
+ */
+public class BaseFtpConnectionTest extends TestCase {
+
+	private ServerSocketChannel _server;
+
+	private SocketChannel _client;
+
+	private SocketChannel _accepted;
+
+	private BaseFtpConnection _conn;
+
+	public BaseFtpConnectionTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws Exception {
+		_server = ServerSocketChannel.open();
+		_server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		_client = SocketChannel.open(new InetSocketAddress("127.0.0.1",
+				_server.socket().getLocalPort()));
+		_accepted = _server.accept();
+		_conn = new BaseFtpConnection(_accepted.socket());
+		_conn.setControlSelector(new ControlSelector(new Executor() {
+			public void execute(Runnable command) {
+			}
+		}));
+	}
+
+	protected void tearDown() throws Exception {
+		_client.close();
+		_accepted.close();
+		_server.close();
+	}
+
+	public void testParkWhenIdle() throws Exception {
+		assertTrue(_conn.canPark());
+	}
+
+	public void testNoParkWithoutSelector() throws Exception {
+		_conn.setControlSelector(null);
+		assertFalse(_conn.canPark());
+	}
+
+	public void testNoParkWhileExecuting() throws Exception {
+		_conn.commandStarted();
+		assertFalse(_conn.canPark());
+
+		// the channel stays blocking so the command can still reply
+		PrintWriter out = _conn.getControlWriter();
+		out.print("200 Command okay.\r\n");
+		out.flush();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				_client.socket().getInputStream(), "ISO-8859-1"));
+		assertEquals("200 Command okay.", in.readLine());
+
+		_conn.commandFinished();
+		assertTrue(_conn.canPark());
+	}
+
+	public void testNoParkWithPendingInput() throws Exception {
+		PrintWriter out = new PrintWriter(_client.socket().getOutputStream());
+		out.print("NOOP\r\n");
+		out.flush();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (_conn.canPark() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(_conn.canPark());
+	}
+}
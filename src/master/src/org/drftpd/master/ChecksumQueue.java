@@ -0,0 +1,564 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
+import org.drftpd.exceptions.NoAvailableSlaveException;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.RemoteIOException;
+import org.drftpd.slave.async.AsyncResponseChecksum;
+import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.vfs.FileHandle;
+
+/**
+ * Computes the checksums of remerged files in the background so they are
+ * known before a transfer or an SFV check needs them.<br>
+ * The newest files are done first. A slave only gets checksum.queue.slave
+ * checksums at a time, only while it runs at most checksum.queue.idle
+ * transfers, and the size of the files it is given is limited to
+ * checksum.queue.rate per second so it keeps serving transfers.<br>
+ * Files still waiting are kept in checksum.queue across restarts.
+ * @version $Id$
+ */
+public class ChecksumQueue {
+
+	private static final Logger logger = Logger.getLogger(ChecksumQueue.class);
+
+	// 1 was mangled by the character encoding of SafeFileOutputStream
+	private static final int VERSION = 2;
+
+	// entries looked at each time slaves have room for more checksums
+	private static final int SCAN_LIMIT = 1000;
+
+	private static final int MAX_ATTEMPTS = 5;
+
+	private static final long RETRY_DELAY = 60000L;
+
+	private static ChecksumQueue _instance;
+
+	private final File _queueFile;
+
+	private final PriorityQueue<Entry> _queue = new PriorityQueue<Entry>(64, new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			// newest first
+			return e1._lastModified > e2._lastModified ? -1 : (e1._lastModified < e2._lastModified ? 1 : 0);
+		}
+	});
+
+	// entries queued or running, by path
+	private final HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+
+	private final HashMap<String, SlaveBudget> _budgets = new HashMap<String, SlaveBudget>();
+
+	private boolean _started;
+
+	private boolean _modified;
+
+	private int _perSlave;
+
+	private long _rate;
+
+	private int _idleTransfers;
+
+	private ExecutorService _fetchers;
+
+	private int _running;
+
+	private long _completed;
+
+	private long _failed;
+
+	private long _bytes;
+
+	private long _startTime;
+
+	/**
+	 * Private constructor in order to make this class a Singleton.
+	 */
+	private ChecksumQueue() {
+		this(new File("checksum.queue"));
+	}
+
+	/**
+	 * @param queueFile where the files waiting are kept across restarts
+	 */
+	ChecksumQueue(File queueFile) {
+		_queueFile = queueFile;
+	}
+
+	/**
+	 * @return the unique ChecksumQueue instance, creating the instance if it does not exist yet.
+	 */
+	public static synchronized ChecksumQueue getChecksumQueue() {
+		if (_instance == null) {
+			_instance = new ChecksumQueue();
+		}
+		return _instance;
+	}
+
+	/**
+	 * Loads the files left from the last run and starts the dispatcher.
+	 * @param cfg the master configuration, the checksum.queue.* settings are read from it.
+	 */
+	public synchronized void start(Properties cfg) {
+		if (_started) {
+			throw new IllegalStateException("The ChecksumQueue is already started");
+		}
+		configure(cfg);
+		if (_perSlave <= 0) {
+			logger.info("Background checksums are disabled");
+			return;
+		}
+		open();
+		_fetchers = Executors.newCachedThreadPool(new ChecksumThreadFactory());
+		Thread t = new Thread(new Dispatcher());
+		t.setName("ChecksumQueue");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	synchronized void configure(Properties cfg) {
+		_perSlave = Integer.parseInt(PropertyHelper.getProperty(cfg, "checksum.queue.slave", "1"));
+		_rate = Long.parseLong(PropertyHelper.getProperty(cfg, "checksum.queue.rate", "20")) * 1024L * 1024L;
+		_idleTransfers = Integer.parseInt(PropertyHelper.getProperty(cfg, "checksum.queue.idle", "2"));
+	}
+
+	/**
+	 * Loads the files left from the last run and accepts new ones.
+	 */
+	synchronized void open() {
+		load();
+		_started = true;
+		_startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Queues a file whose checksum is not known.
+	 * @param file
+	 */
+	public void add(FileHandle file) {
+		try {
+			add(new Entry(file.getPath(), file.lastModified(), file.getSize()));
+		} catch (FileNotFoundException e) {
+			// deleted in the meantime
+		}
+	}
+
+	synchronized void add(Entry entry) {
+		if (!_started || _entries.containsKey(entry._path)) {
+			return;
+		}
+		_entries.put(entry._path, entry);
+		_queue.add(entry);
+		_modified = true;
+		notifyAll();
+	}
+
+	/**
+	 * Hands out as many checksums as the slaves have room for.
+	 */
+	private void dispatch() {
+		ArrayList<Entry> busy = new ArrayList<Entry>();
+		long now = System.currentTimeMillis();
+		for (int scanned = 0; scanned < SCAN_LIMIT && hasRoom(now); scanned++) {
+			Entry entry = nextEntry();
+			if (entry == null) {
+				break;
+			}
+			if (entry._notBefore > now || !dispatch(entry, now)) {
+				busy.add(entry);
+			}
+		}
+		synchronized (this) {
+			_queue.addAll(busy);
+		}
+	}
+
+	/**
+	 * @return the newest file waiting, null if there is none
+	 */
+	synchronized Entry nextEntry() {
+		return _queue.poll();
+	}
+
+	/**
+	 * @return false if none of the slaves of the file can take it now
+	 */
+	private boolean dispatch(Entry entry, long now) {
+		FileHandle file = new FileHandle(entry._path);
+		try {
+			if (!file.exists() || file.getCheckSumCached() != 0L || file.getSize() == 0L) {
+				// deleted or already checksummed for a transfer
+				done(entry);
+				return true;
+			}
+			for (RemoteSlave rslave : file.getAvailableSlaves()) {
+				SlaveBudget budget = getBudget(rslave.getName());
+				synchronized (this) {
+					if (!budget.canStart(rslave, now)) {
+						continue;
+					}
+					budget.started(entry._size, now);
+					_running++;
+				}
+				try {
+					String index = SlaveManager.getBasicIssuer().issueChecksumToSlave(rslave, entry._path);
+					// no thread waits for the checksum, the fetcher only runs once it arrived,
+					// large files take as long as they take, like the blocking checksum did
+					ResponseFuture future = rslave.fetchResponseFuture(index, 0);
+					future.addListener(new ChecksumFetcher(entry, rslave, future, budget));
+					return true;
+				} catch (SlaveUnavailableException e) {
+					finished(budget);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			done(entry);
+			return true;
+		} catch (NoAvailableSlaveException e) {
+			// kept until one of its slaves is back
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if at least one slave can take a checksum
+	 */
+	private boolean hasRoom(long now) {
+		for (RemoteSlave rslave : GlobalContext.getGlobalContext().getSlaveManager().getSlaves()) {
+			if (rslave.isAvailable()) {
+				synchronized (this) {
+					if (getBudget(rslave.getName()).canStart(rslave, now)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	synchronized SlaveBudget getBudget(String slave) {
+		SlaveBudget budget = _budgets.get(slave);
+		if (budget == null) {
+			budget = new SlaveBudget();
+			_budgets.put(slave, budget);
+		}
+		return budget;
+	}
+
+	private synchronized void done(Entry entry) {
+		_entries.remove(entry._path);
+		_modified = true;
+	}
+
+	synchronized void finished(SlaveBudget budget) {
+		budget._running--;
+		_running--;
+		notifyAll();
+	}
+
+	private synchronized void completed(Entry entry) {
+		_completed++;
+		_bytes += entry._size;
+		done(entry);
+	}
+
+	private synchronized void failed(Entry entry) {
+		if (++entry._attempts >= MAX_ATTEMPTS) {
+			_failed++;
+			done(entry);
+			return;
+		}
+		entry._notBefore = System.currentTimeMillis() + RETRY_DELAY * entry._attempts;
+		_queue.add(entry);
+	}
+
+	/**
+	 * Writes the files still waiting, including the running ones, so they
+	 * are picked up again after a restart.
+	 */
+	public void save() {
+		ArrayList<Entry> entries;
+		synchronized (this) {
+			if (!_modified) {
+				return;
+			}
+			entries = new ArrayList<Entry>(_entries.values());
+			_modified = false;
+		}
+		File tmp = new File(_queueFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry._path);
+				out.writeLong(entry._lastModified);
+				out.writeLong(entry._size);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(_queueFile)) {
+				_queueFile.delete();
+				if (!tmp.renameTo(_queueFile)) {
+					throw new IOException("Unable to rename " + tmp.getPath() + " to " + _queueFile.getPath());
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Unable to save the checksum queue", e);
+			synchronized (this) {
+				_modified = true;
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void load() {
+		if (!_queueFile.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(_queueFile)));
+			if (in.readInt() != VERSION) {
+				logger.warn("Ignoring " + _queueFile + ", written by another version");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+				if (!_entries.containsKey(entry._path)) {
+					_entries.put(entry._path, entry);
+					_queue.add(entry);
+				}
+			}
+			logger.info("Loaded " + _queue.size() + " files waiting for a checksum");
+		} catch (IOException e) {
+			logger.error("Unable to load " + _queueFile + ", remerged files without a checksum"
+					+ " are checksummed when needed", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of files waiting for a checksum.
+	 */
+	public synchronized int getQueueSize() {
+		return _queue.size();
+	}
+
+	/**
+	 * @return the number of checksums running on slaves.
+	 */
+	public synchronized int getRunning() {
+		return _running;
+	}
+
+	/**
+	 * @return the number of files checksummed since startup.
+	 */
+	public synchronized long getCompleted() {
+		return _completed;
+	}
+
+	/**
+	 * @return the number of files given up on since startup.
+	 */
+	public synchronized long getFailed() {
+		return _failed;
+	}
+
+	/**
+	 * @return the size of the files checksummed since startup.
+	 */
+	public synchronized long getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * @return the average number of bytes checksummed per second since startup.
+	 */
+	public synchronized long getRate() {
+		long elapsed = System.currentTimeMillis() - _startTime;
+		return _startTime == 0 || elapsed <= 0 ? 0 : _bytes * 1000L / elapsed;
+	}
+
+	static class Entry {
+		private String _path;
+
+		private long _lastModified;
+
+		private long _size;
+
+		private int _attempts;
+
+		private long _notBefore;
+
+		Entry(String path, long lastModified, long size) {
+			_path = path;
+			_lastModified = lastModified;
+			_size = size;
+		}
+
+		String getPath() {
+			return _path;
+		}
+	}
+
+	/**
+	 * Checksums running on a slave and when its read budget allows the next.
+	 */
+	class SlaveBudget {
+		private int _running;
+
+		private long _nextStart;
+
+		boolean canStart(RemoteSlave rslave, long now) {
+			if (_running >= _perSlave || _nextStart > now) {
+				return false;
+			}
+			try {
+				return rslave.getTransfers().size() <= _idleTransfers;
+			} catch (SlaveUnavailableException e) {
+				return false;
+			}
+		}
+
+		void started(long size, long now) {
+			_running++;
+			if (_rate > 0) {
+				_nextStart = Math.max(now, _nextStart) + size * 1000L / _rate;
+			}
+		}
+	}
+
+	private class ChecksumFetcher implements Runnable {
+		private Entry _entry;
+
+		private RemoteSlave _rslave;
+
+		private ResponseFuture _future;
+
+		private SlaveBudget _budget;
+
+		private ChecksumFetcher(Entry entry, RemoteSlave rslave, ResponseFuture future, SlaveBudget budget) {
+			_entry = entry;
+			_rslave = rslave;
+			_future = future;
+			_budget = budget;
+		}
+
+		/**
+		 * Called by the thread reading from the slave once the checksum arrived,
+		 * the vfs is updated on one of the fetcher threads.
+		 */
+		public void run() {
+			_fetchers.execute(new Runnable() {
+				public void run() {
+					fetch();
+				}
+			});
+		}
+
+		private void fetch() {
+			try {
+				long checksum = ((AsyncResponseChecksum) _rslave.getResponse(_future)).getChecksum();
+				FileHandle file = new FileHandle(_entry._path);
+				if (file.getCheckSumCached() == 0L) {
+					file.setCheckSum(checksum);
+				}
+				completed(_entry);
+			} catch (FileNotFoundException e) {
+				done(_entry);
+			} catch (RemoteIOException e) {
+				logger.debug("Checksum of " + _entry._path + " failed on " + _rslave.getName(), e);
+				failed(_entry);
+			} catch (SlaveUnavailableException e) {
+				failed(_entry);
+			} finally {
+				finished(_budget);
+			}
+		}
+	}
+
+	private class Dispatcher implements Runnable {
+		public void run() {
+			long lastSave = System.currentTimeMillis();
+			while (true) {
+				try {
+					dispatch();
+				} catch (Throwable t) {
+					logger.error("Error dispatching checksums", t);
+				}
+				synchronized (ChecksumQueue.this) {
+					try {
+						ChecksumQueue.this.wait(1000);
+					} catch (InterruptedException e) {
+					}
+				}
+				if (System.currentTimeMillis() - lastSave > 60000) {
+					save();
+					lastSave = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	private class ChecksumThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("ChecksumFetcher");
+			t.setDaemon(true);
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(ChecksumQueue.this));
+			return t;
+		}
+	}
+}
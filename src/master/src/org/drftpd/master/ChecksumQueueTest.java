@@ -0,0 +1,158 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.tests.DummyRemoteSlave;
+
+/**
+ * Tests the order files are checksummed in, the budget of the slaves and
+ * the file keeping the queue across restarts.
+ * @version $Id$
+ */
+public class ChecksumQueueTest extends TestCase {
+
+	private static final long MB = 1024L * 1024L;
+
+	private File _file;
+
+	public ChecksumQueueTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_file = File.createTempFile("checksum", ".queue");
+		_file.delete();
+	}
+
+	protected void tearDown() {
+		_file.delete();
+	}
+
+	private ChecksumQueue createQueue(String perSlave, String rate, String idle) {
+		Properties cfg = new Properties();
+		cfg.setProperty("checksum.queue.slave", perSlave);
+		cfg.setProperty("checksum.queue.rate", rate);
+		cfg.setProperty("checksum.queue.idle", idle);
+		ChecksumQueue queue = new ChecksumQueue(_file);
+		queue.configure(cfg);
+		queue.open();
+		return queue;
+	}
+
+	public void testNewestFirst() {
+		ChecksumQueue queue = createQueue("1", "20", "2");
+		queue.add(new ChecksumQueue.Entry("/old", 1000L, MB));
+		queue.add(new ChecksumQueue.Entry("/new", 3000L, MB));
+		queue.add(new ChecksumQueue.Entry("/middle", 2000L, MB));
+		// already queued
+		queue.add(new ChecksumQueue.Entry("/new", 4000L, MB));
+		assertEquals(3, queue.getQueueSize());
+		assertEquals("/new", queue.nextEntry().getPath());
+		assertEquals("/middle", queue.nextEntry().getPath());
+		assertEquals("/old", queue.nextEntry().getPath());
+		assertNull(queue.nextEntry());
+	}
+
+	public void testBudget() {
+		ChecksumQueue queue = createQueue("1", "1", "1");
+		TransfersRemoteSlave rslave = new TransfersRemoteSlave("slave");
+		ChecksumQueue.SlaveBudget budget = queue.getBudget(rslave.getName());
+		long now = 100000L;
+		assertTrue(budget.canStart(rslave, now));
+
+		// one at a time
+		budget.started(2 * MB, now);
+		assertFalse(budget.canStart(rslave, now));
+
+		// 2MB at 1MB/s, the next one waits 2 seconds after the first started
+		queue.finished(budget);
+		assertFalse(budget.canStart(rslave, now + 1999L));
+		assertTrue(budget.canStart(rslave, now + 2000L));
+	}
+
+	public void testIdle() {
+		ChecksumQueue queue = createQueue("1", "0", "1");
+		TransfersRemoteSlave rslave = new TransfersRemoteSlave("slave");
+		ChecksumQueue.SlaveBudget budget = queue.getBudget(rslave.getName());
+		rslave._transfers = 1;
+		assertTrue(budget.canStart(rslave, 0L));
+		rslave._transfers = 2;
+		assertFalse(budget.canStart(rslave, 0L));
+		rslave._online = false;
+		rslave._transfers = 0;
+		assertFalse(budget.canStart(rslave, 0L));
+	}
+
+	public void testPersistence() {
+		ChecksumQueue queue = createQueue("1", "20", "2");
+		queue.add(new ChecksumQueue.Entry("/a/file1", 1000L, MB));
+		queue.add(new ChecksumQueue.Entry("/a/file2", 2000L, MB));
+		queue.save();
+		assertTrue(_file.exists());
+
+		queue = createQueue("1", "20", "2");
+		assertEquals(2, queue.getQueueSize());
+		assertEquals("/a/file2", queue.nextEntry().getPath());
+		assertEquals("/a/file1", queue.nextEntry().getPath());
+	}
+
+	public void testOtherVersion() throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(_file));
+		out.writeInt(Integer.MAX_VALUE);
+		out.writeInt(1);
+		out.writeUTF("/file");
+		out.writeLong(0L);
+		out.writeLong(0L);
+		out.close();
+		assertEquals(0, createQueue("1", "20", "2").getQueueSize());
+	}
+
+	/**
+	 * A slave running a given number of transfers.
+	 */
+	private static class TransfersRemoteSlave extends DummyRemoteSlave {
+		private int _transfers;
+
+		private boolean _online = true;
+
+		private TransfersRemoteSlave(String name) {
+			super(name);
+		}
+
+		public Collection<RemoteTransfer> getTransfers() throws SlaveUnavailableException {
+			if (!_online) {
+				throw new SlaveUnavailableException("Slave is not online");
+			}
+			ArrayList<RemoteTransfer> transfers = new ArrayList<RemoteTransfer>();
+			transfers.addAll(Collections.<RemoteTransfer>nCopies(_transfers, null));
+			return transfers;
+		}
+	}
+}
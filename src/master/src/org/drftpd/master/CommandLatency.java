@@ -0,0 +1,60 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+/**
+ * How long a slave took to respond to one type of command, measured on the
+ * master from sending the command until the response was read.
+ * @version $Id$
+ */
+public class CommandLatency {
+	private long _count;
+
+	private long _total;
+
+	private long _max;
+
+	/**
+	 * @param nanos the time it took for one response
+	 */
+	public synchronized void add(long nanos) {
+		_count++;
+		_total += nanos;
+		if (nanos > _max) {
+			_max = nanos;
+		}
+	}
+
+	public synchronized long getCount() {
+		return _count;
+	}
+
+	/**
+	 * Returns the average latency in microseconds.
+	 */
+	public synchronized long getAverage() {
+		return _count == 0 ? 0L : _total / _count / 1000L;
+	}
+
+	/**
+	 * Returns the highest latency in microseconds.
+	 */
+	public synchronized long getMax() {
+		return _max / 1000L;
+	}
+}
@@ -19,19 +19,31 @@
 package org.drftpd.master;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.drftpd.PropertyHelper;
 import org.drftpd.util.CommonPluginUtils;
 
 /**
  * This classes handle all XML commits.
  * The main purpose of having this is to avoiding serializing the same object tons of times,
- * even if it data was not changed. 
+ * even if it data was not changed.<br>
+ * Queued objects are written in batches by a small pool of writer threads, an object
+ * is always handed to the same writer so writes for a given path never run in parallel.
+ * Objects queued several times before they are written, like the parent directory of
+ * a busy race, are only written once.
  * @author zubov
  * @version $Id$
  */
@@ -47,10 +59,23 @@ public class CommitManager {
 	private volatile boolean _drainQueue;
 	private Thread _commitThread;
 
+	private final Object _wakeup = new Object();
+	private long _commitDelay = 10000;
+	private int _batchSize = 1000;
+	private int _highWater = 5000;
+	private ExecutorService[] _writers;
+
+	private AtomicLong _totalWrites = new AtomicLong();
+	private AtomicLong _totalBatches = new AtomicLong();
+	private AtomicLong _totalBatchTime = new AtomicLong();
+	private volatile int _lastBatchSize;
+	private volatile long _lastBatchTime;
+	private long _startTime;
+
 	/**
-	 * Private constructor in order to make this class a Singleton.
+	 * Package-private constructor in order to make this class a Singleton.
 	 */
-	private CommitManager() {
+	CommitManager() {
 		_commitMap = new ConcurrentHashMap<Commitable, Date>();
 		_queueSize = new AtomicInteger();
 	}
@@ -66,22 +91,52 @@ public class CommitManager {
 	}
 
 	/**
-	 * Starts the {@link CommitHandler}.
+	 * Starts the {@link CommitHandler} and the writer threads.
+	 * @param cfg the master configuration, the commit.* settings are read from it.
 	 * @throws IllegalStateException if the thread has already started.
 	 */
-	public void start() {
+	public void start(Properties cfg) {
 		if (_isStarted) {
 			throw new IllegalStateException("The CommitManager is already started");
 		}
-		
+
+		configure(cfg);
 		_isStarted = true;
+		_startTime = System.currentTimeMillis();
 		_commitThread = new Thread(new CommitHandler());
 		_commitThread.start();
 	}
 
+	/**
+	 * Reads the commit.* settings and creates the writer threads.
+	 */
+	void configure(Properties cfg) {
+		_commitDelay = Long.parseLong(PropertyHelper.getProperty(cfg, "commit.delay", "10000"));
+		_batchSize = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "commit.batch.size", "1000")));
+		_highWater = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "commit.queue.highwater", "5000")));
+		int writers = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "commit.writers", "1")));
+
+		_writers = new ExecutorService[writers];
+		for (int i = 0; i < writers; i++) {
+			_writers[i] = Executors.newSingleThreadExecutor(new CommitWriterThreadFactory(i));
+		}
+	}
+
+	/**
+	 * Stops the writer threads once they are done with what they were given.
+	 */
+	void shutdownWriters() {
+		for (ExecutorService writer : _writers) {
+			writer.shutdown();
+		}
+	}
+
 	/**
 	 * Adds a {@link Commitable} object to the commit queue.
-	 * If the object is already present on the queue, this call is just ignored.
+	 * If the object is already present on the queue, this call is just ignored.<br>
+	 * Callers are never blocked since they usually hold locks the writers need, once the
+	 * queue grows past commit.queue.highwater the commit thread is woken up to write
+	 * queued objects without waiting for them to age.
 	 * @param object
 	 */
 	public void add(Commitable object) {
@@ -89,8 +144,12 @@ public class CommitManager {
 			return;
 			// object already queued to write
 		}
-		_commitMap.put(object, new Date());
-		_queueSize.incrementAndGet();
+		if (_commitMap.putIfAbsent(object, new Date()) != null) {
+			return;
+		}
+		if (_queueSize.incrementAndGet() == _highWater) {
+			wakeup();
+		}
 	}
 	
 
@@ -122,6 +181,43 @@ public class CommitManager {
 		return _queueSize.get();
 	}
 
+	/**
+	 * @return the total number of objects written since startup.
+	 */
+	public long getTotalWrites() {
+		return _totalWrites.get();
+	}
+
+	/**
+	 * @return the number of objects written by the last batch.
+	 */
+	public int getLastBatchSize() {
+		return _lastBatchSize;
+	}
+
+	/**
+	 * @return how long the last batch took to be written, in milliseconds.
+	 */
+	public long getLastBatchTime() {
+		return _lastBatchTime;
+	}
+
+	/**
+	 * @return the average time taken to write a batch, in milliseconds.
+	 */
+	public long getAverageBatchTime() {
+		long batches = _totalBatches.get();
+		return batches == 0 ? 0 : _totalBatchTime.get() / batches;
+	}
+
+	/**
+	 * @return the average number of objects written per second since startup.
+	 */
+	public double getWritesPerSecond() {
+		long elapsed = System.currentTimeMillis() - _startTime;
+		return elapsed <= 0 ? 0 : _totalWrites.get() * 1000D / elapsed;
+	}
+
 	/**
 	 * Forces the immediate write of a (@link Commitable) if present in the commit queue.
 	 * @param object
@@ -142,28 +238,89 @@ public class CommitManager {
 	public void enableQueueDrain() {
 		_drainQueue = true;
 		// Wakeup the commit thread incase it is sleeping
-		if (_commitThread != null) {
-			_commitThread.interrupt();
-		}
+		wakeup();
 		return;
 	}
 
+	private void wakeup() {
+		synchronized (_wakeup) {
+			_wakeup.notifyAll();
+		}
+	}
+
 	private void processAllLoop() {
 		while (true) {
-			long time = System.currentTimeMillis() - 10000;
-			for (Iterator<Entry<Commitable, Date>> iter = _commitMap.entrySet()
-					.iterator(); iter.hasNext();) {
-				Entry<Commitable, Date> entry = iter.next();
-				if (entry.getValue().getTime() < time || _drainQueue) {
-					writeCommitable(entry.getKey());
+			long writesBefore = _totalWrites.get();
+			int batch = processBatch();
+			boolean progress = _totalWrites.get() > writesBefore;
+			if (progress && (batch == _batchSize || _drainQueue || _queueSize.get() >= _highWater)) {
+				// there is more waiting to be written, don't sleep
+				continue;
+			}
+			synchronized (_wakeup) {
+				if (batch > 0 || !(_queueSize.get() >= _highWater || (_drainQueue && _queueSize.get() > 0))) {
+					try {
+						_wakeup.wait(_commitDelay);
+					} catch (InterruptedException e) {
+					}
 				}
 			}
-			
+		}
+	}
+
+	/**
+	 * Collects up to commit.batch.size objects old enough to be written, or any queued
+	 * objects when draining or when the queue is over the high water mark, and waits for
+	 * the writers to finish them.
+	 * @return the number of objects in the batch.
+	 */
+	int processBatch() {
+		long time = System.currentTimeMillis() - _commitDelay;
+		boolean writeAll = _drainQueue || _queueSize.get() >= _highWater;
+		ArrayList<ArrayList<Commitable>> partitions = new ArrayList<ArrayList<Commitable>>(_writers.length);
+		for (int i = 0; i < _writers.length; i++) {
+			partitions.add(new ArrayList<Commitable>());
+		}
+		int count = 0;
+		for (Iterator<Entry<Commitable, Date>> iter = _commitMap.entrySet()
+				.iterator(); iter.hasNext() && count < _batchSize;) {
+			Entry<Commitable, Date> entry = iter.next();
+			if (writeAll || entry.getValue().getTime() < time) {
+				partitions.get(getPartition(entry.getKey())).add(entry.getKey());
+				count++;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long start = System.currentTimeMillis();
+		CountDownLatch latch = new CountDownLatch(_writers.length);
+		for (int i = 0; i < _writers.length; i++) {
+			_writers[i].execute(new BatchWriter(partitions.get(i), latch));
+		}
+		while (true) {
 			try {
-				Thread.sleep(10000);
+				latch.await();
+				break;
 			} catch (InterruptedException e) {
 			}
 		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		_lastBatchSize = count;
+		_lastBatchTime = elapsed;
+		_totalBatches.incrementAndGet();
+		_totalBatchTime.addAndGet(elapsed);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Wrote " + count + " objects in " + elapsed + "ms, "
+					+ _queueSize.get() + " remaining in the queue");
+		}
+		return count;
+	}
+
+	private int getPartition(Commitable item) {
+		return (item.descriptiveName().hashCode() & Integer.MAX_VALUE) % _writers.length;
 	}
 
 	private void writeCommitable(Commitable item) {
@@ -172,6 +329,7 @@ public class CommitManager {
 			if (_commitMap.remove(item) != null) {
 				_queueSize.decrementAndGet();
 			}
+			_totalWrites.incrementAndGet();
 		} catch (IOException e) {
 			logger.error("Error writing object to disk - "
 					+ item.descriptiveName(), e);
@@ -192,4 +350,42 @@ public class CommitManager {
 			processAllLoop();
 		}
 	}
+
+	private class BatchWriter implements Runnable {
+
+		private ArrayList<Commitable> _items;
+
+		private CountDownLatch _latch;
+
+		private BatchWriter(ArrayList<Commitable> items, CountDownLatch latch) {
+			_items = items;
+			_latch = latch;
+		}
+
+		public void run() {
+			try {
+				for (Commitable item : _items) {
+					writeCommitable(item);
+				}
+			} finally {
+				_latch.countDown();
+			}
+		}
+	}
+
+	private class CommitWriterThreadFactory implements ThreadFactory {
+
+		private int _writer;
+
+		private CommitWriterThreadFactory(int writer) {
+			_writer = writer;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("CommitWriter-" + _writer);
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(CommitManager.this));
+			return t;
+		}
+	}
 }
@@ -0,0 +1,158 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class CommitManagerTest extends TestCase {
+
+	private CommitManager _manager;
+
+	public CommitManagerTest(String fName) {
+		super(fName);
+	}
+
+	private void configure(int batchSize, int highWater, int writers) {
+		Properties p = new Properties();
+		// nothing ages during a test, only the high water mark lets objects through
+		p.setProperty("commit.delay", "600000");
+		p.setProperty("commit.batch.size", String.valueOf(batchSize));
+		p.setProperty("commit.queue.highwater", String.valueOf(highWater));
+		p.setProperty("commit.writers", String.valueOf(writers));
+		_manager = new CommitManager();
+		_manager.configure(p);
+	}
+
+	protected void tearDown() {
+		if (_manager != null) {
+			_manager.shutdownWriters();
+		}
+	}
+
+	private ArrayList<TestCommitable> add(int from, int to) {
+		ArrayList<TestCommitable> items = new ArrayList<TestCommitable>();
+		for (int i = from; i < to; i++) {
+			TestCommitable item = new TestCommitable("/section/Release.Name-" + i);
+			_manager.add(item);
+			items.add(item);
+		}
+		return items;
+	}
+
+	public void testAge() {
+		configure(100, 10, 1);
+		ArrayList<TestCommitable> items = add(0, 5);
+		assertEquals(0, _manager.processBatch());
+		assertEquals(5, _manager.getQueueSize());
+
+		// past the high water mark objects are written regardless of age
+		items.addAll(add(5, 10));
+		assertEquals(10, _manager.getQueueSize());
+		assertEquals(10, _manager.processBatch());
+		assertEquals(0, _manager.getQueueSize());
+		for (TestCommitable item : items) {
+			assertEquals(1, item._writes);
+		}
+	}
+
+	public void testQueuedOnce() {
+		configure(100, 1, 1);
+		TestCommitable item = new TestCommitable("/section/Release.Name");
+		_manager.add(item);
+		_manager.add(item);
+		_manager.add(item);
+		assertEquals(1, _manager.getQueueSize());
+		assertEquals(1, _manager.processBatch());
+		assertEquals(1, item._writes);
+		assertFalse(_manager.contains(item));
+	}
+
+	public void testBatchSize() {
+		configure(10, 1, 2);
+		add(0, 25);
+		assertEquals(10, _manager.processBatch());
+		assertEquals(10, _manager.getLastBatchSize());
+		assertEquals(10, _manager.processBatch());
+		assertEquals(5, _manager.processBatch());
+		assertEquals(0, _manager.processBatch());
+		assertEquals(25, _manager.getTotalWrites());
+	}
+
+	public void testSameWriter() {
+		configure(100, 1, 4);
+		ArrayList<TestCommitable> items = add(0, 20);
+		_manager.processBatch();
+		ArrayList<String> writers = new ArrayList<String>();
+		for (TestCommitable item : items) {
+			writers.add(item._writer);
+			// queued again, written by the same thread
+			_manager.add(item);
+		}
+		_manager.processBatch();
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals(2, items.get(i)._writes);
+			assertEquals(writers.get(i), items.get(i)._writer);
+		}
+	}
+
+	public void testRemove() {
+		configure(100, 1, 1);
+		TestCommitable item = new TestCommitable("/section/Release.Name");
+		_manager.add(item);
+		assertTrue(_manager.remove(item));
+		assertFalse(_manager.remove(item));
+		assertEquals(0, _manager.getQueueSize());
+		assertEquals(0, _manager.processBatch());
+		assertEquals(0, item._writes);
+	}
+
+	private static class TestCommitable implements Commitable {
+		private String _name;
+
+		private volatile int _writes;
+
+		private volatile String _writer;
+
+		private TestCommitable(String name) {
+			_name = name;
+		}
+
+		public void commit() {
+		}
+
+		public void writeToDisk() throws IOException {
+			String writer = Thread.currentThread().getName();
+			if (_writer != null && !_writer.equals(writer)) {
+				throw new IOException(_name + " written by " + _writer + " and " + writer);
+			}
+			_writer = writer;
+			_writes++;
+		}
+
+		public String descriptiveName() {
+			return _name;
+		}
+	}
+}
@@ -29,12 +29,15 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ServerSocketFactory;
+
 import org.apache.log4j.Logger;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.bushe.swing.event.annotation.EventSubscriber;
@@ -45,6 +48,7 @@ import org.drftpd.commands.UserManagement;
 import org.drftpd.event.ReloadEvent;
 import org.drftpd.usermanager.NoSuchUserException;
 import org.drftpd.usermanager.User;
+import org.drftpd.util.ChannelServerSocketFactory;
 import org.tanukisoftware.wrapper.WrapperManager;
 
 /**
@@ -67,6 +71,10 @@ public class ConnectionManager {
 
 	private ThreadPoolExecutor _pool;
 
+	private ThreadPoolExecutor _commandPool;
+
+	private ControlSelector _controlSelector;
+
 	/**
 	 * If you're creating a ConnectionManager object and it's not part of a TestCase
 	 * you're not doing it correctly, ConnectionManager is a Singleton
@@ -107,6 +115,10 @@ public class ConnectionManager {
 			String bindip = null;
 			ServerSocket server = null;
 			boolean useIP;
+			boolean useSelector = cfg.getProperty("control.selector", "false").equalsIgnoreCase("true");
+			// the selector needs the accepted sockets to have a channel
+			ServerSocketFactory ssf = useSelector ? ChannelServerSocketFactory.getDefault()
+					: ServerSocketFactory.getDefault();
 
 			try {
 				bindip = PropertyHelper.getProperty(cfg, "master.ip");
@@ -119,19 +131,23 @@ public class ConnectionManager {
 			}
 
 			if (useIP) {
-				server = new ServerSocket();
+				server = ssf.createServerSocket();
 				server.bind(new InetSocketAddress(bindip, Integer
 						.parseInt(PropertyHelper
 								.getProperty(cfg, "master.port"))));
 				logger.info("Listening on " + server.getInetAddress() + ":"
 						+ server.getLocalPort());
 			} else {
-				server = new ServerSocket(Integer.parseInt(PropertyHelper
+				server = ssf.createServerSocket(Integer.parseInt(PropertyHelper
 						.getProperty(cfg, "master.port")));
 				logger.info("Listening on port " + server.getLocalPort());
 			}
 
-			getConnectionManager().createThreadPool();
+			if (useSelector) {
+				getConnectionManager().createSelector(cfg);
+			} else {
+				getConnectionManager().createThreadPool();
+			}
 
 			while (true) {		
 				getConnectionManager().start(server.accept());
@@ -158,10 +174,58 @@ public class ConnectionManager {
 		_pool.prestartAllCoreThreads();
 	}
 
+	/**
+	 * Idle control connections are parked on a {@link ControlSelector}
+	 * instead of each holding a thread, a small pool services the
+	 * connections with something to read and commands from every
+	 * connection share a single bounded pool.
+	 * @param cfg
+	 * @throws IOException
+	 */
+	public void createSelector(Properties cfg) throws IOException {
+		int controlThreads = Integer.parseInt(cfg.getProperty("control.threads", "50"));
+		int commandThreads = Integer.parseInt(cfg.getProperty("control.command.threads", "1000"));
+		int commandQueue = Integer.parseInt(cfg.getProperty("control.command.queue", "1000"));
+
+		// connections are never rejected, they wait for a thread
+		_pool = new ThreadPoolExecutor(controlThreads, controlThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ConnectionThreadFactory());
+		_pool.allowCoreThreadTimeOut(true);
+		_commandPool = new ThreadPoolExecutor(commandThreads, commandThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(commandQueue), new CommandPoolThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+		_commandPool.allowCoreThreadTimeOut(true);
+		_controlSelector = new ControlSelector(_pool);
+		_controlSelector.start();
+		logger.info("Control connections are parked on a selector, " + controlThreads
+				+ " connection threads and " + commandThreads + " command threads");
+	}
+
+	/**
+	 * @return the selector idle connections are parked on, null if each
+	 * connection has its own thread.
+	 */
+	public ControlSelector getControlSelector() {
+		return _controlSelector;
+	}
+
+	/**
+	 * @return the pool shared by all connections to run commands, null if
+	 * each connection has its own.
+	 */
+	public ThreadPoolExecutor getCommandPool() {
+		return _commandPool;
+	}
+
 	public void dumpThreadPool() {
 		logger.debug("Active threads: "+_pool.getActiveCount()+" / Completed Tasks: "+ _pool.getCompletedTaskCount());
 		logger.debug("Pool information - Min # of threads: "+_pool.getCorePoolSize()+" / Max: "+ _pool.getMaximumPoolSize());
 		logger.debug("Current # of threads: " + _pool.getPoolSize());
+		if (_controlSelector != null) {
+			logger.debug("Parked connections: " + _controlSelector.getParkedCount()
+					+ " / Active command threads: " + _commandPool.getActiveCount()
+					+ " / Queued commands: " + _commandPool.getQueue().size());
+		}
 	}
 
 	public FtpReply canLogin(BaseFtpConnection baseconn, User user) {
@@ -325,6 +389,18 @@ public class ConnectionManager {
 	}
 }
 
+class CommandPoolThreadFactory implements ThreadFactory {
+	public static String getIdleThreadName(long threadId) {
+		return "FtpCommand Handler-"+ threadId + " - Waiting for commands";
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setName(getIdleThreadName(t.getId()));
+		return t;
+	}
+}
+
 class ConnectionThreadFactory implements ThreadFactory {
 	public static String getIdleThreadName(long threadId) {
 		return "FtpConnection Handler-"+ threadId + " - Waiting for connections";
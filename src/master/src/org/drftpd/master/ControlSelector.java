@@ -0,0 +1,228 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+import org.drftpd.util.TimerWheel;
+
+/**
+ * Watches the control connections which are waiting for their next command
+ * so they don't hold a thread while idle.<br>
+ * A connection parks itself when nothing is left to read, it's handed back
+ * to the executor as soon as the client sends data, is stopped or has been
+ * idle for too long. Idle timeouts are kept in a {@link TimerWheel} so
+ * thousands of parked connections cost nothing until one of them expires.<br>
+ * Registration and every change to a parked connection happen on the
+ * selector thread.
+ * @version $Id$
+ */
+public class ControlSelector implements Runnable {
+	private static final Logger logger = Logger.getLogger(ControlSelector.class);
+
+	private static final long TICK = 1000;
+
+	private Selector _selector;
+
+	private Executor _executor;
+
+	private ConcurrentLinkedQueue<BaseFtpConnection> _parking = new ConcurrentLinkedQueue<BaseFtpConnection>();
+
+	private ConcurrentLinkedQueue<BaseFtpConnection> _wakeups = new ConcurrentLinkedQueue<BaseFtpConnection>();
+
+	private TimerWheel<ParkedConnection> _timeouts = new TimerWheel<ParkedConnection>(TICK, 512);
+
+	private int _parked;
+
+	private long _dispatched;
+
+	private long _timedOut;
+
+	/**
+	 * @param executor runs the connections once they have something to do
+	 * @throws IOException
+	 */
+	public ControlSelector(Executor executor) throws IOException {
+		_selector = Selector.open();
+		_executor = executor;
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "ControlSelector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Called by the thread servicing the connection once there is nothing
+	 * left to read, the thread must not touch the connection afterwards.
+	 * @param conn
+	 */
+	public void park(BaseFtpConnection conn) {
+		_parking.add(conn);
+		_selector.wakeup();
+	}
+
+	/**
+	 * Hands the connection back to the executor if it's parked, used when
+	 * it has been stopped.
+	 * @param conn
+	 */
+	public void wakeup(BaseFtpConnection conn) {
+		_wakeups.add(conn);
+		_selector.wakeup();
+	}
+
+	public void run() {
+		ArrayList<SelectionKey> ready = new ArrayList<SelectionKey>();
+		while (true) {
+			try {
+				_selector.select(TICK);
+				BaseFtpConnection conn;
+				while ((conn = _parking.poll()) != null) {
+					register(conn, ready);
+				}
+				while ((conn = _wakeups.poll()) != null) {
+					SelectionKey key = conn.getChannel().keyFor(_selector);
+					if (key != null && key.isValid()) {
+						ready.add(key);
+					}
+				}
+				for (Iterator<SelectionKey> iter = _selector.selectedKeys().iterator(); iter.hasNext();) {
+					ready.add(iter.next());
+					iter.remove();
+				}
+				for (ParkedConnection parked : _timeouts.expire(System.currentTimeMillis())) {
+					SelectionKey key = parked._conn.getChannel().keyFor(_selector);
+					if (key == null || !key.isValid() || key.attachment() != parked) {
+						// no longer parked, or parked again since
+						continue;
+					}
+					int idleTime = parked._conn.getIdleTimeout();
+					if (idleTime <= 0 || parked._conn.isExecuting()) {
+						// check again later, the limit may change or the command end
+						_timeouts.schedule(parked, System.currentTimeMillis() + TICK * 60);
+						continue;
+					}
+					long deadline = parked._conn.getLastActive() + idleTime * 1000L;
+					if (deadline > System.currentTimeMillis()) {
+						_timeouts.schedule(parked, deadline);
+						continue;
+					}
+					_timedOut++;
+					parked._conn.stop("IdleTimeout");
+					ready.add(key);
+				}
+				dispatch(ready);
+			} catch (Throwable t) {
+				logger.error("Error in the control connection selector", t);
+			}
+		}
+	}
+
+	private void register(BaseFtpConnection conn, ArrayList<SelectionKey> ready) {
+		SocketChannel channel = conn.getChannel();
+		try {
+			channel.configureBlocking(false);
+			ParkedConnection parked = new ParkedConnection(conn);
+			SelectionKey key = channel.register(_selector, SelectionKey.OP_READ, parked);
+			_parked++;
+			if (conn.isStopRequested()) {
+				ready.add(key);
+				return;
+			}
+			int idleTime = conn.getIdleTimeout();
+			if (idleTime > 0) {
+				_timeouts.schedule(parked, conn.getLastActive() + idleTime * 1000L);
+			}
+		} catch (ClosedChannelException e) {
+			// the thread which resumes it notices the socket is closed
+			resume(conn);
+		} catch (IOException e) {
+			logger.warn("Unable to park " + conn, e);
+			resume(conn);
+		}
+	}
+
+	/**
+	 * Deregisters the channels and resumes the connections, a channel
+	 * can't be put back in blocking mode before the selector has forgotten it.
+	 */
+	private void dispatch(ArrayList<SelectionKey> ready) throws IOException {
+		if (ready.isEmpty()) {
+			return;
+		}
+		for (SelectionKey key : ready) {
+			key.cancel();
+		}
+		_selector.selectNow();
+		for (SelectionKey key : ready) {
+			// the same key can be ready for several reasons
+			if (key.attachment() == null) {
+				continue;
+			}
+			BaseFtpConnection conn = ((ParkedConnection) key.attachment())._conn;
+			key.attach(null);
+			_parked--;
+			try {
+				conn.getChannel().configureBlocking(true);
+			} catch (IOException e) {
+				// closed, the connection will notice
+			}
+			resume(conn);
+		}
+		ready.clear();
+	}
+
+	private void resume(BaseFtpConnection conn) {
+		_dispatched++;
+		_executor.execute(conn);
+	}
+
+	/**
+	 * @return the number of connections waiting for a command
+	 */
+	public int getParkedCount() {
+		return _parked;
+	}
+
+	public long getDispatchedCount() {
+		return _dispatched;
+	}
+
+	public long getTimedOutCount() {
+		return _timedOut;
+	}
+
+	private static class ParkedConnection {
+		private BaseFtpConnection _conn;
+
+		private ParkedConnection(BaseFtpConnection conn) {
+			_conn = conn;
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package org.drftpd.master;
 
 import java.util.List;
+import java.util.Map;
 
 import org.drftpd.slave.LightRemoteInode;
 import org.drftpd.slave.async.AsyncResponseRemerge;
@@ -31,6 +32,8 @@ public class RemergeMessage {
 
 	private AsyncResponseRemerge _response;
 
+	private Map<String, Long> _digests;
+
 	public RemergeMessage(AsyncResponseRemerge response, RemoteSlave slave) {
 		_rslave = slave;
 		_response = response;
@@ -41,6 +44,17 @@ public class RemergeMessage {
 		_response = null;
 	}
 
+	/**
+	 * @param slave
+	 * @param digests the remerge digests of the directories remerged, null
+	 * when the slave was merged without digests.
+	 */
+	public RemergeMessage(RemoteSlave slave, Map<String, Long> digests) {
+		_rslave = slave;
+		_response = null;
+		_digests = digests;
+	}
+
 	public boolean isCompleted() {
 		return _response == null;
 	}
@@ -49,6 +63,10 @@ public class RemergeMessage {
 		return _response.getPath();
 	}
 
+	public Map<String, Long> getDigests() {
+		return _digests;
+	}
+
 	public RemoteSlave getRslave() {
 		return _rslave;
 	}
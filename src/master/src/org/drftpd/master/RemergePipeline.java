@@ -0,0 +1,394 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.vfs.DirectoryHandle;
+
+/**
+ * Applies the directories sent by a slave during a remerge.<br>
+ * Slaves send a directory after all of its subdirectories, so directories
+ * are grouped by their ancestor at 'remerge.lane.depth' (a release for
+ * the default depth of 2) and each group is applied in order while
+ * different groups are applied in parallel by the threads shared by all
+ * slaves. Directories above that depth wait for everything received before
+ * them to be applied first.<br>
+ * When the remerge was issued with credits the slave only sends as many
+ * directories as it has been granted, credits are given back as
+ * directories are applied so the master never holds more than
+ * 'remerge.credits' directories of a slave in memory.
+ * @version $Id$
+ */
+public class RemergePipeline {
+	private static final Logger logger = Logger.getLogger(RemergePipeline.class);
+
+	private static Executor _sharedExecutor;
+
+	private RemoteSlave _rslave;
+
+	private Executor _executor;
+
+	private int _depth;
+
+	private int _credits;
+
+	private int _creditBatch;
+
+	private HashMap<String, Lane> _lanes = new HashMap<String, Lane>();
+
+	private RemergeMessage _barrier;
+
+	private LinkedList<RemergeMessage> _held = new LinkedList<RemergeMessage>();
+
+	private int _inFlight;
+
+	private int _uncredited;
+
+	private boolean _cancelled;
+
+	private long _started;
+
+	private long _received;
+
+	private long _applied;
+
+	private long _files;
+
+	/**
+	 * Creates a pipeline for the slave using the settings of master.conf.
+	 * @param rslave
+	 */
+	public RemergePipeline(RemoteSlave rslave) {
+		this(rslave, getSharedExecutor(), getConfig());
+	}
+
+	protected RemergePipeline(RemoteSlave rslave, Executor executor, Properties cfg) {
+		_rslave = rslave;
+		_executor = executor;
+		_depth = Math.max(1, Integer.parseInt(cfg.getProperty("remerge.lane.depth", "2")));
+		_credits = Math.max(0, Integer.parseInt(cfg.getProperty("remerge.credits", "1000")));
+		_creditBatch = Math.max(1, Math.min(_credits,
+				Integer.parseInt(cfg.getProperty("remerge.credits.batch", "100"))));
+	}
+
+	private static Properties getConfig() {
+		if (GlobalContext.getConfig() == null) {
+			return new Properties();
+		}
+		return GlobalContext.getConfig().getMainProperties();
+	}
+
+	private static synchronized Executor getSharedExecutor() {
+		if (_sharedExecutor == null) {
+			int threads = Integer.parseInt(getConfig().getProperty("remerge.threads", "4"));
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new RemergeThreadFactory());
+			pool.allowCoreThreadTimeOut(true);
+			_sharedExecutor = pool;
+		}
+		return _sharedExecutor;
+	}
+
+	/**
+	 * @return the number of directories the slave may send before waiting
+	 * for more credits, 0 if the slave sends without waiting.
+	 */
+	public int getInitialCredits() {
+		return _credits;
+	}
+
+	/**
+	 * Queues a message received from the slave, this never blocks.
+	 * @param msg
+	 */
+	public synchronized void put(RemergeMessage msg) {
+		if (_cancelled) {
+			return;
+		}
+		if (_started == 0) {
+			_started = System.currentTimeMillis();
+		}
+		if (!msg.isCompleted()) {
+			_received++;
+		}
+		if (_barrier != null) {
+			_held.add(msg);
+			return;
+		}
+		if (isBarrier(msg)) {
+			_barrier = msg;
+			if (_inFlight == 0) {
+				dispatch(msg);
+			}
+			return;
+		}
+		dispatch(msg);
+	}
+
+	/**
+	 * Drops every message not applied yet, used when the slave goes offline.
+	 */
+	public synchronized void cancel() {
+		_cancelled = true;
+		_held.clear();
+		_lanes.clear();
+		_barrier = null;
+	}
+
+	private boolean isBarrier(RemergeMessage msg) {
+		return msg.isCompleted() || getDepth(msg.getDirectory()) < _depth;
+	}
+
+	/**
+	 * A remerge of / sends the paths below it as //section/release
+	 */
+	private static String normalize(String path) {
+		int start = 0;
+		while (start + 1 < path.length() && path.charAt(start + 1) == '/') {
+			start++;
+		}
+		return path.substring(start);
+	}
+
+	private static int getDepth(String path) {
+		path = normalize(path);
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/' && i + 1 < path.length()) {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the ancestor of the directory at the lane depth
+	 */
+	private String getLaneKey(RemergeMessage msg) {
+		if (msg.isCompleted()) {
+			return "";
+		}
+		String path = normalize(msg.getDirectory());
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/' && i > 0 && ++depth == _depth) {
+				return path.substring(0, i);
+			}
+		}
+		return path;
+	}
+
+	private void dispatch(RemergeMessage msg) {
+		_inFlight++;
+		String key = getLaneKey(msg);
+		Lane lane = _lanes.get(key);
+		if (lane == null) {
+			lane = new Lane(key);
+			_lanes.put(key, lane);
+		}
+		lane._queue.add(msg);
+		if (!lane._running) {
+			lane._running = true;
+			_executor.execute(lane);
+		}
+	}
+
+	/**
+	 * @return the next message of the lane or null when the lane is done
+	 */
+	private synchronized RemergeMessage next(Lane lane) {
+		if (_cancelled) {
+			return null;
+		}
+		RemergeMessage msg = lane._queue.poll();
+		if (msg == null) {
+			lane._running = false;
+			_lanes.remove(lane._key);
+		}
+		return msg;
+	}
+
+	/**
+	 * @return the number of credits to give back to the slave
+	 */
+	private synchronized int applied(RemergeMessage msg) {
+		if (_cancelled) {
+			return 0;
+		}
+		_inFlight--;
+		if (!msg.isCompleted()) {
+			_applied++;
+			_files += msg.getFiles().size();
+		}
+		if (msg == _barrier) {
+			_barrier = null;
+			ArrayList<RemergeMessage> held = new ArrayList<RemergeMessage>(_held);
+			_held.clear();
+			for (RemergeMessage heldMsg : held) {
+				if (_barrier != null) {
+					_held.add(heldMsg);
+				} else if (isBarrier(heldMsg)) {
+					_barrier = heldMsg;
+					if (_inFlight == 0) {
+						dispatch(heldMsg);
+					}
+				} else {
+					dispatch(heldMsg);
+				}
+			}
+		} else if (_barrier != null && _inFlight == 0) {
+			dispatch(_barrier);
+		}
+		if (_credits == 0 || msg.isCompleted() || ++_uncredited < _creditBatch) {
+			return 0;
+		}
+		int credits = _uncredited;
+		_uncredited = 0;
+		return credits;
+	}
+
+	private synchronized void failed() {
+		cancel();
+	}
+
+	/**
+	 * Merges the directory into the VFS or, once all directories have been
+	 * merged, stores their digests and makes the slave available.
+	 * @param msg
+	 * @throws IOException
+	 */
+	protected void apply(RemergeMessage msg) throws IOException {
+		if (msg.isCompleted()) {
+			if (msg.getDigests() != null) {
+				msg.getRslave().storeRemergeDigests(msg.getDigests());
+			}
+			if (!msg.getRslave().isAvailable()) {
+				msg.getRslave().makeAvailableAfterRemerge();
+			}
+			return;
+		}
+		new DirectoryHandle(msg.getDirectory()).remerge(msg.getFiles(), msg.getRslave(),
+				msg.getLastModified());
+	}
+
+	protected void grantCredits(int credits) {
+		try {
+			SlaveManager.getBasicIssuer().issueRemergeCreditToSlave(_rslave, credits);
+		} catch (SlaveUnavailableException e) {
+			// the remerge is over, nothing left to send credits for
+		}
+	}
+
+	/**
+	 * @return the number of directories received from the slave.
+	 */
+	public synchronized long getReceived() {
+		return _received;
+	}
+
+	/**
+	 * @return the number of directories merged into the VFS.
+	 */
+	public synchronized long getApplied() {
+		return _applied;
+	}
+
+	/**
+	 * @return the number of files and directories in the merged directories.
+	 */
+	public synchronized long getFiles() {
+		return _files;
+	}
+
+	/**
+	 * @return the number of directories received but not yet merged.
+	 */
+	public synchronized long getPending() {
+		return _received - _applied;
+	}
+
+	/**
+	 * @return the number of directories merged per second since the first
+	 * one was received.
+	 */
+	public synchronized long getRate() {
+		long elapsed = System.currentTimeMillis() - _started;
+		return _started == 0 || elapsed == 0 ? 0 : _applied * 1000 / elapsed;
+	}
+
+	private class Lane implements Runnable {
+		private String _key;
+
+		private LinkedList<RemergeMessage> _queue = new LinkedList<RemergeMessage>();
+
+		private boolean _running;
+
+		private Lane(String key) {
+			_key = key;
+		}
+
+		public void run() {
+			RemergeMessage msg;
+			while ((msg = next(this)) != null) {
+				try {
+					apply(msg);
+				} catch (IOException e) {
+					logger.error("IOException during remerge", e);
+					failed();
+					if (msg.getRslave() != null) {
+						msg.getRslave().setOffline("IOException during remerge");
+					}
+					return;
+				} catch (RuntimeException e) {
+					logger.error("Exception during remerge of " + msg.getDirectory(), e);
+				}
+				int credits = applied(msg);
+				if (credits > 0) {
+					grantCredits(credits);
+				}
+			}
+		}
+	}
+
+	static class RemergeThreadFactory implements ThreadFactory {
+
+		private ThreadFactory _factory = Executors.defaultThreadFactory();
+
+		private int _count;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = _factory.newThread(r);
+			t.setName("RemergeThread-" + _count++);
+			return t;
+		}
+	}
+}
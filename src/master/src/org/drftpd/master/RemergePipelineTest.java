@@ -0,0 +1,170 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.async.AsyncResponseRemerge;
+import org.drftpd.tests.DummyRemoteSlave;
+
+/**
+ * Checks that the {@link RemergePipeline} never merges a directory before
+ * its subdirectories, gives back every credit and stores the remerge
+ * digests once everything before them has been merged.
+ * @version $Id$
+ */
+public class RemergePipelineTest extends TestCase {
+
+	private static final int SECTIONS = 4;
+
+	private static final int RELEASES = 50;
+
+	private ExecutorService _executor;
+
+	protected void setUp() {
+		_executor = Executors.newFixedThreadPool(4);
+	}
+
+	protected void tearDown() {
+		_executor.shutdownNow();
+	}
+
+	private List<String> buildTree() {
+		ArrayList<String> paths = new ArrayList<String>();
+		for (int s = 0; s < SECTIONS; s++) {
+			for (int r = 0; r < RELEASES; r++) {
+				// a remerge of / doubles the leading slash
+				String release = "//SECTION" + s + "/Release-" + r;
+				// subdirectories are sent before their parent
+				paths.add(release + "/CD1");
+				paths.add(release + "/CD2");
+				paths.add(release);
+			}
+			paths.add("//SECTION" + s);
+		}
+		paths.add("/");
+		return paths;
+	}
+
+	public void testOrdering() throws Exception {
+		Properties cfg = new Properties();
+		cfg.setProperty("remerge.credits", "50");
+		cfg.setProperty("remerge.credits.batch", "10");
+		final List<String> applied = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicInteger credits = new AtomicInteger();
+		final Object done = new Object();
+		RemergePipeline pipeline = new RemergePipeline(null, _executor, cfg) {
+			protected void apply(RemergeMessage msg) throws IOException {
+				if (msg.isCompleted()) {
+					synchronized (done) {
+						applied.add(null);
+						done.notifyAll();
+					}
+					return;
+				}
+				try {
+					Thread.sleep(msg.getDirectory().length() % 3);
+				} catch (InterruptedException e) {
+				}
+				applied.add(msg.getDirectory());
+			}
+
+			protected void grantCredits(int granted) {
+				credits.addAndGet(granted);
+			}
+		};
+		List<String> paths = buildTree();
+		for (String path : paths) {
+			pipeline.put(new RemergeMessage(new AsyncResponseRemerge(path,
+					new ArrayList<LightRemoteInode>(), 0L), null));
+		}
+		synchronized (done) {
+			pipeline.put(new RemergeMessage(null));
+			while (!applied.contains(null)) {
+				done.wait(10000);
+			}
+		}
+		assertEquals(paths.size() + 1, applied.size());
+		assertNull(applied.get(applied.size() - 1));
+		for (int i = 0; i < applied.size() - 1; i++) {
+			String path = applied.get(i);
+			String prefix = path.equals("/") ? "/" : path + "/";
+			for (int j = i + 1; j < applied.size() - 1; j++) {
+				assertFalse(applied.get(j) + " merged after " + path, applied.get(j).startsWith(prefix));
+			}
+		}
+		assertEquals(paths.size(), pipeline.getApplied());
+		assertEquals(0, pipeline.getPending());
+		// credits are given back in batches of 10
+		assertEquals(paths.size() / 10 * 10, credits.get());
+	}
+
+	public void testCompleted() throws IOException {
+		RemergePipeline pipeline = new RemergePipeline(null, _executor, new Properties());
+		CompletedRemoteSlave rslave = new CompletedRemoteSlave("slave");
+		HashMap<String, Long> digests = new HashMap<String, Long>();
+		digests.put("/SECTION", 1L);
+
+		// the remerge on connect makes the slave available
+		pipeline.apply(new RemergeMessage(rslave, digests));
+		assertSame(digests, rslave._stored);
+		assertEquals(1, rslave._madeAvailable);
+
+		// a remerge of directories changed while connected only stores the digests
+		rslave._stored = null;
+		pipeline.apply(new RemergeMessage(rslave, digests));
+		assertSame(digests, rslave._stored);
+		assertEquals(1, rslave._madeAvailable);
+
+		// merged without digests
+		rslave._stored = null;
+		pipeline.apply(new RemergeMessage(rslave, null));
+		assertNull(rslave._stored);
+	}
+
+	private static class CompletedRemoteSlave extends DummyRemoteSlave {
+		private Map<String, Long> _stored;
+
+		private int _madeAvailable;
+
+		private CompletedRemoteSlave(String name) {
+			super(name);
+		}
+
+		protected void storeRemergeDigests(Map<String, Long> digests) {
+			_stored = digests;
+		}
+
+		protected void makeAvailableAfterRemerge() {
+			_madeAvailable++;
+			setAvailable(true);
+		}
+	}
+}
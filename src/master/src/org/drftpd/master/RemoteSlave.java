@@ -34,16 +34,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.oro.text.regex.MalformedPatternException;
@@ -52,25 +58,33 @@ import org.drftpd.dynamicdata.Key;
 import org.drftpd.dynamicdata.KeyNotFoundException;
 import org.drftpd.dynamicdata.KeyedMap;
 import org.drftpd.event.SlaveEvent;
+import org.drftpd.event.SlaveTransferEvent;
 import org.drftpd.exceptions.DuplicateElementException;
 import org.drftpd.exceptions.FatalException;
+import org.drftpd.exceptions.FileExistsException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.io.SafeFileOutputStream;
 import org.drftpd.protocol.ProtocolException;
 import org.drftpd.slave.ConnectInfo;
 import org.drftpd.slave.DiskStatus;
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.ReconcileChange;
 import org.drftpd.slave.RemoteIOException;
 import org.drftpd.slave.SlaveStatus;
 import org.drftpd.slave.Transfer;
 import org.drftpd.slave.TransferIndex;
 import org.drftpd.slave.TransferStatus;
+import org.drftpd.slave.async.AsyncCodec;
 import org.drftpd.slave.async.AsyncCommand;
 import org.drftpd.slave.async.AsyncCommandArgument;
 import org.drftpd.slave.async.AsyncResponse;
 import org.drftpd.slave.async.AsyncResponseChecksum;
+import org.drftpd.slave.async.AsyncResponseDigests;
 import org.drftpd.slave.async.AsyncResponseDiskStatus;
 import org.drftpd.slave.async.AsyncResponseException;
+import org.drftpd.slave.async.AsyncResponseRejected;
 import org.drftpd.slave.async.AsyncResponseMaxPath;
+import org.drftpd.slave.async.AsyncResponseReconcile;
 import org.drftpd.slave.async.AsyncResponseRemerge;
 import org.drftpd.slave.async.AsyncResponseSSLCheck;
 import org.drftpd.slave.async.AsyncResponseTransfer;
@@ -80,6 +94,9 @@ import org.drftpd.usermanager.Entity;
 import org.drftpd.util.HostMask;
 import org.drftpd.util.HostMaskCollection;
 import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.InodeHandle;
+import org.drftpd.vfs.VirtualFileSystem;
 
 /**
  * @author mog
@@ -93,6 +110,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	private static final Logger logger = Logger.getLogger(RemoteSlave.class);
 
+	// times out responses nobody is waiting for, see fetchResponseFuture()
+	private static final Timer RESPONSE_TIMER = new Timer("RemoteSlaveResponseTimeout", true);
+
 	private transient boolean _isAvailable;
 
 	protected transient int _errors;
@@ -113,6 +133,23 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	private transient DiskStatus _status;
 
+	// guards the transfer totals below, the counted state of each RemoteTransfer and publishing _slaveStatus
+	private transient Object _statusLock;
+
+	private transient long _throughputReceiving;
+
+	private transient long _throughputSending;
+
+	private transient int _transfersReceiving;
+
+	private transient int _transfersSending;
+
+	private transient long _transferedReceiving;
+
+	private transient long _transferedSending;
+
+	private transient volatile SlaveStatus _slaveStatus;
+
 	private HostMaskCollection _ipMasks;
 
 	private Properties _keysAndValues;
@@ -123,7 +160,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	private transient LinkedBlockingDeque<String> _indexPool;
 
-	private transient ConcurrentHashMap<String, AsyncResponse> _indexWithCommands;
+	private transient ConcurrentHashMap<String, ResponseFuture> _indexWithCommands;
+
+	private transient ConcurrentHashMap<String, CommandLatency> _latencies;
 
 	private transient ObjectInputStream _sin;
 
@@ -131,17 +170,20 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	private transient ObjectOutputStream _sout;
 
+	private transient AsyncCodec _codec;
+
 	private transient ConcurrentHashMap<TransferIndex, RemoteTransfer> _transfers;
 
 	private transient AtomicBoolean _remergePaused;
 	
 	private transient boolean _initRemergeCompleted;
 
-	private transient Object _commandMonitor;
+	private transient RemergePipeline _remergePipeline;
 
-	private transient LinkedBlockingQueue<RemergeMessage> _remergeQueue;
+	// changes made outside drftpd waiting to be applied
+	private transient LinkedList<AsyncResponseReconcile> _reconcileQueue;
 
-	private transient RemergeThread _remergeThread;
+	private transient boolean _reconciling;
 
 	public RemoteSlave(String name) {
 		_name = name;
@@ -150,8 +192,11 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		_ipMasks = new HostMaskCollection();
 		_renameQueue = new LinkedList<QueuedOperation>();
 		_remergePaused = new AtomicBoolean();
-		_remergeQueue = new LinkedBlockingQueue<RemergeMessage>();
-		_commandMonitor = new Object();
+		_remergePipeline = new RemergePipeline(this);
+		_reconcileQueue = new LinkedList<AsyncResponseReconcile>();
+		_latencies = new ConcurrentHashMap<String, CommandLatency>();
+		_statusLock = new Object();
+		_transfers = new ConcurrentHashMap<TransferIndex, RemoteTransfer>();
 	}
 	
 	public static final Key<Boolean> SSL = new Key<Boolean>(RemoteSlave.class, "ssl");
@@ -222,6 +267,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	public void setProperty(String name, String value) {
 		_keysAndValues.setProperty(name, value);
 		commit();
+		if (name.equals("bytesSent") || name.equals("bytesReceived")) {
+			publishSlaveStatus();
+		}
 	}
 
 	public String getProperty(String name, String def) {
@@ -300,48 +348,102 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	/**
 	 * Returns the RemoteSlave's saved SlaveStatus, can return a status before
-	 * remerge() is completed
+	 * remerge() is completed.<br>
+	 * The status is published by the slave thread each time a transfer or the
+	 * disk status changes, so this neither locks nor walks the transfers.
 	 */
 	public SlaveStatus getSlaveStatus()
 			throws SlaveUnavailableException {
-		if ((_status == null) || !isOnline()) {
+		SlaveStatus status = _slaveStatus;
+		if ((status == null) || !isOnline()) {
 			throw new SlaveUnavailableException();
 		}
-		int throughputUp = 0;
-		int throughputDown = 0;
-		int transfersUp = 0;
-		int transfersDown = 0;
-		long bytesReceived;
-		long bytesSent;
-
-		bytesReceived = getReceivedBytes();
-		bytesSent = getSentBytes();
-
-		for (RemoteTransfer transfer : _transfers.values()) {
-			switch (transfer.getTransferDirection()) {
-			case Transfer.TRANSFER_RECEIVING_UPLOAD:
-				throughputUp += transfer.getXferSpeed();
-				bytesReceived += transfer.getTransfered();
-				transfersUp += 1;
-				break;
-
-			case Transfer.TRANSFER_SENDING_DOWNLOAD:
-				throughputDown += transfer.getXferSpeed();
-				transfersDown += 1;
-				bytesSent += transfer.getTransfered();
-				break;
-
-			case Transfer.TRANSFER_UNKNOWN:
-				break;
-
-			default:
-				throw new FatalException("unrecognized direction - "
-						+ transfer.getTransferDirection() + " for " + transfer);
+		return status;
+	}
+
+	/**
+	 * Moves what the transfer adds to the totals of this slave from the state
+	 * it was last counted in to its current state.
+	 * @param finished true when the transfer is removed from the slave
+	 */
+	protected void updateTransferTotals(RemoteTransfer transfer, boolean finished) {
+		synchronized (_statusLock) {
+			countTransfer(transfer._countedDirection, -1, -transfer._countedSpeed,
+					-transfer._countedTransfered);
+			// a transfer can be updated by the command thread after the slave thread removed it
+			if (finished || _transfers.get(transfer.getTransferIndex()) != transfer) {
+				transfer._countedDirection = Transfer.TRANSFER_UNKNOWN;
+				transfer._countedSpeed = 0L;
+				transfer._countedTransfered = 0L;
+			} else {
+				transfer._countedDirection = transfer.getTransferDirection();
+				transfer._countedSpeed = transfer.getXferSpeed();
+				transfer._countedTransfered = transfer.getTransfered();
+				countTransfer(transfer._countedDirection, 1, transfer._countedSpeed,
+						transfer._countedTransfered);
+				if (transfer._countedDirection == Transfer.TRANSFER_RECEIVING_UPLOAD) {
+					transfer._concurrencySum += _transfersReceiving;
+					transfer._concurrencySamples++;
+				} else if (transfer._countedDirection == Transfer.TRANSFER_SENDING_DOWNLOAD) {
+					transfer._concurrencySum += _transfersSending;
+					transfer._concurrencySamples++;
+				}
+			}
+			publishSlaveStatus();
+		}
+	}
+
+	private void countTransfer(char direction, int transfers, long speed, long transfered) {
+		switch (direction) {
+		case Transfer.TRANSFER_RECEIVING_UPLOAD:
+			_transfersReceiving += transfers;
+			_throughputReceiving += speed;
+			_transferedReceiving += transfered;
+			break;
+
+		case Transfer.TRANSFER_SENDING_DOWNLOAD:
+			_transfersSending += transfers;
+			_throughputSending += speed;
+			_transferedSending += transfered;
+			break;
+
+		case Transfer.TRANSFER_UNKNOWN:
+			break;
+
+		default:
+			throw new FatalException("unrecognized direction - " + direction);
+		}
+	}
+
+	private void publishSlaveStatus() {
+		synchronized (_statusLock) {
+			if (_status == null) {
+				_slaveStatus = null;
+				return;
 			}
+			_slaveStatus = new SlaveStatus(_status, getSentBytes() + _transferedSending,
+					getReceivedBytes() + _transferedReceiving, (int) _throughputReceiving,
+					_transfersReceiving, (int) _throughputSending, _transfersSending);
+		}
+	}
+
+	void setDiskStatus(DiskStatus status) {
+		synchronized (_statusLock) {
+			_status = status;
+			publishSlaveStatus();
 		}
+	}
 
-		return new SlaveStatus(_status, bytesSent, bytesReceived, throughputUp,
-				transfersUp, throughputDown, transfersDown);
+	private void clearTransferTotals() {
+		synchronized (_statusLock) {
+			_throughputReceiving = 0L;
+			_throughputSending = 0L;
+			_transfersReceiving = 0;
+			_transfersSending = 0;
+			_transferedReceiving = 0L;
+			_transferedSending = 0L;
+			publishSlaveStatus();
+		}
 	}
 
 	public long getSentBytes() {
@@ -411,12 +513,26 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 				}
 			}
 		}
-		String remergeIndex;
-		if (partialRemerge) {
-			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", true, skipAgeCutoff,
-					System.currentTimeMillis());
-		} else {
-			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L);
+		String remergeIndex = null;
+		HashMap<String, Long> digests = null;
+		int credits = _remergePipeline.getInitialCredits();
+		if (GlobalContext.getConfig().getMainProperties().getProperty("remerge.digest", "false")
+				.equalsIgnoreCase("true")) {
+			try {
+				digests = findChangedDirectories(Collections.singletonList(VirtualFileSystem.separator));
+				remergeIndex = SlaveManager.getBasicIssuer().issueRemergePathsToSlave(this, digests.keySet(),
+						credits);
+			} catch (RemoteIOException e) {
+				logger.warn("Slave " + getName() + " could not provide remerge digests, remerging all directories", e);
+			}
+		}
+		if (remergeIndex == null) {
+			if (partialRemerge) {
+				remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", true, skipAgeCutoff,
+						System.currentTimeMillis(), credits);
+			} else {
+				remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, credits);
+			}
 		}
 
 		try {
@@ -425,7 +541,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 			throw new IOException(e.getMessage());
 		}
 
-		putRemergeQueue(new RemergeMessage(this));
+		putRemergeQueue(new RemergeMessage(this, digests));
 
 		// TODO move lastConnect time setting to makeAvailableAfterRemerge()
 		setProperty("lastConnect", Long.toString(System.currentTimeMillis()));
@@ -437,6 +553,290 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		}
 	}
 
+	/**
+	 * Walks the remerge digests of the slave down from the given directories,
+	 * only the directories whose digest differs from the one stored when they
+	 * were last merged are descended into.
+	 * @param start
+	 * @return the digests of the directories which need to be remerged
+	 * @throws RemoteIOException if the slave can't provide digests
+	 */
+	HashMap<String, Long> findChangedDirectories(Collection<String> start) throws RemoteIOException,
+			SlaveUnavailableException {
+		long begin = System.currentTimeMillis();
+		HashMap<String, Long> changed = new HashMap<String, Long>();
+		Collection<String> level = start;
+		int compared = 0;
+		while (!level.isEmpty()) {
+			HashMap<String, Long> digests = fetchRemergeDigests(level);
+			if (level == start) {
+				for (String path : start) {
+					Long digest = digests.get(path);
+					compared++;
+					if (digest != null && !digest.equals(getRemergeDigest(path))) {
+						changed.put(path, digest);
+					}
+				}
+			}
+			ArrayList<String> next = new ArrayList<String>();
+			for (Map.Entry<String, Long> entry : digests.entrySet()) {
+				String path = entry.getKey();
+				// the requested directories are returned too, only look at the children of changed ones
+				if (changed.containsKey(path) || !changed.containsKey(getParentPath(path))) {
+					continue;
+				}
+				compared++;
+				if (!entry.getValue().equals(getRemergeDigest(path))) {
+					changed.put(path, entry.getValue());
+					next.add(path);
+				}
+			}
+			level = next;
+		}
+		logger.info("Slave " + getName() + " has " + changed.size() + " changed directories out of "
+				+ compared + " compared in " + (System.currentTimeMillis() - begin) + "ms");
+		return changed;
+	}
+
+	/**
+	 * Queues the changes the slave found made outside drftpd, they are
+	 * applied to the VFS in the background once the slave is available.
+	 * @param changes
+	 */
+	private void reconcile(AsyncResponseReconcile changes) {
+		synchronized (_reconcileQueue) {
+			_reconcileQueue.add(changes);
+		}
+		startReconcile();
+	}
+
+	private void startReconcile() {
+		synchronized (_reconcileQueue) {
+			if (_reconciling || _reconcileQueue.isEmpty() || !isAvailable()) {
+				return;
+			}
+			_reconciling = true;
+		}
+		Thread t = new Thread(new ReconcileRunnable());
+		t.setName("Reconcile - " + getName());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private class ReconcileRunnable implements Runnable {
+		public void run() {
+			while (true) {
+				AsyncResponseReconcile changes;
+				synchronized (_reconcileQueue) {
+					if (_reconcileQueue.isEmpty() || !isAvailable()) {
+						// picked up again by makeAvailableAfterRemerge()
+						_reconciling = false;
+						return;
+					}
+					changes = _reconcileQueue.removeFirst();
+				}
+				applyReconcile(changes);
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes made outside drftpd to the VFS one by one. The
+	 * digests sent along are only stored once every change was applied,
+	 * otherwise the next remerge lists the directories again.
+	 * @param changes
+	 */
+	protected void applyReconcile(AsyncResponseReconcile changes) {
+		boolean applied = true;
+		ArrayList<String> remerge = new ArrayList<String>();
+		for (ReconcileChange change : changes.getChanges()) {
+			try {
+				applyReconcileChange(change, remerge);
+			} catch (IOException e) {
+				logger.warn("Unable to apply " + change + " from slave " + getName(), e);
+				applied = false;
+			}
+		}
+		if (!remerge.isEmpty()) {
+			try {
+				HashMap<String, Long> digests = findChangedDirectories(remerge);
+				fetchResponse(SlaveManager.getBasicIssuer().issueRemergePathsToSlave(this,
+						digests.keySet(), _remergePipeline.getInitialCredits()), 0);
+				putRemergeQueue(new RemergeMessage(this, digests));
+			} catch (RemoteIOException e) {
+				logger.warn("Error remerging directories renamed on " + getName(), e);
+				applied = false;
+			} catch (SlaveUnavailableException e) {
+				return;
+			}
+		}
+		logger.info("Applied " + changes.getChanges().size() + " changes made outside drftpd on " + getName());
+		if (applied && GlobalContext.getConfig().getMainProperties().getProperty("remerge.digest", "false")
+				.equalsIgnoreCase("true")) {
+			storeRemergeDigests(changes.getDigests());
+		}
+	}
+
+	/**
+	 * @param remerge filled with the directories which can only be known
+	 * by remerging them
+	 */
+	private void applyReconcileChange(ReconcileChange change, ArrayList<String> remerge)
+			throws FileExistsException, FileNotFoundException {
+		switch (change.getType()) {
+		case ReconcileChange.ADD:
+			addReconciled(change.getPath(), change.getInode());
+			break;
+		case ReconcileChange.REMOVE:
+			try {
+				getInodeHandle(change.getPath()).removeSlave(this);
+			} catch (FileNotFoundException e) {
+				// the master didn't know it either
+			}
+			break;
+		case ReconcileChange.RENAME:
+			renameReconciled(change.getPath(), change.getTarget(), change.getInode(), remerge);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown change " + change);
+		}
+	}
+
+	private void addReconciled(String path, LightRemoteInode inode)
+			throws FileExistsException, FileNotFoundException {
+		DirectoryHandle dir = getReconciledParent(path);
+		if (inode.isDirectory()) {
+			try {
+				dir.createDirectoryRecursive(inode.getName(), true);
+			} catch (FileExistsException e) {
+				// already known
+			}
+		} else {
+			dir.remergeFile(inode, this);
+		}
+	}
+
+	/**
+	 * A file or directory which is only on this slave is renamed in place,
+	 * keeping what the master knows about it. Otherwise this slave is removed
+	 * from the source and the target is merged like a new file, or remerged
+	 * for a directory.
+	 */
+	private void renameReconciled(String from, String to, LightRemoteInode inode, ArrayList<String> remerge)
+			throws FileExistsException, FileNotFoundException {
+		InodeHandle source = null;
+		try {
+			source = getInodeHandle(from);
+		} catch (FileNotFoundException e) {
+			// handled as new
+		}
+		if (source != null) {
+			if (!source.isLink() && isOnlyOnThisSlave(source)) {
+				getReconciledParent(to);
+				try {
+					source.renameToUncheckedFromSlave(source.isFile() ? new FileHandle(to) : new DirectoryHandle(to));
+					return;
+				} catch (FileExistsException e) {
+					// the target is merged with what has its name
+				}
+			}
+			source.removeSlave(this);
+		}
+		if (inode.isDirectory()) {
+			remerge.add(to);
+		} else {
+			addReconciled(to, inode);
+		}
+	}
+
+	private boolean isOnlyOnThisSlave(InodeHandle inode) throws FileNotFoundException {
+		if (inode.isFile()) {
+			Set<String> slaves = ((FileHandle) inode).getSlaveNames();
+			return slaves.size() == 1 && slaves.contains(getName());
+		}
+		for (Map.Entry<String, AtomicInteger> entry : inode.getSlaveRefCounts().entrySet()) {
+			if (entry.getValue().get() > 0 && !entry.getKey().equals(getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the directory holding the path, created if needed
+	 */
+	private static DirectoryHandle getReconciledParent(String path) throws FileNotFoundException {
+		DirectoryHandle dir = new DirectoryHandle(VirtualFileSystem.stripLast(path));
+		if (!dir.exists()) {
+			try {
+				dir.getParent().createDirectoryRecursive(dir.getName(), true);
+			} catch (FileExistsException e) {
+				// created in the meantime
+			}
+		}
+		return dir;
+	}
+
+	private static InodeHandle getInodeHandle(String path) throws FileNotFoundException {
+		return new DirectoryHandle(VirtualFileSystem.stripLast(path)).getInodeHandleUnchecked(
+				VirtualFileSystem.getLast(path));
+	}
+
+	private static String getParentPath(String path) {
+		int index = path.lastIndexOf(VirtualFileSystem.separator);
+		return index <= 0 ? VirtualFileSystem.separator : path.substring(0, index);
+	}
+
+	/**
+	 * @return the digest stored when the directory was last merged, null if
+	 * it has none or does not exist.
+	 */
+	protected Long getRemergeDigest(String path) {
+		try {
+			return new DirectoryHandle(path).getRemergeDigest(this);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the digests of the directories and their direct subdirectories
+	 */
+	protected HashMap<String, Long> fetchRemergeDigests(Collection<String> paths) throws RemoteIOException,
+			SlaveUnavailableException {
+		return fetchDigestsFromIndex(SlaveManager.getBasicIssuer().issueRemergeDigestToSlave(this, paths));
+	}
+
+	/**
+	 * Waits as long as {@link #fetchResponse(String)} for the digests, but a
+	 * slave taking longer is not set offline, the caller lists all
+	 * directories instead.
+	 * @throws RemoteIOException if the digests did not arrive in time
+	 */
+	public HashMap<String, Long> fetchDigestsFromIndex(String index) throws RemoteIOException,
+			SlaveUnavailableException {
+		final ResponseFuture future = getResponseFuture(index);
+		AsyncResponse rar;
+		try {
+			rar = future.get(60 * 1000);
+		} catch (SlaveUnavailableException e) {
+			releaseIndex(future);
+			throw e;
+		}
+		if (rar == null) {
+			// the index can only be reused once the late response arrived
+			future.addListener(new Runnable() {
+				public void run() {
+					releaseIndex(future);
+				}
+			});
+			throw new RemoteIOException(new IOException("Slave has taken too long to send remerge digests "
+					+ index));
+		}
+		releaseIndex(future);
+		return ((AsyncResponseDigests) checkResponse(rar)).getDigests();
+	}
+
 	/**
 	 * @return true if the slave has synchronized its filelist since last
 	 *         connect
@@ -520,11 +920,27 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		_isAvailable = available;
 	}
 
+	/**
+	 * Stores the digests of directories once their remerge has been applied,
+	 * a later remerge skips them while neither side changed.
+	 * @param digests
+	 */
+	protected void storeRemergeDigests(Map<String, Long> digests) {
+		for (Map.Entry<String, Long> entry : digests.entrySet()) {
+			try {
+				new DirectoryHandle(entry.getKey()).setRemergeDigest(this, entry.getValue());
+			} catch (FileNotFoundException e) {
+				// removed since, it is compared again on the next remerge
+			}
+		}
+	}
+
 	protected void makeAvailableAfterRemerge() {
 		// TODO move lastconnect time set to here
 		setAvailable(true);
 		logger.info("Slave added: '" + getName() + "' status: " + _status);
 		GlobalContext.getEventService().publishAsync(new SlaveEvent("ADDSLAVE", this));
+		startReconcile();
 	}
 
 	public final void setLastDirection(char direction, long l) {
@@ -614,6 +1030,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		_socket = socket;
 		_sout = out;
 		_sin = in;
+		_codec = new AsyncCodec(in, out, false);
 		if (_indexPool == null) {
 			_indexPool = new LinkedBlockingDeque<String>(256);
 		} else {
@@ -631,9 +1048,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		}
 
 		if (_indexWithCommands == null) {
-			_indexWithCommands = new ConcurrentHashMap<String, AsyncResponse>();
+			_indexWithCommands = new ConcurrentHashMap<String, ResponseFuture>();
 		} else {
-			_indexWithCommands.clear();
+			failResponses("Slave reconnected while processing command");
 		}
 		
 		if (_transfers == null) {
@@ -641,6 +1058,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		} else {
 			_transfers.clear();
 		}
+		clearTransferTotals();
 		
 		_errors = 0;
 		_lastNetworkError = System.currentTimeMillis();
@@ -685,6 +1103,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 				if (index == null) {
 					logger.error("Too many commands sent, need to wait for the slave to process commands");
 				} else {
+					_indexWithCommands.put(index, new ResponseFuture(index));
 					return index;
 				}
 			} catch (InterruptedException e1) {
@@ -725,31 +1144,123 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	 */
 	public AsyncResponse fetchResponse(String index, int wait)
 			throws SlaveUnavailableException, RemoteIOException {
-		long total = System.currentTimeMillis();
-
-		while (isOnline() && !_indexWithCommands.containsKey(index)) {
-			try {
-				synchronized(_commandMonitor) {
-					_commandMonitor.wait(1000);
-				}
-
-				// will wait a maximum of 1000 milliseconds before waking up
-			} catch (InterruptedException e) {
-			}
-
-			if ((wait != 0) && ((System.currentTimeMillis() - total) >= wait)) {
+		ResponseFuture future = getResponseFuture(index);
+		AsyncResponse rar;
+		try {
+			rar = future.get(wait);
+			if (rar == null) {
 				setOffline("Slave has taken too long while waiting for reply "
 						+ index);
+				throw new SlaveUnavailableException(
+						"Slave went offline while processing command");
 			}
+		} finally {
+			releaseIndex(future);
 		}
+		return checkResponse(rar);
+	}
 
-		if (!isOnline()) {
+	/**
+	 * Returns the response of a future from {@link #fetchResponseFuture(String, int)},
+	 * waiting for it if it did not arrive yet, and throws any exceptions thrown on
+	 * the slave side.
+	 */
+	public AsyncResponse getResponse(ResponseFuture future)
+			throws SlaveUnavailableException, RemoteIOException {
+		return checkResponse(future.get(0));
+	}
+
+	/**
+	 * Returns the future of the response for that index without waiting for it,
+	 * so several commands can be sent before waiting for any of them and work
+	 * can be started as soon as a response arrived using
+	 * {@link ResponseFuture#addListener(Runnable)}.<br>
+	 * The index is returned to the pool as soon as the response arrived, it must
+	 * not be passed to {@link #fetchResponse(String, int)} afterwards.
+	 * @param wait the slave is set offline if the response did not arrive in
+	 * this many milliseconds, 0 waits forever
+	 */
+	public ResponseFuture fetchResponseFuture(String index, int wait)
+			throws SlaveUnavailableException {
+		final ResponseFuture future = getResponseFuture(index);
+		if (wait != 0) {
+			final TimerTask timeout = new TimerTask() {
+				public void run() {
+					if (!future.isDone()) {
+						setOffline("Slave has taken too long while waiting for reply "
+								+ future.getIndex());
+					}
+				}
+			};
+			RESPONSE_TIMER.schedule(timeout, wait);
+			future.addListener(new Runnable() {
+				public void run() {
+					timeout.cancel();
+				}
+			});
+		}
+		future.addListener(new Runnable() {
+			public void run() {
+				releaseIndex(future);
+			}
+		});
+		return future;
+	}
+
+	private ResponseFuture getResponseFuture(String index) throws SlaveUnavailableException {
+		ResponseFuture future = _indexWithCommands.get(index);
+		if (future == null) {
 			throw new SlaveUnavailableException(
 					"Slave went offline while processing command");
 		}
+		return future;
+	}
+
+	private void releaseIndex(ResponseFuture future) {
+		if (_indexWithCommands.remove(future.getIndex(), future)) {
+			_indexPool.push(future.getIndex());
+		}
+	}
+
+	private void failResponses(String reason) {
+		for (ResponseFuture future : _indexWithCommands.values()) {
+			future.fail(reason);
+		}
+		_indexWithCommands.clear();
+	}
 
-		AsyncResponse rar = _indexWithCommands.remove(index);
-		_indexPool.push(index);
+	/**
+	 * Returns how long the slave took to respond to each type of command since
+	 * the master started, keyed by command name.
+	 */
+	public Map<String, CommandLatency> getCommandLatencies() {
+		return new TreeMap<String, CommandLatency>(_latencies);
+	}
+
+	private void addLatency(ResponseFuture future) {
+		long latency = future.getLatency();
+		if (latency < 0L) {
+			return;
+		}
+		CommandLatency commandLatency = _latencies.get(future.getCommand());
+		if (commandLatency == null) {
+			commandLatency = new CommandLatency();
+			CommandLatency existing = _latencies.putIfAbsent(future.getCommand(), commandLatency);
+			if (existing != null) {
+				commandLatency = existing;
+			}
+		}
+		commandLatency.add(latency);
+	}
+
+	private AsyncResponse checkResponse(AsyncResponse rar)
+			throws SlaveUnavailableException, RemoteIOException {
+		if (rar instanceof AsyncResponseRejected) {
+			// the slave is busy but still healthy, let the caller try another slave or retry later
+			AsyncResponseRejected rejected = (AsyncResponseRejected) rar;
+			throw new RemoteIOException(new IOException("Slave is too busy to run "
+					+ rejected.getCommand() + ", the " + rejected.getPool() + " pool is full"));
+		}
 
 		if (rar instanceof AsyncResponseException) {
 			Throwable t = ((AsyncResponseException) rar).getThrowable();
@@ -833,7 +1344,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 					throw new SlaveUnavailableException();
 				}
 
-				if (isOnline() && !isAvailable() && !_initRemergeCompleted) {
+				if (isOnline() && !isAvailable() && !_initRemergeCompleted
+						&& _remergePipeline.getInitialCredits() == 0) {
+					// without credits the slave is paused when the commit queue grows
 					int queueSize = CommitManager.getCommitManager().getQueueSize();
 					if (_remergePaused.get()) {
 						// Do we need to resume
@@ -871,9 +1384,10 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 				if (ar.getIndex().equals("Remerge")) {
 					putRemergeQueue(new RemergeMessage((AsyncResponseRemerge) ar, this));
+				} else if (ar.getIndex().equals("Reconcile")) {
+					reconcile((AsyncResponseReconcile) ar);
 				} else if (ar.getIndex().equals("DiskStatus")) {
-					_status = ((AsyncResponseDiskStatus) ar)
-					.getDiskStatus();
+					setDiskStatus(((AsyncResponseDiskStatus) ar).getDiskStatus());
 				} else if (ar.getIndex().equals("TransferStatus")) {
 					TransferStatus ats = ((AsyncResponseTransferStatus) ar)
 					.getTransferStatus();
@@ -894,15 +1408,16 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 						removeTransfer(ats.getTransferIndex());
 					}
 				} else {
-					_indexWithCommands.put(ar.getIndex(), ar);
+					ResponseFuture future = _indexWithCommands.get(ar.getIndex());
+					if (future == null) {
+						logger.debug("Received a response for an unknown index: " + ar);
+					} else if (future.complete(ar)) {
+						addLatency(future);
+					}
 					if (pingIndex != null
 							&& pingIndex.equals(ar.getIndex())) {
 						fetchResponse(pingIndex);
 						pingIndex = null;
-					} else {
-						synchronized (_commandMonitor) {
-							_commandMonitor.notifyAll();
-						}
 					}
 				}
 			}
@@ -917,7 +1432,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 				.toString(SlaveManager.actualTimeout)));
 	}
 
-	private void removeTransfer(TransferIndex transferIndex) {
+	void removeTransfer(TransferIndex transferIndex) {
 		RemoteTransfer transfer =  _transfers.remove(transferIndex);
 
 		if (transfer == null) {
@@ -926,6 +1441,10 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 			}
 			throw new IllegalStateException("there is a bug in code");
 		}
+		updateTransferTotals(transfer, true);
+		if (transfer.getTransferDirection() != Transfer.TRANSFER_UNKNOWN) {
+			GlobalContext.getEventService().publishAsync(new SlaveTransferEvent(this, transfer));
+		}
 		if (transfer.getTransferDirection() == Transfer.TRANSFER_RECEIVING_UPLOAD) {
 			updateDownloadedBytes(transfer.getTransfered());
 		} else if (transfer.getTransferDirection() == Transfer.TRANSFER_SENDING_DOWNLOAD) {
@@ -942,7 +1461,8 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	private void setOfflineReal(String reason) {
 		// If the slave is still processing the remerge queue clear all
 		// outstanding entries
-		_remergeQueue.clear();
+		_remergePipeline.cancel();
+		_remergePipeline = new RemergePipeline(this);
 		if (_socket != null) {
 			setProperty("lastOnline", Long.toString(System.currentTimeMillis()));
 			try {
@@ -954,11 +1474,22 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		_sin = null;
 		_sout = null;
 		if (_indexWithCommands != null)
-			_indexWithCommands.clear();
-		if (_transfers != null)
+			failResponses("Slave went offline while processing command");
+		if (_transfers != null) {
+			for (RemoteTransfer transfer : _transfers.values()) {
+				transfer.slaveOffline();
+			}
 			_transfers.clear();
+		}
 		_maxPath = 0;
-		_status = null;
+		synchronized (_reconcileQueue) {
+			// the remerge on the next connect lists what they were about
+			_reconcileQueue.clear();
+		}
+		synchronized (_statusLock) {
+			_status = null;
+			clearTransferTotals();
+		}
 
 		if (_isAvailable) {
 			GlobalContext.getEventService().publishAsync(
@@ -988,13 +1519,13 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	private AsyncResponse readAsyncResponse() throws SlaveUnavailableException,
 			SocketTimeoutException {
 		Object obj;
-		ObjectInputStream in = _sin;
+		AsyncCodec codec = _codec;
 		if (!isOnline()) {
 			throw new SlaveUnavailableException("Slave is unavailable");
 		}
 		while (true) {
 			try {
-				obj = in.readObject();
+				obj = codec.readMessage();
 			} catch (ClassNotFoundException e) {
 				logger.error("ClassNotFound reading AsyncResponse", e);
 				setOffline("ClassNotFound reading AsyncResponse");
@@ -1011,6 +1542,11 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 			}
 			if (obj != null) {
 				if (obj instanceof AsyncResponse) {
+					if (AsyncCodec.CODEC_ACK.equals(((AsyncResponse) obj).getIndex())) {
+						// everything the slave sends from now on uses the codec
+						codec.setReadVersion(codec.getWriteVersion());
+						continue;
+					}
 					return (AsyncResponse) obj;
 				}
 				logger.error("Throwing away an unexpected class - "
@@ -1036,15 +1572,18 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 			throw new NullPointerException();
 		}
 
-		ObjectOutputStream out = _sout;
+		AsyncCodec codec = _codec;
 		if (!isOnline()) {
 			throw new SlaveUnavailableException();
 		}
 
+		ResponseFuture future = _indexWithCommands.get(rac.getIndex());
+		if (future != null) {
+			future.sent(rac.getName());
+		}
+
 		try {
-			out.writeObject(rac);
-			out.flush();
-			out.reset();
+			codec.writeMessage(rac);
 		} catch (IOException e) {
 			logger.error("error in sendCommand()", e);
 			throw new SlaveUnavailableException(
@@ -1070,6 +1609,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 		}
 
 		_transfers.put(transferIndex, transfer);
+		updateTransferTotals(transfer, false);
 	}
 
 	public RemoteTransfer getTransfer(TransferIndex transferIndex)
@@ -1142,6 +1682,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 				throw new KeyNotFoundException();
 			String value = (String) _keysAndValues.remove(key);
 			commit();
+			if (key.equals("bytesSent") || key.equals("bytesReceived")) {
+				publishSlaveStatus();
+			}
 			return value;
 		}
 	}
@@ -1200,54 +1743,32 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	public ObjectOutputStream getOutputStream() {
 		return _sout;
 	}
+
+	/**
+	 * Tells the slave that every command sent from now on uses the given codec
+	 * version, only called during the handshake with slaves supporting it.
+	 * @param version
+	 * @throws IOException
+	 */
+	public synchronized void enableCodec(int version) throws IOException {
+		_codec.writeMessage(new AsyncCommandArgument("", AsyncCodec.CODEC_COMMAND,
+				Integer.toString(version)));
+		_codec.setWriteVersion(version);
+		logger.info("Using message codec version " + version + " with " + getName());
+	}
 	
 	public ObjectInputStream getInputStream() {
 		return _sin;
 	}
 
 	private void putRemergeQueue(RemergeMessage message) {
-		try {
-			_remergeQueue.put(message);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
-		if (_remergeThread == null || !_remergeThread.isAlive()) {
-			_remergeThread = new RemergeThread(getName());
-			_remergeThread.start();
-		}
+		_remergePipeline.put(message);
 	}
 
-	private class RemergeThread extends Thread {
-
-		public RemergeThread(String slaveName) {
-			super("RemergeThread - " + slaveName);
-		}
-
-		public void run() {
-			while (true) {
-				RemergeMessage msg;
-				try {
-					msg = _remergeQueue.take();
-				} catch (InterruptedException e) {
-					logger.info("", e);
-					continue;
-				}
-
-				if (msg.isCompleted()) {
-					msg.getRslave().makeAvailableAfterRemerge();
-					break;
-				}
-
-				DirectoryHandle dir = new DirectoryHandle(msg.getDirectory());
-
-				try {
-					dir.remerge(msg.getFiles(), msg.getRslave(), msg.getLastModified());
-				} catch (IOException e) {
-					logger.error("IOException during remerge", e);
-					msg.getRslave().setOffline("IOException during remerge");
-					break;
-				}
-			}
-		}
+	/**
+	 * @return the progress of the current or last remerge of this slave.
+	 */
+	public RemergePipeline getRemergePipeline() {
+		return _remergePipeline;
 	}
 }
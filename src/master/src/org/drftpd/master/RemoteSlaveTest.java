@@ -19,6 +19,10 @@ package org.drftpd.master;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import junit.framework.TestCase;
@@ -27,6 +31,7 @@ import junit.framework.TestSuite;
 import org.drftpd.GlobalContext;
 import org.drftpd.event.Event;
 import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.RemoteIOException;
 import org.drftpd.slave.async.AsyncResponse;
 import org.drftpd.tests.DummyRemoteSlave;
 import org.drftpd.tests.DummySlaveManager;
@@ -113,6 +118,30 @@ public class RemoteSlaveTest extends TestCase {
         assertFalse(rslave.isAvailable());
     }
 
+    public void testFindChangedDirectories()
+        throws SlaveUnavailableException, RemoteIOException {
+        DigestRemoteSlave digests = new DigestRemoteSlave("test");
+        digests.add("/", 1L, 2L);
+        digests.add("/A", 1L, 2L);
+        digests.add("/A/x", 1L, 2L);
+        digests.add("/A/y", 1L, 1L);
+        // not looked at, its parent did not change
+        digests.add("/B", 1L, 1L);
+        digests.add("/B/z", 1L, 2L);
+        // never merged
+        digests.add("/C", null, 1L);
+
+        RemoteSlave rslave = digests;
+        assertEquals(new HashSet<String>(Arrays.asList("/", "/A", "/A/x", "/C")),
+            rslave.findChangedDirectories(Collections.singletonList("/")).keySet());
+        assertEquals(Long.valueOf(2L),
+            rslave.findChangedDirectories(Collections.singletonList("/")).get("/A/x"));
+        // directories reported by the slave are compared themselves first
+        assertTrue(rslave.findChangedDirectories(Collections.singletonList("/B")).isEmpty());
+        assertEquals(Collections.singleton("/B/z"),
+            rslave.findChangedDirectories(Collections.singletonList("/B/z")).keySet());
+    }
+
     public class GC extends GlobalContext {
         public SlaveManager getSlaveManager() {
             return super.getSlaveManager();
@@ -173,4 +202,43 @@ public class RemoteSlaveTest extends TestCase {
             return null;
         }
     }
+
+    /**
+     * Answers digest requests from a tree of digests instead of a slave.
+     */
+    public class DigestRemoteSlave extends DummyRemoteSlave {
+        private HashMap<String, Long> _stored = new HashMap<String, Long>();
+
+        private HashMap<String, Long> _current = new HashMap<String, Long>();
+
+        public DigestRemoteSlave(String name) {
+            super(name);
+        }
+
+        public void add(String path, Long stored, long current) {
+            if (stored != null) {
+                _stored.put(path, stored);
+            }
+            _current.put(path, current);
+        }
+
+        protected HashMap<String, Long> fetchRemergeDigests(Collection<String> paths) {
+            HashMap<String, Long> digests = new HashMap<String, Long>();
+            for (String path : paths) {
+                for (String dir : _current.keySet()) {
+                    int index = dir.lastIndexOf('/');
+                    String parent = index <= 0 ? "/" : dir.substring(0, index);
+                    // the directory itself and those directly in it
+                    if (dir.equals(path) || (!dir.equals("/") && parent.equals(path))) {
+                        digests.put(dir, _current.get(dir));
+                    }
+                }
+            }
+            return digests;
+        }
+
+        protected Long getRemergeDigest(String path) {
+            return _stored.get(path);
+        }
+    }
 }
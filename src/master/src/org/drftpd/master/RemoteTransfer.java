@@ -43,7 +43,8 @@ public class RemoteTransfer {
 
 	private RemoteSlave _rslave;
 
-	private TransferStatus _status;
+	// written by the thread reading from the slave, read by the command thread
+	private volatile TransferStatus _status;
 
 	private char _transferDirection = Transfer.TRANSFER_UNKNOWN;
 
@@ -51,6 +52,22 @@ public class RemoteTransfer {
 	
 	private TransferPointer _pointer;
 
+	// what this transfer last added to the totals of its slave, see RemoteSlave.updateTransferTotals()
+	char _countedDirection = Transfer.TRANSFER_UNKNOWN;
+
+	long _countedSpeed;
+
+	long _countedTransfered;
+
+	// the average number of transfers the slave ran in this direction, sampled at each update
+	long _concurrencySum;
+
+	int _concurrencySamples;
+
+	private long _started;
+
+	private long _firstByteDelay = -1L;
+
 	public RemoteTransfer(ConnectInfo ci, RemoteSlave rslave)
 			throws SlaveUnavailableException {
 		_transferIndex = ci.getTransferIndex();
@@ -61,6 +78,10 @@ public class RemoteTransfer {
 
 	public void updateTransferStatus(TransferStatus ts) {
 		_status = ts;
+		if (_firstByteDelay == -1L && _started != 0L && ts.getTransfered() > 0L) {
+			_firstByteDelay = System.currentTimeMillis() - _started;
+		}
+		_rslave.updateTransferTotals(this, false);
 
 		if (_status.isFinished()) {
 			synchronized (this) {
@@ -68,14 +89,50 @@ public class RemoteTransfer {
 					_pointer.unlinkPointer(this);
 				}
 				_pointer = null;
+				notifyAll();
 			}
 		}
 	}
 
+	/**
+	 * Wakes up the threads waiting in {@link #waitForTransferStatus(long)},
+	 * called once the slave went offline.
+	 */
+	synchronized void slaveOffline() {
+		notifyAll();
+	}
+
 	public char getTransferDirection() {
 		return _transferDirection;
 	}
 
+	void setTransferDirection(char direction) {
+		_transferDirection = direction;
+		_started = System.currentTimeMillis();
+		_rslave.updateTransferTotals(this, false);
+	}
+
+	/**
+	 * Returns how long it took from issuing the transfer to the slave until the
+	 * first bytes were reported, in milliseconds, or -1 if no bytes have been
+	 * reported yet.<br>
+	 * This is only as precise as the interval the slave reports transfer status at.
+	 */
+	public long getFirstByteDelay() {
+		return _firstByteDelay;
+	}
+
+	/**
+	 * Returns the average number of transfers the slave was running in the
+	 * direction of this transfer, including this one, while it was running.
+	 */
+	public float getConcurrency() {
+		if (_concurrencySamples == 0) {
+			return 1f;
+		}
+		return (float) _concurrencySum / _concurrencySamples;
+	}
+
 	public long getChecksum() {
 		return _status.getChecksum();
 	}
@@ -107,6 +164,29 @@ public class RemoteTransfer {
 		return _status;
 	}
 
+	/**
+	 * Waits until the transfer finished, the slave went offline or the timeout
+	 * elapsed and returns the latest status.<br>
+	 * The thread is woken up as soon as the slave reports the transfer as finished
+	 * instead of having to poll {@link #getTransferStatus()}.
+	 * @param timeout the maximum time to wait in milliseconds
+	 */
+	public TransferStatus waitForTransferStatus(long timeout) throws TransferFailedException {
+		long until = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			long left = timeout;
+			while (left > 0 && !_status.isFinished() && _rslave.isOnline()) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+				left = until - System.currentTimeMillis();
+			}
+		}
+		return getTransferStatus();
+	}
+
 	/**
 	 * Returns the number of bytes transfered.
 	 */
@@ -148,18 +228,22 @@ public class RemoteTransfer {
 					_pointer.unlinkPointer(this);
 				}
 				_pointer = null;
+				notifyAll();
 			}
 		}
 	}
 	
-	public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
-			throws IOException, SlaveUnavailableException {
+	/**
+	 * @param user the transfer is shaped with the other transfers of the user on the slave, can be null
+	 */
+	public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+			String user) throws IOException, SlaveUnavailableException {
 		_path = path;
 		
 		String index = SlaveManager.getBasicIssuer().issueReceiveToSlave(
-				_rslave, path, type, position,	inetAddress, getTransferIndex(), minSpeed, maxSpeed);
+				_rslave, path, type, position,	inetAddress, getTransferIndex(), minSpeed, maxSpeed, user);
 		
-		_transferDirection = Transfer.TRANSFER_RECEIVING_UPLOAD;
+		setTransferDirection(Transfer.TRANSFER_RECEIVING_UPLOAD);
 		try {
 			_rslave.fetchResponse(index);
 		} catch (RemoteIOException e) {
@@ -168,12 +252,15 @@ public class RemoteTransfer {
 		_pointer = new TransferPointer(_path, this);
 	}
 
-	public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
-			throws IOException, SlaveUnavailableException {
+	/**
+	 * @param user the transfer is shaped with the other transfers of the user on the slave, can be null
+	 */
+	public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+			String user) throws IOException, SlaveUnavailableException {
 		_path = path;
 		String index = SlaveManager.getBasicIssuer().issueSendToSlave(
-				_rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed);
-		_transferDirection = Transfer.TRANSFER_SENDING_DOWNLOAD;
+				_rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed, user);
+		setTransferDirection(Transfer.TRANSFER_SENDING_DOWNLOAD);
 		try {
 			_rslave.fetchResponse(index);
 		} catch (RemoteIOException e) {
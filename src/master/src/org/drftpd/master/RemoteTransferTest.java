@@ -0,0 +1,119 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import junit.framework.TestCase;
+
+import org.drftpd.slave.ConnectInfo;
+import org.drftpd.slave.TransferFailedException;
+import org.drftpd.slave.TransferIndex;
+import org.drftpd.slave.TransferStatus;
+import org.drftpd.tests.DummyRemoteSlave;
+
+/**
+ * Tests that threads waiting for a transfer are woken up when it finishes
+ * instead of running into the timeout.
+ * @version $Id$
+ */
+public class RemoteTransferTest extends TestCase {
+
+	private OnlineRemoteSlave _rslave;
+
+	private RemoteTransfer _transfer;
+
+	public RemoteTransferTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws Exception {
+		_rslave = new OnlineRemoteSlave("test");
+		TransferIndex index = new TransferIndex(1);
+		_transfer = new RemoteTransfer(new ConnectInfo(10, index,
+				new TransferStatus(0, 0, 0, false, index)), _rslave);
+	}
+
+	private void later(final Runnable runnable) {
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				runnable.run();
+			}
+		}.start();
+	}
+
+	public void testTimeout() throws Exception {
+		long start = System.currentTimeMillis();
+		TransferStatus status = _transfer.waitForTransferStatus(200);
+		assertFalse(status.isFinished());
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	public void testFinished() throws Exception {
+		later(new Runnable() {
+			public void run() {
+				_transfer.updateTransferStatus(new TransferStatus(100, 5000, 0, true,
+						_transfer.getTransferIndex()));
+			}
+		});
+		long start = System.currentTimeMillis();
+		TransferStatus status = _transfer.waitForTransferStatus(10000);
+		assertTrue(status.isFinished());
+		assertEquals(5000, status.getTransfered());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testOffline() throws Exception {
+		later(new Runnable() {
+			public void run() {
+				_rslave.setOnline(false);
+				_transfer.slaveOffline();
+			}
+		});
+		long start = System.currentTimeMillis();
+		try {
+			_transfer.waitForTransferStatus(10000);
+			fail("Expected TransferFailedException");
+		} catch (TransferFailedException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	private class OnlineRemoteSlave extends DummyRemoteSlave {
+		private volatile boolean _online = true;
+
+		public OnlineRemoteSlave(String name) {
+			super(name);
+		}
+
+		public void setOnline(boolean online) {
+			_online = online;
+		}
+
+		public boolean isOnline() {
+			return _online;
+		}
+
+		public synchronized String getPASVIP() {
+			return "127.0.0.1";
+		}
+	}
+}
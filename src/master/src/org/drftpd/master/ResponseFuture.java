@@ -0,0 +1,178 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.async.AsyncResponse;
+
+/**
+ * The response to a command sent to a slave, completed by the thread reading
+ * from the slave as soon as the response with the same index arrives.<br>
+ * Threads waiting in {@link #get(long)} are only woken up by the response they
+ * are waiting for.<br>
+ * Listeners are run by the thread completing the future, which is the thread
+ * reading from the slave, so they have to be quick and hand anything else off
+ * to another thread.
+ * @version $Id$
+ */
+public class ResponseFuture {
+	private static final Logger logger = Logger.getLogger(ResponseFuture.class);
+
+	private final String _index;
+
+	private String _command;
+
+	private long _sent = -1L;
+
+	private long _completed;
+
+	private AsyncResponse _response;
+
+	private String _failure;
+
+	private ArrayList<Runnable> _listeners;
+
+	public ResponseFuture(String index) {
+		_index = index;
+	}
+
+	public String getIndex() {
+		return _index;
+	}
+
+	/**
+	 * Returns the name of the command sent with the index of this future, or
+	 * null if it has not been sent yet.
+	 */
+	public synchronized String getCommand() {
+		return _command;
+	}
+
+	synchronized void sent(String command) {
+		_command = command;
+		_sent = System.nanoTime();
+	}
+
+	/**
+	 * @return false if the future was already completed or failed
+	 */
+	boolean complete(AsyncResponse response) {
+		return finish(response, null);
+	}
+
+	/**
+	 * Wakes up the waiting threads with a SlaveUnavailableException.
+	 * @return false if the future was already completed or failed
+	 */
+	boolean fail(String reason) {
+		return finish(null, reason);
+	}
+
+	private boolean finish(AsyncResponse response, String failure) {
+		ArrayList<Runnable> listeners;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			_response = response;
+			_failure = failure;
+			_completed = System.nanoTime();
+			listeners = _listeners;
+			_listeners = null;
+			notifyAll();
+		}
+		if (listeners != null) {
+			for (Runnable listener : listeners) {
+				runListener(listener);
+			}
+		}
+		return true;
+	}
+
+	public synchronized boolean isDone() {
+		return _response != null || _failure != null;
+	}
+
+	/**
+	 * Runs the listener once the response arrived or the slave went offline,
+	 * right away if that already happened.
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				if (_listeners == null) {
+					_listeners = new ArrayList<Runnable>(2);
+				}
+				_listeners.add(listener);
+				return;
+			}
+		}
+		runListener(listener);
+	}
+
+	private void runListener(Runnable listener) {
+		try {
+			listener.run();
+		} catch (RuntimeException e) {
+			logger.error("Error in listener of response " + _index, e);
+		}
+	}
+
+	/**
+	 * Waits for the response.
+	 * @param timeout the maximum time to wait in milliseconds, 0 waits until
+	 * the response arrived or the slave went offline
+	 * @return the response or null if it did not arrive in time
+	 * @throws SlaveUnavailableException if the slave went offline before the
+	 * response arrived
+	 */
+	public synchronized AsyncResponse get(long timeout) throws SlaveUnavailableException {
+		long until = System.currentTimeMillis() + timeout;
+		while (!isDone()) {
+			long left = 0L;
+			if (timeout != 0L) {
+				left = until - System.currentTimeMillis();
+				if (left <= 0L) {
+					return null;
+				}
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+			}
+		}
+		if (_failure != null) {
+			throw new SlaveUnavailableException(_failure);
+		}
+		return _response;
+	}
+
+	/**
+	 * Returns the time between sending the command and receiving the response
+	 * in nanoseconds, or -1 if either did not happen.
+	 */
+	public synchronized long getLatency() {
+		if (_response == null || _sent == -1L) {
+			return -1L;
+		}
+		return _completed - _sent;
+	}
+}
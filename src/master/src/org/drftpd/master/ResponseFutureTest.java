@@ -0,0 +1,100 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.async.AsyncResponse;
+import org.drftpd.slave.async.AsyncResponseChecksum;
+
+/**
+ * @version $Id$
+ */
+public class ResponseFutureTest extends TestCase {
+
+	public ResponseFutureTest(String fName) {
+		super(fName);
+	}
+
+	private void later(final Runnable runnable) {
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				runnable.run();
+			}
+		}.start();
+	}
+
+	public void testComplete() throws Exception {
+		final ResponseFuture future = new ResponseFuture("0a");
+		future.sent("checksum");
+		later(new Runnable() {
+			public void run() {
+				future.complete(new AsyncResponseChecksum("0a", 42L));
+			}
+		});
+		long start = System.currentTimeMillis();
+		AsyncResponse response = future.get(10000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(42L, ((AsyncResponseChecksum) response).getChecksum());
+		assertTrue(future.getLatency() > 0L);
+		assertFalse(future.complete(new AsyncResponseChecksum("0a", 43L)));
+	}
+
+	public void testTimeout() throws Exception {
+		ResponseFuture future = new ResponseFuture("0a");
+		assertNull(future.get(100));
+		assertEquals(-1L, future.getLatency());
+	}
+
+	public void testFail() {
+		final ResponseFuture future = new ResponseFuture("0a");
+		later(new Runnable() {
+			public void run() {
+				future.fail("offline");
+			}
+		});
+		try {
+			future.get(0);
+			fail("Expected SlaveUnavailableException");
+		} catch (SlaveUnavailableException e) {
+			assertEquals("offline", e.getMessage());
+		}
+	}
+
+	public void testListener() {
+		ResponseFuture future = new ResponseFuture("0a");
+		final int[] runs = new int[1];
+		Runnable listener = new Runnable() {
+			public void run() {
+				runs[0]++;
+			}
+		};
+		future.addListener(listener);
+		assertEquals(0, runs[0]);
+		future.complete(new AsyncResponseChecksum("0a", 42L));
+		assertEquals(1, runs[0]);
+		// added after completion, runs right away
+		future.addListener(listener);
+		assertEquals(2, runs[0]);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.util.ArrayList;
+
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.DiskStatus;
+import org.drftpd.slave.SlaveStatus;
+import org.drftpd.slave.Transfer;
+
+/**
+ * Compares the cost of reading the status published by {@link RemoteSlave}
+ * during slave selection with walking the transfers on every read.
+ * Not part of the unit tests, run it by hand:
+ * SlaveStatusBenchmark [slaves] [transfers per slave] [selections]
+ * @version $Id$
+ */
+public class SlaveStatusBenchmark {
+
+	// ScoreChart entries read by the bandwidth, maxbandwidth and maxtransfers filters
+	private static final int READS_PER_SELECTION = 3;
+
+	public static void main(String[] args) throws SlaveUnavailableException {
+		int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+		int selections = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		ArrayList<RemoteSlave> rslaves = new ArrayList<RemoteSlave>();
+		for (int x = 0; x < slaves; x++) {
+			RemoteSlave rslave = new SlaveStatusTest.StatusRemoteSlave("slave" + x);
+			rslave.setDiskStatus(new DiskStatus(1000L, 2000L));
+			for (int y = 0; y < transfers; y++) {
+				RemoteTransfer transfer = SlaveStatusTest.addTransfer(rslave, y, y % 2 == 0
+						? Transfer.TRANSFER_RECEIVING_UPLOAD : Transfer.TRANSFER_SENDING_DOWNLOAD);
+				transfer.updateTransferStatus(SlaveStatusTest.status(y, y * 100000L, 1000L + y, false));
+			}
+			rslaves.add(rslave);
+		}
+
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < selections; i++) {
+			for (RemoteSlave rslave : rslaves) {
+				for (int r = 0; r < READS_PER_SELECTION; r++) {
+					sum += SlaveStatusTest.walk(rslave).getTransfers();
+				}
+			}
+		}
+		long walked = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < selections; i++) {
+			for (RemoteSlave rslave : rslaves) {
+				// one snapshot per slave per selection
+				SlaveStatus status = rslave.getSlaveStatusAvailable();
+				for (int r = 0; r < READS_PER_SELECTION; r++) {
+					sum -= status.getTransfers();
+				}
+			}
+		}
+		long published = System.nanoTime() - start;
+		if (sum != 0) {
+			throw new IllegalStateException("Published status does not match the transfers");
+		}
+		System.out.println(slaves + " slaves with " + transfers + " transfers each, "
+				+ READS_PER_SELECTION + " status reads per slave per selection");
+		System.out.println("walk transfers   - " + walked / selections / 1000 + "us per selection");
+		System.out.println("published status - " + published / selections / 1000 + "us per selection");
+		// the slaves started the GlobalContext threads
+		System.exit(0);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.master;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.ConnectInfo;
+import org.drftpd.slave.DiskStatus;
+import org.drftpd.slave.SlaveStatus;
+import org.drftpd.slave.Transfer;
+import org.drftpd.slave.TransferIndex;
+import org.drftpd.slave.TransferStatus;
+import org.drftpd.tests.DummyRemoteSlave;
+
+/**
+ * Checks the status published by {@link RemoteSlave} against the transfers
+ * it was built from.
+ * @version $Id$
+ */
+public class SlaveStatusTest extends TestCase {
+
+	private static final int SLAVES = 4;
+
+	private static final int TRANSFERS = 25;
+
+	static TransferStatus status(int index, long transfered, long elapsed, boolean finished) {
+		return new TransferStatus(elapsed, transfered, 0L, finished, new TransferIndex(index));
+	}
+
+	static RemoteTransfer addTransfer(RemoteSlave rslave, int index, char direction)
+			throws SlaveUnavailableException {
+		RemoteTransfer transfer = new RemoteTransfer(new ConnectInfo(1000 + index,
+				new TransferIndex(index), status(index, 0L, 0L, false)), rslave);
+		rslave.addTransfer(transfer.getTransferIndex(), transfer);
+		transfer.setTransferDirection(direction);
+		return transfer;
+	}
+
+	public void testTotals() throws SlaveUnavailableException {
+		RemoteSlave rslave = new StatusRemoteSlave("slave");
+		try {
+			rslave.getSlaveStatus();
+			fail("Expected SlaveUnavailableException before the disk status is known");
+		} catch (SlaveUnavailableException e) {
+			// expected
+		}
+		rslave.setDiskStatus(new DiskStatus(1000L, 2000L));
+
+		RemoteTransfer up = addTransfer(rslave, 1, Transfer.TRANSFER_RECEIVING_UPLOAD);
+		RemoteTransfer down = addTransfer(rslave, 2, Transfer.TRANSFER_SENDING_DOWNLOAD);
+		addTransfer(rslave, 3, Transfer.TRANSFER_UNKNOWN);
+		up.updateTransferStatus(status(1, 10000L, 1000L, false));
+		down.updateTransferStatus(status(2, 4000L, 1000L, false));
+
+		SlaveStatus status = rslave.getSlaveStatus();
+		assertEquals(1000L, status.getDiskSpaceAvailable());
+		assertEquals(1, status.getTransfersReceiving());
+		assertEquals(1, status.getTransfersSending());
+		assertEquals(10000L, status.getBytesReceived());
+		assertEquals(4000L, status.getBytesSent());
+		assertEquals(up.getXferSpeed(), status.getThroughputReceiving());
+		assertEquals(down.getXferSpeed(), status.getThroughputSending());
+
+		// an update replaces what the transfer counted before
+		up.updateTransferStatus(status(1, 30000L, 2000L, false));
+		assertEquals(30000L, rslave.getSlaveStatus().getBytesReceived());
+		assertEquals(1, rslave.getSlaveStatus().getTransfersReceiving());
+
+		// the published status is immutable, readers keep the one they got
+		rslave.removeTransfer(up.getTransferIndex());
+		assertEquals(1, status.getTransfersReceiving());
+		assertEquals(0, rslave.getSlaveStatus().getTransfersReceiving());
+		assertEquals(0L, rslave.getSlaveStatus().getThroughputReceiving());
+
+		// updates to a removed transfer are not counted again
+		up.updateTransferStatus(status(1, 40000L, 3000L, true));
+		assertEquals(0L, rslave.getSlaveStatus().getBytesReceived());
+	}
+
+	/**
+	 * The status as it was built before it was published.
+	 */
+	static SlaveStatus walk(RemoteSlave rslave) throws SlaveUnavailableException {
+		int throughputUp = 0;
+		int throughputDown = 0;
+		int transfersUp = 0;
+		int transfersDown = 0;
+		long bytesReceived = Long.parseLong(rslave.getProperty("bytesReceived", "0"));
+		long bytesSent = Long.parseLong(rslave.getProperty("bytesSent", "0"));
+		for (RemoteTransfer transfer : rslave.getTransfers()) {
+			if (transfer.getTransferDirection() == Transfer.TRANSFER_RECEIVING_UPLOAD) {
+				throughputUp += transfer.getXferSpeed();
+				bytesReceived += transfer.getTransfered();
+				transfersUp += 1;
+			} else if (transfer.getTransferDirection() == Transfer.TRANSFER_SENDING_DOWNLOAD) {
+				throughputDown += transfer.getXferSpeed();
+				bytesSent += transfer.getTransfered();
+				transfersDown += 1;
+			}
+		}
+		return new SlaveStatus(new DiskStatus(0L, 0L), bytesSent, bytesReceived, throughputUp,
+				transfersUp, throughputDown, transfersDown);
+	}
+
+	public void testMatchesWalk() throws SlaveUnavailableException {
+		ArrayList<RemoteSlave> rslaves = new ArrayList<RemoteSlave>();
+		for (int x = 0; x < SLAVES; x++) {
+			RemoteSlave rslave = new StatusRemoteSlave("slave" + x);
+			rslave.setDiskStatus(new DiskStatus(1000L, 2000L));
+			for (int y = 0; y < TRANSFERS; y++) {
+				RemoteTransfer transfer = addTransfer(rslave, y, y % 2 == 0
+						? Transfer.TRANSFER_RECEIVING_UPLOAD : Transfer.TRANSFER_SENDING_DOWNLOAD);
+				transfer.updateTransferStatus(status(y, y * 100000L, 1000L + y, false));
+			}
+			rslaves.add(rslave);
+		}
+		for (RemoteSlave rslave : rslaves) {
+			SlaveStatus walked = walk(rslave);
+			SlaveStatus published = rslave.getSlaveStatusAvailable();
+			assertEquals(walked.getBytesReceived(), published.getBytesReceived());
+			assertEquals(walked.getBytesSent(), published.getBytesSent());
+			assertEquals(walked.getThroughputReceiving(), published.getThroughputReceiving());
+			assertEquals(walked.getThroughputSending(), published.getThroughputSending());
+			assertEquals(walked.getTransfers(), published.getTransfers());
+		}
+	}
+
+	static class StatusRemoteSlave extends DummyRemoteSlave {
+		public StatusRemoteSlave(String name) {
+			super(name);
+		}
+
+		public boolean isOnline() {
+			return true;
+		}
+
+		public boolean isAvailable() {
+			return true;
+		}
+
+		public String getPASVIP() {
+			return "127.0.0.1";
+		}
+	}
+}
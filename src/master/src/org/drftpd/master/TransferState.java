@@ -351,14 +351,28 @@ public class TransferState {
 		return getTransfer().getTransferStatus();
 	}
 
-	public synchronized void sendFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed)
-	throws IOException, SlaveUnavailableException {
-		getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed);
+	/**
+	 * Waits until the transfer finished or the timeout elapsed, see
+	 * {@link RemoteTransfer#waitForTransferStatus(long)}.<br>
+	 * Does not hold the lock on this TransferState while waiting so the transfer
+	 * can still be aborted from another thread.
+	 */
+	public TransferStatus waitForTransferStatus(long timeout) throws TransferFailedException {
+		RemoteTransfer transfer;
+		synchronized (this) {
+			transfer = getTransfer();
+		}
+		return transfer.waitForTransferStatus(timeout);
+	}
+
+	public synchronized void sendFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+			String user) throws IOException, SlaveUnavailableException {
+		getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed, user);
 	}
 
-	public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed)
-	throws IOException, SlaveUnavailableException {
-		getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed);
+	public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+			String user) throws IOException, SlaveUnavailableException {
+		getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed, user);
 	}
 
 	public synchronized long getElapsed() {
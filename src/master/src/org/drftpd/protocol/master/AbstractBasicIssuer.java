@@ -16,6 +16,8 @@
  */
 package org.drftpd.protocol.master;
 
+import java.util.Collection;
+
 import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.RemoteSlave;
@@ -44,7 +46,8 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 	public abstract String issuePingToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
 	public abstract String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String user)
+			throws SlaveUnavailableException;
 
 	public abstract String issueRenameToSlave(RemoteSlave rslave, String from, String toDirPath,
 			String toName) throws SlaveUnavailableException;
@@ -56,11 +59,33 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 
 
 	public abstract String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String user)
+			throws SlaveUnavailableException;
+
+	/**
+	 * Changes a bandwidth limit of the slave.
+	 * @param scope upload, download, user, section or transfer
+	 * @param key the user ("*" for every user), the path of the section or the
+	 * index of the transfer, ignored by the upload and download scopes
+	 * @param rate in bytes per second, 0 is unlimited
+	 */
+	public abstract String issueBandwidthToSlave(RemoteSlave rslave, String scope, String key, long rate)
+			throws SlaveUnavailableException;
 
 	public abstract String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, 
 			long skipAgeCutoff, long masterTime) throws SlaveUnavailableException;
 
+	public abstract String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, 
+			long skipAgeCutoff, long masterTime, int credits) throws SlaveUnavailableException;
+
+	public abstract void issueRemergeCreditToSlave(RemoteSlave rslave, int credits) throws SlaveUnavailableException;
+
+	public abstract String issueRemergeDigestToSlave(RemoteSlave rslave, Collection<String> paths)
+		throws SlaveUnavailableException;
+
+	public abstract String issueRemergePathsToSlave(RemoteSlave rslave, Collection<String> paths, int credits)
+		throws SlaveUnavailableException;
+
 	public abstract void issueRemergePauseToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
 	public abstract void issueRemergeResumeToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
@@ -26,9 +26,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.protocol.HandshakeWrapper;
 import org.drftpd.protocol.ProtocolException;
+import org.drftpd.slave.async.AsyncCodec;
 import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.util.PluginObjectContainer;
 
@@ -138,6 +140,12 @@ public class MasterProtocolCentral {
 				throw hw.getException();
 			}
 			logger.debug("Handshake successful");
+
+			int codecVersion = Math.min(hw.getCodecVersion(), AsyncCodec.VERSION);
+			if (codecVersion > 0 && GlobalContext.getConfig().getMainProperties()
+					.getProperty("slave.protocol.codec", "true").equalsIgnoreCase("true")) {
+				rslave.enableCodec(codecVersion);
+			}
 		} catch (Exception e) {
 			throw new ProtocolException(e);
 		}
@@ -180,7 +180,7 @@ public abstract class ExtendedTimedStats extends AbstractTimedStats {
 	
 	// --------------------------------------
 	
-	public void resetDay(Date resetDate) {
+	public synchronized void resetDay(Date resetDate) {
 		setDownloadedFilesDay(0);
 		setUploadedFilesDay(0);
 		setDownloadedTimeDay(0);
@@ -189,7 +189,7 @@ public abstract class ExtendedTimedStats extends AbstractTimedStats {
 		setUploadedBytesDay(0);
 	}
 
-	public void resetMonth(Date resetDate) {
+	public synchronized void resetMonth(Date resetDate) {
 		setDownloadedFilesMonth(0);
 		setUploadedFilesMonth(0);
 		setDownloadedTimeMonth(0);
@@ -198,7 +198,7 @@ public abstract class ExtendedTimedStats extends AbstractTimedStats {
 		setUploadedBytesMonth(0);
 	}
 
-	public void resetWeek(Date resetDate) {
+	public synchronized void resetWeek(Date resetDate) {
 		setDownloadedFilesWeek(0);
 		setUploadedFilesWeek(0);
 		setDownloadedTimeWeek(0);
@@ -372,21 +372,21 @@ public abstract class ExtendedTimedStats extends AbstractTimedStats {
 	
 	// ----------------------------------------
 	
-	public void updateDownloadedBytes(long bytes) {
+	public synchronized void updateDownloadedBytes(long bytes) {
 		_downloadedBytes[P_ALL] += bytes;
 		_downloadedBytes[P_DAY] += bytes;
 		_downloadedBytes[P_WEEK] += bytes;
 		_downloadedBytes[P_MONTH] += bytes;
 	}
 
-	public void updateDownloadedFiles(int i) {
+	public synchronized void updateDownloadedFiles(int i) {
 		_downloadedFiles[P_ALL] += i;
 		_downloadedFiles[P_DAY] += i;
 		_downloadedFiles[P_WEEK] += i;
 		_downloadedFiles[P_MONTH] += i;
 	}
 
-	public void updateDownloadedTime(long millis) {
+	public synchronized void updateDownloadedTime(long millis) {
 		_downloadedMilliSeconds[P_ALL] += millis;
 		_downloadedMilliSeconds[P_DAY] += millis;
 		_downloadedMilliSeconds[P_WEEK] += millis;
@@ -395,21 +395,21 @@ public abstract class ExtendedTimedStats extends AbstractTimedStats {
 	
 	//  --------------------------------------------
 	
-	public void updateUploadedBytes(long bytes) {
+	public synchronized void updateUploadedBytes(long bytes) {
 		_uploadedBytes[P_ALL] += bytes;
 		_uploadedBytes[P_DAY] += bytes;
 		_uploadedBytes[P_WEEK] += bytes;
 		_uploadedBytes[P_MONTH] += bytes;
 	}
 
-	public void updateUploadedFiles(int i) {
+	public synchronized void updateUploadedFiles(int i) {
 		_uploadedFiles[P_ALL] += i;
 		_uploadedFiles[P_DAY] += i;
 		_uploadedFiles[P_WEEK] += i;
 		_uploadedFiles[P_MONTH] += i;
 	}
 
-	public void updateUploadedTime(long millis) {
+	public synchronized void updateUploadedTime(long millis) {
 		_uploadedMilliSeconds[P_ALL] += millis;
 		_uploadedMilliSeconds[P_DAY] += millis;
 		_uploadedMilliSeconds[P_WEEK] += millis;
@@ -158,7 +158,7 @@ public abstract class AbstractUser extends User implements Commitable {
 	 */
 	public abstract AbstractUserManager getAbstractUserManager();
 
-	public long getCredits() {
+	public synchronized long getCredits() {
 		return _credits;
 	}
 
@@ -318,7 +318,7 @@ public abstract class AbstractUser extends User implements Commitable {
 		logger.info("Reset Yearly stats for " + getName());
 	}
 
-	public void setCredits(long credits) {
+	public synchronized void setCredits(long credits) {
 		_credits = credits;
 	}
 
@@ -365,7 +365,7 @@ public abstract class AbstractUser extends User implements Commitable {
 		return _username;
 	}
 
-	public void updateCredits(long credits) {
+	public synchronized void updateCredits(long credits) {
 		_credits += credits;
 	}
 
@@ -0,0 +1,1100 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.drftpd.dynamicdata.Key;
+import org.drftpd.dynamicdata.KeyedMap;
+import org.drftpd.io.PermissionDeniedException;
+
+/**
+ * Stores all inodes in a single append-only log file.<br>
+ * Every change appends a record, the location of the latest record for each
+ * path is kept in an in-memory index tree which is rebuilt by a sequential
+ * scan of the log on startup. Once more than half of the log is made up of
+ * superseded records the live records are copied to a new log which then
+ * replaces the old one. The copy is made in the background from a snapshot
+ * of the index, records appended in the meantime are carried over when the
+ * new log is swapped in.<br>
+ * <br>
+ * Record layout: <tt>int length, int crc32, byte op, string path, data</tt>
+ * where data depends on the op. Inode fields are written natively, plugin
+ * metadata values which are not simple types fall back to XMLEncoder.
+ * @version $Id$
+ */
+public class BinaryInodeStore implements InodeStoreInterface {
+
+	private static final Logger logger = Logger.getLogger(BinaryInodeStore.class);
+
+	private static final int MAGIC = 0x44524656;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	private static final long COMPACT_MIN_LENGTH = 64L * 1024L * 1024L;
+
+	private static final byte OP_PUT = 1;
+
+	private static final byte OP_DELETE = 2;
+
+	private static final byte OP_RENAME = 3;
+
+	private static final byte OP_DISCARD = 4;
+
+	private static final byte TYPE_ROOT = 0;
+
+	private static final byte TYPE_DIRECTORY = 1;
+
+	private static final byte TYPE_FILE = 2;
+
+	private static final byte TYPE_LINK = 3;
+
+	private static final byte VALUE_STRING = 'S';
+
+	private static final byte VALUE_LONG = 'L';
+
+	private static final byte VALUE_INTEGER = 'I';
+
+	private static final byte VALUE_BOOLEAN = 'Z';
+
+	private static final byte VALUE_FLOAT = 'F';
+
+	private static final byte VALUE_DOUBLE = 'D';
+
+	private static final byte VALUE_XML = 'X';
+
+	/**
+	 * Position of the latest record for a path and, for directories, the
+	 * index nodes of its children.
+	 */
+	private static class IndexNode {
+		private long _offset = -1;
+
+		private int _length;
+
+		private HashMap<String, IndexNode> _children;
+
+		private boolean hasRecord() {
+			return _offset >= 0;
+		}
+
+		private boolean isDirectory() {
+			return _children != null;
+		}
+	}
+
+	private File _file;
+
+	private RandomAccessFile _raf;
+
+	private FileChannel _channel;
+
+	private long _writePosition;
+
+	private long _liveBytes;
+
+	private IndexNode _root;
+
+	private HashMap<String, Key<?>> _keys = new HashMap<String, Key<?>>();
+
+	private ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	// only one compaction at a time
+	private final Object _compactLock = new Object();
+
+	private volatile boolean _compacting;
+
+	// the nodes given a new record while a compaction copies the log
+	private HashSet<IndexNode> _changedNodes;
+
+	private boolean _closed;
+
+	public BinaryInodeStore(String fileName) throws IOException {
+		_file = new File(fileName);
+		File parent = _file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		_root = new IndexNode();
+		_root._children = new HashMap<String, IndexNode>();
+		open();
+		if (_writePosition == HEADER_LENGTH) {
+			logger.info("Opened empty binary inode store " + _file.getPath());
+		} else {
+			long start = System.currentTimeMillis();
+			replayLog();
+			logger.info("Loaded binary inode store " + _file.getPath() + " in "
+					+ (System.currentTimeMillis() - start) + "ms, "
+					+ _liveBytes + " of " + _writePosition + " bytes in use");
+			_lock.writeLock().lock();
+			try {
+				compactIfNeeded();
+			} finally {
+				_lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		_raf = new RandomAccessFile(_file, "rw");
+		_channel = _raf.getChannel();
+		if (_channel.size() < HEADER_LENGTH) {
+			_channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.flip();
+			writeFully(_channel, header, 0);
+			_writePosition = HEADER_LENGTH;
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(_channel, header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException(_file.getPath() + " is not a binary inode store");
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException(_file.getPath() + " has unsupported version " + version);
+		}
+		_writePosition = _channel.size();
+	}
+
+	/**
+	 * Closes the log, the store cannot be used afterwards.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		_lock.writeLock().lock();
+		try {
+			_closed = true;
+			_channel.force(false);
+			_raf.close();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the store holds no records at all.
+	 */
+	public boolean isEmpty() {
+		_lock.readLock().lock();
+		try {
+			return !_root.hasRecord() && _root._children.isEmpty();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the log, a torn or corrupt record at the end of
+	 * the log (from an unclean shutdown) is truncated.
+	 */
+	private void replayLog() throws IOException {
+		long fileLength = _writePosition;
+		long position = HEADER_LENGTH;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(_file), 65536));
+		try {
+			skipFully(in, HEADER_LENGTH);
+			CRC32 crc = new CRC32();
+			byte[] body = new byte[1024];
+			while (position + RECORD_HEADER_LENGTH <= fileLength) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length <= 0 || position + RECORD_HEADER_LENGTH + length > fileLength) {
+					break;
+				}
+				if (body.length < length) {
+					body = new byte[length];
+				}
+				in.readFully(body, 0, length);
+				crc.reset();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				applyRecord(body, length, position);
+				position += RECORD_HEADER_LENGTH + length;
+			}
+		} finally {
+			in.close();
+		}
+		if (position < fileLength) {
+			logger.warn("Truncating " + (fileLength - position) + " bytes of incomplete records from "
+					+ _file.getPath() + " at offset " + position);
+			_channel.truncate(position);
+		}
+		_writePosition = position;
+	}
+
+	private void applyRecord(byte[] body, int length, long position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+		byte op = in.readByte();
+		String path = readString(in);
+		if (op == OP_PUT) {
+			IndexNode node = createNode(path);
+			setRecord(node, position, RECORD_HEADER_LENGTH + length, in.readByte());
+		} else if (op == OP_DELETE) {
+			removeNode(path);
+		} else if (op == OP_RENAME) {
+			moveNode(path, readString(in));
+		} else if (op == OP_DISCARD) {
+			IndexNode node = findNode(path);
+			if (node != null) {
+				clearRecord(node);
+			}
+		} else {
+			throw new IOException("Unknown record type " + op + " at offset " + position);
+		}
+	}
+
+	public VirtualFileSystemInode readInode(String path) throws IOException {
+		ByteBuffer record;
+		_lock.readLock().lock();
+		try {
+			IndexNode node = findNode(path);
+			if (node == null || !node.hasRecord()) {
+				throw new FileNotFoundException(path + " is not stored");
+			}
+			record = ByteBuffer.allocate(node._length);
+			readFully(_channel, record, node._offset);
+		} finally {
+			_lock.readLock().unlock();
+		}
+		record.flip();
+		int length = record.getInt();
+		int checksum = record.getInt();
+		if (length != record.remaining()) {
+			throw new IOException("Record length mismatch for " + path);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+		if ((int) crc.getValue() != checksum) {
+			throw new IOException("Checksum mismatch for " + path);
+		}
+		return decodeInode(path, record.array(), RECORD_HEADER_LENGTH, length);
+	}
+
+	public void writeInode(VirtualFileSystemInode inode) throws IOException {
+		String path = inode.getPath();
+		byte[] body = encodeInode(path, inode);
+		_lock.writeLock().lock();
+		try {
+			long offset = appendRecord(body);
+			setRecord(createNode(path), offset, RECORD_HEADER_LENGTH + body.length, getType(inode));
+			compactIfNeeded();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public String[] listChildren(String path) {
+		_lock.readLock().lock();
+		try {
+			IndexNode node = findNode(path);
+			if (node == null || !node.isDirectory()) {
+				return new String[0];
+			}
+			return node._children.keySet().toArray(new String[node._children.size()]);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public boolean hasRecord(String path) {
+		_lock.readLock().lock();
+		try {
+			IndexNode node = findNode(path);
+			return node != null && node.hasRecord();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public boolean isDirectory(String path) {
+		_lock.readLock().lock();
+		try {
+			IndexNode node = findNode(path);
+			return node != null && node.isDirectory();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public void discardRecord(String path) {
+		_lock.writeLock().lock();
+		try {
+			IndexNode node = findNode(path);
+			if (node == null || !node.hasRecord()) {
+				return;
+			}
+			appendRecord(encodeOp(OP_DISCARD, path, null));
+			clearRecord(node);
+		} catch (IOException e) {
+			logger.error("Unable to discard record for " + path, e);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public void deleteInode(String path) {
+		_lock.writeLock().lock();
+		try {
+			if (findNode(path) == null) {
+				return;
+			}
+			appendRecord(encodeOp(OP_DELETE, path, null));
+			removeNode(path);
+		} catch (IOException e) {
+			logger.error("Unable to delete record for " + path, e);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public void renameInode(String source, String destination)
+			throws FileNotFoundException, PermissionDeniedException {
+		_lock.writeLock().lock();
+		try {
+			if (findNode(source) == null) {
+				throw new FileNotFoundException(source + " cannot be found");
+			}
+			IndexNode destinationParent = findNode(VirtualFileSystem.stripLast(destination));
+			IndexNode existing = findNode(destination);
+			if (destinationParent == null || !destinationParent.isDirectory()
+					|| (existing != null && existing.isDirectory() && !existing._children.isEmpty()
+							&& !source.equals(destination))) {
+				throw new PermissionDeniedException("Cannot rename " + source
+						+ " to " + destination);
+			}
+			appendRecord(encodeOp(OP_RENAME, source, destination));
+			moveNode(source, destination);
+		} catch (IOException e) {
+			throw new PermissionDeniedException("Cannot rename " + source
+					+ " to " + destination + ": " + e.getMessage());
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the log so that it only contains the latest record for each
+	 * path. The live records are copied without holding the lock, readers and
+	 * writers are only blocked while the index is snapshotted and while the
+	 * new log replaces the old one.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		compact(null);
+	}
+
+	/**
+	 * @param whileCopying run once the live records have been copied, before
+	 * the new log replaces the old one
+	 */
+	void compact(Runnable whileCopying) throws IOException {
+		synchronized (_compactLock) {
+			long start = System.currentTimeMillis();
+			ArrayList<IndexNode> nodes = new ArrayList<IndexNode>();
+			ArrayList<String> paths = new ArrayList<String>();
+			LongList oldOffsets = new LongList();
+			LongList oldLengths = new LongList();
+			long snapshotEnd;
+			_lock.writeLock().lock();
+			try {
+				if (_closed) {
+					return;
+				}
+				snapshot(_root, VirtualFileSystem.separator, nodes, paths, oldOffsets, oldLengths);
+				snapshotEnd = _writePosition;
+				_changedNodes = new HashSet<IndexNode>();
+			} finally {
+				_lock.writeLock().unlock();
+			}
+			File tempFile = new File(_file.getPath() + ".compact");
+			RandomAccessFile tempRaf = null;
+			boolean success = false;
+			try {
+				tempRaf = new RandomAccessFile(tempFile, "rw");
+				tempRaf.setLength(0);
+				FileChannel out = tempRaf.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.flip();
+				long position = writeFully(out, header, 0);
+				LongList newOffsets = new LongList();
+				LongList newLengths = new LongList();
+				for (int i = 0; i < nodes.size(); i++) {
+					int length = copyRecord(paths.get(i), oldOffsets.get(i),
+							(int) oldLengths.get(i), out, position);
+					newOffsets.add(position);
+					newLengths.add(length);
+					position += length;
+				}
+				paths = null;
+				if (whileCopying != null) {
+					whileCopying.run();
+				}
+				success = swap(tempFile, tempRaf, nodes, oldOffsets, newOffsets, newLengths,
+						snapshotEnd, position, start);
+			} finally {
+				_lock.writeLock().lock();
+				_changedNodes = null;
+				_lock.writeLock().unlock();
+				if (tempRaf != null) {
+					tempRaf.close();
+				}
+				if (!success) {
+					tempFile.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the records written since the snapshot to the new log, replaces
+	 * the old log with it and points the index at the copied records.
+	 * @return false if the store was closed in the meantime
+	 */
+	private boolean swap(File tempFile, RandomAccessFile tempRaf, ArrayList<IndexNode> nodes,
+			LongList oldOffsets, LongList newOffsets, LongList newLengths, long snapshotEnd,
+			long copiedLength, long start) throws IOException {
+		_lock.writeLock().lock();
+		try {
+			if (_closed) {
+				return false;
+			}
+			long oldLength = _writePosition;
+			FileChannel out = tempRaf.getChannel();
+			long tailLength = oldLength - snapshotEnd;
+			long copied = 0;
+			while (copied < tailLength) {
+				copied += _channel.transferTo(snapshotEnd + copied, tailLength - copied,
+						out.position(copiedLength + copied));
+			}
+			out.force(true);
+			tempRaf.close();
+			_raf.close();
+			if (!tempFile.renameTo(_file)) {
+				// the old log is still intact, carry on using it
+				open();
+				throw new IOException("Unable to replace " + _file.getPath() + " with " + tempFile.getPath());
+			}
+			open();
+			for (int i = 0; i < nodes.size(); i++) {
+				IndexNode node = nodes.get(i);
+				// skip records which were replaced or removed since the snapshot
+				if (node._offset == oldOffsets.get(i)) {
+					int length = (int) newLengths.get(i);
+					_liveBytes += length - node._length;
+					node._offset = newOffsets.get(i);
+					node._length = length;
+				}
+			}
+			long shift = copiedLength - snapshotEnd;
+			for (IndexNode node : _changedNodes) {
+				if (node._offset >= snapshotEnd) {
+					node._offset += shift;
+				}
+			}
+			logger.info("Compacted " + _file.getPath() + " from " + oldLength + " to " + _writePosition
+					+ " bytes in " + (System.currentTimeMillis() - start) + "ms");
+			return true;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Compacts the log in the background once more than half of it is made up
+	 * of superseded records, callers must hold the write lock.
+	 */
+	private void compactIfNeeded() {
+		long garbage = _writePosition - HEADER_LENGTH - _liveBytes;
+		if (!_compacting && _writePosition > COMPACT_MIN_LENGTH && garbage > _liveBytes) {
+			_compacting = true;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						logger.error("Unable to compact " + _file.getPath(), e);
+					} finally {
+						_compacting = false;
+					}
+				}
+			}, "InodeStoreCompaction");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void snapshot(IndexNode node, String path, ArrayList<IndexNode> nodes,
+			ArrayList<String> paths, LongList offsets, LongList lengths) {
+		if (node.hasRecord()) {
+			nodes.add(node);
+			paths.add(path);
+			offsets.add(node._offset);
+			lengths.add(node._length);
+		}
+		if (node.isDirectory()) {
+			for (Map.Entry<String, IndexNode> entry : node._children.entrySet()) {
+				snapshot(entry.getValue(), getChildPath(path, entry.getKey()), nodes, paths,
+						offsets, lengths);
+			}
+		}
+	}
+
+	/**
+	 * Copies a record to the new log under the path it is stored at now.
+	 * @return the length of the copy
+	 */
+	private int copyRecord(String path, long offset, int length, FileChannel out, long position)
+			throws IOException {
+		// the old log is only appended to until it is swapped, so no lock is needed
+		ByteBuffer record = ByteBuffer.allocate(length);
+		readFully(_channel, record, offset);
+		byte[] oldBody = record.array();
+		// Skip the op and the path the record was written under
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(oldBody,
+				RECORD_HEADER_LENGTH, oldBody.length - RECORD_HEADER_LENGTH));
+		in.readByte();
+		int dataStart = RECORD_HEADER_LENGTH + 1 + 4 + Math.max(0, in.readInt());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(oldBody.length);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(OP_PUT);
+		writeString(dos, path);
+		dos.write(oldBody, dataStart, oldBody.length - dataStart);
+		dos.flush();
+		return writeFully(out, wrapRecord(bos.toByteArray()), position);
+	}
+
+	private static String getChildPath(String path, String name) {
+		if (path.equals(VirtualFileSystem.separator)) {
+			return VirtualFileSystem.separator + name;
+		}
+		return path + VirtualFileSystem.separator + name;
+	}
+
+	/*
+	 * Index manipulation, callers must hold the appropriate lock
+	 */
+
+	private IndexNode findNode(String path) {
+		if (path.equals(VirtualFileSystem.separator)) {
+			return _root;
+		}
+		IndexNode node = _root;
+		int start = 1;
+		while (true) {
+			if (!node.isDirectory()) {
+				return null;
+			}
+			int end = path.indexOf(VirtualFileSystem.separator, start);
+			String name = end == -1 ? path.substring(start) : path.substring(start, end);
+			node = node._children.get(name);
+			if (node == null || end == -1) {
+				return node;
+			}
+			start = end + 1;
+		}
+	}
+
+	private IndexNode createNode(String path) {
+		if (path.equals(VirtualFileSystem.separator)) {
+			return _root;
+		}
+		IndexNode node = _root;
+		int start = 1;
+		while (true) {
+			if (!node.isDirectory()) {
+				node._children = new HashMap<String, IndexNode>();
+			}
+			int end = path.indexOf(VirtualFileSystem.separator, start);
+			String name = end == -1 ? path.substring(start) : path.substring(start, end);
+			IndexNode child = node._children.get(name);
+			if (child == null) {
+				child = new IndexNode();
+				if (end != -1) {
+					child._children = new HashMap<String, IndexNode>();
+				}
+				node._children.put(name, child);
+			}
+			if (end == -1) {
+				return child;
+			}
+			node = child;
+			start = end + 1;
+		}
+	}
+
+	private void setRecord(IndexNode node, long offset, int length, byte type) {
+		clearRecord(node);
+		node._offset = offset;
+		node._length = length;
+		_liveBytes += length;
+		if (_changedNodes != null) {
+			_changedNodes.add(node);
+		}
+		if (type == TYPE_ROOT || type == TYPE_DIRECTORY) {
+			if (node._children == null) {
+				node._children = new HashMap<String, IndexNode>();
+			}
+		} else if (node._children != null) {
+			for (IndexNode child : node._children.values()) {
+				releaseTree(child);
+			}
+			node._children = null;
+		}
+	}
+
+	private void clearRecord(IndexNode node) {
+		if (node.hasRecord()) {
+			_liveBytes -= node._length;
+			node._offset = -1;
+			node._length = 0;
+		}
+	}
+
+	private void releaseTree(IndexNode node) {
+		clearRecord(node);
+		if (node.isDirectory()) {
+			for (IndexNode child : node._children.values()) {
+				releaseTree(child);
+			}
+		}
+	}
+
+	private IndexNode removeNode(String path) {
+		if (path.equals(VirtualFileSystem.separator)) {
+			return null;
+		}
+		IndexNode parent = findNode(VirtualFileSystem.stripLast(path));
+		if (parent == null || !parent.isDirectory()) {
+			return null;
+		}
+		IndexNode node = parent._children.remove(VirtualFileSystem.getLast(path));
+		if (node != null) {
+			releaseTree(node);
+		}
+		return node;
+	}
+
+	private void moveNode(String source, String destination) {
+		if (source.equals(destination)) {
+			return;
+		}
+		IndexNode sourceParent = findNode(VirtualFileSystem.stripLast(source));
+		if (sourceParent == null || !sourceParent.isDirectory()) {
+			return;
+		}
+		IndexNode node = sourceParent._children.remove(VirtualFileSystem.getLast(source));
+		if (node == null) {
+			return;
+		}
+		removeNode(destination);
+		IndexNode destinationParent = createNode(VirtualFileSystem.stripLast(destination));
+		if (!destinationParent.isDirectory()) {
+			destinationParent._children = new HashMap<String, IndexNode>();
+		}
+		destinationParent._children.put(VirtualFileSystem.getLast(destination), node);
+	}
+
+	/*
+	 * Log I/O
+	 */
+
+	private long appendRecord(byte[] body) throws IOException {
+		long offset = _writePosition;
+		_writePosition += writeFully(_channel, wrapRecord(body), offset);
+		return offset;
+	}
+
+	private static ByteBuffer wrapRecord(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc.getValue());
+		record.put(body);
+		record.flip();
+		return record;
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int read = 0;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + read);
+			if (count == -1) {
+				throw new EOFException("Unexpected end of inode store at offset " + (position + read));
+			}
+			read += count;
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int count) throws IOException {
+		int skipped = 0;
+		while (skipped < count) {
+			int result = in.skipBytes(count - skipped);
+			if (result <= 0) {
+				throw new EOFException();
+			}
+			skipped += result;
+		}
+	}
+
+	/*
+	 * Record encoding
+	 */
+
+	private static byte[] encodeOp(byte op, String path, String destination) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(op);
+		writeString(out, path);
+		if (destination != null) {
+			writeString(out, destination);
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	private static byte getType(VirtualFileSystemInode inode) throws IOException {
+		if (inode instanceof VirtualFileSystemRoot) {
+			return TYPE_ROOT;
+		} else if (inode.isDirectory()) {
+			return TYPE_DIRECTORY;
+		} else if (inode.isFile()) {
+			return TYPE_FILE;
+		} else if (inode.isLink()) {
+			return TYPE_LINK;
+		}
+		throw new IOException("Unknown inode type " + inode.getClass().getName());
+	}
+
+	private byte[] encodeInode(String path, VirtualFileSystemInode inode) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bos);
+		byte type = getType(inode);
+		out.writeByte(OP_PUT);
+		writeString(out, path);
+		out.writeByte(type);
+		writeString(out, inode.getUsername());
+		writeString(out, inode.getGroup());
+		out.writeLong(inode.getLastModified());
+		if (type == TYPE_ROOT || type == TYPE_DIRECTORY) {
+			VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
+			out.writeLong(dir.getSize());
+			out.writeBoolean(dir.getPlaceHolderLastModified());
+			Map<String, AtomicInteger> refCounts = dir.getSlaveRefCounts();
+			out.writeInt(refCounts.size());
+			for (Map.Entry<String, AtomicInteger> entry : refCounts.entrySet()) {
+				writeString(out, entry.getKey());
+				out.writeInt(entry.getValue().get());
+			}
+		} else if (type == TYPE_FILE) {
+			VirtualFileSystemFile file = (VirtualFileSystemFile) inode;
+			out.writeLong(file.getSize());
+			Set<String> slaves = file.getSlaves();
+			out.writeInt(slaves.size());
+			for (String slave : slaves) {
+				writeString(out, slave);
+			}
+		} else {
+			writeString(out, ((VirtualFileSystemLink) inode).getLinkPath());
+		}
+		writeKeyedMap(out, inode.getKeyedMap(), inode);
+		writeKeyedMap(out, inode.getPluginMap(), inode);
+		Map<String, Object> untyped;
+		synchronized (inode) {
+			untyped = new TreeMap<String, Object>(inode.getUntypedPluginMap());
+		}
+		out.writeInt(untyped.size());
+		for (Map.Entry<String, Object> entry : untyped.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue(), inode);
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	private void writeKeyedMap(DataOutputStream out, KeyedMap<Key<?>, Object> map,
+			VirtualFileSystemInode inode) throws IOException {
+		HashMap<Key<?>, Object> copy;
+		synchronized (map) {
+			copy = new HashMap<Key<?>, Object>(map);
+		}
+		out.writeInt(copy.size());
+		for (Map.Entry<Key<?>, Object> entry : copy.entrySet()) {
+			writeString(out, entry.getKey().getOwner().getName());
+			writeString(out, entry.getKey().getKey());
+			writeValue(out, entry.getValue(), inode);
+		}
+	}
+
+	private void writeValue(DataOutputStream out, Object value, VirtualFileSystemInode inode)
+			throws IOException {
+		if (value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Float) {
+			out.writeByte(VALUE_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			XMLEncoder enc = new XMLEncoder(bos);
+			try {
+				inode.setupXML(enc);
+				enc.setExceptionListener(new VFSExceptionListener(inode.getPath()));
+				enc.writeObject(value);
+			} finally {
+				enc.close();
+			}
+			byte[] xml = bos.toByteArray();
+			out.writeByte(VALUE_XML);
+			out.writeInt(xml.length);
+			out.write(xml);
+		}
+	}
+
+	private VirtualFileSystemInode decodeInode(String path, byte[] data, int offset, int length)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		if (in.readByte() != OP_PUT) {
+			throw new IOException("Record for " + path + " does not hold an inode");
+		}
+		// the path the record was written under, renames since then are only in the index
+		readString(in);
+		byte type = in.readByte();
+		String username = readString(in);
+		String group = readString(in);
+		long lastModified = in.readLong();
+		VirtualFileSystemInode inode;
+		if (type == TYPE_ROOT || type == TYPE_DIRECTORY) {
+			VirtualFileSystemDirectory dir = type == TYPE_ROOT
+					? new VirtualFileSystemRoot(username, group)
+					: new VirtualFileSystemDirectory(username, group);
+			dir.setSize(in.readLong());
+			dir.setPlaceHolderLastModified(in.readBoolean());
+			int count = in.readInt();
+			TreeMap<String, AtomicInteger> refCounts = new TreeMap<String, AtomicInteger>();
+			for (int i = 0; i < count; i++) {
+				refCounts.put(readString(in), new AtomicInteger(in.readInt()));
+			}
+			dir.setSlaveRefCounts(refCounts);
+			inode = dir;
+		} else if (type == TYPE_FILE) {
+			long size = in.readLong();
+			int count = in.readInt();
+			HashSet<String> slaves = new HashSet<String>(count);
+			for (int i = 0; i < count; i++) {
+				slaves.add(readString(in));
+			}
+			inode = new VirtualFileSystemFile(username, group, size, slaves);
+		} else if (type == TYPE_LINK) {
+			inode = new VirtualFileSystemLink(username, group, readString(in));
+		} else {
+			throw new IOException("Unknown inode type " + type + " stored for " + path);
+		}
+		inode.setLastModified(lastModified);
+		inode.setKeyedMap(readKeyedMap(in, path));
+		inode.setPluginMap(readKeyedMap(in, path));
+		int count = in.readInt();
+		TreeMap<String, Object> untyped = new TreeMap<String, Object>();
+		for (int i = 0; i < count; i++) {
+			String key = readString(in);
+			Object value = readValue(in, path);
+			if (value != null) {
+				untyped.put(key, value);
+			}
+		}
+		inode.setUntypedPluginMap(untyped);
+		return inode;
+	}
+
+	private KeyedMap<Key<?>, Object> readKeyedMap(DataInputStream in, String path) throws IOException {
+		KeyedMap<Key<?>, Object> map = new KeyedMap<Key<?>, Object>();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String owner = readString(in);
+			String name = readString(in);
+			Object value = readValue(in, path);
+			if (value == null) {
+				continue;
+			}
+			try {
+				map.put(resolveKey(owner, name), value);
+			} catch (ClassNotFoundException e) {
+				// metadata from a plugin which is no longer loaded, drop it as the XML store does
+			}
+		}
+		return map;
+	}
+
+	private Key<?> resolveKey(String owner, String name) throws ClassNotFoundException {
+		String id = owner + '@' + name;
+		synchronized (_keys) {
+			Key<?> key = _keys.get(id);
+			if (key != null) {
+				return key;
+			}
+		}
+		Class<?> ownerClass = Class.forName(owner, false,
+				Thread.currentThread().getContextClassLoader());
+		Key<?> key = new Key<Object>(ownerClass, name);
+		// Only cache keys owned by core classes, plugin owned keys must follow plugin reloads
+		if (ownerClass.getClassLoader() == getClass().getClassLoader()) {
+			synchronized (_keys) {
+				_keys.put(id, key);
+			}
+		}
+		return key;
+	}
+
+	private Object readValue(DataInputStream in, String path) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case VALUE_STRING:
+			return readString(in);
+		case VALUE_LONG:
+			return in.readLong();
+		case VALUE_INTEGER:
+			return in.readInt();
+		case VALUE_BOOLEAN:
+			return in.readBoolean();
+		case VALUE_FLOAT:
+			return in.readFloat();
+		case VALUE_DOUBLE:
+			return in.readDouble();
+		case VALUE_XML:
+			byte[] xml = new byte[in.readInt()];
+			in.readFully(xml);
+			XMLDecoder dec = new XMLDecoder(new ByteArrayInputStream(xml));
+			dec.setExceptionListener(new VFSExceptionListener(path));
+			try {
+				return dec.readObject();
+			} catch (RuntimeException e) {
+				logger.debug("Unable to decode plugin metadata for " + path, e);
+				return null;
+			} finally {
+				dec.close();
+			}
+		default:
+			throw new IOException("Unknown value type " + tag + " stored for " + path);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Growable list of primitive longs, used to hold record offsets and
+	 * lengths during compaction without boxing millions of values.
+	 */
+	private static class LongList {
+		private long[] _values = new long[1024];
+
+		private int _size;
+
+		private void add(long value) {
+			if (_size == _values.length) {
+				long[] values = new long[_size * 2];
+				System.arraycopy(_values, 0, values, 0, _size);
+				_values = values;
+			}
+			_values[_size++] = value;
+		}
+
+		private long get(int index) {
+			return _values[index];
+		}
+
+		private int size() {
+			return _size;
+		}
+	}
+}
@@ -30,6 +30,7 @@ import java.util.Set;
 import org.drftpd.GlobalContext;
 import org.drftpd.exceptions.FileExistsException;
 import org.drftpd.io.PermissionDeniedException;
+import org.drftpd.master.ChecksumQueue;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.slave.LightRemoteInode;
 import org.drftpd.usermanager.User;
@@ -447,9 +448,132 @@ public class DirectoryHandle extends InodeHandle implements
 		}
 		FileHandle newFile = createFileUnchecked(name, "drftpd", "drftpd",
 				rslave, lrf.lastModified(), true, lrf.length());
-		//newFile.setCheckSum(rslave.getCheckSumForPath(newFile.getPath()));
-		// TODO Implement a Checksum queue on remerge
 		newFile.setCheckSum(0);
+		ChecksumQueue.getChecksumQueue().add(newFile);
+	}
+
+	/**
+	 * Adds a file listed by the slave which is not in this directory yet.
+	 */
+	private void addRemergedFile(LightRemoteInode source, RemoteSlave rslave)
+			throws FileExistsException, FileNotFoundException {
+		try {
+			createRemergedFile(source, rslave, false);
+		} catch (FileExistsException e) {
+			// File created by another slaves thread since this thread
+			// listed the directory, just need to add this slave to the
+			// list for the file
+			try {
+				getFileUnchecked(source.getName()).addSlave(rslave);
+			} catch (ObjectNotValidException e1) {
+				// File has collided with a dir/link in VFS, create this
+				// as a collision
+				createRemergedFile(source, rslave, true);
+			}
+		}
+	}
+
+	/**
+	 * Merges a file or directory listed by the slave with the one of the
+	 * same name in this directory.
+	 */
+	private void remergeExisting(LightRemoteInode source, InodeHandle destination,
+			RemoteSlave rslave) throws FileExistsException, FileNotFoundException {
+		if (destination.isLink()) {
+			// this is bad, links don't exist on slaves
+			// name collision
+			if (source.isFile()) {
+				createRemergedFile(source, rslave, true);
+				logger.warn("In remerging " + rslave.getName()
+						+ ", a file on the slave (" + getPath()
+						+ VirtualFileSystem.separator
+						+ source.getName()
+						+ ") collided with a link on the master");
+				// set crc now?
+			} else { // source.isDirectory()
+				logger.warn("In remerging " + rslave.getName()
+						+ ", a directory on the slave (" + getPath()
+						+ VirtualFileSystem.separator
+						+ source.getName()
+						+ ") collided with a link on the master");
+			}
+		} else if (source.isFile() && destination.isFile()) {
+			// both files
+			FileHandle destinationFile = (FileHandle) destination;
+/*					long sourceCRC = rslave.getCheckSumForPath(getPath()
+					+ VirtualFileSystem.separator + source.getName());
+			long destinationCRC;
+			try {
+				destinationCRC = destinationFile.getCheckSum();
+			} catch (NoAvailableSlaveException e) {
+				destinationCRC = 0L;
+			}
+*/					
+			
+			if (source.length() != destinationFile.getSize()) {
+//							|| (sourceCRC != destinationCRC && destinationCRC != 0L)) {
+				// handle collision
+				Set<RemoteSlave> rslaves = destinationFile.getSlaves();
+				if (rslaves.contains(rslave) && rslaves.size() == 1) {
+					// size of the file has changed, but since this is the only slave with the file, just change the size
+					destinationFile.setSize(source.length());
+				} else {
+					if (rslaves.contains(rslave)) {
+						// the master thought the slave had the file, it's not the same size anymore, remove it
+						destinationFile.removeSlave(rslave);
+					}
+					createRemergedFile(source, rslave, true);
+					logger.warn("In remerging " + rslave.getName()
+							+ ", a file on the slave (" + getPath()
+							+ VirtualFileSystem.separator
+							+ source.getName()
+							+ ") collided with a file on the master");
+				}
+			} else {
+				destinationFile.addSlave(rslave);
+			}
+		} else if (source.isDirectory() && destination.isDirectory()) {
+			// this is good, do nothing other than take up this case
+		} else {
+			// we have a directory/name collision, let's find which one
+			// :)
+			if (source.isDirectory()) { // & destination.isFile()
+				// we don't care about directories on the slaves, let's
+				// just skip it
+				logger.warn("In remerging " + rslave.getName()
+						+ ", a directory on the slave (" + getPath()
+						+ VirtualFileSystem.separator
+						+ source.getName()
+						+ ") collided with a file on the master");
+			} else {
+				// source.isFile() && destination.isDirectory()
+				// handle collision
+				createRemergedFile(source, rslave, true);
+				// set crc now?
+			}
+		}
+	}
+
+	/**
+	 * Merges a single file found on the slave into this directory, the same
+	 * way {@link #remerge(List, RemoteSlave, long)} does for each file of a
+	 * listing.
+	 * @param source
+	 * @param rslave
+	 * @throws FileNotFoundException if this directory does not exist
+	 * @throws FileExistsException
+	 */
+	public void remergeFile(LightRemoteInode source, RemoteSlave rslave)
+			throws FileExistsException, FileNotFoundException {
+		InodeHandle destination;
+		try {
+			destination = getInodeHandleUnchecked(source.getName());
+		} catch (FileNotFoundException e) {
+			getInode();
+			addRemergedFile(source, rslave);
+			return;
+		}
+		remergeExisting(source, destination, rslave);
 	}
 
 	public void remerge(List<LightRemoteInode> files, RemoteSlave rslave, long lastModified)
@@ -527,20 +651,7 @@ public class DirectoryHandle extends InodeHandle implements
 
 				while (source != null) {
 					if (source.isFile()) {
-						try {
-							createRemergedFile(source, rslave, false);
-						} catch (FileExistsException e) {
-							// File created by another slaves thread since this thread
-							// listed the directory, just need to add this slave to the
-							// list for the file
-							try {
-								getFileUnchecked(source.getName()).addSlave(rslave);
-							} catch (ObjectNotValidException e1) {
-								// File has collided with a dir/link in VFS, create this
-								// as a collision
-								createRemergedFile(source, rslave, true);
-							}
-						}
+						addRemergedFile(source, rslave);
 					} else {
 						throw new IOException(
 								source.getName()
@@ -568,20 +679,7 @@ public class DirectoryHandle extends InodeHandle implements
 			if (compare < 0) {
 				if (source.isFile()) {
 					// add the file
-					try {
-						createRemergedFile(source, rslave, false);
-					} catch (FileExistsException e) {
-						// File created by another slaves thread since this thread
-						// listed the directory, just need to add this slave to the
-						// list for the file
-						try {
-							getFileUnchecked(source.getName()).addSlave(rslave);
-						} catch (ObjectNotValidException e1) {
-							// File has collided with a dir/link in VFS, create this
-							// as a collision
-							createRemergedFile(source, rslave, true);
-						}
-					}
+					addRemergedFile(source, rslave);
 				} else {
 					throw new IOException(
 							source.getName()
@@ -604,79 +702,7 @@ public class DirectoryHandle extends InodeHandle implements
 					destination = null;
 				}
 			} else if (compare == 0) {
-				if (destination.isLink()) {
-					// this is bad, links don't exist on slaves
-					// name collision
-					if (source.isFile()) {
-						createRemergedFile(source, rslave, true);
-						logger.warn("In remerging " + rslave.getName()
-								+ ", a file on the slave (" + getPath()
-								+ VirtualFileSystem.separator
-								+ source.getName()
-								+ ") collided with a link on the master");
-						// set crc now?
-					} else { // source.isDirectory()
-						logger.warn("In remerging " + rslave.getName()
-								+ ", a directory on the slave (" + getPath()
-								+ VirtualFileSystem.separator
-								+ source.getName()
-								+ ") collided with a link on the master");
-					}
-				} else if (source.isFile() && destination.isFile()) {
-					// both files
-					FileHandle destinationFile = (FileHandle) destination;
-/*					long sourceCRC = rslave.getCheckSumForPath(getPath()
-							+ VirtualFileSystem.separator + source.getName());
-					long destinationCRC;
-					try {
-						destinationCRC = destinationFile.getCheckSum();
-					} catch (NoAvailableSlaveException e) {
-						destinationCRC = 0L;
-					}
-*/					
-					
-					if (source.length() != destinationFile.getSize()) {
-//							|| (sourceCRC != destinationCRC && destinationCRC != 0L)) {
-						// handle collision
-						Set<RemoteSlave> rslaves = destinationFile.getSlaves();
-						if (rslaves.contains(rslave) && rslaves.size() == 1) {
-							// size of the file has changed, but since this is the only slave with the file, just change the size
-							destinationFile.setSize(source.length());
-						} else {
-							if (rslaves.contains(rslave)) {
-								// the master thought the slave had the file, it's not the same size anymore, remove it
-								destinationFile.removeSlave(rslave);
-							}
-							createRemergedFile(source, rslave, true);
-							logger.warn("In remerging " + rslave.getName()
-									+ ", a file on the slave (" + getPath()
-									+ VirtualFileSystem.separator
-									+ source.getName()
-									+ ") collided with a file on the master");
-						}
-					} else {
-						destinationFile.addSlave(rslave);
-					}
-				} else if (source.isDirectory() && destination.isDirectory()) {
-					// this is good, do nothing other than take up this case
-				} else {
-					// we have a directory/name collision, let's find which one
-					// :)
-					if (source.isDirectory()) { // & destination.isFile()
-						// we don't care about directories on the slaves, let's
-						// just skip it
-						logger.warn("In remerging " + rslave.getName()
-								+ ", a directory on the slave (" + getPath()
-								+ VirtualFileSystem.separator
-								+ source.getName()
-								+ ") collided with a file on the master");
-					} else {
-						// source.isFile() && destination.isDirectory()
-						// handle collision
-						createRemergedFile(source, rslave, true);
-						// set crc now?
-					}
-				}
+				remergeExisting(source, destination, rslave);
 				// advance both runners, they were equal
 				if (destinationIter.hasNext()) {
 					destination = destinationIter.next();
@@ -1023,4 +1049,18 @@ public class DirectoryHandle extends InodeHandle implements
 	public void recalcSlaveRefCounts() throws FileNotFoundException {
 		getInode().recalcSlaveRefCounts();
 	}
+
+	/**
+	 * @param rslave
+	 * @return the remerge digest the slave had for this directory when it
+	 * was last merged, null if the directory changed since.
+	 * @throws FileNotFoundException
+	 */
+	public Long getRemergeDigest(RemoteSlave rslave) throws FileNotFoundException {
+		return getInode().getRemergeDigest(rslave.getName());
+	}
+
+	public void setRemergeDigest(RemoteSlave rslave, long digest) throws FileNotFoundException {
+		getInode().setRemergeDigest(rslave.getName(), digest);
+	}
 }
@@ -0,0 +1,409 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps strong references to a bounded number of loaded inodes.<br>
+ * Directories only hold weak references to their children, an inode stays in
+ * memory while it is in this cache, pinned, queued for commit or otherwise in
+ * use and is collected soon after none of these hold it anymore.<br>
+ * Eviction is a segmented LRU, inodes enter a probation segment and are only
+ * moved to the protected segment when used again, so a single pass over a
+ * large tree (a remerge, a search, a nuke of an old dir) cannot flush the
+ * inodes which are used all the time.<br>
+ * Hits never wait for the lock, they are buffered and applied in batches by
+ * whichever thread gets the lock next, a hit dropped because the buffer is
+ * full only costs a little accuracy of the eviction order.<br>
+ * Directories up to the pin depth are always kept, like the sections below /,
+ * and so are directories which are used often, as long as they keep being
+ * used. How often each inode was used is halved every time the cache saw as
+ * many uses as it holds inodes.<br>
+ * Inodes are told apart by identity, not by path like their equals() does: an
+ * inode keeps its entry when it is renamed and an inode loaded again for the
+ * same path gets an entry of its own.<br>
+ * The cache never calls out to the inodes while holding its lock so it can be
+ * used while directory locks are held.
+ * @version $Id$
+ */
+public class InodeCache {
+
+	// hits buffered before a thread tries to apply them
+	private static final int DRAIN_THRESHOLD = 32;
+
+	// hits buffered before new ones are dropped
+	private static final int MAX_PENDING_HITS = 4096;
+
+	// uses after which a directory is kept regardless of the eviction order
+	private static final int HOT_HITS = 16;
+
+	private final int _maxSize;
+
+	private final int _protectedMaxSize;
+
+	private final int _pinDepth;
+
+	private final int _maxHot;
+
+	private final LinkedHashMap<Entry, Entry> _probation =
+		new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+
+	private final LinkedHashMap<Entry, Entry> _protected =
+		new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+
+	private final HashMap<Entry, Integer> _pinned = new HashMap<Entry, Integer>();
+
+	private final HashMap<Entry, Entry> _hot = new HashMap<Entry, Entry>();
+
+	// uses since the counts were last halved
+	private int _uses;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	private final ConcurrentLinkedQueue<VirtualFileSystemInode> _pendingHits =
+		new ConcurrentLinkedQueue<VirtualFileSystemInode>();
+
+	private final AtomicInteger _pendingCount = new AtomicInteger();
+
+	private final AtomicLong _hits = new AtomicLong();
+
+	private long _misses;
+
+	private long _evictions;
+
+	/**
+	 * @param maxSize the number of inodes kept, 80% of them are reserved for
+	 * inodes which have been used more than once.
+	 */
+	public InodeCache(int maxSize) {
+		this(maxSize, 1);
+	}
+
+	/**
+	 * @param pinDepth directories this many levels below / or less are always
+	 * kept, 0 keeps none.
+	 */
+	public InodeCache(int maxSize, int pinDepth) {
+		_maxSize = Math.max(1, maxSize);
+		_protectedMaxSize = Math.max(1, (int) (_maxSize * 0.8));
+		_pinDepth = Math.max(0, pinDepth);
+		// on top of the inodes counted in maxSize
+		_maxHot = Math.max(1, _maxSize / 100);
+	}
+
+	/**
+	 * @return how many levels below / directories are always kept.
+	 */
+	public int getPinDepth() {
+		return _pinDepth;
+	}
+
+	/**
+	 * Records an inode found in memory.
+	 * @param inode
+	 */
+	protected void hit(VirtualFileSystemInode inode) {
+		_hits.incrementAndGet();
+		if (_pendingCount.get() >= MAX_PENDING_HITS) {
+			return;
+		}
+		_pendingHits.add(inode);
+		if (_pendingCount.incrementAndGet() >= DRAIN_THRESHOLD && _lock.tryLock()) {
+			try {
+				drainHits();
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Applies the buffered hits, the lock must be held.
+	 */
+	private void drainHits() {
+		VirtualFileSystemInode inode;
+		while ((inode = _pendingHits.poll()) != null) {
+			_pendingCount.decrementAndGet();
+			access(inode);
+		}
+	}
+
+	/**
+	 * Takes the lock and brings the segments up to date with the buffered hits.
+	 */
+	private void lock() {
+		_lock.lock();
+		drainHits();
+	}
+
+	/**
+	 * Records an inode which had to be read from the inode store.
+	 * @param inode
+	 */
+	protected void loaded(VirtualFileSystemInode inode) {
+		lock();
+		try {
+			_misses++;
+			access(inode);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a newly created inode.
+	 * @param inode
+	 */
+	protected void add(VirtualFileSystemInode inode) {
+		lock();
+		try {
+			access(inode);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops an inode which has been deleted.
+	 * @param inode
+	 */
+	protected void remove(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		lock();
+		try {
+			if (_probation.remove(key) == null) {
+				_protected.remove(key);
+			}
+			_pinned.remove(key);
+			_hot.remove(key);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Keeps the inode, and therefore all its parents, in memory until
+	 * {@link #unpin(VirtualFileSystemInode)} is called the same number of times.
+	 * @param inode
+	 */
+	protected void pin(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		_lock.lock();
+		try {
+			Integer count = _pinned.get(key);
+			_pinned.put(key, count == null ? 1 : count + 1);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	protected void unpin(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		_lock.lock();
+		try {
+			Integer count = _pinned.get(key);
+			if (count == null) {
+				return;
+			}
+			if (count <= 1) {
+				_pinned.remove(key);
+			} else {
+				_pinned.put(key, count - 1);
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	protected boolean contains(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		lock();
+		try {
+			return _probation.containsKey(key) || _protected.containsKey(key);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the inode is kept because it is used often.
+	 */
+	protected boolean isHot(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		lock();
+		try {
+			return _hot.containsKey(key);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void access(VirtualFileSystemInode inode) {
+		Entry key = new Entry(inode);
+		Entry entry = _protected.get(key);
+		if (entry != null) {
+			// access ordered, this moved it to the most recently used position
+			used(entry);
+			return;
+		}
+		entry = _probation.remove(key);
+		if (entry != null) {
+			_protected.put(entry, entry);
+			used(entry);
+			if (_protected.size() > _protectedMaxSize) {
+				Iterator<Entry> iter = _protected.keySet().iterator();
+				Entry demoted = iter.next();
+				iter.remove();
+				_probation.put(demoted, demoted);
+			}
+			return;
+		}
+		// a hot directory which was evicted keeps counting
+		entry = _hot.get(key);
+		if (entry == null) {
+			entry = key;
+		}
+		_probation.put(entry, entry);
+		used(entry);
+		while (_probation.size() + _protected.size() > _maxSize) {
+			Iterator<Entry> iter = _probation.isEmpty()
+					? _protected.keySet().iterator() : _probation.keySet().iterator();
+			iter.next();
+			iter.remove();
+			_evictions++;
+		}
+	}
+
+	private void used(Entry entry) {
+		entry._uses++;
+		if (entry._uses >= HOT_HITS && entry._inode instanceof VirtualFileSystemDirectory
+				&& _hot.size() < _maxHot) {
+			_hot.put(entry, entry);
+		}
+		if (++_uses >= _maxSize) {
+			age();
+		}
+	}
+
+	/**
+	 * Halves how often each inode was used, directories which are no longer
+	 * used often are not kept anymore.
+	 */
+	private void age() {
+		_uses = 0;
+		for (Entry entry : _probation.keySet()) {
+			entry._uses >>= 1;
+		}
+		for (Entry entry : _protected.keySet()) {
+			entry._uses >>= 1;
+		}
+		for (Iterator<Entry> iter = _hot.keySet().iterator(); iter.hasNext();) {
+			Entry entry = iter.next();
+			if (!_probation.containsKey(entry) && !_protected.containsKey(entry)) {
+				entry._uses >>= 1;
+			}
+			if (entry._uses < HOT_HITS) {
+				iter.remove();
+			}
+		}
+	}
+
+	public int getMaxSize() {
+		return _maxSize;
+	}
+
+	public int getSize() {
+		lock();
+		try {
+			return _probation.size() + _protected.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public int getPinnedCount() {
+		_lock.lock();
+		try {
+			return _pinned.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of directories kept because they are used often.
+	 */
+	public int getHotCount() {
+		lock();
+		try {
+			return _hot.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		return _hits.get();
+	}
+
+	public long getMisses() {
+		_lock.lock();
+		try {
+			return _misses;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public long getEvictions() {
+		lock();
+		try {
+			return _evictions;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * An inode in the cache, compared by identity.
+	 */
+	private static final class Entry {
+		private final VirtualFileSystemInode _inode;
+
+		private int _uses;
+
+		private Entry(VirtualFileSystemInode inode) {
+			_inode = inode;
+		}
+
+		public boolean equals(Object obj) {
+			return obj instanceof Entry && ((Entry) obj)._inode == _inode;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(_inode);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class InodeCacheTest extends TestCase {
+
+	private static final int MAX_SIZE = 10;
+
+	private InodeCache _cache;
+
+	protected void setUp() {
+		_cache = new InodeCache(MAX_SIZE);
+	}
+
+	private ArrayList<VirtualFileSystemInode> createInodes(int count) {
+		ArrayList<VirtualFileSystemInode> inodes = new ArrayList<VirtualFileSystemInode>();
+		for (int i = 0; i < count; i++) {
+			inodes.add(new VirtualFileSystemFile("user", "group", 0L, "slave"));
+		}
+		return inodes;
+	}
+
+	public void testBounded() {
+		for (VirtualFileSystemInode inode : createInodes(MAX_SIZE * 3)) {
+			_cache.loaded(inode);
+		}
+		assertEquals(MAX_SIZE, _cache.getSize());
+		assertEquals(MAX_SIZE * 2, _cache.getEvictions());
+		assertEquals(MAX_SIZE * 3, _cache.getMisses());
+	}
+
+	public void testScanResistance() {
+		ArrayList<VirtualFileSystemInode> hot = createInodes(MAX_SIZE / 2);
+		for (VirtualFileSystemInode inode : hot) {
+			_cache.loaded(inode);
+			_cache.hit(inode);
+		}
+		// a single pass over many inodes, like a remerge, must not flush the hot ones
+		for (VirtualFileSystemInode inode : createInodes(MAX_SIZE * 10)) {
+			_cache.loaded(inode);
+		}
+		for (VirtualFileSystemInode inode : hot) {
+			assertTrue(_cache.contains(inode));
+		}
+		assertEquals(MAX_SIZE, _cache.getSize());
+	}
+
+	public void testPinning() {
+		VirtualFileSystemInode inode = createInodes(1).get(0);
+		_cache.pin(inode);
+		_cache.pin(inode);
+		_cache.unpin(inode);
+		assertEquals(1, _cache.getPinnedCount());
+		_cache.unpin(inode);
+		assertEquals(0, _cache.getPinnedCount());
+	}
+
+	public void testConcurrentHits() throws InterruptedException {
+		final ArrayList<VirtualFileSystemInode> inodes = createInodes(MAX_SIZE * 2);
+		for (VirtualFileSystemInode inode : inodes) {
+			_cache.loaded(inode);
+		}
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						_cache.hit(inodes.get(j % inodes.size()));
+						if (j % 100 == 0) {
+							_cache.loaded(inodes.get(j % inodes.size()));
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(threads.length * 10000, _cache.getHits());
+		assertEquals(MAX_SIZE, _cache.getSize());
+	}
+
+	public void testRemove() {
+		VirtualFileSystemInode inode = createInodes(1).get(0);
+		_cache.add(inode);
+		_cache.hit(inode);
+		_cache.remove(inode);
+		assertFalse(_cache.contains(inode));
+		assertEquals(0, _cache.getSize());
+	}
+
+	public void testHotDirectories() {
+		InodeCache cache = new InodeCache(1000);
+		VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("user", "group");
+		VirtualFileSystemInode file = createInodes(1).get(0);
+		for (int i = 0; i < 20; i++) {
+			cache.loaded(dir);
+			cache.loaded(file);
+		}
+		// only directories are kept for being used often
+		assertTrue(cache.isHot(dir));
+		assertFalse(cache.isHot(file));
+		assertEquals(1, cache.getHotCount());
+
+		for (VirtualFileSystemInode inode : createInodes(500)) {
+			cache.loaded(inode);
+		}
+		assertTrue(cache.isHot(dir));
+
+		// no longer used, it is dropped once its uses were halved enough
+		for (VirtualFileSystemInode inode : createInodes(3000)) {
+			cache.loaded(inode);
+		}
+		assertFalse(cache.isHot(dir));
+		assertEquals(0, cache.getHotCount());
+	}
+
+	public void testIdentity() {
+		// both would be at the same path, they are still different inodes
+		VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("user", "group");
+		VirtualFileSystemDirectory other = new VirtualFileSystemDirectory("user", "group");
+		_cache.loaded(dir);
+		assertTrue(_cache.contains(dir));
+		assertFalse(_cache.contains(other));
+		_cache.pin(other);
+		_cache.unpin(dir);
+		assertEquals(1, _cache.getPinnedCount());
+	}
+}
@@ -283,6 +283,20 @@ public abstract class InodeHandle implements InodeHandleInterface, Comparable<In
 		inode.rename(toInode.getPath());
 	}
 
+	/**
+	 * Renames the Inode in the VFS only, for a rename which already happened
+	 * on the slave holding it.
+	 * @param toInode
+	 * @throws FileExistsException if the destination inode already exists.
+	 * @throws FileNotFoundException if the source inode does not exist.
+	 */
+	public void renameToUncheckedFromSlave(InodeHandle toInode) throws FileExistsException, FileNotFoundException {
+		if (toInode.exists()) {
+			throw new FileExistsException(toInode.getPath() + " already exists");
+		}
+		getInode().rename(toInode.getPath());
+	}
+
 	/**
 	 * Remove the slave from the slave list.
 	 * @param rslave
@@ -0,0 +1,69 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Compares the time taken to commit and load the same tree with the XML and
+ * the binary inode stores.<br>
+ * Not part of the unit tests, run it by hand:
+ * InodeStoreBenchmark [directories] [files per directory]
+ * @version $Id$
+ */
+public class InodeStoreBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int directories = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		File baseDir = File.createTempFile("inodestore", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+		try {
+			ArrayList<VirtualFileSystemInode> inodes = InodeStoreTest.buildTree(directories, files);
+
+			XMLInodeStore xmlStore = new XMLInodeStore(new File(baseDir, "files").getPath());
+			long start = System.currentTimeMillis();
+			InodeStoreTest.commit(xmlStore, inodes);
+			long xmlCommit = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			InodeStoreTest.loadAll(xmlStore, VirtualFileSystem.separator);
+			long xmlLoad = System.currentTimeMillis() - start;
+
+			BinaryInodeStore binaryStore = new BinaryInodeStore(new File(baseDir, "inodes.db").getPath());
+			start = System.currentTimeMillis();
+			InodeStoreTest.commit(binaryStore, inodes);
+			long binaryCommit = System.currentTimeMillis() - start;
+			binaryStore.close();
+			start = System.currentTimeMillis();
+			binaryStore = new BinaryInodeStore(new File(baseDir, "inodes.db").getPath());
+			InodeStoreTest.loadAll(binaryStore, VirtualFileSystem.separator);
+			long binaryLoad = System.currentTimeMillis() - start;
+			binaryStore.close();
+
+			System.out.println(inodes.size() + " inodes");
+			System.out.println("xml    - commit " + xmlCommit + "ms, load " + xmlLoad + "ms");
+			System.out.println("binary - commit " + binaryCommit + "ms, load (including index rebuild) "
+					+ binaryLoad + "ms");
+		} finally {
+			InodeStoreTest.delete(baseDir);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.drftpd.io.PermissionDeniedException;
+
+/**
+ * Persistence backend for the {@link VirtualFileSystem}.<br>
+ * A store is only responsible for reading and writing the serialized form of
+ * inodes, the VirtualFileSystem keeps the in-memory hierarchy and handles
+ * recovery when a stored record cannot be read.
+ * @version $Id$
+ */
+public interface InodeStoreInterface {
+
+	/**
+	 * Reads the inode stored under the given path, the returned object has no
+	 * name or parent set and has not been marked as loaded.
+	 * @param path
+	 * @throws FileNotFoundException if there is no record for this path.
+	 * @throws IOException if the record exists but could not be read.
+	 */
+	public VirtualFileSystemInode readInode(String path) throws IOException;
+
+	/**
+	 * Writes the current state of the inode, replacing any previous record.
+	 * @param inode
+	 * @throws IOException
+	 */
+	public void writeInode(VirtualFileSystemInode inode) throws IOException;
+
+	/**
+	 * @param path
+	 * @return the names of all children stored below this path.
+	 */
+	public String[] listChildren(String path);
+
+	/**
+	 * @param path
+	 * @return true if a record (readable or not) exists for this path.
+	 */
+	public boolean hasRecord(String path);
+
+	/**
+	 * @param path
+	 * @return true if this path is known to be a directory, even when the
+	 * record for the directory itself is missing.
+	 */
+	public boolean isDirectory(String path);
+
+	/**
+	 * Removes the record for this path only, children are left untouched.
+	 * Used to get rid of records which failed to load.
+	 * @param path
+	 */
+	public void discardRecord(String path);
+
+	/**
+	 * Deletes the record for this path and, if it is a directory, for
+	 * everything below it.
+	 * @param path
+	 */
+	public void deleteInode(String path);
+
+	/**
+	 * Moves the record for source, and everything below it, to destination.
+	 * @param source
+	 * @param destination
+	 * @throws FileNotFoundException if there is no record for source.
+	 * @throws PermissionDeniedException if the move could not be done.
+	 */
+	public void renameInode(String source, String destination)
+			throws FileNotFoundException, PermissionDeniedException;
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.drftpd.util.CommonPluginUtils;
+
+/**
+ * Copies every inode from one {@link InodeStoreInterface} to another, used to
+ * move an existing XML tree into the binary store.<br>
+ * The source store is left untouched so it can be kept as a backup until the
+ * new store has been verified.
+ * @version $Id$
+ */
+public class InodeStoreMigrator {
+
+	private static final Logger logger = Logger.getLogger(InodeStoreMigrator.class);
+
+	private InodeStoreInterface _source;
+
+	private InodeStoreInterface _destination;
+
+	private long _migrated;
+
+	private long _failed;
+
+	public InodeStoreMigrator(InodeStoreInterface source, InodeStoreInterface destination) {
+		_source = source;
+		_destination = destination;
+	}
+
+	/**
+	 * Walks the whole source tree and writes each inode to the destination.
+	 */
+	public void migrate() {
+		logger.info("Migrating VFS from " + _source.getClass().getSimpleName()
+				+ " to " + _destination.getClass().getSimpleName() + ", this may take a while");
+		long start = System.currentTimeMillis();
+		ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(this));
+		try {
+			VirtualFileSystemInode root = null;
+			try {
+				root = _source.readInode(VirtualFileSystem.separator);
+			} catch (IOException e) {
+				logger.error("Unable to read the root directory, creating a new one", e);
+			}
+			if (!(root instanceof VirtualFileSystemRoot)) {
+				root = new VirtualFileSystemRoot();
+			}
+			write(root);
+			migrateChildren((VirtualFileSystemDirectory) root, VirtualFileSystem.separator);
+		} finally {
+			Thread.currentThread().setContextClassLoader(prevCL);
+		}
+		logger.info("Migrated " + _migrated + " inodes in " + (System.currentTimeMillis() - start)
+				+ "ms, " + _failed + " inodes could not be migrated");
+	}
+
+	private void migrateChildren(VirtualFileSystemDirectory dir, String path) {
+		String prefix = path.equals(VirtualFileSystem.separator) ? "" : path;
+		for (String name : _source.listChildren(path)) {
+			String childPath = prefix + VirtualFileSystem.separator + name;
+			VirtualFileSystemInode inode;
+			try {
+				inode = _source.readInode(childPath);
+			} catch (IOException e) {
+				_failed++;
+				logger.warn("Unable to read " + childPath + ", skipping it", e);
+				if (!_source.isDirectory(childPath)) {
+					continue;
+				}
+				// keep the contents, the VFS recreates the directory record when first loaded
+				inode = new VirtualFileSystemDirectory("drftpd", "drftpd");
+				inode.setName(name);
+				inode.setParent(dir);
+				migrateChildren((VirtualFileSystemDirectory) inode, childPath);
+				continue;
+			}
+			inode.setName(name);
+			inode.setParent(dir);
+			write(inode);
+			if (inode.isDirectory()) {
+				migrateChildren((VirtualFileSystemDirectory) inode, childPath);
+			}
+		}
+	}
+
+	private void write(VirtualFileSystemInode inode) {
+		try {
+			_destination.writeInode(inode);
+			if (++_migrated % 100000 == 0) {
+				logger.info("Migrated " + _migrated + " inodes");
+			}
+		} catch (IOException e) {
+			_failed++;
+			logger.error("Unable to write " + inode.getPath(), e);
+		}
+	}
+
+	public long getMigrated() {
+		return _migrated;
+	}
+
+	public long getFailed() {
+		return _failed;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trip tests for the inode stores.
+ * @version $Id$
+ */
+public class InodeStoreTest extends TestCase {
+
+	private static final int DIRECTORIES = 20;
+
+	private static final int FILES = 10;
+
+	private File _baseDir;
+
+	public InodeStoreTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_baseDir = File.createTempFile("inodestore", "");
+		_baseDir.delete();
+		_baseDir.mkdirs();
+	}
+
+	protected void tearDown() {
+		delete(_baseDir);
+	}
+
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	static ArrayList<VirtualFileSystemInode> buildTree(int directories, int files) {
+		ArrayList<VirtualFileSystemInode> inodes = new ArrayList<VirtualFileSystemInode>();
+		VirtualFileSystemRoot root = new VirtualFileSystemRoot();
+		inodes.add(root);
+		for (int x = 0; x < directories; x++) {
+			VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("user" + x, "group");
+			dir.setName("Release.Name-" + x);
+			dir.setParent(root);
+			dir.setSize(files * 15000000L);
+			inodes.add(dir);
+			for (int y = 0; y < files; y++) {
+				VirtualFileSystemFile file = new VirtualFileSystemFile("user" + x, "group",
+						15000000L, "slave" + (y % 3));
+				file.setName("release.r" + y);
+				file.setParent(dir);
+				file.getKeyedMap().setObject(VirtualFileSystemFile.CRC, (long) y);
+				file.getKeyedMap().setObject(VirtualFileSystemFile.XFERTIME, 1000L + y);
+				inodes.add(file);
+			}
+		}
+		return inodes;
+	}
+
+	static void commit(InodeStoreInterface store, ArrayList<VirtualFileSystemInode> inodes)
+			throws IOException {
+		for (VirtualFileSystemInode inode : inodes) {
+			store.writeInode(inode);
+		}
+	}
+
+	static int loadAll(InodeStoreInterface store, String path) throws IOException {
+		int count = 1;
+		VirtualFileSystemInode inode = store.readInode(path);
+		if (inode.isDirectory()) {
+			String prefix = path.equals(VirtualFileSystem.separator) ? "" : path;
+			for (String child : store.listChildren(path)) {
+				count += loadAll(store, prefix + VirtualFileSystem.separator + child);
+			}
+		}
+		return count;
+	}
+
+	public void testBinaryRoundTrip() throws IOException {
+		BinaryInodeStore store = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		ArrayList<VirtualFileSystemInode> inodes = buildTree(DIRECTORIES, FILES);
+		commit(store, inodes);
+		VirtualFileSystemFile file = (VirtualFileSystemFile) store.readInode("/Release.Name-3/release.r7");
+		assertEquals("user3", file.getUsername());
+		assertEquals(15000000L, file.getSize());
+		assertTrue(file.getSlaves().contains("slave1"));
+		assertEquals(7L, file.getChecksum());
+		assertEquals(1007L, file.getXfertime());
+		store.close();
+
+		// reopen to make sure the index is rebuilt from the log
+		store = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		assertEquals(inodes.size(), loadAll(store, VirtualFileSystem.separator));
+		store.renameInode("/Release.Name-3", "/Release.Name-3.renamed");
+		store.deleteInode("/Release.Name-4");
+		store.close();
+
+		store = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		assertTrue(store.hasRecord("/Release.Name-3.renamed/release.r7"));
+		assertFalse(store.isDirectory("/Release.Name-3"));
+		assertFalse(store.hasRecord("/Release.Name-4/release.r7"));
+		store.compact();
+		assertEquals(inodes.size() - 1 - FILES, loadAll(store, VirtualFileSystem.separator));
+		store.close();
+	}
+
+	public void testCompactWhileWriting() throws IOException {
+		final BinaryInodeStore store = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		final ArrayList<VirtualFileSystemInode> inodes = buildTree(DIRECTORIES, FILES);
+		commit(store, inodes);
+		commit(store, inodes);
+		store.compact(new Runnable() {
+			public void run() {
+				try {
+					// changes made while the live records are copied
+					inodes.get(3).getKeyedMap().setObject(VirtualFileSystemFile.CRC, 42L);
+					store.writeInode(inodes.get(3));
+					store.renameInode("/Release.Name-3", "/Release.Name-3.renamed");
+					store.deleteInode("/Release.Name-4");
+					store.discardRecord("/Release.Name-5/release.r0");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		assertEquals(7L, ((VirtualFileSystemFile) store.readInode("/Release.Name-3.renamed/release.r7")).getChecksum());
+		assertEquals(42L, ((VirtualFileSystemFile) store.readInode("/Release.Name-0/release.r1")).getChecksum());
+		assertEquals(2L, ((VirtualFileSystemFile) store.readInode("/Release.Name-0/release.r2")).getChecksum());
+		assertFalse(store.hasRecord("/Release.Name-5/release.r0"));
+		assertFalse(store.isDirectory("/Release.Name-4"));
+		store.deleteInode("/Release.Name-5/release.r0");
+		assertEquals(inodes.size() - 1 - FILES - 1, loadAll(store, VirtualFileSystem.separator));
+		store.close();
+
+		// the swapped in log replays to the same tree
+		BinaryInodeStore reopened = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		assertEquals(42L, ((VirtualFileSystemFile) reopened.readInode("/Release.Name-0/release.r1")).getChecksum());
+		assertEquals(inodes.size() - 1 - FILES - 1, loadAll(reopened, VirtualFileSystem.separator));
+		reopened.close();
+	}
+
+	public void testMigration() throws IOException {
+		XMLInodeStore xmlStore = new XMLInodeStore(new File(_baseDir, "files").getPath());
+		ArrayList<VirtualFileSystemInode> inodes = buildTree(DIRECTORIES, FILES);
+		commit(xmlStore, inodes);
+		BinaryInodeStore binaryStore = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		InodeStoreMigrator migrator = new InodeStoreMigrator(xmlStore, binaryStore);
+		migrator.migrate();
+		assertEquals(inodes.size(), migrator.getMigrated());
+		assertEquals(0, migrator.getFailed());
+		assertEquals(inodes.size(), loadAll(binaryStore, VirtualFileSystem.separator));
+		binaryStore.close();
+	}
+
+	public void testMissingRecord() throws IOException {
+		BinaryInodeStore store = new BinaryInodeStore(new File(_baseDir, "inodes.db").getPath());
+		try {
+			store.readInode("/does/not/exist");
+			fail("Expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		store.close();
+	}
+}
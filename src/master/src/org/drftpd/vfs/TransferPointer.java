@@ -24,7 +24,9 @@ import org.drftpd.slave.Transfer;
 
 /**
  * This class's only purpose is to create a hard Reference to the VirtualFileSystemFile object that is being transferred
- * Each RemoteTransfer class should reference a TransferPointer to their appropriate file
+ * Each RemoteTransfer class should reference a TransferPointer to their appropriate file<br>
+ * Since inodes reference their parent, this also keeps the directory being raced
+ * in memory regardless of what the {@link InodeCache} evicts.
  * @author zubov
  * @version $Id$
  */
@@ -17,22 +17,17 @@
  */
 package org.drftpd.vfs;
 
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Comparator;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.drftpd.GlobalContext;
+import org.drftpd.exceptions.FatalException;
 import org.drftpd.io.PermissionDeniedException;
-import org.drftpd.io.SafeFileOutputStream;
+import org.drftpd.master.config.ConfigInterface;
 import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.vfs.event.VirtualFileSystemEvent;
 import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
@@ -55,24 +50,15 @@ public class VirtualFileSystem {
 		}
 	}
 
-	static class DirInodeFilenameFilter implements FilenameFilter {
-
-		@Override
-		public boolean accept(File dir, String file) {
-			return !file.equals(dirName);
-		}
-		
-	}
-
 	private static VirtualFileSystem _vfs = null;
 
 	public static final String dirName = ".dirProperties";
 
 	public static final String fileSystemPath = "files";
 
-	private static final Logger logger = Logger.getLogger(VirtualFileSystem.class);
+	public static final String binaryStorePath = "inodes.db";
 
-	private static final DirInodeFilenameFilter dirFilter = new DirInodeFilenameFilter();
+	private static final Logger logger = Logger.getLogger(VirtualFileSystem.class);
 
 	public static final String separator = "/";
 
@@ -118,6 +104,12 @@ public class VirtualFileSystem {
 
 	private VirtualFileSystemRoot _root = null;
 
+	private InodeStoreInterface _store;
+
+	private InodeCache _inodeCache;
+
+	private VirtualFileSystemEventCoalescer _eventCoalescer;
+
 	/**
 	 * Create a VirtualFileSystem object, creating or not a new directory tree.
 	 * If there's a pre-existing tree, it loads the data, if not, it creates a
@@ -127,7 +119,9 @@ public class VirtualFileSystem {
 	 * This constructor is private due to the Singleton architecture.
 	 */
 	private VirtualFileSystem() {
-		new File(fileSystemPath).mkdirs();
+		_store = createInodeStore();
+		_inodeCache = createInodeCache();
+		_eventCoalescer = createEventCoalescer();
 		try {
 			_root = (VirtualFileSystemRoot) loadInode(separator);
 		} catch (FileNotFoundException e) {
@@ -135,14 +129,96 @@ public class VirtualFileSystem {
 		}
 	}
 
+	/**
+	 * Creates the store configured by 'vfs.store' in master.conf, an empty
+	 * binary store is populated from an existing XML tree on first use.
+	 */
+	private static InodeStoreInterface createInodeStore() {
+		String storeType = "xml";
+		ConfigInterface config = GlobalContext.getConfig();
+		if (config != null) {
+			storeType = config.getMainProperties().getProperty("vfs.store", storeType).trim();
+		}
+		if (storeType.equalsIgnoreCase("binary")) {
+			BinaryInodeStore store;
+			try {
+				store = new BinaryInodeStore(binaryStorePath);
+			} catch (IOException e) {
+				throw new FatalException("Unable to open VFS store " + binaryStorePath, e);
+			}
+			if (store.isEmpty() && new File(fileSystemPath, dirName).exists()) {
+				new InodeStoreMigrator(new XMLInodeStore(fileSystemPath), store).migrate();
+			}
+			return store;
+		} else if (!storeType.equalsIgnoreCase("xml")) {
+			throw new FatalException("Unknown vfs.store type " + storeType + ", check master.conf");
+		}
+		return new XMLInodeStore(fileSystemPath);
+	}
+
+	/**
+	 * Creates the cache sized by 'vfs.cache.size' in master.conf, keeping the
+	 * directories up to 'vfs.cache.pin.depth' below /.
+	 */
+	private static InodeCache createInodeCache() {
+		int size = 100000;
+		int pinDepth = 1;
+		ConfigInterface config = GlobalContext.getConfig();
+		if (config != null) {
+			try {
+				size = Integer.parseInt(config.getMainProperties().getProperty(
+						"vfs.cache.size", String.valueOf(size)).trim());
+			} catch (NumberFormatException e) {
+				throw new FatalException("vfs.cache.size is not a number, check master.conf", e);
+			}
+			try {
+				pinDepth = Integer.parseInt(config.getMainProperties().getProperty(
+						"vfs.cache.pin.depth", String.valueOf(pinDepth)).trim());
+			} catch (NumberFormatException e) {
+				throw new FatalException("vfs.cache.pin.depth is not a number, check master.conf", e);
+			}
+		}
+		return new InodeCache(size, pinDepth);
+	}
+
+	/**
+	 * Creates the coalescer holding events back for 'vfs.event.coalesce'
+	 * milliseconds as set in master.conf.
+	 */
+	private static VirtualFileSystemEventCoalescer createEventCoalescer() {
+		long window = 1000;
+		ConfigInterface config = GlobalContext.getConfig();
+		if (config != null) {
+			try {
+				window = Long.parseLong(config.getMainProperties().getProperty(
+						"vfs.event.coalesce", String.valueOf(window)).trim());
+			} catch (NumberFormatException e) {
+				throw new FatalException("vfs.event.coalesce is not a number, check master.conf", e);
+			}
+		}
+		return new VirtualFileSystemEventCoalescer(window);
+	}
+
+	/**
+	 * @return the coalescer of the size, last modified and slave events.
+	 */
+	public VirtualFileSystemEventCoalescer getEventCoalescer() {
+		return _eventCoalescer;
+	}
+
+	/**
+	 * @return the cache deciding which inodes are kept in memory.
+	 */
+	public InodeCache getInodeCache() {
+		return _inodeCache;
+	}
+
 	private VirtualFileSystemRoot createRootDirectory() {
 		logger.info("Creating new root filesystem");
 		logger.info("If you have already created your filesystem, then stop removing or corrupting your "
 						+ dirName + " file!");
-		new File(fileSystemPath).mkdirs();
 		_root = new VirtualFileSystemRoot("drftpd", "drftpd");
-		File rootFile = new File(fileSystemPath);
-		_root.setFiles(rootFile.list(dirFilter));
+		_root.setFiles(_store.listChildren(separator));
 		_root.commit();
 		_root.inodeLoadCompleted();
 		return _root;
@@ -155,7 +231,7 @@ public class VirtualFileSystem {
 	 * @param path
 	 */
 	protected void deleteInode(String path) {
-		recursiveDelete(new File(getRealPath(path)));
+		_store.deleteInode(path);
 	}
 
 	/**
@@ -197,15 +273,6 @@ public class VirtualFileSystem {
 		return inode;
 	}
 
-	/**
-	 * @param path
-	 * @return the real path of the file on the disk.<br>
-	 *         Ex: getRealPath('PICS/me.jpg') would return 'files/PICS/me.jpg'
-	 */
-	private String getRealPath(String path) {
-		return fileSystemPath + path;
-	}
-
 	/**
 	 * @return the root directory.
 	 */
@@ -219,37 +286,23 @@ public class VirtualFileSystem {
 	 */
 	protected VirtualFileSystemInode loadInode(String path)
 			throws FileNotFoundException {
-		String fullPath = fileSystemPath + path;
-		//logger.debug("Loading inode - " + fullPath);
-		File xmlFile = new File(fullPath);
-		File realDirectory = null;
-		if (xmlFile.isDirectory()) {
-			realDirectory = xmlFile;
-			fullPath = fullPath + separator + dirName;
-			xmlFile = new File(fullPath);
-		}
-		XMLDecoder xmlDec = null;
+		//logger.debug("Loading inode - " + path);
+		ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(this));
 		try {
-			xmlDec = new XMLDecoder(new BufferedInputStream(
-					new FileInputStream(fullPath)));
-			xmlDec.setExceptionListener(new VFSExceptionListener(fullPath));
-			ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
-			Thread.currentThread().setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(this));
-			VirtualFileSystemInode inode = (VirtualFileSystemInode) xmlDec
-					.readObject();
-			Thread.currentThread().setContextClassLoader(prevCL);
+			VirtualFileSystemInode inode = _store.readInode(path);
 			inode.setName(getLast(path));
 			if (inode.isDirectory()) {
 				VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
-				dir.setFiles(realDirectory.list(dirFilter));
+				dir.setFiles(_store.listChildren(path));
 			}
 			inode.inodeLoadCompleted();
 			return inode;
 		} catch (Exception e) {
-			boolean corruptedXMLFile = xmlFile.exists();
-			if (corruptedXMLFile) {
+			boolean corruptedRecord = _store.hasRecord(path);
+			if (corruptedRecord) {
 				// parsing error! Let's get rid of the offending bugger
-				xmlFile.delete();
+				_store.discardRecord(path);
 			}
 			// if this object is the Root object, let's create it and get outta
 			// here
@@ -269,46 +322,24 @@ public class VirtualFileSystem {
 							"You're filesystem is really messed up");
 				}
 			}
-			if (realDirectory != null && realDirectory.exists()) {
-				// let's create the .dirProperties file from what we know since
+			if (_store.isDirectory(path)) {
+				// let's recreate the directory record from what we know since
 				// it should be there
 				parentInode.createDirectoryRaw(getLast(path), "drftpd",
 						"drftpd");
 				return parentInode.getInodeByName(getLast(path));
 			}
-			if (corruptedXMLFile) {
-				// we already deleted the file, but we need to tell the parent
+			if (corruptedRecord) {
+				// we already deleted the record, but we need to tell the parent
 				// directory that it doesn't exist anymore
 				logger
-						.debug("Error loading " + fullPath + ", deleting file",
+						.debug("Error loading " + path + ", deleting record",
 								e);
 				parentInode.removeMissingChild(getLast(path));
 			}
 			throw new FileNotFoundException();
 		} finally {
-			if (xmlDec != null) {
-				xmlDec.close();
-			}
-		}
-	}
-
-	/**
-	 * If 'file' is a directory, it recurses through it and deletes, everything
-	 * inside it.<br>
-	 * If 'file' is an actual file, it simply deletes it.
-	 * 
-	 * @param file
-	 */
-	private void recursiveDelete(File file) {
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			for (int x = 0; x < files.length; x++) {
-				recursiveDelete(files[x]);
-			}
-		}
-		if (file.exists() && !file.delete()) {
-			logger.error("Could not delete local entry "
-					+ file.getAbsolutePath() + ", check permissions");
+			Thread.currentThread().setContextClassLoader(prevCL);
 		}
 	}
 
@@ -324,15 +355,7 @@ public class VirtualFileSystem {
 	 */
 	protected void renameInode(String source, String destination)
 			throws FileNotFoundException, PermissionDeniedException {
-		File file = new File(getRealPath(source));
-		if (!file.exists()) {
-			throw new FileNotFoundException(source + " cannot be found");
-		}
-		boolean result = file.renameTo(new File(getRealPath(destination)));
-		if (!result) {
-			throw new PermissionDeniedException("Cannot rename " + source
-					+ " to " + destination);
-		}
+		_store.renameInode(source, destination);
 	}
 
 	/**
@@ -341,31 +364,11 @@ public class VirtualFileSystem {
 	 * @param inode
 	 */
 	protected void writeInode(VirtualFileSystemInode inode) {
-		String fullPath = getRealPath(inode.getPath());
-		XMLEncoder enc = null;
 		try {
-			if (inode instanceof VirtualFileSystemRoot) {
-				new File(fileSystemPath).mkdirs();
-				fullPath = fullPath + separator + dirName;
-			} else if (inode.isDirectory()) {
-				new File(fullPath).mkdirs();
-				fullPath = fullPath + separator + dirName;
-			} else {
-				new File(getRealPath(inode.getParent().getPath())).mkdirs();
-			}
-			enc = new XMLEncoder(new BufferedOutputStream(
-					new SafeFileOutputStream(fullPath)));
-			inode.setupXML(enc);
-			enc.setExceptionListener(new VFSExceptionListener(fullPath));
-			enc.writeObject(inode);
+			_store.writeInode(inode);
 		} catch (IOException e) {
-			logger.error("Unable to write " + fullPath + " to disk", e);
-		} finally {
-			if (enc != null) {
-				enc.close();
-			}
+			logger.error("Unable to write " + inode.getPath() + " to disk", e);
 		}
-		logger.debug("Wrote fullPath " + fullPath);
 	}
 
 	/**
@@ -388,46 +391,51 @@ public class VirtualFileSystem {
 	protected void notifyOwnershipChanged(VirtualFileSystemInode inode, String owner, String group) {
 		logger.debug("Notifying that ownership of " + inode.getPath() + " has changed to: " + owner + "/" + group);
 
-		publishAsyncEvent(new VirtualFileSystemOwnershipEvent(inode, inode.getPath(), owner, group));
+		publishAsyncEvent(inode, new VirtualFileSystemOwnershipEvent(inode, inode.getPath(), owner, group));
 	}
 	
 	protected void notifySlavesChanged(VirtualFileSystemFile inode, Set<String> slaves) {
 		logger.debug("Notifying the list of slaves of " + inode.getPath() + " has changed to: " + slaves);
 		
-		publishAsyncEvent(new VirtualFileSystemSlaveEvent(inode, inode.getPath(), slaves));
+		publishAsyncEvent(inode, new VirtualFileSystemSlaveEvent(inode, inode.getPath(), slaves));
 	}
 	
 	protected void notifyInodeRenamed(String sourcePath, VirtualFileSystemInode destination) {
 		logger.debug("Notifying that " + sourcePath + " has been renamed to " + destination.getPath());
 
-		publishAsyncEvent(new VirtualFileSystemRenameEvent(sourcePath, destination, destination.getPath()));
+		publishAsyncEvent(destination, new VirtualFileSystemRenameEvent(sourcePath, destination, destination.getPath()));
 	}
 	
 	protected void notifyInodeCreated(VirtualFileSystemInode inode) {
 		logger.debug("Notifying that " + inode.getPath() + " has been created");
 
-		publishAsyncEvent(new VirtualFileSystemInodeCreatedEvent(inode, inode.getPath()));
+		publishAsyncEvent(inode, new VirtualFileSystemInodeCreatedEvent(inode, inode.getPath()));
 	}
 	
 	protected void notifyInodeDeleted(VirtualFileSystemInode inode, String path) {
 		logger.debug("Notifying that " + path + " has been deleted");
 
-		publishAsyncEvent(new VirtualFileSystemInodeDeletedEvent(inode, path));
+		publishAsyncEvent(inode, new VirtualFileSystemInodeDeletedEvent(inode, path));
 	}
 
 	protected void notifySizeChanged(VirtualFileSystemInode inode, long size) {
 		logger.debug("Notifying that the size of " + inode.getPath() + " has changed to: " + size);
 
-		publishAsyncEvent(new VirtualFileSystemSizeEvent(inode, inode.getPath(), size));
+		publishAsyncEvent(inode, new VirtualFileSystemSizeEvent(inode, inode.getPath(), size));
 	}
 
 	protected void notifyLastModifiedChanged(VirtualFileSystemInode inode, long lastmodified) {
 		logger.debug("Notifying that the last modified timestamp of " + inode.getPath() + " has changed to: " + lastmodified);
 
-		publishAsyncEvent(new VirtualFileSystemLastModifiedEvent(inode, inode.getPath(), lastmodified));
+		publishAsyncEvent(inode, new VirtualFileSystemLastModifiedEvent(inode, inode.getPath(), lastmodified));
 	}
 	
-	private void publishAsyncEvent(VirtualFileSystemEvent event) {
-		GlobalContext.getEventService().publishAsync(event);
+	private void publishAsyncEvent(VirtualFileSystemInode inode, VirtualFileSystemEvent event) {
+		// not left to a listener, the coalescer could hold the event past the end of a remerge
+		VirtualFileSystemDirectory dir = inode.isDirectory() ? (VirtualFileSystemDirectory) inode : inode.getParent();
+		if (dir != null) {
+			dir.clearRemergeDigests();
+		}
+		_eventCoalescer.publish(inode, event);
 	}
 }
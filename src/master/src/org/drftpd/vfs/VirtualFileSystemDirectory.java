@@ -26,10 +26,11 @@ import java.beans.PersistenceDelegate;
 import java.beans.PropertyDescriptor;
 import java.beans.XMLEncoder;
 import java.io.FileNotFoundException;
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -49,8 +50,14 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	protected static final Collection<String> transientListDirectory = Arrays
 	.asList(new String[] { "name", "parent", "files"});
 
-	private transient TreeMap<String, SoftReference<VirtualFileSystemInode>> _files = 
-		new CaseInsensitiveTreeMap<String, SoftReference<VirtualFileSystemInode>>();
+	private static final String REMERGE_DIGEST = "remerge.digest.";
+
+	/**
+	 * Children are only weakly referenced, the {@link InodeCache} decides which
+	 * ones are kept in memory.
+	 */
+	private transient TreeMap<String, WeakReference<VirtualFileSystemInode>> _files = 
+		new CaseInsensitiveTreeMap<String, WeakReference<VirtualFileSystemInode>>();
 
 	private boolean _placeHolderLastModified;
 
@@ -72,8 +79,9 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param inode
 	 */
 	protected synchronized void addChild(VirtualFileSystemInode inode, boolean updateLastModified) {
-		_files.put(inode.getName(), new SoftReference<VirtualFileSystemInode>(
+		_files.put(inode.getName(), new WeakReference<VirtualFileSystemInode>(
 				inode));
+		getVFS().getInodeCache().add(inode);
 		if (updateLastModified && 
 				(getLastModified() < inode.getLastModified() || _placeHolderLastModified)) {
 			setLastModified(inode.getLastModified());
@@ -284,6 +292,17 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 
 	}
 
+	/**
+	 * @return how many levels below / this directory is.
+	 */
+	private int getDepth() {
+		int depth = 0;
+		for (VirtualFileSystemDirectory dir = this; !dir.isRoot(); dir = dir.getParent()) {
+			depth++;
+		}
+		return depth;
+	}
+
 	/**
 	 * @param name
 	 * @return VirtualFileSystemInode object if 'name' exists on the dir.
@@ -306,13 +325,14 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 			return this;
 		}
 		VirtualFileSystemInode inode = null;
+		boolean loaded = false;
 		synchronized (this) {
 			if (!_files.containsKey(name)) {
 				throw new FileNotFoundException("FileNotFound: " + name + " does not exist");
 			}
-			SoftReference<VirtualFileSystemInode> sf = _files.get(name);
-			if (sf != null) {
-				inode = sf.get();
+			WeakReference<VirtualFileSystemInode> ref = _files.get(name);
+			if (ref != null) {
+				inode = ref.get();
 			}
 			if (inode == null) {
 				// The next line is so that we load the file from disk using the casing of the name
@@ -323,9 +343,19 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 				inode.setParent(this);
 				// _files.remove(name);
 				// Map instance replaces what is previously there with put()
-				_files.put(name, new SoftReference<VirtualFileSystemInode>(inode));
+				_files.put(name, new WeakReference<VirtualFileSystemInode>(inode));
+				loaded = true;
+				if (inode.isDirectory() && getDepth() < getVFS().getInodeCache().getPinDepth()) {
+					// sections and the directories close to them are always needed
+					getVFS().getInodeCache().pin(inode);
+				}
 			}
 		}
+		if (loaded) {
+			getVFS().getInodeCache().loaded(inode);
+		} else {
+			getVFS().getInodeCache().hit(inode);
+		}
 		return inode;
 	}
 
@@ -525,6 +555,45 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 		return false;
 	}
 
+	/**
+	 * @param slave
+	 * @return the remerge digest the slave had for this directory when it
+	 * was last merged, null if the directory changed since.
+	 */
+	protected Long getRemergeDigest(String slave) {
+		return getUntypedPluginMetaData(REMERGE_DIGEST + slave);
+	}
+
+	protected void setRemergeDigest(String slave, long digest) {
+		addUntypedPluginMetaData(REMERGE_DIGEST + slave, digest);
+	}
+
+	/**
+	 * Forgets the remerge digests of every slave for this directory and its
+	 * parents, the next remerge of these directories lists them again.
+	 */
+	protected void clearRemergeDigests() {
+		VirtualFileSystemDirectory dir = this;
+		while (true) {
+			boolean cleared = false;
+			synchronized (dir) {
+				for (Iterator<String> iter = dir.getUntypedPluginMap().keySet().iterator(); iter.hasNext();) {
+					if (iter.next().startsWith(REMERGE_DIGEST)) {
+						iter.remove();
+						cleared = true;
+					}
+				}
+			}
+			if (cleared) {
+				dir.commit();
+			}
+			if (dir.isRoot() || dir.getParent() == null) {
+				return;
+			}
+			dir = dir.getParent();
+		}
+	}
+
 	protected int getRefCountForSlave(String slave) {
 		AtomicInteger slaveCount = _slaveRefCounts.get(slave);
 		if (slaveCount == null) {
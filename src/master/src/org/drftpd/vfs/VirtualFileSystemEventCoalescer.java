@@ -0,0 +1,174 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.drftpd.GlobalContext;
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemLastModifiedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
+import org.drftpd.vfs.event.VirtualFileSystemSizeEvent;
+import org.drftpd.vfs.event.VirtualFileSystemSlaveEvent;
+
+/**
+ * Holds back size, last modified and slave events for a short window and
+ * only publishes the latest of each kind for an inode.<br>
+ * Adding a file changes the size and the timestamp of every directory up to
+ * the root, without this a remerge would publish millions of events for the
+ * listeners to go through.<br>
+ * Deletes and renames publish the held back events first so listeners never
+ * see an update for a path after it's gone, other events are published
+ * right away.
+ * @version $Id$
+ */
+public class VirtualFileSystemEventCoalescer {
+
+	private final long _window;
+
+	private LinkedHashMap<EventKey, VirtualFileSystemEvent> _pending =
+		new LinkedHashMap<EventKey, VirtualFileSystemEvent>();
+
+	private final Object _flushLock = new Object();
+
+	private Timer _timer;
+
+	private long _received;
+
+	private long _coalesced;
+
+	/**
+	 * @param window how long, in milliseconds, events are held back,
+	 * 0 publishes every event right away.
+	 */
+	public VirtualFileSystemEventCoalescer(long window) {
+		_window = window;
+		if (_window > 0) {
+			_timer = new Timer("VFSEventCoalescer", true);
+			_timer.schedule(new TimerTask() {
+				public void run() {
+					flush();
+				}
+			}, _window, _window);
+		}
+	}
+
+	/**
+	 * @param inode the inode the event is about
+	 * @param event
+	 */
+	protected void publish(VirtualFileSystemInode inode, VirtualFileSystemEvent event) {
+		if (_window > 0) {
+			if (event instanceof VirtualFileSystemSizeEvent
+					|| event instanceof VirtualFileSystemLastModifiedEvent
+					|| event instanceof VirtualFileSystemSlaveEvent) {
+				synchronized (this) {
+					_received++;
+					// replacing keeps the position of the first event in the window
+					if (_pending.put(new EventKey(inode, event.getClass()), event) != null) {
+						_coalesced++;
+					}
+				}
+				return;
+			}
+			if (event instanceof VirtualFileSystemInodeDeletedEvent
+					|| event instanceof VirtualFileSystemRenameEvent) {
+				synchronized (_flushLock) {
+					flush();
+					publishAsync(event);
+				}
+				return;
+			}
+		}
+		publishAsync(event);
+	}
+
+	/**
+	 * Publishes every event held back.
+	 */
+	public void flush() {
+		synchronized (_flushLock) {
+			LinkedHashMap<EventKey, VirtualFileSystemEvent> pending;
+			synchronized (this) {
+				if (_pending.isEmpty()) {
+					return;
+				}
+				pending = _pending;
+				_pending = new LinkedHashMap<EventKey, VirtualFileSystemEvent>();
+			}
+			for (Iterator<VirtualFileSystemEvent> iter = pending.values().iterator(); iter.hasNext();) {
+				publishAsync(iter.next());
+			}
+		}
+	}
+
+	void publishAsync(VirtualFileSystemEvent event) {
+		GlobalContext.getEventService().publishAsync(event);
+	}
+
+	public long getWindow() {
+		return _window;
+	}
+
+	public synchronized int getPendingCount() {
+		return _pending.size();
+	}
+
+	/**
+	 * @return the number of size, last modified and slave events received.
+	 */
+	public synchronized long getReceived() {
+		return _received;
+	}
+
+	/**
+	 * @return the number of events replaced by a later one before being published.
+	 */
+	public synchronized long getCoalesced() {
+		return _coalesced;
+	}
+
+	private static class EventKey {
+
+		private final VirtualFileSystemInode _inode;
+
+		private final Class<?> _type;
+
+		private EventKey(VirtualFileSystemInode inode, Class<?> type) {
+			_inode = inode;
+			_type = type;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof EventKey)) {
+				return false;
+			}
+			EventKey other = (EventKey) obj;
+			// the same inode object, equals() of the inodes compares paths
+			return _inode == other._inode && _type == other._type;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(_inode) * 31 + _type.hashCode();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemLastModifiedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemSizeEvent;
+import org.drftpd.vfs.event.VirtualFileSystemSlaveEvent;
+
+/**
+ * @version $Id$
+ */
+public class VirtualFileSystemEventCoalescerTest extends TestCase {
+
+	private VirtualFileSystemDirectory _dir;
+
+	private VirtualFileSystemFile _file;
+
+	private ArrayList<VirtualFileSystemEvent> _published;
+
+	private VirtualFileSystemEventCoalescer _coalescer;
+
+	public VirtualFileSystemEventCoalescerTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		VirtualFileSystemRoot root = new VirtualFileSystemRoot();
+		_dir = new VirtualFileSystemDirectory("user", "group");
+		_dir.setName("Release.Name");
+		_dir.setParent(root);
+		_file = new VirtualFileSystemFile("user", "group", 1000L, "slave");
+		_file.setName("release.r00");
+		_file.setParent(_dir);
+		_published = new ArrayList<VirtualFileSystemEvent>();
+		// the window is long enough for the timer never to flush during a test
+		_coalescer = createCoalescer(600000L);
+	}
+
+	private VirtualFileSystemEventCoalescer createCoalescer(long window) {
+		return new VirtualFileSystemEventCoalescer(window) {
+			void publishAsync(VirtualFileSystemEvent event) {
+				_published.add(event);
+			}
+		};
+	}
+
+	private VirtualFileSystemSizeEvent size(VirtualFileSystemInode inode, long size) {
+		return new VirtualFileSystemSizeEvent(inode, inode.getPath(), size);
+	}
+
+	public void testCoalesce() {
+		VirtualFileSystemSizeEvent last = null;
+		for (int i = 0; i < 10; i++) {
+			last = size(_dir, i);
+			_coalescer.publish(_dir, last);
+		}
+		VirtualFileSystemLastModifiedEvent modified = new VirtualFileSystemLastModifiedEvent(_dir,
+				_dir.getPath(), 1000L);
+		_coalescer.publish(_dir, modified);
+		VirtualFileSystemSlaveEvent slaves = new VirtualFileSystemSlaveEvent(_file, _file.getPath(),
+				Collections.singleton("slave"));
+		_coalescer.publish(_file, slaves);
+		assertTrue(_published.isEmpty());
+		assertEquals(3, _coalescer.getPendingCount());
+		assertEquals(12, _coalescer.getReceived());
+		assertEquals(9, _coalescer.getCoalesced());
+
+		_coalescer.flush();
+		// the latest of each kind, in the order the inodes first changed
+		assertEquals(3, _published.size());
+		assertSame(last, _published.get(0));
+		assertSame(modified, _published.get(1));
+		assertSame(slaves, _published.get(2));
+		assertEquals(0, _coalescer.getPendingCount());
+	}
+
+	public void testPassThrough() {
+		VirtualFileSystemInodeCreatedEvent created = new VirtualFileSystemInodeCreatedEvent(_file,
+				_file.getPath());
+		_coalescer.publish(_file, created);
+		assertEquals(1, _published.size());
+		assertSame(created, _published.get(0));
+	}
+
+	public void testFlushBeforeDelete() {
+		VirtualFileSystemSizeEvent resized = size(_file, 2000L);
+		_coalescer.publish(_file, resized);
+		VirtualFileSystemInodeDeletedEvent deleted = new VirtualFileSystemInodeDeletedEvent(_file,
+				_file.getPath());
+		_coalescer.publish(_file, deleted);
+		assertEquals(2, _published.size());
+		assertSame(resized, _published.get(0));
+		assertSame(deleted, _published.get(1));
+	}
+
+	public void testDisabled() {
+		_coalescer = createCoalescer(0L);
+		_coalescer.publish(_dir, size(_dir, 1L));
+		_coalescer.publish(_dir, size(_dir, 2L));
+		assertEquals(2, _published.size());
+		assertEquals(0, _coalescer.getPendingCount());
+	}
+}
@@ -104,6 +104,7 @@ public abstract class VirtualFileSystemInode implements Commitable {
 		VirtualFileSystem.getVirtualFileSystem().deleteInode(getPath());
 		_parent.removeChild(this);
 		CommitManager.getCommitManager().remove(this);
+		getVFS().getInodeCache().remove(this);
 		
 		getVFS().notifyInodeDeleted(this, path);
 	}
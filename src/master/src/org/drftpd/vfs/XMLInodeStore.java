@@ -0,0 +1,191 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.drftpd.io.PermissionDeniedException;
+import org.drftpd.io.SafeFileOutputStream;
+
+/**
+ * Stores every inode as an XMLEncoder document, files as a file of their own
+ * and directories as a {@link VirtualFileSystem#dirName} file inside a real
+ * directory mirroring the VFS tree.
+ * @version $Id$
+ */
+public class XMLInodeStore implements InodeStoreInterface {
+
+	private static final Logger logger = Logger.getLogger(XMLInodeStore.class);
+
+	static class DirInodeFilenameFilter implements FilenameFilter {
+
+		@Override
+		public boolean accept(File dir, String file) {
+			return !file.equals(VirtualFileSystem.dirName);
+		}
+
+	}
+
+	private static final DirInodeFilenameFilter dirFilter = new DirInodeFilenameFilter();
+
+	private String _basePath;
+
+	public XMLInodeStore(String basePath) {
+		_basePath = basePath;
+		new File(_basePath).mkdirs();
+	}
+
+	/**
+	 * @param path
+	 * @return the real path of the file on the disk.<br>
+	 *         Ex: getRealPath('PICS/me.jpg') would return 'files/PICS/me.jpg'
+	 */
+	private String getRealPath(String path) {
+		return _basePath + path;
+	}
+
+	/**
+	 * @param path
+	 * @return the file holding the XML data for this path.
+	 */
+	private File getXMLFile(String path) {
+		File xmlFile = new File(getRealPath(path));
+		if (xmlFile.isDirectory()) {
+			return new File(xmlFile, VirtualFileSystem.dirName);
+		}
+		return xmlFile;
+	}
+
+	public VirtualFileSystemInode readInode(String path) throws IOException {
+		String fullPath = getXMLFile(path).getPath();
+		XMLDecoder xmlDec = null;
+		try {
+			xmlDec = new XMLDecoder(new BufferedInputStream(
+					new FileInputStream(fullPath)));
+			xmlDec.setExceptionListener(new VFSExceptionListener(fullPath));
+			Object inode = xmlDec.readObject();
+			if (!(inode instanceof VirtualFileSystemInode)) {
+				throw new IOException("Unexpected object in " + fullPath);
+			}
+			return (VirtualFileSystemInode) inode;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// XMLDecoder throws this when the file holds no objects
+			throw new IOException("No inode stored in " + fullPath);
+		} finally {
+			if (xmlDec != null) {
+				xmlDec.close();
+			}
+		}
+	}
+
+	public void writeInode(VirtualFileSystemInode inode) throws IOException {
+		String fullPath = getRealPath(inode.getPath());
+		XMLEncoder enc = null;
+		try {
+			if (inode instanceof VirtualFileSystemRoot) {
+				new File(_basePath).mkdirs();
+				fullPath = fullPath + VirtualFileSystem.separator + VirtualFileSystem.dirName;
+			} else if (inode.isDirectory()) {
+				new File(fullPath).mkdirs();
+				fullPath = fullPath + VirtualFileSystem.separator + VirtualFileSystem.dirName;
+			} else {
+				new File(getRealPath(inode.getParent().getPath())).mkdirs();
+			}
+			enc = new XMLEncoder(new BufferedOutputStream(
+					new SafeFileOutputStream(fullPath)));
+			inode.setupXML(enc);
+			enc.setExceptionListener(new VFSExceptionListener(fullPath));
+			enc.writeObject(inode);
+		} finally {
+			if (enc != null) {
+				enc.close();
+			}
+		}
+		logger.debug("Wrote fullPath " + fullPath);
+	}
+
+	public String[] listChildren(String path) {
+		String[] children = new File(getRealPath(path)).list(dirFilter);
+		if (children == null) {
+			return new String[0];
+		}
+		return children;
+	}
+
+	public boolean hasRecord(String path) {
+		return getXMLFile(path).exists();
+	}
+
+	public boolean isDirectory(String path) {
+		return new File(getRealPath(path)).isDirectory();
+	}
+
+	public void discardRecord(String path) {
+		File xmlFile = getXMLFile(path);
+		if (xmlFile.exists() && !xmlFile.delete()) {
+			logger.error("Could not delete local entry "
+					+ xmlFile.getAbsolutePath() + ", check permissions");
+		}
+	}
+
+	public void deleteInode(String path) {
+		recursiveDelete(new File(getRealPath(path)));
+	}
+
+	public void renameInode(String source, String destination)
+			throws FileNotFoundException, PermissionDeniedException {
+		File file = new File(getRealPath(source));
+		if (!file.exists()) {
+			throw new FileNotFoundException(source + " cannot be found");
+		}
+		boolean result = file.renameTo(new File(getRealPath(destination)));
+		if (!result) {
+			throw new PermissionDeniedException("Cannot rename " + source
+					+ " to " + destination);
+		}
+	}
+
+	/**
+	 * If 'file' is a directory, it recurses through it and deletes, everything
+	 * inside it.<br>
+	 * If 'file' is an actual file, it simply deletes it.
+	 *
+	 * @param file
+	 */
+	private void recursiveDelete(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			for (int x = 0; x < files.length; x++) {
+				recursiveDelete(files[x]);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			logger.error("Could not delete local entry "
+					+ file.getAbsolutePath() + ", check permissions");
+		}
+	}
+}
@@ -21,6 +21,7 @@ import org.apache.log4j.Logger;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.bushe.swing.event.annotation.EventSubscriber;
 import org.drftpd.GlobalContext;
+import org.drftpd.event.EventDelivery;
 import org.drftpd.vfs.event.ImmutableInodeHandle;
 import org.drftpd.vfs.event.VirtualFileSystemEvent;
 import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
@@ -39,6 +40,7 @@ import org.drftpd.vfs.event.VirtualFileSystemSlaveEvent;
  * @author fr0w
  * @version $Id: IndexVirtualFileSIndexVirtualFileSystemListener
  */
+@EventDelivery(lane = "index")
 public class IndexingVirtualFileSystemListener {
 	
 	private static final Logger logger = Logger.getLogger(IndexingVirtualFileSystemListener.class);
@@ -26,16 +26,22 @@ public class CommandInstanceContainer {
 
 	private Method _method = null;
 	private CommandInterface _interfaceInstance = null;
+	private MethodInvoker _invoker = null;
 	
 	public CommandInstanceContainer(Method m, CommandInterface interfaceInstance) {
 		_method = m;
 		_interfaceInstance = interfaceInstance;
+		_invoker = new MethodInvoker(m, interfaceInstance);
 	}
 	
 	public Method getMethod() {
 		return _method;
 	}
 	
+	public MethodInvoker getInvoker() {
+		return _invoker;
+	}
+	
 	public CommandInterface getCommandInterfaceInstance() {
 		return _interfaceInstance;
 	}	
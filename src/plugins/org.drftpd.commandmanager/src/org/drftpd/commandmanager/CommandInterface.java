@@ -22,7 +22,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.reflect.Method;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +39,7 @@ import org.drftpd.usermanager.User;
 import org.drftpd.usermanager.UserFileException;
 import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.util.PluginObjectContainer;
+import org.java.plugin.registry.Extension;
 
 /**
  * @author djb61
@@ -104,8 +104,11 @@ public abstract class CommandInterface {
 				}
 				PostHookInterface postHookInstance = container.getPluginObject();
 				postHookInstance.initialize(cManager);
+				Extension.Parameter asyncParam = container.getPluginExtension().getParameter("Async");
+				boolean async = asyncParam != null && Boolean.TRUE.equals(asyncParam.valueAsBoolean());
 				postHooks.put(priority,
-						new HookContainer<PostHookInterface>(container.getPluginMethod(),postHookInstance));
+						new HookContainer<PostHookInterface>(container.getPluginMethod(),postHookInstance,
+								container.getPluginExtension().getDeclaringPluginDescriptor().getId(), async));
 			}
 		} catch (IllegalArgumentException e) {
 			logger.error("Failed to load plugins for "+pluginName+" extension point 'PostHook', possibly the "+pluginName
@@ -115,30 +118,22 @@ public abstract class CommandInterface {
 		_postHooks = postHooks;
 	}
 
+	/**
+	 * Runs the post hooks which have to finish before the reply is sent and
+	 * queues the async ones, see {@link PostHookRunner}.
+	 */
 	protected void doPostHooks(CommandRequestInterface request, CommandResponseInterface response) {
-		for (HookContainer<PostHookInterface> hook : _postHooks.values()) {
-			Method m = hook.getMethod();
-			try {
-				m.invoke(hook.getHookInterfaceInstance(), new Object[] {request, response});
-			}
-			catch (Exception e) {
-				logger.error("Error while loading/invoking posthook " + m.toString(), e.getCause());
-				/* Not that important, this just means that this post hook
-				 * failed and we'll just move onto the next one
-				 */
-			}
-		}
+		PostHookRunner.getPostHookRunner().run(_postHooks.values(), request, response);
 	}
 
 	protected CommandRequestInterface doPreHooks(CommandRequestInterface request) {
 		request.setAllowed(true);
 		for (HookContainer<PreHookInterface> hook : _preHooks.values()) {
-			Method m = hook.getMethod();
 			try {
-				request = (CommandRequestInterface) m.invoke(hook.getHookInterfaceInstance(), new Object[] {request});
+				request = (CommandRequestInterface) hook.getInvoker().invoke(request);
 			}
-			catch (Exception e) {
-				logger.error("Error while loading/invoking prehook " + m.toString(), e.getCause());
+			catch (Throwable t) {
+				logger.error("Error while loading/invoking prehook " + hook.getInvoker(), t);
 				/* Not that important, this just means that this pre hook
 				 * failed and we'll just move onto the next one
 				 */
@@ -25,16 +25,42 @@ import java.lang.reflect.Method;
 public class HookContainer<T> {
 	private Method _method = null;
 	private T _interfaceInstance = null;
+	private String _pluginId = null;
+	private boolean _async = false;
+	private MethodInvoker _invoker = null;
 	
 	public HookContainer(Method m, T interfaceInstance) {
 		_method = m;
 		_interfaceInstance = interfaceInstance;
+		_invoker = new MethodInvoker(m, interfaceInstance);
+	}
+	
+	/**
+	 * @param pluginId the plugin providing the hook
+	 * @param async whether the hook may run after the reply has been sent
+	 */
+	public HookContainer(Method m, T interfaceInstance, String pluginId, boolean async) {
+		this(m, interfaceInstance);
+		_pluginId = pluginId;
+		_async = async;
+	}
+	
+	public String getPluginId() {
+		return _pluginId;
+	}
+	
+	public boolean isAsync() {
+		return _async;
 	}
 	
 	public Method getMethod() {
 		return _method;
 	}
 	
+	public MethodInvoker getInvoker() {
+		return _invoker;
+	}
+	
 	public T getHookInterfaceInstance() {
 		return _interfaceInstance;
 	}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.commandmanager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Calls the method a command or hook is bound to.<br>
+ * The binding is resolved once when the plugin providing the command or hook
+ * is loaded, the method is made accessible so no access checks are done per
+ * call and exceptions thrown by the method are unwrapped from the
+ * InvocationTargetException here instead of at each caller.<br>
+ * Invokers are held by the containers of their command or hook, they are
+ * dropped together with them when the plugin is unloaded.
+ * @version $Id$
+ */
+public class MethodInvoker {
+	private static final Logger logger = Logger.getLogger(MethodInvoker.class);
+
+	private final Method _method;
+
+	private final Object _target;
+
+	public MethodInvoker(Method method, Object target) {
+		_method = method;
+		_target = target;
+		try {
+			_method.setAccessible(true);
+		} catch (SecurityException e) {
+			logger.debug("Unable to suppress access checks for " + method, e);
+		}
+	}
+
+	public Method getMethod() {
+		return _method;
+	}
+
+	public Object getTarget() {
+		return _target;
+	}
+
+	/**
+	 * @throws Throwable whatever the method threw
+	 */
+	public Object invoke(Object arg) throws Throwable {
+		try {
+			return _method.invoke(_target, arg);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @throws Throwable whatever the method threw
+	 */
+	public Object invoke(Object arg1, Object arg2) throws Throwable {
+		try {
+			return _method.invoke(_target, arg1, arg2);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	public String toString() {
+		return _method.toString();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.commandmanager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Compares the cost of dispatching a command through the
+ * {@link MethodInvoker} with calling the method directly and with the plain
+ * Method.invoke() used before.
+ * Not part of the unit tests, run it by hand:
+ * MethodInvokerBenchmark [calls] [rounds]
+ * @version $Id$
+ */
+public class MethodInvokerBenchmark {
+
+	public static void main(String[] args) throws Throwable {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		MethodInvokerTest.Handler handler = new MethodInvokerTest.Handler();
+		Method method = MethodInvokerTest.Handler.class.getMethod("doCOMMAND", Object.class);
+		MethodInvoker invoker = new MethodInvoker(method, handler);
+		String request = "request";
+		// the first rounds warm up the JIT, only the last one is printed
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				handler.doCOMMAND(request);
+			}
+			long direct = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				try {
+					method.invoke(handler, new Object[] {request});
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+			long reflective = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				invoker.invoke(request);
+			}
+			long bound = System.nanoTime() - start;
+
+			if (round == rounds - 1) {
+				System.out.println("direct call    - " + direct / calls + "ns per command");
+				System.out.println("Method.invoke  - " + reflective / calls + "ns per command");
+				System.out.println("MethodInvoker  - " + bound / calls + "ns per command");
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.commandmanager;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link MethodInvoker}.
+ * @version $Id$
+ */
+public class MethodInvokerTest extends TestCase {
+
+	public MethodInvokerTest(String fName) {
+		super(fName);
+	}
+
+	public void testInvoke() throws Throwable {
+		Handler handler = new Handler();
+		MethodInvoker invoker = new MethodInvoker(
+				Handler.class.getMethod("doCOMMAND", Object.class), handler);
+		assertEquals("a", invoker.invoke("a"));
+		invoker = new MethodInvoker(
+				Handler.class.getMethod("doHOOK", Object.class, Object.class), handler);
+		assertEquals("b", invoker.invoke("a", "b"));
+		assertEquals(2, handler._calls);
+	}
+
+	public void testUnwrap() throws Throwable {
+		MethodInvoker invoker = new MethodInvoker(
+				Handler.class.getMethod("doFAIL", Object.class), new Handler());
+		try {
+			invoker.invoke("a");
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertEquals("a", e.getMessage());
+		}
+	}
+
+	public static class Handler {
+		private int _calls;
+
+		public Object doCOMMAND(Object request) {
+			_calls++;
+			return request;
+		}
+
+		public Object doHOOK(Object request, Object response) {
+			_calls++;
+			return response;
+		}
+
+		public Object doFAIL(Object request) throws IOException {
+			throw new IOException(request.toString());
+		}
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.commandmanager;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.GlobalContext;
+import org.drftpd.event.UnloadPluginEvent;
+
+/**
+ * Runs the post hooks of commands.<br>
+ * Hooks which declare the Async parameter in their extension run after the
+ * reply has been sent, on threads belonging to the plugin providing them, all
+ * other hooks run on the command thread before the reply in order of priority.
+ * The async hooks of a plugin run in order of priority as well, after all
+ * inline hooks of the command.<br>
+ * Each plugin gets posthook.threads threads with room for posthook.queue
+ * commands each. The hooks for commands in the same directory always run on
+ * the same thread so they run in the order the commands finished. If the queue
+ * is full the hooks run on the command thread instead.<br>
+ * When a plugin is unloaded its threads are stopped, the hooks still queued
+ * for it are dropped and so are the timings of its hooks.
+ * @version $Id$
+ */
+public class PostHookRunner {
+	private static final Logger logger = Logger.getLogger(PostHookRunner.class);
+
+	private static final PostHookRunner _runner = new PostHookRunner();
+
+	private final ConcurrentHashMap<String, HookLane> _lanes = new ConcurrentHashMap<String, HookLane>();
+
+	private final ConcurrentHashMap<Method, HookTiming> _timings = new ConcurrentHashMap<Method, HookTiming>();
+
+	// 0 reads them from the configuration when a lane is created
+	private final int _threads;
+
+	private final int _queueSize;
+
+	private PostHookRunner() {
+		this(0, 0);
+		// Subscribe to events
+		AnnotationProcessor.process(this);
+	}
+
+	PostHookRunner(int threads, int queueSize) {
+		_threads = threads;
+		_queueSize = queueSize;
+	}
+
+	public static PostHookRunner getPostHookRunner() {
+		return _runner;
+	}
+
+	public void run(Collection<HookContainer<PostHookInterface>> hooks,
+			CommandRequestInterface request, CommandResponseInterface response) {
+		LinkedHashMap<String, ArrayList<HookContainer<PostHookInterface>>> async = null;
+		for (HookContainer<PostHookInterface> hook : hooks) {
+			if (hook.isAsync() && hook.getPluginId() != null) {
+				if (async == null) {
+					async = new LinkedHashMap<String, ArrayList<HookContainer<PostHookInterface>>>();
+				}
+				ArrayList<HookContainer<PostHookInterface>> pluginHooks = async.get(hook.getPluginId());
+				if (pluginHooks == null) {
+					pluginHooks = new ArrayList<HookContainer<PostHookInterface>>();
+					async.put(hook.getPluginId(), pluginHooks);
+				}
+				pluginHooks.add(hook);
+			} else {
+				invoke(hook, request, response, null);
+			}
+		}
+		if (async == null) {
+			return;
+		}
+		String key = request.getCurrentDirectory() == null ? String.valueOf(request.getUser())
+				: request.getCurrentDirectory().getPath();
+		for (Entry<String, ArrayList<HookContainer<PostHookInterface>>> entry : async.entrySet()) {
+			HookLane lane = getLane(entry.getKey());
+			lane.submit(new HookTask(entry.getValue(), request, response, lane), key);
+		}
+	}
+
+	private void invoke(HookContainer<PostHookInterface> hook,
+			CommandRequestInterface request, CommandResponseInterface response, HookLane lane) {
+		long start = System.nanoTime();
+		try {
+			hook.getInvoker().invoke(request, response);
+		}
+		catch (Throwable t) {
+			logger.error("Error while loading/invoking posthook " + hook.getInvoker(), t);
+			/* Not that important, this just means that this post hook
+			 * failed and we'll just move onto the next one
+			 */
+		}
+		// no new timings for the hooks of an unloaded plugin
+		if (lane == null || !lane._stopped) {
+			getTiming(hook).add(System.nanoTime() - start);
+		}
+	}
+
+	private HookTiming getTiming(HookContainer<PostHookInterface> hook) {
+		HookTiming timing = _timings.get(hook.getMethod());
+		if (timing == null) {
+			timing = new HookTiming(hook.getMethod().getDeclaringClass().getSimpleName()
+					+ "." + hook.getMethod().getName(), hook.getPluginId(), hook.isAsync());
+			HookTiming existing = _timings.putIfAbsent(hook.getMethod(), timing);
+			if (existing != null) {
+				timing = existing;
+			}
+		}
+		return timing;
+	}
+
+	private HookLane getLane(String pluginId) {
+		HookLane lane = _lanes.get(pluginId);
+		if (lane == null) {
+			synchronized (this) {
+				lane = _lanes.get(pluginId);
+				if (lane == null) {
+					lane = new HookLane(pluginId,
+							_threads > 0 ? _threads : getProperty("posthook.threads", 2),
+							_queueSize > 0 ? _queueSize : getProperty("posthook.queue", 1000));
+					_lanes.put(pluginId, lane);
+				}
+			}
+		}
+		return lane;
+	}
+
+	@EventSubscriber
+	public void onUnloadPluginEvent(UnloadPluginEvent event) {
+		removePlugin(event.getPlugin());
+	}
+
+	void removePlugin(String pluginId) {
+		HookLane lane;
+		synchronized (this) {
+			lane = _lanes.remove(pluginId);
+		}
+		if (lane != null) {
+			int dropped = lane.stop();
+			if (dropped > 0) {
+				logger.warn("Dropped " + dropped + " queued post hooks of unloaded plugin " + pluginId);
+			}
+		}
+		for (Iterator<HookTiming> iter = _timings.values().iterator(); iter.hasNext();) {
+			if (pluginId.equals(iter.next()._pluginId)) {
+				iter.remove();
+			}
+		}
+	}
+
+	private static int getProperty(String name, int defaultValue) {
+		String value = GlobalContext.getConfig().getMainProperties().getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(1, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid value for " + name + " - " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns how long each post hook which ran since startup took.
+	 */
+	public Collection<HookTiming> getTimings() {
+		return new ArrayList<HookTiming>(_timings.values());
+	}
+
+	/**
+	 * Returns the threads of the plugins with async post hooks.
+	 */
+	public Collection<HookLane> getLanes() {
+		return new ArrayList<HookLane>(_lanes.values());
+	}
+
+	private class HookTask implements Runnable {
+		private ArrayList<HookContainer<PostHookInterface>> _hooks;
+
+		private CommandRequestInterface _request;
+
+		private CommandResponseInterface _response;
+
+		private HookLane _lane;
+
+		private HookTask(ArrayList<HookContainer<PostHookInterface>> hooks,
+				CommandRequestInterface request, CommandResponseInterface response, HookLane lane) {
+			_hooks = hooks;
+			_request = request;
+			_response = response;
+			_lane = lane;
+		}
+
+		public void run() {
+			for (HookContainer<PostHookInterface> hook : _hooks) {
+				invoke(hook, _request, _response, _lane);
+			}
+		}
+	}
+
+	/**
+	 * How long a post hook took to run.
+	 */
+	public static class HookTiming {
+		private String _name;
+
+		private String _pluginId;
+
+		private boolean _async;
+
+		private long _count;
+
+		private long _total;
+
+		private long _max;
+
+		private HookTiming(String name, String pluginId, boolean async) {
+			_name = name;
+			_pluginId = pluginId;
+			_async = async;
+		}
+
+		private synchronized void add(long nanos) {
+			_count++;
+			_total += nanos;
+			if (nanos > _max) {
+				_max = nanos;
+			}
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public boolean isAsync() {
+			return _async;
+		}
+
+		public synchronized long getCount() {
+			return _count;
+		}
+
+		/**
+		 * Returns the average time taken in microseconds.
+		 */
+		public synchronized long getAverage() {
+			return _count == 0 ? 0L : _total / _count / 1000L;
+		}
+
+		/**
+		 * Returns the longest time taken in microseconds.
+		 */
+		public synchronized long getMax() {
+			return _max / 1000L;
+		}
+	}
+
+	/**
+	 * The threads running the async post hooks of one plugin.
+	 */
+	public static class HookLane {
+		private static final Runnable NOOP = new Runnable() {
+			public void run() {
+			}
+		};
+
+		private String _pluginId;
+
+		private int _queueSize;
+
+		private ArrayList<LinkedBlockingQueue<Runnable>> _queues = new ArrayList<LinkedBlockingQueue<Runnable>>();
+
+		private volatile boolean _stopped;
+
+		private AtomicLong _ran = new AtomicLong();
+
+		private AtomicLong _inline = new AtomicLong();
+
+		private HookLane(String pluginId, int threads, int queueSize) {
+			_pluginId = pluginId;
+			_queueSize = queueSize;
+			for (int i = 0; i < threads; i++) {
+				LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(_queueSize);
+				_queues.add(queue);
+				Thread t = new Thread(new LaneWorker(queue), "PostHook-" + pluginId + "-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		private void submit(Runnable task, Object key) {
+			LinkedBlockingQueue<Runnable> queue = _queues.get((key.hashCode() & Integer.MAX_VALUE) % _queues.size());
+			if (_stopped) {
+				// the plugin was unloaded while the command ran
+				run(task);
+			} else if (!queue.offer(task)) {
+				if (_inline.incrementAndGet() % 1000 == 1) {
+					logger.warn("Post hooks of " + _pluginId + " are falling behind, ran "
+							+ _inline.get() + " on the command thread so far");
+				}
+				run(task);
+			}
+		}
+
+		private void run(Runnable task) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				logger.error("Exception running post hooks of " + _pluginId, t);
+			}
+			_ran.incrementAndGet();
+		}
+
+		/**
+		 * Stops the threads once their current task is done and returns how
+		 * many queued tasks were dropped.
+		 */
+		private int stop() {
+			_stopped = true;
+			int dropped = 0;
+			for (LinkedBlockingQueue<Runnable> queue : _queues) {
+				dropped += queue.size();
+				queue.clear();
+				// wakes up a thread waiting for work
+				queue.offer(NOOP);
+			}
+			return dropped;
+		}
+
+		public String getPluginId() {
+			return _pluginId;
+		}
+
+		public int getQueueSize() {
+			int size = 0;
+			for (LinkedBlockingQueue<Runnable> queue : _queues) {
+				size += queue.size();
+			}
+			return size;
+		}
+
+		public int getMaxQueueSize() {
+			return _queueSize * _queues.size();
+		}
+
+		public long getRan() {
+			return _ran.get();
+		}
+
+		/**
+		 * Returns how many times the hooks had to run on the command thread
+		 * because the queue was full.
+		 */
+		public long getInline() {
+			return _inline.get();
+		}
+
+		private class LaneWorker implements Runnable {
+			private LinkedBlockingQueue<Runnable> _queue;
+
+			private LaneWorker(LinkedBlockingQueue<Runnable> queue) {
+				_queue = queue;
+			}
+
+			public void run() {
+				while (!_stopped) {
+					try {
+						HookLane.this.run(_queue.take());
+					} catch (InterruptedException e) {
+						// Do nothing just loop and try again
+					}
+				}
+			}
+		}
+	}
+}
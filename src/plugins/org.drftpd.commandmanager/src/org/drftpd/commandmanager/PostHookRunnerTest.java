@@ -0,0 +1,162 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.commandmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.drftpd.vfs.DirectoryHandle;
+
+/**
+ * Tests which post hooks run before the reply, the order of the async ones
+ * the fallback to the command thread when their queue is full and the
+ * cleanup when the plugin providing them is unloaded.
+ * @version $Id$
+ */
+public class PostHookRunnerTest extends TestCase {
+
+	private Hooks _hooks;
+
+	public PostHookRunnerTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_hooks = new Hooks();
+	}
+
+	private HookContainer<PostHookInterface> createHook(String method, boolean async) throws Exception {
+		return new HookContainer<PostHookInterface>(Hooks.class.getMethod(method,
+				CommandRequest.class, CommandResponse.class), _hooks, "test", async);
+	}
+
+	private static CommandRequest createRequest(String dir, String argument) {
+		return new CommandRequest(argument, "STOR", new DirectoryHandle(dir), "user");
+	}
+
+	public void testInlineAndAsync() throws Exception {
+		PostHookRunner runner = new PostHookRunner(1, 10);
+		ArrayList<HookContainer<PostHookInterface>> hooks = new ArrayList<HookContainer<PostHookInterface>>();
+		hooks.add(createHook("doAsync", true));
+		hooks.add(createHook("doInline", false));
+		_hooks._done = new CountDownLatch(1);
+		runner.run(hooks, createRequest("/dir", "file"), new CommandResponse(226, "ok"));
+
+		// inline hooks ran before run() returned, on the calling thread
+		assertEquals(Collections.singletonList(Thread.currentThread().getName()), _hooks._inlineThreads);
+		assertTrue(_hooks._done.await(5, TimeUnit.SECONDS));
+		assertEquals("PostHook-test-0", _hooks._asyncThreads.get(0));
+	}
+
+	public void testOrderPerDirectory() throws Exception {
+		PostHookRunner runner = new PostHookRunner(4, 1000);
+		List<HookContainer<PostHookInterface>> hooks = Collections.singletonList(createHook("doAsync", true));
+		int files = 200;
+		_hooks._done = new CountDownLatch(files * 2);
+		for (int i = 0; i < files; i++) {
+			runner.run(hooks, createRequest("/a", "a" + i), new CommandResponse(226, "ok"));
+			runner.run(hooks, createRequest("/b", "b" + i), new CommandResponse(226, "ok"));
+		}
+		assertTrue(_hooks._done.await(5, TimeUnit.SECONDS));
+		int a = 0;
+		int b = 0;
+		for (String argument : _hooks._arguments) {
+			if (argument.startsWith("a")) {
+				assertEquals("a" + a++, argument);
+			} else {
+				assertEquals("b" + b++, argument);
+			}
+		}
+		assertEquals(files, a);
+		assertEquals(files, b);
+	}
+
+	public void testQueueFull() throws Exception {
+		PostHookRunner runner = new PostHookRunner(1, 1);
+		List<HookContainer<PostHookInterface>> hooks = Collections.singletonList(createHook("doAsync", true));
+		_hooks._done = new CountDownLatch(3);
+		_hooks._entered = new CountDownLatch(1);
+		_hooks._release = new CountDownLatch(1);
+		// the first one holds the only thread, the second one fills the queue
+		runner.run(hooks, createRequest("/dir", "block"), new CommandResponse(226, "ok"));
+		assertTrue(_hooks._entered.await(5, TimeUnit.SECONDS));
+		runner.run(hooks, createRequest("/dir", "queued"), new CommandResponse(226, "ok"));
+		runner.run(hooks, createRequest("/dir", "inline"), new CommandResponse(226, "ok"));
+
+		assertEquals(Thread.currentThread().getName(), _hooks._asyncThreads.get(1));
+		assertEquals(1, runner.getLanes().iterator().next().getInline());
+		_hooks._release.countDown();
+		assertTrue(_hooks._done.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testRemovePlugin() throws Exception {
+		PostHookRunner runner = new PostHookRunner(1, 10);
+		List<HookContainer<PostHookInterface>> hooks = Collections.singletonList(createHook("doAsync", true));
+		_hooks._done = new CountDownLatch(1);
+		_hooks._entered = new CountDownLatch(1);
+		_hooks._release = new CountDownLatch(1);
+		runner.run(hooks, createRequest("/dir", "block"), new CommandResponse(226, "ok"));
+		assertTrue(_hooks._entered.await(5, TimeUnit.SECONDS));
+		runner.run(hooks, createRequest("/dir", "dropped"), new CommandResponse(226, "ok"));
+		runner.removePlugin("test");
+		assertTrue(runner.getLanes().isEmpty());
+
+		// the running hook finishes, the queued one never runs
+		_hooks._release.countDown();
+		assertTrue(_hooks._done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(Collections.singletonList("block"), _hooks._arguments);
+		assertTrue(runner.getTimings().isEmpty());
+	}
+
+	public static class Hooks implements PostHookInterface {
+		private List<String> _inlineThreads = Collections.synchronizedList(new ArrayList<String>());
+
+		private List<String> _asyncThreads = Collections.synchronizedList(new ArrayList<String>());
+
+		private List<String> _arguments = Collections.synchronizedList(new ArrayList<String>());
+
+		private CountDownLatch _done;
+
+		private CountDownLatch _entered;
+
+		private CountDownLatch _release;
+
+		public void initialize(StandardCommandManager cManager) {
+		}
+
+		public void doInline(CommandRequest request, CommandResponse response) {
+			_inlineThreads.add(Thread.currentThread().getName());
+		}
+
+		public void doAsync(CommandRequest request, CommandResponse response) throws InterruptedException {
+			_asyncThreads.add(Thread.currentThread().getName());
+			_arguments.add(request.getArgument());
+			if (request.getArgument().equals("block")) {
+				_entered.countDown();
+				_release.await();
+			}
+			_done.countDown();
+		}
+	}
+}
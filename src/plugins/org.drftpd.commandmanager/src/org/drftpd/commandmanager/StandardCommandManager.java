@@ -21,7 +21,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -199,12 +198,7 @@ public class StandardCommandManager implements CommandManagerInterface {
 			return response;
 		}
 		try {
-			try {
-				response = (CommandResponseInterface) commandContainer.getMethod().invoke(commandContainer.getCommandInterfaceInstance(), new Object[] {request});
-			}
-			catch (InvocationTargetException e) {
-				throw e.getCause();
-			}
+			response = (CommandResponseInterface) commandContainer.getInvoker().invoke(request);
 		} catch (ImproperUsageException e) {
 			response = StandardCommandManager.genericResponse("RESPONSE_501_SYNTAX_ERROR");
 			String helpString = request.getProperties().getProperty("help.specific");
@@ -94,11 +94,14 @@ public class DataConnectionHandler extends CommandInterface {
 
 	private String _keyPrefix;
 
+	private long _progressInterval;
+
 	public void initialize(String method, String pluginName, StandardCommandManager cManager) {
 		super.initialize(method, pluginName, cManager);
 		_bundle = cManager.getResourceBundle();
 		_keyPrefix = this.getClass().getName()+".";
 		_featReplies = populateFeat(method);
+		_progressInterval = getProgressInterval();
 	}
 
 	public CommandResponse doAUTH(CommandRequest request) {
@@ -963,48 +966,42 @@ public class DataConnectionHandler extends CommandInterface {
 					ts.sendFile(ts.getTransferFile().getPath(), ts.getType(),
 							ts.getResumePosition(), address,
 							request.getObjectLong(MIN_XFER_SPEED),
-							request.getObjectLong(MAX_XFER_SPEED));
+							request.getObjectLong(MAX_XFER_SPEED), request.getUser());
 
 					while (true) {
-						synchronized(ts) {
-							status = ts.getTransferStatus();
-						}	
+						// returns as soon as the slave reports the transfer as finished
+						status = ts.waitForTransferStatus(_progressInterval);
 						if (status.isFinished()) {
 							break;
 						}
-
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e1) {
-						}
 					}
 				} else if (isStor) {
 					ts.receiveFile(ts.getTransferFile().getPath(), ts.getType(),
 							ts.getResumePosition(), address,
 							request.getObjectLong(MIN_XFER_SPEED),
-							request.getObjectLong(MAX_XFER_SPEED));
+							request.getObjectLong(MAX_XFER_SPEED), request.getUser());
 
+					long size = -1L;
 					while (true) {
-						synchronized(ts) {
-							status = ts.getTransferStatus();
-						}
-						try {
-							ts.getTransferFile().setSize(status.getTransfered());
-						} catch (FileNotFoundException e) {
-							// Will happen if aborted and delete on abort set
-							// Check this and rethrow if needed
-							if (!conn.isAborted() || !Boolean.parseBoolean(GlobalContext.getConfig()
-									.getMainProperties().getProperty("delete.upload.on.abort", "false"))) {
-								throw e;
+						// returns as soon as the slave reports the transfer as finished,
+						// the size of the file is updated at most once per interval
+						status = ts.waitForTransferStatus(_progressInterval);
+						if (status.getTransfered() != size || status.isFinished()) {
+							size = status.getTransfered();
+							try {
+								ts.getTransferFile().setSize(size);
+							} catch (FileNotFoundException e) {
+								// Will happen if aborted and delete on abort set
+								// Check this and rethrow if needed
+								if (!conn.isAborted() || !Boolean.parseBoolean(GlobalContext.getConfig()
+										.getMainProperties().getProperty("delete.upload.on.abort", "false"))) {
+									throw e;
+								}
 							}
 						}
 						if (status.isFinished()) {
 							break;
 						}
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e1) {
-						}
 					}
 				} else {
 					throw new RuntimeException();
@@ -1106,6 +1103,19 @@ public class DataConnectionHandler extends CommandInterface {
 		}
 	}
 
+	/**
+	 * Returns how often, in milliseconds, a running transfer is checked and
+	 * the size of a file being uploaded is updated.
+	 */
+	private long getProgressInterval() {
+		try {
+			return Math.max(100L, Long.parseLong(GlobalContext.getConfig().getMainProperties()
+					.getProperty("transfer.progress.interval", "1000").trim()));
+		} catch (NumberFormatException e) {
+			return 1000L;
+		}
+	}
+
 	/* Add separate methods for STOR/RETR which will allow us to hook them separately
 	 * , for now they will just in turn call the old method but this may change later
 	 */
@@ -34,12 +34,20 @@ import org.drftpd.commandmanager.CommandInterface;
 import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.ImproperUsageException;
+import org.drftpd.commandmanager.PostHookRunner;
 import org.drftpd.commandmanager.StandardCommandManager;
 import org.drftpd.dynamicdata.Key;
+import org.drftpd.event.AsyncThreadSafeEventService;
+import org.drftpd.event.EventLane;
 import org.drftpd.exceptions.ObjectNotFoundException;
+import org.drftpd.master.ChecksumQueue;
+import org.drftpd.master.CommitManager;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.master.Session;
 import org.drftpd.util.ExtendedPropertyResourceBundle;
+import org.drftpd.vfs.InodeCache;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.VirtualFileSystemEventCoalescer;
 import org.tanesha.replacer.ReplacerEnvironment;
 
 /**
@@ -205,7 +213,89 @@ public class ServerStatus extends CommandInterface {
 
 				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.gcinfo"));
 			}
+
+			if (arg.equals("commits") || isAll) {
+				CommitManager cm = CommitManager.getCommitManager();
+				env.add("commit.queue", cm.getQueueSize());
+				env.add("commit.lastbatch", cm.getLastBatchSize());
+				env.add("commit.lastbatchtime", cm.getLastBatchTime()+"ms");
+				env.add("commit.avgbatchtime", cm.getAverageBatchTime()+"ms");
+				env.add("commit.total", cm.getTotalWrites());
+				env.add("commit.rate", String.format("%.2f", cm.getWritesPerSecond()));
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.commits"));
+			}
+
+			if (arg.equals("checksums") || isAll) {
+				ChecksumQueue checksums = ChecksumQueue.getChecksumQueue();
+				env.add("checksum.queue", checksums.getQueueSize());
+				env.add("checksum.running", checksums.getRunning());
+				env.add("checksum.completed", checksums.getCompleted());
+				env.add("checksum.failed", checksums.getFailed());
+				env.add("checksum.bytes", Bytes.formatBytes(checksums.getBytes()));
+				env.add("checksum.rate", Bytes.formatBytes(checksums.getRate()));
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.checksums"));
+			}
+
+			if (arg.equals("vfs") || isAll) {
+				InodeCache cache = VirtualFileSystem.getVirtualFileSystem().getInodeCache();
+				long hits = cache.getHits();
+				long lookups = hits + cache.getMisses();
+				env.add("cache.size", cache.getSize());
+				env.add("cache.max", cache.getMaxSize());
+				env.add("cache.pinned", cache.getPinnedCount());
+				env.add("cache.hot", cache.getHotCount());
+				env.add("cache.hits", hits);
+				env.add("cache.misses", cache.getMisses());
+				env.add("cache.hitratio", lookups == 0 ? "0%" : String.format("%.1f%%", hits * 100D / lookups));
+				env.add("cache.evictions", cache.getEvictions());
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.vfscache"));
+				VirtualFileSystemEventCoalescer coalescer = VirtualFileSystem.getVirtualFileSystem().getEventCoalescer();
+				env.add("coalesce.window", coalescer.getWindow()+"ms");
+				env.add("coalesce.pending", coalescer.getPendingCount());
+				env.add("coalesce.received", coalescer.getReceived());
+				env.add("coalesce.coalesced", coalescer.getCoalesced());
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.vfsevents"));
+			}
+
+			if (arg.equals("events") || isAll) {
+				AsyncThreadSafeEventService events = GlobalContext.getEventService();
+				env.add("events.threads", events.getThreadCount());
+				env.add("events.queue", events.getQueueSize());
+				env.add("events.published", events.getPublished());
+				env.add("events.avglag", events.getAverageLag()+"ms");
+				env.add("events.maxlag", events.getMaxLag()+"ms");
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.events"));
+				for (EventLane lane : events.getLanes()) {
+					env.add("lane.name", lane.getName());
+					env.add("lane.queue", lane.getQueueSize());
+					env.add("lane.maxqueue", lane.getMaxQueueSize());
+					env.add("lane.delivered", lane.getDelivered());
+					env.add("lane.discarded", lane.getDiscarded());
+					env.add("lane.avglag", lane.getAverageLag()+"ms");
+					env.add("lane.maxlag", lane.getMaxLag()+"ms");
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.eventlane"));
+				}
+			}
 			
+			if (arg.equals("hooks") || isAll) {
+				for (PostHookRunner.HookTiming timing : PostHookRunner.getPostHookRunner().getTimings()) {
+					env.add("hook.name", timing.getName());
+					env.add("hook.mode", timing.isAsync() ? "async" : "inline");
+					env.add("hook.count", timing.getCount());
+					env.add("hook.avgtime", String.format("%.2fms", timing.getAverage() / 1000D));
+					env.add("hook.maxtime", String.format("%.2fms", timing.getMax() / 1000D));
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.posthook"));
+				}
+				for (PostHookRunner.HookLane lane : PostHookRunner.getPostHookRunner().getLanes()) {
+					env.add("lane.name", lane.getPluginId());
+					env.add("lane.queue", lane.getQueueSize());
+					env.add("lane.maxqueue", lane.getMaxQueueSize());
+					env.add("lane.ran", lane.getRan());
+					env.add("lane.inline", lane.getInline());
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.posthooklane"));
+				}
+			}
+
 			if (isAll) {
 				// no need to output repeated 
 				break;
@@ -35,6 +35,8 @@ import org.drftpd.exceptions.DuplicateElementException;
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.exceptions.ObjectNotFoundException;
 import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.master.CommandLatency;
+import org.drftpd.master.RemergePipeline;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.master.Session;
 import org.drftpd.master.SlaveManager;
@@ -212,6 +214,11 @@ public class SlaveManagement extends CommandInterface {
 
 		if (rslave.isOnline()) {
 			if (!rslave.isAvailable()) {
+				RemergePipeline remerge = rslave.getRemergePipeline();
+				env.add("remerge.applied", remerge.getApplied());
+				env.add("remerge.pending", remerge.getPending());
+				env.add("remerge.files", remerge.getFiles());
+				env.add("remerge.rate", remerge.getRate());
 				response.addComment(session.jprintf(_bundle, _keyPrefix+"slave.remerging", env, request.getUser()));
 			} else {            		
 				try {
@@ -265,7 +272,7 @@ public class SlaveManagement extends CommandInterface {
 	}
 
 	/**
-	 * Usage: site slave slavename [set,addmask,delmask]
+	 * Usage: site slave slavename [set,unset,addmask,delmask,bandwidth]
 	 * @throws ImproperUsageException
 	 */
 	public CommandResponse doSITE_SLAVE(CommandRequest request) throws ImproperUsageException {
@@ -387,6 +394,57 @@ public class SlaveManagement extends CommandInterface {
 			}
 			return new CommandResponse(501, session.jprintf(_bundle,
 					_keyPrefix+"slave.delmask.failed", env, request.getUser()));
+		} else if (command.equalsIgnoreCase("latency")) {
+			response.addComment(session.jprintf(_bundle,
+					_keyPrefix+"slave.latency.header", request.getUser()));
+			for (Entry<String,CommandLatency> entry : rslave.getCommandLatencies().entrySet()) {
+				env.add("command", entry.getKey());
+				env.add("count", entry.getValue().getCount());
+				env.add("average", String.format("%.2f", entry.getValue().getAverage() / 1000f));
+				env.add("max", String.format("%.2f", entry.getValue().getMax() / 1000f));
+				response.addComment(session.jprintf(_bundle,
+						_keyPrefix+"slave.latency", env, request.getUser()));
+			}
+			return response;
+		} else if (command.equalsIgnoreCase("bandwidth")) {
+			if (arguments.countTokens() < 2) {
+				throw new ImproperUsageException();
+			}
+
+			String scope = arguments.nextToken().toLowerCase();
+			String key = "";
+			if (scope.equals("user") || scope.equals("section") || scope.equals("transfer")) {
+				if (arguments.countTokens() != 2) {
+					throw new ImproperUsageException();
+				}
+				key = arguments.nextToken();
+			} else if (!scope.equals("upload") && !scope.equals("download")) {
+				throw new ImproperUsageException();
+			}
+			long rate;
+			try {
+				rate = Bytes.parseBytes(arguments.nextToken());
+			} catch (NumberFormatException e) {
+				throw new ImproperUsageException();
+			}
+			env.add("scope", scope);
+			env.add("key", key);
+			env.add("rate", rate == 0 ? "unlimited" : Bytes.formatBytes(rate) + "/s");
+			try {
+				rslave.fetchResponse(SlaveManager.getBasicIssuer().issueBandwidthToSlave(
+						rslave, scope, key, rate));
+			} catch (RemoteIOException e) {
+				env.add("error", e.getCause().getMessage());
+				return new CommandResponse(501, session.jprintf(_bundle,
+						_keyPrefix+"slave.bandwidth.failed", env, request.getUser()));
+			} catch (SlaveUnavailableException e) {
+				env.add("error", "slave unavailable");
+				return new CommandResponse(501, session.jprintf(_bundle,
+						_keyPrefix+"slave.bandwidth.failed", env, request.getUser()));
+			}
+			response.addComment(session.jprintf(_bundle,
+					_keyPrefix+"slave.bandwidth.success", env, request.getUser()));
+			return response;
 		}
 		throw new ImproperUsageException();
 	}
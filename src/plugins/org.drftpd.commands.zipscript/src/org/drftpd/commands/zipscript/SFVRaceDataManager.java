@@ -0,0 +1,117 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript;
+
+import java.io.FileNotFoundException;
+
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.PluginInterface;
+import org.drftpd.commands.zipscript.vfs.SFVRaceData;
+import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
+import org.drftpd.dynamicdata.KeyNotFoundException;
+import org.drftpd.event.TransferEvent;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
+import org.drftpd.vfs.event.VirtualFileSystemSlaveEvent;
+
+/**
+ * Keeps the {@link SFVRaceData} of release directories in line with changes
+ * made outside of the zipscript hooks, deletes, nukes, renames, remerges and
+ * uploads completed while the .sfv could not be read.<br>
+ * Only race data which has already been built is updated, nothing here reads
+ * the .sfv or scans a directory.
+ * @version $Id$
+ */
+public class SFVRaceDataManager implements PluginInterface {
+
+	public void startPlugin() {
+		AnnotationProcessor.process(this);
+	}
+
+	public void stopPlugin(String reason) {
+		AnnotationProcessor.unprocess(this);
+	}
+
+	@EventSubscriber
+	public void onTransferEvent(TransferEvent event) {
+		if (event.getCommand().equals("STOR")) {
+			addFile(event.getTransferFile());
+		}
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemInodeCreatedEvent(VirtualFileSystemInodeCreatedEvent vfsevent) {
+		if (vfsevent.getInode().isFile()) {
+			// uploads are skipped until they complete, remerged files are added here
+			addFile((FileHandle) vfsevent.getInode());
+		}
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemInodeDeletedEvent(VirtualFileSystemInodeDeletedEvent vfsevent) {
+		removeFile(vfsevent.getImmutableInode());
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemRenameEvent(VirtualFileSystemRenameEvent vfsevent) {
+		if (vfsevent.getInode().isFile()) {
+			removeFile(vfsevent.getSource());
+			addFile((FileHandle) vfsevent.getInode());
+		}
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemSlaveEvent(VirtualFileSystemSlaveEvent vfsevent) {
+		try {
+			SFVRaceData raceData = vfsevent.getInode().getParent().getPluginMetaData(SFVRaceData.SFVRACEDATA);
+			if (raceData.setSlaves(vfsevent.getInode().getName(), vfsevent.getSlaves())) {
+				vfsevent.getInode().getParent().addPluginMetaData(SFVRaceData.SFVRACEDATA, raceData);
+			}
+		} catch (KeyNotFoundException e) {
+			// not a release directory
+		} catch (FileNotFoundException e) {
+			// directory is gone
+		}
+	}
+
+	private void addFile(FileHandle file) {
+		try {
+			ZipscriptVFSDataSFV.updateRaceFile(file.getParent(), file);
+		} catch (FileNotFoundException e) {
+			// file or directory is gone
+		}
+	}
+
+	private void removeFile(ImmutableInodeHandle inode) {
+		DirectoryHandle dir = inode.getParent();
+		try {
+			SFVRaceData raceData = dir.getPluginMetaData(SFVRaceData.SFVRACEDATA);
+			if (raceData.removeFile(inode.getName())) {
+				dir.addPluginMetaData(SFVRaceData.SFVRACEDATA, raceData);
+			}
+		} catch (KeyNotFoundException e) {
+			// not a release directory
+		} catch (FileNotFoundException e) {
+			// directory is gone
+		}
+	}
+}
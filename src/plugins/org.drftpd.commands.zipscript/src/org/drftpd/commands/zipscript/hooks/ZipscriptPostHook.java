@@ -28,7 +28,6 @@ import org.apache.log4j.Logger;
 import org.drftpd.Bytes;
 import org.drftpd.Checksum;
 import org.drftpd.GlobalContext;
-import org.drftpd.RankUtils;
 import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.PostHookInterface;
@@ -38,6 +37,7 @@ import org.drftpd.commands.dir.Dir;
 import org.drftpd.commands.zipscript.SFVStatus;
 import org.drftpd.commands.zipscript.SFVTools;
 import org.drftpd.commands.zipscript.event.SFVMemberTransferEvent;
+import org.drftpd.commands.zipscript.vfs.SFVRaceData;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.dynamicdata.KeyNotFoundException;
 import org.drftpd.exceptions.NoAvailableSlaveException;
@@ -170,6 +170,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 					// Good! transfer checksum matches sfv checksum
 					response.addComment("checksum match: SLAVE/SFV:" +
 							Long.toHexString(checksum));
+					sfvData.addRaceFile(transferFile);
 					if (transferFile.exists()) {
 						try {
 							BaseFtpConnection conn = (BaseFtpConnection)request.getSession();
@@ -192,10 +193,12 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 						// then it should be deleted.
 						response.addComment("0Byte File, Deleting...");
 						transferFile.deleteUnchecked();
-					} else
+					} else {
 						// The file has checksum = 0, although the size is != 0,
 						// meaning that we are not using checked transfers.
 						response.addComment("checksum match: SLAVE/SFV: DISABLED");
+						sfvData.addRaceFile(transferFile);
+					}
 				} else {
 					response.addComment("checksum mismatch: SLAVE: " +
 							Long.toHexString(checksum) + " SFV: " +
@@ -262,6 +265,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 		if (deleFileName.toLowerCase().endsWith(".sfv")) {
 			try {
 				request.getCurrentDirectory().removePluginMetaData(SFVInfo.SFVINFO);
+				request.getCurrentDirectory().removePluginMetaData(SFVRaceData.SFVRACEDATA);
 			} catch(FileNotFoundException e) {
 				// No inode to remove sfvinfo from
 			}
@@ -274,9 +278,9 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 			ZipscriptVFSDataSFV sfvData = new ZipscriptVFSDataSFV(dir);
 			SFVInfo sfvInfo = sfvData.getSFVInfo();
 			SFVStatus sfvStatus = sfvData.getSFVStatus();
-			Collection<UploaderPosition> racers = RankUtils.userSort(getSFVFiles(dir, sfvData),
-					"bytes", "high");
-			Collection<GroupPosition> groups = RankUtils.topFileGroup(getSFVFiles(dir, sfvData));
+			SFVRaceData raceData = sfvData.getSFVRaceData();
+			Collection<UploaderPosition> racers = raceData.getUploaders("bytes", "high");
+			Collection<GroupPosition> groups = raceData.getGroups();
 
 			String racerline = _bundle.getString(_keyPrefix+"cwd.racers.body");
 			String groupline = _bundle.getString(_keyPrefix+"cwd.groups.body");
@@ -365,9 +369,9 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 			raceTextBuilder.append('\n');
 
 			env.add("completefiles", Integer.toString(sfvStatus.getPresent()) + "/" + Integer.toString(sfvInfo.getSize()));
-			env.add("totalbytes", Bytes.formatBytes(getSFVTotalBytes(dir, sfvData)));
+			env.add("totalbytes", Bytes.formatBytes(raceData.getTotalBytes()));
 			env.add("totalspeed",
-					Bytes.formatBytes(getXferspeed(dir, sfvData)) + "/s");
+					Bytes.formatBytes(raceData.getXferspeed()) + "/s");
 			env.add("totalpercent",
 					Integer.toString(
 							(sfvStatus.getPresent() * 100) / sfvInfo.getSize()) +
@@ -0,0 +1,342 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript.vfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.drftpd.RankUtils;
+import org.drftpd.dynamicdata.Key;
+import org.drftpd.util.GroupPosition;
+import org.drftpd.util.UploaderPosition;
+import org.drftpd.vfs.CaseInsensitiveTreeMap;
+
+/**
+ * Race state of a release directory, kept as plugin metadata on the directory
+ * so the status, totals and racer rankings can be read without loading every
+ * file of the release.<br>
+ * It only holds the files listed in the .sfv it was built for, the totals and
+ * per user/group tallies are kept up to date as files are added and removed.
+ * Once the map of files has been handed out to be written by the inode store
+ * it's copied before the next change, uploads in between modify it in place.
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class SFVRaceData implements Serializable {
+
+	public static final Key<SFVRaceData> SFVRACEDATA = new Key<SFVRaceData>(SFVRaceData.class, "sfvrace");
+
+	private long _sfvChecksum = 0L;
+
+	private CaseInsensitiveTreeMap<String, RaceFile> _files = null;
+
+	// _files has been handed out and must be copied before it's modified
+	private transient boolean _shared;
+
+	private long _totalBytes;
+
+	private long _totalXfertime;
+
+	private HashMap<String, Tally> _users = new HashMap<String, Tally>();
+
+	private HashMap<String, Tally> _groups = new HashMap<String, Tally>();
+
+	/**
+	 * Constructor for the inode store
+	 */
+	public SFVRaceData() {
+
+	}
+
+	/**
+	 * @param sfvChecksum checksum of the .sfv the race data is built for
+	 */
+	public SFVRaceData(long sfvChecksum) {
+		_sfvChecksum = sfvChecksum;
+		_files = new CaseInsensitiveTreeMap<String, RaceFile>();
+	}
+
+	public synchronized long getSFVChecksum() {
+		return _sfvChecksum;
+	}
+
+	public synchronized void setSFVChecksum(long checksum) {
+		_sfvChecksum = checksum;
+	}
+
+	public synchronized CaseInsensitiveTreeMap<String, RaceFile> getFiles() {
+		_shared = true;
+		return _files;
+	}
+
+	public synchronized void setFiles(CaseInsensitiveTreeMap<String, RaceFile> files) {
+		_files = files;
+		_shared = true;
+		_totalBytes = 0L;
+		_totalXfertime = 0L;
+		_users = new HashMap<String, Tally>();
+		_groups = new HashMap<String, Tally>();
+		if (files != null) {
+			for (RaceFile file : files.values()) {
+				count(file, 1);
+			}
+		}
+	}
+
+	/**
+	 * Adds or replaces a file of the release.
+	 */
+	public synchronized void addFile(String name, RaceFile file) {
+		RaceFile previous = writableFiles().put(name, file);
+		if (previous != null) {
+			count(previous, -1);
+		}
+		count(file, 1);
+	}
+
+	/**
+	 * @return true if the file was part of the race
+	 */
+	public synchronized boolean removeFile(String name) {
+		if (_files == null || !_files.containsKey(name)) {
+			return false;
+		}
+		count(writableFiles().remove(name), -1);
+		return true;
+	}
+
+	/**
+	 * @return true if the file was part of the race
+	 */
+	public synchronized boolean setSlaves(String name, Set<String> slaves) {
+		if (_files == null) {
+			return false;
+		}
+		RaceFile file = _files.get(name);
+		if (file == null) {
+			return false;
+		}
+		writableFiles().put(name, new RaceFile(file.getUsername(), file.getGroup(), file.getSize(),
+				file.getXfertime(), slaves));
+		return true;
+	}
+
+	private CaseInsensitiveTreeMap<String, RaceFile> writableFiles() {
+		if (_files == null || _shared) {
+			CaseInsensitiveTreeMap<String, RaceFile> files = new CaseInsensitiveTreeMap<String, RaceFile>();
+			if (_files != null) {
+				files.putAll(_files);
+			}
+			_files = files;
+			_shared = false;
+		}
+		return _files;
+	}
+
+	private void count(RaceFile file, int sign) {
+		_totalBytes += sign * file.getSize();
+		_totalXfertime += sign * file.getXfertime();
+		count(_users, file.getUsername(), file, sign);
+		count(_groups, file.getGroup(), file, sign);
+	}
+
+	private static void count(HashMap<String, Tally> tallies, String name, RaceFile file, int sign) {
+		Tally tally = tallies.get(name);
+		if (tally == null) {
+			tally = new Tally();
+			tallies.put(name, tally);
+		}
+		tally._files += sign;
+		tally._bytes += sign * file.getSize();
+		tally._xfertime += sign * file.getXfertime();
+		if (tally._files <= 0) {
+			tallies.remove(name);
+		}
+	}
+
+	public synchronized boolean containsFile(String name) {
+		return _files != null && _files.containsKey(name);
+	}
+
+	/**
+	 * @return the number of files of the release which have been uploaded
+	 */
+	public synchronized int getPresent() {
+		return _files == null ? 0 : _files.size();
+	}
+
+	/**
+	 * @param availableSlaves names of the slaves which are online
+	 * @return the number of uploaded files which are on none of the given slaves
+	 */
+	public synchronized int getOffline(Set<String> availableSlaves) {
+		if (_files == null) {
+			return 0;
+		}
+		int offline = 0;
+		for (RaceFile file : _files.values()) {
+			if (Collections.disjoint(file.getSlaves(), availableSlaves)) {
+				offline++;
+			}
+		}
+		return offline;
+	}
+
+	public synchronized long getTotalBytes() {
+		return _totalBytes;
+	}
+
+	public synchronized long getTotalXfertime() {
+		return _totalXfertime;
+	}
+
+	public synchronized long getLargestFileBytes() {
+		long largest = 0L;
+		if (_files != null) {
+			for (RaceFile file : _files.values()) {
+				largest = Math.max(largest, file.getSize());
+			}
+		}
+		return largest;
+	}
+
+	public synchronized long getXferspeed() {
+		if (_totalXfertime / 1000 == 0) {
+			return 0;
+		}
+		return _totalBytes / (_totalXfertime / 1000);
+	}
+
+	/**
+	 * @return the number of files of the release uploaded by the user
+	 */
+	public synchronized int getUserFiles(String username) {
+		Tally tally = _users.get(username);
+		return tally == null ? 0 : tally._files;
+	}
+
+	/**
+	 * @see RankUtils#userSort(Collection, String, String)
+	 */
+	public synchronized Collection<UploaderPosition> getUploaders(String type, String sort) {
+		ArrayList<UploaderPosition> uploaders = new ArrayList<UploaderPosition>();
+		for (Map.Entry<String, Tally> entry : _users.entrySet()) {
+			Tally tally = entry.getValue();
+			uploaders.add(new UploaderPosition(entry.getKey(), tally._bytes, tally._files, tally._xfertime));
+		}
+		return RankUtils.sortUploaders(uploaders, type, sort);
+	}
+
+	/**
+	 * @see RankUtils#topFileGroup(Collection)
+	 */
+	public synchronized Collection<GroupPosition> getGroups() {
+		ArrayList<GroupPosition> groups = new ArrayList<GroupPosition>();
+		for (Map.Entry<String, Tally> entry : _groups.entrySet()) {
+			Tally tally = entry.getValue();
+			groups.add(new GroupPosition(entry.getKey(), tally._bytes, tally._files, tally._xfertime));
+		}
+		Collections.sort(groups);
+		return groups;
+	}
+
+	private static class Tally implements Serializable {
+		private int _files;
+
+		private long _bytes;
+
+		private long _xfertime;
+	}
+
+	/**
+	 * A file of the release as it was when it was added, never modified once
+	 * it has been added to the race data.
+	 */
+	public static class RaceFile implements Serializable {
+
+		private String _username;
+
+		private String _group;
+
+		private long _size;
+
+		private long _xfertime;
+
+		private HashSet<String> _slaves = new HashSet<String>();
+
+		/**
+		 * Constructor for the inode store
+		 */
+		public RaceFile() {
+
+		}
+
+		public RaceFile(String username, String group, long size, long xfertime, Set<String> slaves) {
+			_username = username;
+			_group = group;
+			_size = size;
+			_xfertime = xfertime;
+			setSlaves(slaves);
+		}
+
+		public String getUsername() {
+			return _username;
+		}
+
+		public void setUsername(String username) {
+			_username = username;
+		}
+
+		public String getGroup() {
+			return _group;
+		}
+
+		public void setGroup(String group) {
+			_group = group;
+		}
+
+		public long getSize() {
+			return _size;
+		}
+
+		public void setSize(long size) {
+			_size = size;
+		}
+
+		public long getXfertime() {
+			return _xfertime;
+		}
+
+		public void setXfertime(long xfertime) {
+			_xfertime = xfertime;
+		}
+
+		public Set<String> getSlaves() {
+			return _slaves;
+		}
+
+		public void setSlaves(Set<String> slaves) {
+			_slaves = new HashSet<String>(slaves);
+		}
+	}
+}
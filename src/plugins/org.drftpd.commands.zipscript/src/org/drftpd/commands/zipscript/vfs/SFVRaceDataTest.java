@@ -0,0 +1,115 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript.vfs;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.drftpd.util.GroupPosition;
+import org.drftpd.util.UploaderPosition;
+
+/**
+ * @version $Id$
+ */
+public class SFVRaceDataTest extends TestCase {
+
+	private SFVRaceData _raceData;
+
+	protected void setUp() {
+		_raceData = new SFVRaceData(0xCAFEBABEL);
+		_raceData.addFile("release.r00", file("user1", "group1", 1000, 2000, "slave1"));
+		_raceData.addFile("release.r01", file("user1", "group1", 1000, 2000, "slave2"));
+		_raceData.addFile("release.r02", file("user2", "group1", 500, 1000, "slave1"));
+		_raceData.addFile("release.r03", file("user3", "group2", 500, 1000, "slave2"));
+	}
+
+	private static SFVRaceData.RaceFile file(String user, String group, long size, long xfertime, String slave) {
+		return new SFVRaceData.RaceFile(user, group, size, xfertime, Collections.singleton(slave));
+	}
+
+	public void testTallies() {
+		assertEquals(4, _raceData.getPresent());
+		assertEquals(3000, _raceData.getTotalBytes());
+		assertEquals(6000, _raceData.getTotalXfertime());
+		assertEquals(500, _raceData.getXferspeed());
+		assertEquals(2, _raceData.getUserFiles("user1"));
+
+		Iterator<UploaderPosition> uploaders = _raceData.getUploaders("bytes", "high").iterator();
+		assertEquals("user1", uploaders.next().getUsername());
+		Iterator<GroupPosition> groups = _raceData.getGroups().iterator();
+		GroupPosition group = groups.next();
+		assertEquals("group1", group.getGroupname());
+		assertEquals(3, group.getFiles());
+		assertEquals(2500, group.getBytes());
+
+		HashSet<String> available = new HashSet<String>();
+		available.add("slave1");
+		assertEquals(2, _raceData.getOffline(available));
+	}
+
+	public void testUpdates() {
+		// replacing a file must not count it twice, names are case insensitive
+		_raceData.addFile("RELEASE.R03", file("user3", "group2", 700, 1000, "slave2"));
+		assertEquals(4, _raceData.getPresent());
+		assertEquals(3200, _raceData.getTotalBytes());
+
+		assertTrue(_raceData.removeFile("release.r03"));
+		assertFalse(_raceData.removeFile("release.r03"));
+		assertEquals(0, _raceData.getUserFiles("user3"));
+		assertEquals(1, _raceData.getGroups().size());
+		assertEquals(2500, _raceData.getTotalBytes());
+
+		assertTrue(_raceData.setSlaves("release.r02", Collections.singleton("slave3")));
+		assertEquals(2, _raceData.getOffline(Collections.singleton("slave1")));
+		assertEquals(1000, _raceData.getLargestFileBytes());
+	}
+
+	public void testSnapshot() {
+		// the map handed out to the inode store must not change afterwards
+		Map<String, SFVRaceData.RaceFile> files = _raceData.getFiles();
+		_raceData.addFile("release.r04", file("user1", "group1", 1000, 2000, "slave1"));
+		_raceData.removeFile("release.r00");
+		assertEquals(4, files.size());
+		assertTrue(files.containsKey("release.r00"));
+		assertEquals(4, _raceData.getPresent());
+		assertTrue(_raceData.containsFile("release.r04"));
+		assertFalse(_raceData.containsFile("release.r00"));
+	}
+
+	public void testPersistence() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XMLEncoder enc = new XMLEncoder(bytes);
+		enc.writeObject(_raceData);
+		enc.close();
+		XMLDecoder dec = new XMLDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+		SFVRaceData raceData = (SFVRaceData) dec.readObject();
+		dec.close();
+		assertEquals(0xCAFEBABEL, raceData.getSFVChecksum());
+		assertEquals(4, raceData.getPresent());
+		assertEquals(3000, raceData.getTotalBytes());
+		assertEquals(2, raceData.getUserFiles("user1"));
+		assertEquals(2, raceData.getOffline(Collections.singleton("slave1")));
+	}
+}
@@ -19,6 +19,7 @@ package org.drftpd.commands.zipscript.vfs;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashSet;
 
 import org.drftpd.GlobalContext;
 import org.drftpd.commands.zipscript.SFVStatus;
@@ -95,23 +96,90 @@ public class ZipscriptVFSDataSFV {
 	}
 	
 	public SFVStatus getSFVStatus() throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		int offline = 0;
-		int present = 0;
 		SFVInfo sfvInfo = getSFVInfo();
+		SFVRaceData raceData = getSFVRaceData(sfvInfo);
+		HashSet<String> availableSlaves = new HashSet<String>();
+		for (RemoteSlave rslave : GlobalContext.getGlobalContext().getSlaveManager().getSlaves()) {
+			if (rslave.isAvailable()) {
+				availableSlaves.add(rslave.getName());
+			}
+		}
+		return new SFVStatus(sfvInfo.getSize(), raceData.getOffline(availableSlaves), raceData.getPresent());
+	}
+
+	public SFVRaceData getSFVRaceData() throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
+		return getSFVRaceData(getSFVInfo());
+	}
+
+	private SFVRaceData getSFVRaceData(SFVInfo sfvInfo) throws FileNotFoundException {
+		try {
+			SFVRaceData raceData = _dir.getPluginMetaData(SFVRaceData.SFVRACEDATA);
+			if (raceData.getSFVChecksum() == sfvInfo.getChecksum()) {
+				return raceData;
+			}
+		} catch (KeyNotFoundException e) {
+			// not built yet, or the release predates it
+		}
+		// one scan of the directory, kept up to date by the zipscript from then on
+		SFVRaceData raceData = new SFVRaceData(sfvInfo.getChecksum());
 		CaseInsensitiveTreeMap<String, Long> sfvEntries = sfvInfo.getEntries();
 		for (FileHandle file : _dir.getFilesUnchecked()) {
-			if (file.isFile() && sfvEntries.containsKey(file.getName())) {
-				if (!file.isUploading()) {
-					present++;
-				}
-				if (!file.isAvailable()) {
-					offline++;
-				}
+			if (sfvEntries.containsKey(file.getName())) {
+				addRaceFile(raceData, file);
 			}
 		}
-		return new SFVStatus(sfvEntries.size(), offline, present);
+		_dir.addPluginMetaData(SFVRaceData.SFVRACEDATA, raceData);
+		return raceData;
 	}
-	
+
+	/**
+	 * Adds a completed file to the race data of the directory, files which
+	 * are not listed in the .sfv are ignored.
+	 */
+	public void addRaceFile(FileHandle file) throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
+		SFVInfo sfvInfo = getSFVInfo();
+		if (sfvInfo.getEntries().containsKey(file.getName())) {
+			SFVRaceData raceData = getSFVRaceData(sfvInfo);
+			if (addRaceFile(raceData, file)) {
+				// commits the directory
+				_dir.addPluginMetaData(SFVRaceData.SFVRACEDATA, raceData);
+			}
+		}
+	}
+
+	/**
+	 * Updates the race data of the directory without loading the .sfv, does
+	 * nothing if the race data has not been built yet or is out of date.
+	 * @return true if the race data was changed
+	 */
+	public static boolean updateRaceFile(DirectoryHandle dir, FileHandle file) throws FileNotFoundException {
+		SFVRaceData raceData;
+		try {
+			SFVInfo sfvInfo = dir.getPluginMetaData(SFVInfo.SFVINFO);
+			raceData = dir.getPluginMetaData(SFVRaceData.SFVRACEDATA);
+			if (raceData.getSFVChecksum() != sfvInfo.getChecksum()
+					|| !sfvInfo.getEntries().containsKey(file.getName())) {
+				return false;
+			}
+		} catch (KeyNotFoundException e) {
+			return false;
+		}
+		if (addRaceFile(raceData, file)) {
+			dir.addPluginMetaData(SFVRaceData.SFVRACEDATA, raceData);
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean addRaceFile(SFVRaceData raceData, FileHandle file) throws FileNotFoundException {
+		if (!file.isFile() || file.isUploading() || file.getXfertime() == -1) {
+			return false;
+		}
+		raceData.addFile(file.getName(), new SFVRaceData.RaceFile(file.getUsername(), file.getGroup(),
+				file.getSize(), file.getXfertime(), file.getSlaveNames()));
+		return true;
+	}
+
 	private SFVInfo getSFVInfoFromInode(DirectoryHandle vfsDirHandle) throws FileNotFoundException, KeyNotFoundException {
 		return vfsDirHandle.getPluginMetaData(SFVInfo.SFVINFO);
 	}
@@ -20,7 +20,6 @@ package org.drftpd.plugins.sitebot.announce.zipscript;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.ResourceBundle;
 
@@ -29,11 +28,10 @@ import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.bushe.swing.event.annotation.EventSubscriber;
 import org.drftpd.Bytes;
 import org.drftpd.GlobalContext;
-import org.drftpd.RankUtils;
 import org.drftpd.Time;
 import org.drftpd.commands.zipscript.SFVStatus;
-import org.drftpd.commands.zipscript.SFVTools;
 import org.drftpd.commands.zipscript.event.SFVMemberTransferEvent;
+import org.drftpd.commands.zipscript.vfs.SFVRaceData;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.event.DirectoryFtpEvent;
 import org.drftpd.event.TransferEvent;
@@ -134,6 +132,7 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 		try {
 			String username = sfvEvent.getUser().getName();
 			SFVStatus sfvStatus = sfvEvent.getSFVStatus();
+			SFVRaceData raceData = sfvEvent.getSFVData().getSFVRaceData();
 
 			if (sfvStatus.getAvailable() == 1 && sfvEvent.getSFVInfo().getSize() > 1) {
 				AnnounceWriter writer = _config.getPathWriter("store.first", dir);
@@ -141,30 +140,20 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 					fillEnvSection(env, sfvEvent, writer, true);
 					env.add("files", Integer.toString(sfvEvent.getSFVInfo().getSize()));
 					env.add("expectedsize", (Bytes.formatBytes(
-							SFVTools.getSFVLargestFileBytes(dir, sfvEvent.getSFVData()) * sfvEvent.getSFVInfo().getSize())));
+							raceData.getLargestFileBytes() * sfvEvent.getSFVInfo().getSize())));
 					sayOutput(ReplacerUtils.jprintf(_keyPrefix+".store.first", env, _bundle), writer);
 				}
 				return;
 			}
 			//check if new racer
-			if ((sfvEvent.getSFVInfo().getSize() - sfvStatus.getMissing()) != 1) {
-				for (Iterator<FileHandle> iter = SFVTools.getSFVFiles(dir, sfvEvent.getSFVData()).iterator(); iter.hasNext();) {
-					FileHandle sfvFileEntry = iter.next();
-
-					if (!sfvFileEntry.equals(sfvEvent.getTransferFile()) && sfvFileEntry.getUsername().equals(username)
-							&& sfvFileEntry.getXfertime() > 0) {
-						break;
-					}
-
-					if (!iter.hasNext()) {
-						AnnounceWriter writer = _config.getPathWriter("store.race", dir);
-						if (writer != null) {
-							fillEnvSection(env, sfvEvent, writer, true);
-							env.add("filesleft",
-									Integer.toString(sfvStatus.getMissing()));
-							sayOutput(ReplacerUtils.jprintf(_keyPrefix+".store.race", env, _bundle), writer);
-						}
-					}
+			if ((sfvEvent.getSFVInfo().getSize() - sfvStatus.getMissing()) != 1
+					&& raceData.getUserFiles(username) == 1) {
+				AnnounceWriter writer = _config.getPathWriter("store.race", dir);
+				if (writer != null) {
+					fillEnvSection(env, sfvEvent, writer, true);
+					env.add("filesleft",
+							Integer.toString(sfvStatus.getMissing()));
+					sayOutput(ReplacerUtils.jprintf(_keyPrefix+".store.race", env, _bundle), writer);
 				}
 			}
 
@@ -172,17 +161,16 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 			if (sfvStatus.isFinished()) {
 				AnnounceWriter writer = _config.getPathWriter("store.complete", dir);
 				if (writer != null) {
-					Collection<UploaderPosition> racers = RankUtils.userSort(SFVTools.getSFVFiles(dir, sfvEvent.getSFVData()),
-							"bytes", "high");
-					Collection<GroupPosition> groups = RankUtils.topFileGroup(SFVTools.getSFVFiles(dir, sfvEvent.getSFVData()));
+					Collection<UploaderPosition> racers = raceData.getUploaders("bytes", "high");
+					Collection<GroupPosition> groups = raceData.getGroups();
 
 					fillEnvSection(env, sfvEvent, writer, false);
 
 					env.add("racers", Integer.toString(racers.size()));
 					env.add("groups", Integer.toString(groups.size()));
 					env.add("files", Integer.toString(sfvEvent.getSFVInfo().getSize()));
-					env.add("size", Bytes.formatBytes(SFVTools.getSFVTotalBytes(dir, sfvEvent.getSFVData())));
-					env.add("speed", Bytes.formatBytes(SFVTools.getXferspeed(dir, sfvEvent.getSFVData())) + "/s");
+					env.add("size", Bytes.formatBytes(raceData.getTotalBytes()));
+					env.add("speed", Bytes.formatBytes(raceData.getXferspeed()) + "/s");
 					sayOutput(ReplacerUtils.jprintf(_keyPrefix+".store.complete", env, _bundle), writer);
 
 					// Find max users/groups to announce
@@ -294,8 +282,7 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 					(sfvStatus.getMissing() == halfway)) {
 				AnnounceWriter writer = _config.getPathWriter("store.halfway", dir);
 				if (writer != null) {
-					Collection<UploaderPosition> uploaders = RankUtils.userSort(SFVTools.getSFVFiles(dir, sfvEvent.getSFVData()),
-							"bytes", "high");
+					Collection<UploaderPosition> uploaders = raceData.getUploaders("bytes", "high");
 
 					UploaderPosition stat = uploaders.iterator().next();
 
@@ -401,8 +388,9 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 				sfvinfo = sfvData.getSFVInfo();
 				totalsfv += 1;
 				totalfiles += sfvinfo.getSize();
-				totalbytes += SFVTools.getSFVTotalBytes(dir,sfvData);
-				totalxfertime += SFVTools.getSFVTotalXfertime(dir,sfvData);
+				SFVRaceData raceData = sfvData.getSFVRaceData();
+				totalbytes += raceData.getTotalBytes();
+				totalxfertime += raceData.getTotalXfertime();
 			} catch (Exception e1) {
 				// Failed to get sfv data, safe to continue, that data
 				// will just not be available
@@ -414,8 +402,9 @@ public class SFVAnnouncer extends AbstractAnnouncer {
 						sfvinfo = sfvData.getSFVInfo();
 						totalsfv += 1;
 						totalfiles += sfvinfo.getSize();
-						totalbytes += SFVTools.getSFVTotalBytes(subdir,sfvData);
-						totalxfertime += SFVTools.getSFVTotalXfertime(subdir,sfvData);
+						SFVRaceData raceData = sfvData.getSFVRaceData();
+						totalbytes += raceData.getTotalBytes();
+						totalxfertime += raceData.getTotalXfertime();
 					} catch (Exception e1) {
 						// Failed to get sfv data, safe to continue, that data
 						// will just not be available
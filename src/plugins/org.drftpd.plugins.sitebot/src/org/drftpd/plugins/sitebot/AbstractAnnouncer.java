@@ -20,12 +20,14 @@ package org.drftpd.plugins.sitebot;
 import java.util.ResourceBundle;
 import java.util.StringTokenizer;
 
+import org.drftpd.event.EventDelivery;
 import org.drftpd.plugins.sitebot.config.AnnounceConfig;
 
 /**
  * @author djb61
  * @version $Id: AnnounceAnnouncer.java 2070 2010-09-18 00:15:11Z djb61 $
  */
+@EventDelivery(lane = "sitebot")
 public abstract class AbstractAnnouncer {
 
 	protected abstract void initialise(AnnounceConfig config, ResourceBundle bundle);
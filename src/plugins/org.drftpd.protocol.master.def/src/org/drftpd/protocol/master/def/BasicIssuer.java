@@ -16,6 +16,8 @@
  */
 package org.drftpd.protocol.master.def;
 
+import java.util.Collection;
+
 import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.RemoteSlave;
@@ -94,11 +96,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
 	}
 
 	public String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String user)
+			throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "receive", 
 				new String[]{String.valueOf(c), String.valueOf(position),
-				tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+				tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed),
+				user == null ? "" : user}));
 
 		return index;
 	}
@@ -134,20 +138,66 @@ public class BasicIssuer extends AbstractBasicIssuer {
 
 
 	public String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String user)
+			throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "send",
 				new String[]{String.valueOf(c), String.valueOf(position), tindex.toString(),
-				inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+				inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed),
+				user == null ? "" : user}));
+
+		return index;
+	}
+
+	public String issueBandwidthToSlave(RemoteSlave rslave, String scope, String key, long rate)
+			throws SlaveUnavailableException {
+		String index = rslave.fetchIndex();
+		rslave.sendCommand(new AsyncCommandArgument(index, "bandwidth",
+				new String[]{scope, key, String.valueOf(rate)}));
 
 		return index;
 	}
 
 	public String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, long skipAgeCutoff, long masterTime)
 		throws SlaveUnavailableException {
+		return issueRemergeToSlave(rslave, path, partialRemerge, skipAgeCutoff, masterTime, 0);
+	}
+
+	public String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, long skipAgeCutoff, long masterTime,
+			int credits) throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "remerge", new String[]{path, 
-				Boolean.toString(partialRemerge), Long.toString(skipAgeCutoff), Long.toString(masterTime)}));
+				Boolean.toString(partialRemerge), Long.toString(skipAgeCutoff), Long.toString(masterTime),
+				Integer.toString(credits)}));
+
+		return index;
+	}
+
+	public void issueRemergeCreditToSlave(RemoteSlave rslave, int credits) throws SlaveUnavailableException {
+		rslave.sendCommand(new AsyncCommandArgument("remergeCredit", "remergeCredit", Integer.toString(credits)));
+
+		return;
+	}
+
+	public String issueRemergeDigestToSlave(RemoteSlave rslave, Collection<String> paths)
+		throws SlaveUnavailableException {
+		String index = rslave.fetchIndex();
+		rslave.sendCommand(new AsyncCommandArgument(index, "remergeDigest",
+				paths.toArray(new String[paths.size()])));
+
+		return index;
+	}
+
+	public String issueRemergePathsToSlave(RemoteSlave rslave, Collection<String> paths, int credits)
+		throws SlaveUnavailableException {
+		String[] args = new String[paths.size() + 1];
+		args[0] = Integer.toString(credits);
+		int i = 1;
+		for (String path : paths) {
+			args[i++] = path;
+		}
+		String index = rslave.fetchIndex();
+		rslave.sendCommand(new AsyncCommandArgument(index, "remergePaths", args));
 
 		return index;
 	}
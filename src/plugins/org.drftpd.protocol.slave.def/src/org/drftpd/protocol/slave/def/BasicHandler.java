@@ -23,10 +23,14 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
@@ -38,8 +42,10 @@ import org.drftpd.io.PhysicalFile;
 import org.drftpd.master.QueuedOperation;
 import org.drftpd.protocol.slave.AbstractHandler;
 import org.drftpd.protocol.slave.SlaveProtocolCentral;
+import org.drftpd.slave.BandwidthShaper;
 import org.drftpd.slave.ConnectInfo;
 import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.RemergeDigests;
 import org.drftpd.slave.RootCollection;
 import org.drftpd.slave.RootPathContents;
 import org.drftpd.slave.Slave;
@@ -49,6 +55,7 @@ import org.drftpd.slave.TransferStatus;
 import org.drftpd.slave.async.AsyncCommandArgument;
 import org.drftpd.slave.async.AsyncResponse;
 import org.drftpd.slave.async.AsyncResponseChecksum;
+import org.drftpd.slave.async.AsyncResponseDigests;
 import org.drftpd.slave.async.AsyncResponseDiskStatus;
 import org.drftpd.slave.async.AsyncResponseException;
 import org.drftpd.slave.async.AsyncResponseMaxPath;
@@ -73,6 +80,8 @@ public class BasicHandler extends AbstractHandler {
 	// map works these are run against separate object instances.
 	private static AtomicBoolean remergePaused = new AtomicBoolean();
 	private static Object remergeWaitObj = new Object();
+	// directories the master is ready to receive, null when it doesn't limit them
+	private static volatile Semaphore remergeCredits;
 			
 	public BasicHandler(SlaveProtocolCentral central) {
 		super(central);
@@ -115,7 +124,7 @@ public class BasicHandler extends AbstractHandler {
 
 		int port = Integer.parseInt(data[1]);
 		Transfer t = new Transfer(new ActiveConnection(encrypted ? getSlaveObject().getSSLContext() : null,
-				new InetSocketAddress(address, port), useSSLClientHandshake),
+				new InetSocketAddress(address, port), useSSLClientHandshake, getSlaveObject().getZeroCopy()),
 				getSlaveObject(), new TransferIndex());
 		
 		getSlaveObject().addTransfer(t);
@@ -153,7 +162,7 @@ public class BasicHandler extends AbstractHandler {
 
 		try {
 			c = new PassiveConnection(encrypted ? getSlaveObject().getSSLContext() : null,
-					getSlaveObject().getPortRange(), useSSLClientMode);
+					getSlaveObject().getPortRange(), useSSLClientMode, getSlaveObject().getZeroCopy());
 			
 		} catch (IOException e) {
 			return new AsyncResponseException(ac.getIndex(), e);
@@ -187,6 +196,9 @@ public class BasicHandler extends AbstractHandler {
 		Transfer t = getSlaveObject().getTransfer(transferIndex);
 		t.setMinSpeed(minSpeed);
 		t.setMaxSpeed(maxSpeed);
+		if (ac.getArgsArray().length > 7) {
+			t.setUser(ac.getArgsArray()[7]);
+		}
 		getSlaveObject().sendResponse(new AsyncResponse(ac.getIndex())); // return calling thread
 		// on master
 		try {
@@ -214,9 +226,56 @@ public class BasicHandler extends AbstractHandler {
 		return new AsyncResponse(ac.getIndex());
 	}
 
+	/**
+	 * Lets the running remerge send more directories, no response is sent.
+	 */
+	public AsyncResponse handleRemergeCredit(AsyncCommandArgument ac) {
+		Semaphore credits = remergeCredits;
+		if (credits != null) {
+			credits.release(Integer.parseInt(ac.getArgs()));
+		}
+		return null;
+	}
+
+	/**
+	 * Changes a bandwidth limit, the arguments are the scope (upload, download,
+	 * user, section or transfer), the user, path or transfer index the scope
+	 * needs and the rate in bytes per second.
+	 */
+	public AsyncResponse handleBandwidth(AsyncCommandArgument ac) {
+		String scope = ac.getArgsArray()[0];
+		String key = ac.getArgsArray()[1];
+		long rate = Long.parseLong(ac.getArgsArray()[2]);
+		BandwidthShaper shaper = getSlaveObject().getBandwidthShaper();
+		if (scope.equals("upload")) {
+			shaper.setSlaveRate(Transfer.TRANSFER_RECEIVING_UPLOAD, rate);
+		} else if (scope.equals("download")) {
+			shaper.setSlaveRate(Transfer.TRANSFER_SENDING_DOWNLOAD, rate);
+		} else if (scope.equals("user")) {
+			shaper.setUserRate(key, rate);
+		} else if (scope.equals("section")) {
+			shaper.setSectionRate(key, rate);
+		} else if (scope.equals("transfer")) {
+			Transfer t = getSlaveObject().getTransfer(new TransferIndex(Integer.parseInt(key)));
+			if (t == null) {
+				return new AsyncResponseException(ac.getIndex(),
+						new IOException("No transfer with index " + key));
+			}
+			t.setMaxSpeed(rate);
+		} else {
+			return new AsyncResponseException(ac.getIndex(),
+					new IOException("Unknown bandwidth scope " + scope));
+		}
+		return new AsyncResponse(ac.getIndex());
+	}
+
 	public AsyncResponse handleRemerge(AsyncCommandArgument ac) {
 		try {
 			String[] argsArray = ac.getArgsArray();
+			// masters before credits were added send 4 arguments
+			int initialCredits = argsArray.length > 4 ? Integer.parseInt(argsArray[4]) : 0;
+			Semaphore credits = initialCredits > 0 ? new Semaphore(initialCredits) : null;
+			remergeCredits = credits;
 			long skipAgeCutoff = 0L;
 			boolean partialRemerge = Boolean.parseBoolean(argsArray[1]) && !getSlaveObject().ignorePartialRemerge();
 			if (partialRemerge) {
@@ -231,12 +290,87 @@ public class BasicHandler extends AbstractHandler {
 				logger.info("Partial remerge disabled, performing full remerge");
 			}
 			if (getSlaveObject().concurrentRootIteration()) {
-				handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
+				handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff,
+						credits, true);
 			} else {
-				handleRemergeRecursive2(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
+				handleRemergeRecursive2(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff,
+						credits, true);
+			}
+
+			return new AsyncResponse(ac.getIndex());
+		} catch (RemergeAbortedException e) {
+			logger.info("Remerge aborted, " + e.getMessage());
+
+			// the exception itself is private to the slave
+			return new AsyncResponseException(ac.getIndex(), new IOException("Remerge aborted, " + e.getMessage()));
+		} catch (Throwable e) {
+			logger.error("Exception during merging", e);
+
+			return new AsyncResponseException(ac.getIndex(), e);
+		}
+	}
+
+	/**
+	 * Returns the remerge digests of the given directories and of the
+	 * directories directly in them, the master uses them to find the
+	 * directories which changed since it last merged them.
+	 */
+	public AsyncResponse handleRemergeDigest(AsyncCommandArgument ac) {
+		try {
+			RemergeDigests digests = getSlaveObject().getRemergeDigests();
+			HashMap<String, Long> result = new HashMap<String, Long>();
+			for (String path : ac.getArgsArray()) {
+				if (path.equals("/")) {
+					// a new walk from the root, look for what changed while disconnected
+					digests.validate(path);
+				}
+				result.putAll(digests.getDigests(path));
+			}
+			digests.save();
+			return new AsyncResponseDigests(ac.getIndex(), result);
+		} catch (Throwable e) {
+			logger.error("Exception while computing remerge digests", e);
+
+			return new AsyncResponseException(ac.getIndex(), e);
+		}
+	}
+
+	/**
+	 * Remerges the given directories without descending into them, the
+	 * first argument is the number of remerge credits.<br>
+	 * The deepest directories are sent first so the master still sees the
+	 * contents of a directory before the directory itself.
+	 */
+	public AsyncResponse handleRemergePaths(AsyncCommandArgument ac) {
+		try {
+			String[] argsArray = ac.getArgsArray();
+			int initialCredits = Integer.parseInt(argsArray[0]);
+			Semaphore credits = initialCredits > 0 ? new Semaphore(initialCredits) : null;
+			remergeCredits = credits;
+			ArrayList<String> paths = new ArrayList<String>();
+			for (int i = 1; i < argsArray.length; i++) {
+				paths.add(argsArray[i]);
+			}
+			Collections.sort(paths, new Comparator<String>() {
+				public int compare(String path1, String path2) {
+					return getDepth(path2) - getDepth(path1);
+				}
+			});
+			logger.info("Remerging " + paths.size() + " changed directories");
+			for (String path : paths) {
+				if (getSlaveObject().concurrentRootIteration()) {
+					handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), path, false, 0L, credits, false);
+				} else {
+					handleRemergeRecursive2(getSlaveObject().getRoots(), path, false, 0L, credits, false);
+				}
 			}
 
 			return new AsyncResponse(ac.getIndex());
+		} catch (RemergeAbortedException e) {
+			logger.info("Remerge aborted, " + e.getMessage());
+
+			// the exception itself is private to the slave
+			return new AsyncResponseException(ac.getIndex(), new IOException("Remerge aborted, " + e.getMessage()));
 		} catch (Throwable e) {
 			logger.error("Exception during merging", e);
 
@@ -244,8 +378,63 @@ public class BasicHandler extends AbstractHandler {
 		}
 	}
 
+	/**
+	 * Sends a directory once the master is ready for it, the credit taken for
+	 * it is returned if it could not be sent.
+	 */
+	private void sendRemerge(AsyncResponseRemerge response, Semaphore credits)
+			throws RemergeAbortedException {
+		if (credits == null) {
+			sendResponse(response);
+			return;
+		}
+		acquireCredit(credits);
+		boolean sent = false;
+		try {
+			sendResponse(response);
+			sent = true;
+		} finally {
+			if (!sent) {
+				credits.release();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the master to grant another directory, giving up when the
+	 * connection to the master was lost or another remerge started.
+	 */
+	private void acquireCredit(Semaphore credits) throws RemergeAbortedException {
+		while (true) {
+			if (!getSlaveObject().isConnected()) {
+				throw new RemergeAbortedException("lost the connection to the master");
+			}
+			if (remergeCredits != credits) {
+				throw new RemergeAbortedException("a new remerge was started");
+			}
+			try {
+				if (credits.tryAcquire(1, TimeUnit.SECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				// Check again whether the remerge is still wanted
+			}
+		}
+	}
+
+	private static int getDepth(String path) {
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
 	private void handleRemergeRecursive2(RootCollection rootCollection,
-			String path, boolean partialRemerge, long skipAgeCutoff) {
+			String path, boolean partialRemerge, long skipAgeCutoff, Semaphore credits, boolean recursive)
+			throws RemergeAbortedException {
 		while (remergePaused.get()) {
 			synchronized(remergeWaitObj) {
 				try {
@@ -295,13 +484,13 @@ public class BasicHandler extends AbstractHandler {
 			if (partialRemerge && file.lastModified() > skipAgeCutoff) {
 				inodesModified = true;
 			}
-			if (file.isDirectory()) {
-				handleRemergeRecursive2(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
+			if (recursive && file.isDirectory()) {
+				handleRemergeRecursive2(rootCollection, fullPath, partialRemerge, skipAgeCutoff, credits, true);
 			}
 			fileList.add(new LightRemoteInode(file));
 		}
 		if (!partialRemerge || inodesModified) {
-			sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
+			sendRemerge(new AsyncResponseRemerge(path, fileList, pathLastModified), credits);
 			logger.debug("Sending " + path + " to the master");
 		} else {
 			logger.debug("Skipping send of " + path + " as no files changed since last merge");
@@ -309,7 +498,8 @@ public class BasicHandler extends AbstractHandler {
 	}
 
 	private void handleRemergeRecursiveConcurrent(RootCollection rootCollection,
-			String path, boolean partialRemerge, long skipAgeCutoff) {
+			String path, boolean partialRemerge, long skipAgeCutoff, Semaphore credits, boolean recursive)
+			throws RemergeAbortedException {
 		while (remergePaused.get()) {
 			synchronized(remergeWaitObj) {
 				try {
@@ -350,13 +540,14 @@ public class BasicHandler extends AbstractHandler {
 			if (partialRemerge && file.lastModified() > skipAgeCutoff) {
 				inodesModified = true;
 			}
-			if (file.isDirectory()) {
-				handleRemergeRecursiveConcurrent(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
+			if (recursive && file.isDirectory()) {
+				handleRemergeRecursiveConcurrent(rootCollection, fullPath, partialRemerge, skipAgeCutoff, credits,
+						true);
 			}
 			fileList.add(new LightRemoteInode(file));
 		}
 		if (!partialRemerge || inodesModified) {
-			sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
+			sendRemerge(new AsyncResponseRemerge(path, fileList, pathLastModified), credits);
 			logger.debug("Sending " + path + " to the master");
 		} else {
 			logger.debug("Skipping send of " + path + " as no files changed since last merge");
@@ -404,6 +595,9 @@ public class BasicHandler extends AbstractHandler {
 		Transfer t = getSlaveObject().getTransfer(transferIndex);
 		t.setMinSpeed(minSpeed);
 		t.setMaxSpeed(maxSpeed);
+		if (ac.getArgsArray().length > 7) {
+			t.setUser(ac.getArgsArray()[7]);
+		}
 		sendResponse(new AsyncResponse(ac.getIndex()));
 
 		// calling thread on master
@@ -442,4 +636,13 @@ public class BasicHandler extends AbstractHandler {
 	public AsyncResponse handleSSLCheck(AsyncCommandArgument ac) {
 		return new AsyncResponseSSLCheck(ac.getIndex(), getSlaveObject().getSSLContext() != null);
 	}
+
+	/**
+	 * Thrown to stop a remerge the master no longer waits for.
+	 */
+	private static class RemergeAbortedException extends Exception {
+		private RemergeAbortedException(String message) {
+			super(message);
+		}
+	}
 }
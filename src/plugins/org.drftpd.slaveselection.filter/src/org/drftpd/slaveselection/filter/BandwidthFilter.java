@@ -50,7 +50,7 @@ public class BandwidthFilter extends Filter {
 			SlaveStatus status = null;
 
 			try {
-				status = score.getRSlave().getSlaveStatusAvailable();
+				status = score.getSlaveStatus();
 			} catch (SlaveUnavailableException e) {
 				// how come the slave is offline? it was just online.
 				iter.remove();
@@ -59,7 +59,7 @@ public class MaxbandwidthFilter extends Filter {
 			SlaveStatus status;
 
 			try {
-				status = slavescore.getRSlave().getSlaveStatusAvailable();
+				status = slavescore.getSlaveStatus();
 			} catch (SlaveUnavailableException e) {
 				// how come the slave is offline? it was just online.
 				iter.remove();
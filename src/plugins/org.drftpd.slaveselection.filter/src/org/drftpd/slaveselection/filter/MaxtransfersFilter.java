@@ -51,7 +51,7 @@ public class MaxtransfersFilter extends Filter {
 			SlaveStatus status;
 
 			try {
-				status = score.getRSlave().getSlaveStatusAvailable();
+				status = score.getSlaveStatus();
 			} catch (SlaveUnavailableException e) {
 				// how come the slave is offline? it was just online.
 				iter.remove();
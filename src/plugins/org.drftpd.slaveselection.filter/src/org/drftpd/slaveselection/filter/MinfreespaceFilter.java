@@ -62,7 +62,7 @@ public class MinfreespaceFilter extends Filter {
 			long df;
 
 			try {
-				df = score.getRSlave().getSlaveStatusAvailable().getDiskSpaceAvailable();
+				df = score.getSlaveStatus().getDiskSpaceAvailable();
 
 				if (df < _minfreespace) {
 					if (_multiplier == 0) {
@@ -0,0 +1,112 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slaveselection.filter;
+
+import java.io.FileNotFoundException;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
+import org.drftpd.Time;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.master.RemoteSlave;
+import org.drftpd.slave.SlaveStatus;
+import org.drftpd.slave.Transfer;
+import org.drftpd.slaveselection.filter.ScoreChart.SlaveScore;
+import org.drftpd.usermanager.User;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.InodeHandleInterface;
+
+/**
+ * Removes the predicted time, in milliseconds, a transfer would take to
+ * complete on each slave * multiplier from the score.<br>
+ * The prediction uses the averages kept by the {@link SlaveEstimator} of the
+ * {@link SlaveSelectionManager}, the number of transfers the slave runs and the
+ * selections of the slave in the last <code>pending</code> time which have not
+ * started transferring yet, so the files of a race are spread over the slaves.
+ * @version $Id$
+ */
+public class PredictiveFilter extends Filter {
+	private float _multiplier;
+
+	private long _pending;
+
+	private SlaveEstimator _estimator;
+
+	public PredictiveFilter(int i, Properties p) {
+		super(i, p);
+		_multiplier = parseMultiplier(PropertyHelper.getProperty(p, i + ".multiplier"));
+		_pending = Time.parseTime(p.getProperty(i + ".pending", "1s"));
+	}
+
+	PredictiveFilter(int i, Properties p, SlaveEstimator estimator) {
+		this(i, p);
+		_estimator = estimator;
+	}
+
+	private SlaveEstimator getEstimator() {
+		if (_estimator != null) {
+			return _estimator;
+		}
+		// the filters are created before the manager is known to the GlobalContext
+		return ((SlaveSelectionManager) GlobalContext.getGlobalContext()
+				.getSlaveSelectionManager()).getSlaveEstimator();
+	}
+
+	public void process(ScoreChart scorechart, User user, InetAddress peer,
+			char direction, InodeHandleInterface inode, RemoteSlave sourceSlave) {
+		process(scorechart, direction, inode, System.currentTimeMillis());
+	}
+
+	protected void process(ScoreChart scorechart, char direction,
+			InodeHandleInterface inode, long currentTime) {
+		SlaveEstimator estimator = getEstimator();
+		long size = -1;
+		if (direction == Transfer.TRANSFER_SENDING_DOWNLOAD && inode instanceof FileHandle) {
+			try {
+				size = ((FileHandle) inode).getSize();
+			} catch (FileNotFoundException e) {
+				// the other filters decide what to do about it
+			}
+		}
+		if (size < 0) {
+			size = (long) Math.max(1d, estimator.getAverageSize(direction));
+		}
+
+		for (Iterator<SlaveScore> iter = scorechart.getSlaveScores().iterator(); iter.hasNext();) {
+			SlaveScore score = iter.next();
+			SlaveStatus status = null;
+
+			try {
+				status = score.getSlaveStatus();
+			} catch (SlaveUnavailableException e) {
+				iter.remove();
+				continue;
+			}
+
+			String name = score.getRSlave().getName();
+			int transfers = direction == Transfer.TRANSFER_RECEIVING_UPLOAD
+					? status.getTransfersReceiving() : status.getTransfersSending();
+			long predicted = estimator.getPredictedTime(name, direction, size, transfers,
+					estimator.getAssignments(name, direction, _pending, currentTime));
+			score.addScore(-(long) (predicted * _multiplier));
+		}
+	}
+}
@@ -0,0 +1,443 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slaveselection.filter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.drftpd.Bytes;
+import org.drftpd.Time;
+import org.drftpd.plugins.XferLog;
+import org.drftpd.slave.Transfer;
+
+/**
+ * Replays the transfers of an xferlog against simulated slaves to compare
+ * how the {@link PredictiveFilter} and the {@link BandwidthFilter} spread
+ * them, without a running master.<br>
+ * Each simulated slave shares its capacity equally between the transfers
+ * which have passed its time to first byte, like a saturated link does. The
+ * xferlog only has when a transfer finished and how long it took, so the
+ * recorded start times and sizes are replayed, not the recorded slaves.<br>
+ * It backs {@link PredictiveFilterTest} and is not used by the plugin itself.<br>
+ * Usage: PredictiveFilterSimulation &lt;xferlog&gt; &lt;name:capacity:latency&gt;...<br>
+ * for example PredictiveFilterSimulation logs/xferlog slave1:10MB:200ms slave2:4MB:1s
+ * @version $Id$
+ */
+public class PredictiveFilterSimulation {
+
+	private static final int TRANSFER_TIME = 5;
+
+	private static final int SIZE = 7;
+
+	// counted from the end as the path may contain spaces
+	private static final int DIRECTION = 7;
+
+	private List<TraceEntry> _trace;
+
+	private List<SimSlave> _slaves;
+
+	private long _now;
+
+	public PredictiveFilterSimulation(List<TraceEntry> trace, List<SimSlave> slaves) {
+		_trace = new ArrayList<TraceEntry>(trace);
+		Collections.sort(_trace, new Comparator<TraceEntry>() {
+			public int compare(TraceEntry o1, TraceEntry o2) {
+				return o1._start < o2._start ? -1 : (o1._start == o2._start ? 0 : 1);
+			}
+		});
+		_slaves = slaves;
+	}
+
+	/**
+	 * Reads the STOR and RETR lines of an xferlog.
+	 */
+	public static List<TraceEntry> readXferLog(String fileName) throws IOException {
+		ArrayList<TraceEntry> trace = new ArrayList<TraceEntry>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(fileName));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] args = line.trim().split("\\s+");
+				if (args.length < 17) {
+					continue;
+				}
+				char direction;
+				if (args[args.length - DIRECTION].equals("i")) {
+					direction = Transfer.TRANSFER_RECEIVING_UPLOAD;
+				} else if (args[args.length - DIRECTION].equals("o")) {
+					direction = Transfer.TRANSFER_SENDING_DOWNLOAD;
+				} else {
+					continue;
+				}
+				try {
+					long finished;
+					synchronized (XferLog.DATE_FMT) {
+						finished = XferLog.DATE_FMT.parse(args[0] + " " + args[1] + " " + args[2] + " "
+								+ args[3] + " " + args[4]).getTime();
+					}
+					trace.add(new TraceEntry(finished - Long.parseLong(args[TRANSFER_TIME]) * 1000L,
+							Long.parseLong(args[SIZE]), direction));
+				} catch (ParseException e) {
+					// not an xferlog line
+				} catch (NumberFormatException e) {
+					// not an xferlog line
+				}
+			}
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Replays the trace, choosing a slave for each transfer with the policy.
+	 */
+	public Result run(Policy policy) {
+		for (SimSlave slave : _slaves) {
+			slave._receiving.clear();
+			slave._sending.clear();
+		}
+		Result result = new Result(policy.getName());
+		if (_trace.isEmpty()) {
+			return result;
+		}
+		_now = _trace.get(0)._start;
+		for (TraceEntry entry : _trace) {
+			advance(entry._start, policy, result);
+			SimSlave slave = policy.pick(_slaves, entry, _now);
+			policy.assigned(slave, entry, _now);
+			slave.getTransfers(entry._direction).add(new SimTransfer(entry, _now + slave._latency));
+		}
+		advance(Long.MAX_VALUE, policy, result);
+		return result;
+	}
+
+	/**
+	 * Moves the clock to the target, or until no transfers are left when the
+	 * target is Long.MAX_VALUE, finishing the transfers on the way.
+	 */
+	private void advance(long target, Policy policy, Result result) {
+		while (true) {
+			// the next transfer to pass its time to first byte or to finish
+			double next = Double.MAX_VALUE;
+			for (SimSlave slave : _slaves) {
+				next = Math.min(next, slave.getNextEvent(Transfer.TRANSFER_RECEIVING_UPLOAD, _now));
+				next = Math.min(next, slave.getNextEvent(Transfer.TRANSFER_SENDING_DOWNLOAD, _now));
+			}
+			if (next == Double.MAX_VALUE && target == Long.MAX_VALUE) {
+				return;
+			}
+			// at least a millisecond, rounding must not stop the clock
+			long until = next > target ? target : Math.max(_now + 1, (long) Math.ceil(next));
+			for (SimSlave slave : _slaves) {
+				slave.progress(Transfer.TRANSFER_RECEIVING_UPLOAD, _now, until, policy, result);
+				slave.progress(Transfer.TRANSFER_SENDING_DOWNLOAD, _now, until, policy, result);
+			}
+			_now = until;
+			if (until >= target) {
+				return;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: PredictiveFilterSimulation <xferlog> <name:capacity:latency>...");
+			System.out.println("  for example: PredictiveFilterSimulation logs/xferlog slave1:10MB:200ms slave2:4MB:1s");
+			return;
+		}
+		ArrayList<SimSlave> slaves = new ArrayList<SimSlave>();
+		for (int i = 1; i < args.length; i++) {
+			String[] spec = args[i].split(":");
+			if (spec.length != 3) {
+				System.out.println("Invalid slave " + args[i] + ", expected name:capacity:latency");
+				return;
+			}
+			slaves.add(new SimSlave(spec[0], Bytes.parseBytes(spec[1]), Time.parseTime(spec[2])));
+		}
+		List<TraceEntry> trace = readXferLog(args[0]);
+		System.out.println("Replaying " + trace.size() + " transfers on " + slaves.size() + " slaves");
+		PredictiveFilterSimulation simulation = new PredictiveFilterSimulation(trace, slaves);
+		System.out.println(simulation.run(new BandwidthPolicy()));
+		System.out.println(simulation.run(new PredictivePolicy(new SlaveEstimator(0.2), 1000L)));
+	}
+
+	public static class TraceEntry {
+		private long _start;
+
+		private long _size;
+
+		private char _direction;
+
+		public TraceEntry(long start, long size, char direction) {
+			_start = start;
+			_size = size;
+			_direction = direction;
+		}
+	}
+
+	public static class SimSlave {
+		private String _name;
+
+		private double _capacity;
+
+		private long _latency;
+
+		private ArrayList<SimTransfer> _receiving = new ArrayList<SimTransfer>();
+
+		private ArrayList<SimTransfer> _sending = new ArrayList<SimTransfer>();
+
+		/**
+		 * @param capacity bytes per second, per direction
+		 * @param latency milliseconds until a transfer sends its first bytes
+		 */
+		public SimSlave(String name, long capacity, long latency) {
+			_name = name;
+			_capacity = capacity;
+			_latency = latency;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		private ArrayList<SimTransfer> getTransfers(char direction) {
+			return direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? _receiving : _sending;
+		}
+
+		private int getFlowing(char direction, long now) {
+			int flowing = 0;
+			for (SimTransfer transfer : getTransfers(direction)) {
+				if (transfer._firstByte <= now) {
+					flowing++;
+				}
+			}
+			return flowing;
+		}
+
+		/**
+		 * Returns the bytes per second the slave would report, only transfers
+		 * which have passed their time to first byte are moving data.
+		 */
+		public double getThroughput(char direction, long now) {
+			return getFlowing(direction, now) == 0 ? 0 : _capacity;
+		}
+
+		public int getTransferCount(char direction) {
+			return getTransfers(direction).size();
+		}
+
+		private double getNextEvent(char direction, long now) {
+			int flowing = getFlowing(direction, now);
+			double next = Double.MAX_VALUE;
+			for (SimTransfer transfer : getTransfers(direction)) {
+				if (transfer._firstByte > now) {
+					next = Math.min(next, transfer._firstByte);
+				} else {
+					next = Math.min(next, now + transfer._remaining * 1000d * flowing / _capacity);
+				}
+			}
+			return next;
+		}
+
+		private void progress(char direction, long from, long until, Policy policy, Result result) {
+			ArrayList<SimTransfer> transfers = getTransfers(direction);
+			if (until <= from || transfers.isEmpty()) {
+				return;
+			}
+			int flowing = getFlowing(direction, from);
+			double moved = flowing == 0 ? 0 : _capacity / flowing * (until - from) / 1000d;
+			for (Iterator<SimTransfer> iter = transfers.iterator(); iter.hasNext();) {
+				SimTransfer transfer = iter.next();
+				transfer._concurrency += transfers.size() * (double) (until - from);
+				if (transfer._firstByte > from) {
+					continue;
+				}
+				transfer._remaining -= moved;
+				if (transfer._remaining < 1d) {
+					iter.remove();
+					long elapsed = until - transfer._entry._start;
+					result.add(elapsed);
+					policy.finished(this, transfer._entry._direction, transfer._entry._size,
+							until - transfer._firstByte, _latency,
+							(float) (transfer._concurrency / Math.max(1L, elapsed)));
+				}
+			}
+		}
+	}
+
+	private static class SimTransfer {
+		private TraceEntry _entry;
+
+		private long _firstByte;
+
+		private double _remaining;
+
+		// transfers on the slave in the same direction, integrated over time
+		private double _concurrency;
+
+		private SimTransfer(TraceEntry entry, long firstByte) {
+			_entry = entry;
+			_firstByte = firstByte;
+			_remaining = Math.max(1L, entry._size);
+		}
+	}
+
+	/**
+	 * Chooses a slave for each transfer of the trace.
+	 */
+	public abstract static class Policy {
+		public abstract String getName();
+
+		public abstract SimSlave pick(List<SimSlave> slaves, TraceEntry entry, long now);
+
+		public void assigned(SimSlave slave, TraceEntry entry, long now) {
+		}
+
+		public void finished(SimSlave slave, char direction, long size, long elapsed,
+				long firstByteDelay, float concurrency) {
+		}
+	}
+
+	/**
+	 * Picks the slave with the least throughput, like the default configuration
+	 * with a {@link BandwidthFilter} and a {@link CycleFilter}.
+	 */
+	public static class BandwidthPolicy extends Policy {
+		private int _cycle;
+
+		public String getName() {
+			return "bandwidth";
+		}
+
+		public SimSlave pick(List<SimSlave> slaves, TraceEntry entry, long now) {
+			SimSlave best = null;
+			double bestThroughput = Double.MAX_VALUE;
+			for (int i = 0; i < slaves.size(); i++) {
+				SimSlave slave = slaves.get((_cycle + i) % slaves.size());
+				double throughput = slave.getThroughput(entry._direction, now);
+				if (throughput < bestThroughput) {
+					best = slave;
+					bestThroughput = throughput;
+				}
+			}
+			_cycle++;
+			return best;
+		}
+	}
+
+	/**
+	 * Picks the slave with the least predicted time, like a {@link PredictiveFilter}.
+	 */
+	public static class PredictivePolicy extends Policy {
+		private SlaveEstimator _estimator;
+
+		private long _pending;
+
+		public PredictivePolicy(SlaveEstimator estimator, long pending) {
+			_estimator = estimator;
+			_pending = pending;
+		}
+
+		public String getName() {
+			return "predictive";
+		}
+
+		public SimSlave pick(List<SimSlave> slaves, TraceEntry entry, long now) {
+			SimSlave best = null;
+			long bestTime = Long.MAX_VALUE;
+			long size = entry._direction == Transfer.TRANSFER_SENDING_DOWNLOAD ? entry._size
+					: (long) Math.max(1d, _estimator.getAverageSize(entry._direction));
+			for (SimSlave slave : slaves) {
+				long predicted = _estimator.getPredictedTime(slave.getName(), entry._direction, size,
+						slave.getTransferCount(entry._direction),
+						_estimator.getAssignments(slave.getName(), entry._direction, _pending, now));
+				if (predicted < bestTime) {
+					best = slave;
+					bestTime = predicted;
+				}
+			}
+			return best;
+		}
+
+		public void assigned(SimSlave slave, TraceEntry entry, long now) {
+			_estimator.addAssignment(slave.getName(), entry._direction, now);
+		}
+
+		public void finished(SimSlave slave, char direction, long size, long elapsed,
+				long firstByteDelay, float concurrency) {
+			_estimator.addTransfer(slave.getName(), direction, size, elapsed, firstByteDelay, concurrency);
+		}
+	}
+
+	/**
+	 * The time from the start to the end of each transfer.
+	 */
+	public static class Result {
+		private String _name;
+
+		private ArrayList<Long> _times = new ArrayList<Long>();
+
+		private Result(String name) {
+			_name = name;
+		}
+
+		private void add(long time) {
+			_times.add(time);
+		}
+
+		public int getTransfers() {
+			return _times.size();
+		}
+
+		public long getMean() {
+			if (_times.isEmpty()) {
+				return 0;
+			}
+			long total = 0;
+			for (long time : _times) {
+				total += time;
+			}
+			return total / _times.size();
+		}
+
+		public long getPercentile(int percentile) {
+			if (_times.isEmpty()) {
+				return 0;
+			}
+			ArrayList<Long> sorted = new ArrayList<Long>(_times);
+			Collections.sort(sorted);
+			return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percentile / 100));
+		}
+
+		public String toString() {
+			return _name + " - " + getTransfers() + " transfers, mean " + getMean() + "ms, 95th percentile "
+					+ getPercentile(95) + "ms, max " + getPercentile(100) + "ms";
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slaveselection.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.ObjectNotFoundException;
+import org.drftpd.master.RemoteSlave;
+import org.drftpd.slave.DiskStatus;
+import org.drftpd.slave.SlaveStatus;
+import org.drftpd.slave.Transfer;
+import org.drftpd.slaveselection.filter.MinfreespaceFilterTest.RemoteSlaveTesting;
+import org.drftpd.slaveselection.filter.PredictiveFilterSimulation.SimSlave;
+import org.drftpd.slaveselection.filter.PredictiveFilterSimulation.TraceEntry;
+
+/**
+ * @version $Id$
+ */
+public class PredictiveFilterTest extends TestCase {
+
+	private static final char UP = Transfer.TRANSFER_RECEIVING_UPLOAD;
+
+	public PredictiveFilterTest(String fName) {
+		super(fName);
+	}
+
+	public void testSimple() throws ObjectNotFoundException {
+		Properties p = new Properties();
+		p.put("1.multiplier", "1");
+		p.put("1.pending", "1s");
+		SlaveEstimator estimator = new SlaveEstimator(0.5);
+		// slave1 moves 10MB/s on its own, slave2 5MB/s with two transfers running
+		estimator.addTransfer("slave1", UP, 10000000L, 1000L, 100L, 1f);
+		estimator.addTransfer("slave2", UP, 5000000L, 1000L, 300L, 2f);
+
+		SlaveStatus idle = new SlaveStatus(new DiskStatus(0, 0), 0, 0, 0, 0, 0, 0);
+		SlaveStatus busy = new SlaveStatus(new DiskStatus(0, 0), 0, 0, 0, 1, 0, 0);
+		RemoteSlave[] rslaves = {
+				new RemoteSlaveTesting("slave1", Collections.emptyList(), busy),
+				new RemoteSlaveTesting("slave2", Collections.emptyList(), idle) };
+		ScoreChart sc = new ScoreChart(Arrays.asList(rslaves));
+		new PredictiveFilter(1, p, estimator).process(sc, UP, null, 10000L);
+
+		// the upload size is not known, the average of 7.5MB is used
+		// 100ms + 2 transfers sharing 10MB/s on slave1, 300ms + 1 transfer on 10MB/s on slave2
+		assertEquals(-1600L, sc.getScoreForSlave(rslaves[0]).getScore());
+		assertEquals(-1050L, sc.getScoreForSlave(rslaves[1]).getScore());
+
+		// slave2 was just picked twice, the transfers have not started yet
+		estimator.addAssignment("slave2", UP, 9500L);
+		estimator.addAssignment("slave2", UP, 9900L);
+		estimator.addAssignment("slave1", UP, 5000L);
+		sc = new ScoreChart(Arrays.asList(rslaves));
+		new PredictiveFilter(1, p, estimator).process(sc, UP, null, 10000L);
+		assertEquals(-1600L, sc.getScoreForSlave(rslaves[0]).getScore());
+		assertEquals(-2550L, sc.getScoreForSlave(rslaves[1]).getScore());
+	}
+
+	/**
+	 * Races of 20 files uploaded at once to a fast and a slow slave, the
+	 * transfers report no throughput until their first bytes arrive.
+	 */
+	public void testSimulation() {
+		ArrayList<TraceEntry> trace = new ArrayList<TraceEntry>();
+		for (int race = 0; race < 10; race++) {
+			for (int file = 0; file < 20; file++) {
+				trace.add(new TraceEntry(race * 120000L + file * 50L, 15000000L, UP));
+			}
+		}
+		ArrayList<SimSlave> slaves = new ArrayList<SimSlave>();
+		slaves.add(new SimSlave("fast", 20000000L, 500L));
+		slaves.add(new SimSlave("slow", 5000000L, 500L));
+		PredictiveFilterSimulation simulation = new PredictiveFilterSimulation(trace, slaves);
+		PredictiveFilterSimulation.Result bandwidth = simulation.run(new PredictiveFilterSimulation.BandwidthPolicy());
+		PredictiveFilterSimulation.Result predictive = simulation.run(
+				new PredictiveFilterSimulation.PredictivePolicy(new SlaveEstimator(0.2), 1000L));
+		assertEquals(trace.size(), bandwidth.getTransfers());
+		assertEquals(trace.size(), predictive.getTransfers());
+		assertTrue(predictive.getMean() < bandwidth.getMean());
+		assertTrue(predictive.getPercentile(100) < bandwidth.getPercentile(100));
+	}
+}
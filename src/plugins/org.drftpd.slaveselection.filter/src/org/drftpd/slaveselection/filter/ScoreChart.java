@@ -23,7 +23,9 @@ import java.util.Iterator;
 
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.exceptions.ObjectNotFoundException;
+import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.RemoteSlave;
+import org.drftpd.slave.SlaveStatus;
 
 /**
  * @author mog
@@ -107,11 +109,23 @@ public class ScoreChart {
 	public static class SlaveScore implements Comparable<SlaveScore> {
 		private RemoteSlave _rslave;
 		private long _score;
+		private SlaveStatus _status;
 
 		public SlaveScore(RemoteSlave rslave) {
 			_rslave = rslave;
 		}
 
+		/**
+		 * Returns the status of the slave as it was the first time a filter
+		 * asked for it, every filter of a selection scores the same snapshot.
+		 */
+		public SlaveStatus getSlaveStatus() throws SlaveUnavailableException {
+			if (_status == null) {
+				_status = _rslave.getSlaveStatusAvailable();
+			}
+			return _status;
+		}
+
 		public void addScore(long score) {
 			_score += score;
 		}
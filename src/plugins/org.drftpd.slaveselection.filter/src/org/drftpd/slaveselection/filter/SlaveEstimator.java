@@ -0,0 +1,228 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slaveselection.filter;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.drftpd.misc.CaseInsensitiveHashMap;
+import org.drftpd.slave.Transfer;
+
+/**
+ * Keeps exponentially weighted moving averages of how each slave performed
+ * on finished transfers, per direction, to predict how long a new transfer
+ * would take on it.<br>
+ * The averages are:
+ * <ul>
+ * <li>capacity, the speed of a transfer multiplied by the number of transfers
+ * the slave ran in the same direction at the same time, in bytes per second</li>
+ * <li>latency, the time from issuing a transfer until the first bytes were reported</li>
+ * </ul>
+ * The slaves each selection picked are also remembered for a short while, a
+ * burst of selections, the files of a race arriving at once, would otherwise
+ * all see the same idle slave because the transfers have not started yet.
+ * @version $Id$
+ */
+public class SlaveEstimator {
+
+	/**
+	 * Scale used when no slave has a capacity yet, all slaves are then equal
+	 * and only the number of transfers they run matters.
+	 */
+	private static final double DEFAULT_CAPACITY = 1024 * 1024;
+
+	// assignments older than this are never asked for
+	private static final long MAX_ASSIGNMENT_AGE = 60000L;
+
+	private double _weight;
+
+	private CaseInsensitiveHashMap<String, Estimate> _receiving = new CaseInsensitiveHashMap<String, Estimate>();
+
+	private CaseInsensitiveHashMap<String, Estimate> _sending = new CaseInsensitiveHashMap<String, Estimate>();
+
+	private double _sizeReceiving = -1;
+
+	private double _sizeSending = -1;
+
+	/**
+	 * @param weight how much a new sample counts towards the averages, between 0 and 1
+	 */
+	public SlaveEstimator(double weight) {
+		if (weight <= 0 || weight > 1) {
+			throw new IllegalArgumentException("weight must be > 0 and <= 1");
+		}
+		_weight = weight;
+	}
+
+	private CaseInsensitiveHashMap<String, Estimate> getEstimates(char direction) {
+		if (direction == Transfer.TRANSFER_RECEIVING_UPLOAD) {
+			return _receiving;
+		} else if (direction == Transfer.TRANSFER_SENDING_DOWNLOAD) {
+			return _sending;
+		}
+		throw new IllegalArgumentException("unrecognized direction - " + direction);
+	}
+
+	private Estimate getEstimate(String slaveName, char direction) {
+		CaseInsensitiveHashMap<String, Estimate> estimates = getEstimates(direction);
+		Estimate estimate = estimates.get(slaveName);
+		if (estimate == null) {
+			estimate = new Estimate();
+			estimates.put(slaveName, estimate);
+		}
+		return estimate;
+	}
+
+	private double average(double average, double sample) {
+		if (average < 0) {
+			return sample;
+		}
+		return average + _weight * (sample - average);
+	}
+
+	/**
+	 * Adds a finished transfer to the averages of the slave.
+	 * @param transfered bytes transfered
+	 * @param elapsed milliseconds the transfer ran
+	 * @param firstByteDelay milliseconds until the first bytes were reported or -1
+	 * @param concurrency average number of transfers in the same direction on the slave
+	 */
+	public synchronized void addTransfer(String slaveName, char direction, long transfered,
+			long elapsed, long firstByteDelay, float concurrency) {
+		Estimate estimate = getEstimate(slaveName, direction);
+		if (firstByteDelay >= 0) {
+			estimate._latency = average(estimate._latency, firstByteDelay);
+		}
+		if (transfered <= 0 || elapsed <= 0) {
+			return;
+		}
+		estimate._capacity = average(estimate._capacity,
+				transfered * 1000d / elapsed * Math.max(1f, concurrency));
+		if (direction == Transfer.TRANSFER_RECEIVING_UPLOAD) {
+			_sizeReceiving = average(_sizeReceiving, transfered);
+		} else {
+			_sizeSending = average(_sizeSending, transfered);
+		}
+	}
+
+	/**
+	 * Remembers that a selection picked the slave.
+	 */
+	public synchronized void addAssignment(String slaveName, char direction, long time) {
+		LinkedList<Long> assignments = getEstimate(slaveName, direction)._assignments;
+		assignments.addLast(time);
+		prune(assignments, time);
+	}
+
+	private void prune(LinkedList<Long> assignments, long now) {
+		while (!assignments.isEmpty() && now - assignments.getFirst() > MAX_ASSIGNMENT_AGE) {
+			assignments.removeFirst();
+		}
+	}
+
+	/**
+	 * Returns how many times the slave was picked in the last <code>age</code> milliseconds.
+	 */
+	public synchronized int getAssignments(String slaveName, char direction, long age, long now) {
+		Estimate estimate = getEstimates(direction).get(slaveName);
+		if (estimate == null) {
+			return 0;
+		}
+		prune(estimate._assignments, now);
+		int count = 0;
+		for (Iterator<Long> iter = estimate._assignments.descendingIterator(); iter.hasNext();) {
+			if (now - iter.next() > age) {
+				break;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the capacity of the slave in bytes per second, or the average
+	 * of all slaves when the slave has no finished transfers yet.
+	 */
+	public synchronized double getCapacity(String slaveName, char direction) {
+		Estimate estimate = getEstimates(direction).get(slaveName);
+		if (estimate != null && estimate._capacity > 0) {
+			return estimate._capacity;
+		}
+		double total = 0;
+		int count = 0;
+		for (Estimate other : getEstimates(direction).values()) {
+			if (other._capacity > 0) {
+				total += other._capacity;
+				count++;
+			}
+		}
+		return count == 0 ? DEFAULT_CAPACITY : total / count;
+	}
+
+	/**
+	 * Returns the latency of the slave in milliseconds, or the average of all
+	 * slaves when the slave has no finished transfers yet.
+	 */
+	public synchronized double getLatency(String slaveName, char direction) {
+		Estimate estimate = getEstimates(direction).get(slaveName);
+		if (estimate != null && estimate._latency >= 0) {
+			return estimate._latency;
+		}
+		double total = 0;
+		int count = 0;
+		for (Estimate other : getEstimates(direction).values()) {
+			if (other._latency >= 0) {
+				total += other._latency;
+				count++;
+			}
+		}
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Returns the average size of a transfer in the direction, used when the
+	 * size of the file is not known yet, or -1 if there were no transfers.
+	 */
+	public synchronized double getAverageSize(char direction) {
+		return direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? _sizeReceiving : _sizeSending;
+	}
+
+	/**
+	 * Predicts how long a transfer of <code>size</code> bytes would take to
+	 * complete on the slave, in milliseconds.<br>
+	 * The slave shares its capacity between the transfers it already runs,
+	 * the ones it was picked for but which have not started yet and the new
+	 * transfer.
+	 * @param transfers transfers the slave is running in the direction
+	 * @param assignments selections of the slave which are not counted in transfers yet
+	 */
+	public synchronized long getPredictedTime(String slaveName, char direction, long size,
+			int transfers, int assignments) {
+		double sharing = Math.max(0, transfers) + Math.max(0, assignments) + 1;
+		return (long) (getLatency(slaveName, direction)
+				+ size * sharing * 1000d / getCapacity(slaveName, direction));
+	}
+
+	private static class Estimate {
+		private double _capacity = -1;
+
+		private double _latency = -1;
+
+		private LinkedList<Long> _assignments = new LinkedList<Long>();
+	}
+}
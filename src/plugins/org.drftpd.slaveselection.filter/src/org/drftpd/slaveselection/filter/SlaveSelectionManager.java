@@ -25,6 +25,9 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.event.SlaveTransferEvent;
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.master.BaseFtpConnection;
 import org.drftpd.master.RemoteSlave;
@@ -50,9 +53,12 @@ public class SlaveSelectionManager extends SlaveSelectionManagerInterface {
 	
 	private CaseInsensitiveHashMap<String, Class<Filter>> _filtersMap;
 
+	private SlaveEstimator _estimator = new SlaveEstimator(0.2);
+
 	public SlaveSelectionManager() throws IOException {
 		initFilters();
 		reload();
+		AnnotationProcessor.process(this);
 	}
 	
 	private void initFilters() {
@@ -139,7 +145,24 @@ public class SlaveSelectionManager extends SlaveSelectionManagerInterface {
 
 	private RemoteSlave process(String filterchain, ScoreChart sc, BaseFtpConnection conn, char direction, InodeHandle file,
 			RemoteSlave sourceSlave) throws NoAvailableSlaveException {
-		return getFilterChain(filterchain).getBestSlave(sc, conn, direction, file, sourceSlave);
+		RemoteSlave rslave = getFilterChain(filterchain).getBestSlave(sc, conn, direction, file, sourceSlave);
+		_estimator.addAssignment(rslave.getName(), direction, System.currentTimeMillis());
+		return rslave;
+	}
+
+	public SlaveEstimator getSlaveEstimator() {
+		return _estimator;
+	}
+
+	@EventSubscriber
+	public void onSlaveTransferEvent(SlaveTransferEvent event) {
+		if (event.isFailed() && event.getTransfered() == 0L) {
+			// it never started, says nothing about how fast the slave is
+			return;
+		}
+		_estimator.addTransfer(event.getRSlave().getName(), event.getDirection(),
+				event.getTransfered(), event.getElapsed(), event.getFirstByteDelay(),
+				event.getConcurrency());
 	}
 
 	public void reload() throws FileNotFoundException, IOException {
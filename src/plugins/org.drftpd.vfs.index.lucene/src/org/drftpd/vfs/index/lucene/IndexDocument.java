@@ -0,0 +1,233 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.FileNotFoundException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.InodeHandle;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.index.AdvancedSearchParams.InodeType;
+
+/**
+ * A {@link Document} and its {@link Field}s, reused for every inode indexed
+ * by a thread as suggested by
+ * <a href="http://wiki.apache.org/lucene-java/ImproveIndexingSpeed">this article</a>.<br>
+ * Each thread has its own so that many threads can index at the same time, a
+ * filled document must be handed to the IndexWriter before the thread fills
+ * it again.
+ * @version $Id$
+ */
+public class IndexDocument {
+	public static final String NAME = "name";
+	public static final String FULL_NAME = "fullName";
+	public static final String FULL_NAME_REVERSE = "fullNameReverse";
+	public static final String PARENT_PATH = "parentPath";
+	public static final String FULL_PATH = "fullPath";
+	public static final String OWNER = "owner";
+	public static final String GROUP = "group";
+	public static final String TYPE = "type";
+	public static final String SLAVES = "slaves";
+	public static final String SLAVES_NBR = "nbrOfSlaves";
+	public static final String LASTMODIFIED = "lastModified";
+	public static final String SIZE = "size";
+
+	private static final ThreadLocal<IndexDocument> DOCUMENTS = new ThreadLocal<IndexDocument>() {
+		protected IndexDocument initialValue() {
+			return new IndexDocument();
+		}
+	};
+
+	private final Document _document = new Document();
+
+	private final Field _name = new Field(NAME, "", Field.Store.YES, Field.Index.ANALYZED);
+	private final Field _fullName = new Field(FULL_NAME, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _fullNameReverse = new Field(FULL_NAME_REVERSE, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _parentPath = new Field(PARENT_PATH, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _fullPath = new Field(FULL_PATH, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _owner = new Field(OWNER, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _group = new Field(GROUP, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _type = new Field(TYPE, "", Field.Store.YES, Field.Index.NOT_ANALYZED);
+	private final Field _slaves = new Field(SLAVES, "", Field.Store.YES, Field.Index.ANALYZED);
+	private final NumericField _slavesNbr = new NumericField(SLAVES_NBR, Field.Store.YES, Boolean.TRUE);
+	private final NumericField _lastModified = new NumericField(LASTMODIFIED, Field.Store.YES, Boolean.TRUE);
+	private final NumericField _size = new NumericField(SIZE, Field.Store.YES, Boolean.TRUE);
+
+	private IndexDocument() {
+		_document.add(_name);
+		_document.add(_fullName);
+		_document.add(_fullNameReverse);
+		_document.add(_parentPath);
+		_document.add(_fullPath);
+		_document.add(_owner);
+		_document.add(_group);
+		_document.add(_type);
+		_document.add(_slaves);
+		_document.add(_slavesNbr);
+		_document.add(_lastModified);
+		_document.add(_size);
+	}
+
+	/**
+	 * Returns the document of the current thread.
+	 */
+	public static IndexDocument get() {
+		return DOCUMENTS.get();
+	}
+
+	/**
+	 * Returns the value of the fullPath field of an inode, directories end with a separator.
+	 */
+	public static String getFullPath(String path, boolean isDirectory) {
+		return isDirectory ? path + VirtualFileSystem.separator : path;
+	}
+
+	/**
+	 * Shortcut to create Lucene Document from the Inode's data. The fields that
+	 * are stored in the index are:
+	 * <ul>
+	 * <li>name - The name of the inode</li>
+	 * <li>fullName - The full name of the inode</li>
+	 * <li>fullNameReverse - The full name of the inode in reverse order</li>
+	 * <li>parentPath - The full path of the parent inode</li>
+	 * <li>fullPath - The full path of the inode</li>
+	 * <li>owner - The user who owns the file</li>
+	 * <li>group - The group of the user who owns the file</li>
+	 * <li>type - File or Directory</li>
+	 * <li>slaves - If the inode is a file, then the slaves are stored</li>
+	 * <li>lastModified - Timestamp of when the inode was last modified</li>
+	 * <li>size - The size of the inode</li>
+	 * </ul>
+	 * 
+	 * @param inode
+	 * @throws FileNotFoundException
+	 */
+	public Document fill(ImmutableInodeHandle inode) throws FileNotFoundException {
+		InodeType inodeType = inode.isDirectory() ? InodeType.DIRECTORY : InodeType.FILE;
+
+		_name.setValue(inode.getName());
+		_fullName.setValue(inode.getName());
+		_fullNameReverse.setValue(new StringBuilder(inode.getName()).reverse().toString());
+		if (inode.getPath().equals(VirtualFileSystem.separator)) {
+			_parentPath.setValue("");
+		} else {
+			_parentPath.setValue(inode.getParent().getPath() + VirtualFileSystem.separator);
+		}
+		if (inode.isDirectory())
+			_fullPath.setValue(inode.getPath() + VirtualFileSystem.separator);
+		else
+			_fullPath.setValue(inode.getPath());
+		_owner.setValue(inode.getUsername());
+		_group.setValue(inode.getGroup());
+		_type.setValue(inodeType.toString().toLowerCase().substring(0, 1));
+
+		if (inodeType == InodeType.FILE) {
+			StringBuffer sb = new StringBuffer();
+			for (String slaveName : inode.getSlaveNames()) {
+				sb.append(slaveName).append(",");
+			}
+			_slavesNbr.setIntValue(inode.getSlaveNames().size());
+			_slaves.setValue(sb.toString());
+		} else {
+			_slavesNbr.setIntValue(0);
+		}
+
+		_lastModified.setLongValue(inode.lastModified());
+		_size.setLongValue(inode.getSize());
+
+		return _document;
+	}
+	
+	/**
+	 * Shortcut to create Lucene Document from the Inode's data. The fields that
+	 * are stored in the index are:
+	 * <ul>
+	 * <li>name - The name of the inode</li>
+	 * <li>fullName - The full name of the inode</li>
+	 * <li>fullNameReverse - The full name of the inode in reverse order</li>
+	 * <li>parentPath - The full path of the parent inode</li>
+	 * <li>fullPath - The full path of the inode</li>
+	 * <li>owner - The user who owns the file</li>
+	 * <li>group - The group of the user who owns the file</li>
+	 * <li>type - File or Directory</li>
+	 * <li>slaves - If the inode is a file, then the slaves are stored</li>
+	 * <li>lastModified - Timestamp of when the inode was last modified</li>
+	 * <li>size - The size of the inode</li>
+	 * </ul>
+	 * 
+	 * @param inode
+	 * @throws FileNotFoundException
+	 */
+	public Document fill(InodeHandle inode) throws FileNotFoundException {
+		InodeType inodeType = inode.isDirectory() ? InodeType.DIRECTORY : InodeType.FILE;
+
+		_name.setValue(inode.getName());
+		_fullName.setValue(inode.getName());
+		_fullNameReverse.setValue(new StringBuilder(inode.getName()).reverse().toString());
+		if (inode.getPath().equals(VirtualFileSystem.separator)) {
+			_parentPath.setValue("");
+		} else {
+			_parentPath.setValue(inode.getParent().getPath() + VirtualFileSystem.separator);
+		}
+		if (inode.isDirectory())
+			_fullPath.setValue(inode.getPath() + VirtualFileSystem.separator);
+		else
+			_fullPath.setValue(inode.getPath());
+		_owner.setValue(inode.getUsername());
+		_group.setValue(inode.getGroup());
+		_type.setValue(inodeType.toString().toLowerCase().substring(0, 1));
+
+		if (inodeType == InodeType.FILE) {
+			StringBuffer sb = new StringBuffer();
+			for (String slaveName : ((FileHandle) inode).getSlaveNames()) {
+				sb.append(slaveName).append(",");
+			}
+			_slavesNbr.setIntValue(((FileHandle) inode).getSlaveNames().size());
+			_slaves.setValue(sb.toString());
+		} else {
+			_slavesNbr.setIntValue(0);
+		}
+
+		_lastModified.setLongValue(inode.lastModified());
+		_size.setLongValue(inode.getSize());
+
+		return _document;
+	}
+
+	/**
+	 * Moves a document read from the index to a new path, the fields are
+	 * added to the document so it has to be written before this thread uses
+	 * the document again.
+	 */
+	public void move(Document doc, String newPath) {
+		doc.removeField(FULL_PATH);
+		doc.removeField(PARENT_PATH);
+		_fullPath.setValue(newPath);
+		if (newPath.equals(VirtualFileSystem.separator)) {
+			_parentPath.setValue("");
+		} else {
+			_parentPath.setValue(VirtualFileSystem.stripLast(newPath) + VirtualFileSystem.separator);
+		}
+		doc.add(_fullPath);
+		doc.add(_parentPath);
+	}
+}
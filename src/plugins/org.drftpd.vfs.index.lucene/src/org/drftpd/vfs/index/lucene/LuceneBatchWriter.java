@@ -0,0 +1,312 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+
+/**
+ * Collects the changes to the index and writes them in batches.<br>
+ * A batch is written once every batch window or as soon as it holds batch
+ * size inodes. Changes to the same inode within a batch are merged into one,
+ * a remerge or an upload changes the size and last modified time of the same
+ * directories over and over, only the last state of each inode is indexed.<br>
+ * Inodes are read when the batch is written, not when the change is queued.<br>
+ * If a batch cannot be written the changes not written yet are queued again,
+ * behind any newer change of the same inode, and retried with the next batch.
+ * @version $Id$
+ */
+public class LuceneBatchWriter extends Thread {
+	private static final Logger logger = Logger.getLogger(LuceneBatchWriter.class);
+
+	private static final int ADD = 0;
+	private static final int UPDATE = 1;
+	private static final int DELETE = 2;
+
+	private int _batchWindow = 1000;
+	private int _batchSize = 1000;
+
+	private boolean _stop;
+
+	// pending changes by fullPath, guarded by this
+	private LinkedHashMap<String, Change> _pending = new LinkedHashMap<String, Change>();
+
+	// guards writing a batch, the writer and the searcher manager
+	private final Object _flushLock = new Object();
+
+	private IndexWriter _writer;
+	private LuceneSearcherManager _searcherManager;
+	private LuceneIndexBuilder _recorder;
+
+	private volatile long _written;
+	private volatile long _batches;
+
+	// guarded by this
+	private long _merged;
+
+	public LuceneBatchWriter() {
+		setName("IndexWriterThread");
+	}
+
+	/**
+	 * Sets the writer the batches are written to, pending changes are kept.
+	 * @param searcherManager told about each batch written, can be null
+	 */
+	public void open(IndexWriter writer, LuceneSearcherManager searcherManager) {
+		synchronized (_flushLock) {
+			_writer = writer;
+			_searcherManager = searcherManager;
+		}
+	}
+
+	/**
+	 * Drops the writer and the pending changes.
+	 */
+	public void close() {
+		synchronized (_flushLock) {
+			_writer = null;
+			_searcherManager = null;
+			synchronized (this) {
+				_pending.clear();
+			}
+		}
+	}
+
+	/**
+	 * Sets the index rebuild the paths written are recorded for, or null once it is over.<br>
+	 * While set additions replace the document of the same path, the rebuild may
+	 * have indexed the inode already.
+	 */
+	public void setRecorder(LuceneIndexBuilder recorder) {
+		synchronized (_flushLock) {
+			_recorder = recorder;
+		}
+	}
+
+	public LuceneIndexBuilder getRecorder() {
+		synchronized (_flushLock) {
+			return _recorder;
+		}
+	}
+
+	/**
+	 * Returns the lock held while a batch is written, holding it keeps the
+	 * batches out of the index.
+	 */
+	protected Object getWriteLock() {
+		return _flushLock;
+	}
+
+	public void add(ImmutableInodeHandle inode) {
+		queue(inode, ADD);
+	}
+
+	public void update(ImmutableInodeHandle inode) {
+		queue(inode, UPDATE);
+	}
+
+	public void delete(ImmutableInodeHandle inode) {
+		queue(inode, DELETE);
+	}
+
+	private synchronized void queue(ImmutableInodeHandle inode, int type) {
+		String fullPath = IndexDocument.getFullPath(inode.getPath(), inode.isDirectory());
+		Change previous = _pending.remove(fullPath);
+		if (previous != null) {
+			_merged++;
+			if (type != DELETE) {
+				// not in the index yet it stays an add, otherwise the document has to be replaced
+				type = previous._type == ADD ? ADD : UPDATE;
+			}
+		}
+		// removed and put back so the batch keeps the order of the last changes
+		_pending.put(fullPath, new Change(inode, type));
+		if (_pending.size() >= _batchSize) {
+			notify();
+		}
+	}
+
+	/**
+	 * Writes the pending changes to the index.
+	 */
+	public void flush() throws IOException {
+		synchronized (_flushLock) {
+			ArrayList<Map.Entry<String, Change>> batch;
+			synchronized (this) {
+				if (_pending.isEmpty() || _writer == null) {
+					return;
+				}
+				batch = new ArrayList<Map.Entry<String, Change>>(_pending.entrySet());
+				_pending = new LinkedHashMap<String, Change>();
+			}
+			ArrayList<Term> deletes = new ArrayList<Term>();
+			IndexDocument document = IndexDocument.get();
+			int done = 0;
+			boolean written = false;
+			try {
+				for (Map.Entry<String, Change> entry : batch) {
+					writeChange(entry, document, deletes);
+					done++;
+				}
+				if (!deletes.isEmpty()) {
+					// the paths in a batch are unique, no change above is about these
+					_writer.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+				}
+				written = true;
+			} finally {
+				if (!written) {
+					requeue(batch, done);
+				}
+			}
+			_written += batch.size();
+			_batches++;
+			if (_searcherManager != null) {
+				_searcherManager.setChanged();
+			}
+		}
+	}
+
+	private void writeChange(Map.Entry<String, Change> entry, IndexDocument document,
+			ArrayList<Term> deletes) throws IOException {
+		Change change = entry.getValue();
+		Term term = new Term(IndexDocument.FULL_PATH, entry.getKey());
+		if (_recorder != null) {
+			_recorder.record(change._inode.getPath(), false);
+		}
+		try {
+			if (change._type == DELETE) {
+				deletes.add(term);
+			} else if (change._type == ADD && _recorder == null) {
+				_writer.addDocument(document.fill(change._inode));
+			} else {
+				_writer.updateDocument(term, document.fill(change._inode));
+			}
+		} catch (FileNotFoundException e) {
+			logger.error("Unable to index " + entry.getKey() + ", it was removed", e);
+		}
+	}
+
+	/**
+	 * Queues the changes of a batch which failed again, the deletes are only
+	 * written at the end so they all go back. A newer change of the same inode
+	 * is kept instead, as an update if the failed change may have left a
+	 * document behind.
+	 * @param done how many changes at the start of the batch were written
+	 */
+	private synchronized void requeue(ArrayList<Map.Entry<String, Change>> batch, int done) {
+		LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+		for (int i = 0; i < batch.size(); i++) {
+			Map.Entry<String, Change> entry = batch.get(i);
+			Change failed = entry.getValue();
+			if (i < done && failed._type != DELETE) {
+				continue;
+			}
+			Change newer = _pending.get(entry.getKey());
+			if (newer == null) {
+				pending.put(entry.getKey(), failed);
+			} else if (newer._type == ADD && failed._type != ADD) {
+				newer._type = UPDATE;
+			}
+		}
+		logger.warn("Unable to write " + batch.size() + " changes to the index, retrying "
+				+ pending.size() + " of them with the next batch");
+		pending.putAll(_pending);
+		_pending = pending;
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				synchronized (this) {
+					if (_stop) {
+						break;
+					}
+					if (_pending.size() < _batchSize) {
+						wait(_batchWindow);
+					}
+				}
+				flush();
+			} catch (InterruptedException e) {
+			} catch (IOException e) {
+				logger.error("Unable to write changes to the index", e);
+			} catch (RuntimeException e) {
+				logger.error("Unable to write changes to the index", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread, pending changes are kept so they can still be flushed.
+	 */
+	protected synchronized void stopWriter() {
+		_stop = true;
+		notify();
+	}
+
+	/**
+	 * Sets how many milliseconds changes are collected before they are written.
+	 */
+	protected void setBatchWindow(int batchWindow) {
+		_batchWindow = Math.max(1, batchWindow);
+	}
+
+	/**
+	 * Sets how many inodes are written at once at most.
+	 */
+	protected void setBatchSize(int batchSize) {
+		_batchSize = Math.max(1, batchSize);
+	}
+
+	public synchronized int getPending() {
+		return _pending.size();
+	}
+
+	/**
+	 * Returns how many changes were merged into a later change of the same inode.
+	 */
+	public synchronized long getMerged() {
+		return _merged;
+	}
+
+	public long getWritten() {
+		return _written;
+	}
+
+	public long getBatches() {
+		return _batches;
+	}
+
+	private static class Change {
+		private ImmutableInodeHandle _inode;
+
+		private int _type;
+
+		private Change(ImmutableInodeHandle inode, int type) {
+			_inode = inode;
+			_type = type;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.store.RAMDirectory;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+
+/**
+ * Compares the time taken to index a remerge like stream of changes one by
+ * one and in batches through the {@link LuceneBatchWriter}.
+ * Not part of the unit tests, run it by hand:
+ * LuceneBatchWriterBenchmark [directories] [files per directory]
+ * @version $Id$
+ */
+public class LuceneBatchWriterBenchmark {
+
+	private static int countDocuments(IndexWriter writer) throws IOException {
+		writer.commit();
+		IndexReader reader = writer.getReader();
+		try {
+			return reader.numDocs();
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int directories = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		ArrayList<Object[]> changes = LuceneBatchWriterTest.buildChanges(directories, files);
+		IndexDocument document = IndexDocument.get();
+		IndexWriter writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true,
+				MaxFieldLength.UNLIMITED);
+		try {
+			long start = System.currentTimeMillis();
+			for (Object[] change : changes) {
+				ImmutableInodeHandle inode = (ImmutableInodeHandle) change[1];
+				if (((Integer) change[0]) == LuceneBatchWriterTest.ADD) {
+					writer.addDocument(document.fill(inode));
+				} else {
+					writer.updateDocument(new Term(IndexDocument.FULL_PATH,
+							IndexDocument.getFullPath(inode.getPath(), true)), document.fill(inode));
+				}
+			}
+			writer.commit();
+			long direct = System.currentTimeMillis() - start;
+			int documents = countDocuments(writer);
+
+			writer.deleteAll();
+			writer.commit();
+
+			LuceneBatchWriter batchWriter = new LuceneBatchWriter();
+			batchWriter.open(writer, null);
+			start = System.currentTimeMillis();
+			for (Object[] change : changes) {
+				ImmutableInodeHandle inode = (ImmutableInodeHandle) change[1];
+				if (((Integer) change[0]) == LuceneBatchWriterTest.ADD) {
+					batchWriter.add(inode);
+				} else {
+					batchWriter.update(inode);
+				}
+			}
+			batchWriter.flush();
+			writer.commit();
+			long batched = System.currentTimeMillis() - start;
+
+			System.out.println(changes.size() + " changes, " + documents + " documents");
+			System.out.println("direct  - " + direct + "ms");
+			System.out.println("batched - " + batched + "ms, " + batchWriter.getMerged() + " changes merged");
+		} finally {
+			writer.close();
+		}
+	}
+}
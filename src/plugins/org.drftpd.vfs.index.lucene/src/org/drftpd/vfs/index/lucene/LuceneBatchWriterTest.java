@@ -0,0 +1,217 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.store.RAMDirectory;
+import org.drftpd.vfs.VirtualFileSystemDirectory;
+import org.drftpd.vfs.VirtualFileSystemFile;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+
+/**
+ * Tests for the {@link LuceneBatchWriter}.
+ * @version $Id$
+ */
+public class LuceneBatchWriterTest extends TestCase {
+
+	private static final int DIRECTORIES = 20;
+
+	private static final int FILES = 10;
+
+	static final int ADD = 0;
+
+	static final int UPDATE = 1;
+
+	private IndexWriter _writer;
+
+	public LuceneBatchWriterTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true,
+				MaxFieldLength.UNLIMITED);
+	}
+
+	protected void tearDown() throws IOException {
+		_writer.close();
+	}
+
+	/**
+	 * Each file added is followed by an update of the size and last modified
+	 * time of its directory, as happens during a remerge or an upload.
+	 */
+	static ArrayList<Object[]> buildChanges(int directories, int files) {
+		ArrayList<Object[]> changes = new ArrayList<Object[]>();
+		for (int x = 0; x < directories; x++) {
+			String path = "/section/Release.Name-" + x;
+			VirtualFileSystemDirectory dir = new NamedDirectory("Release.Name-" + x, "user" + x);
+			ImmutableInodeHandle dirHandle = new ImmutableInodeHandle(dir, path);
+			changes.add(new Object[] { ADD, dirHandle });
+			for (int y = 0; y < files; y++) {
+				VirtualFileSystemFile file = new NamedFile("release.r" + y, "user" + x,
+						15000000L, "slave" + (y % 3));
+				changes.add(new Object[] { ADD, new ImmutableInodeHandle(file, path + "/release.r" + y) });
+				dir.setSize((y + 1) * 15000000L);
+				changes.add(new Object[] { UPDATE, dirHandle });
+			}
+		}
+		return changes;
+	}
+
+	private int countDocuments() throws IOException {
+		_writer.commit();
+		IndexReader reader = _writer.getReader();
+		try {
+			return reader.numDocs();
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testMerge() throws IOException {
+		LuceneBatchWriter batchWriter = new LuceneBatchWriter();
+		batchWriter.open(_writer, null);
+		VirtualFileSystemDirectory dir = new NamedDirectory("Release.Name", "user");
+		ImmutableInodeHandle dirHandle = new ImmutableInodeHandle(dir, "/section/Release.Name");
+		VirtualFileSystemFile file = new NamedFile("release.r00", "user", 1000L, "slave");
+		ImmutableInodeHandle fileHandle = new ImmutableInodeHandle(file, "/section/Release.Name/release.r00");
+
+		batchWriter.add(dirHandle);
+		batchWriter.update(dirHandle);
+		batchWriter.add(fileHandle);
+		batchWriter.update(dirHandle);
+		assertEquals(2, batchWriter.getPending());
+		assertEquals(2, batchWriter.getMerged());
+		batchWriter.flush();
+		assertEquals(0, batchWriter.getPending());
+		assertEquals(2, batchWriter.getWritten());
+		assertEquals(2, countDocuments());
+
+		// updated and deleted in the same batch, only the delete is written
+		batchWriter.update(fileHandle);
+		batchWriter.delete(fileHandle);
+		batchWriter.flush();
+		assertEquals(1, countDocuments());
+
+		// deleted and added back, the old document has to be replaced
+		batchWriter.delete(dirHandle);
+		batchWriter.add(dirHandle);
+		batchWriter.flush();
+		assertEquals(1, countDocuments());
+		IndexReader reader = _writer.getReader();
+		try {
+			assertEquals(1, reader.docFreq(new Term(IndexDocument.FULL_PATH, "/section/Release.Name/")));
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testFailedFlush() throws IOException {
+		LuceneBatchWriter batchWriter = new LuceneBatchWriter();
+		batchWriter.open(_writer, null);
+		VirtualFileSystemDirectory dir = new NamedDirectory("Release.Name", "user");
+		ImmutableInodeHandle dirHandle = new ImmutableInodeHandle(dir, "/section/Release.Name");
+		VirtualFileSystemFile file = new NamedFile("release.r00", "user", 1000L, "slave");
+		ImmutableInodeHandle fileHandle = new ImmutableInodeHandle(file, "/section/Release.Name/release.r00");
+		batchWriter.add(dirHandle);
+		batchWriter.add(fileHandle);
+		_writer.close();
+		try {
+			batchWriter.flush();
+			fail("Expected the closed writer to fail");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(2, batchWriter.getPending());
+		assertEquals(0, batchWriter.getWritten());
+
+		// the newer change is kept, the failed one is written with the next batch
+		_writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true,
+				MaxFieldLength.UNLIMITED);
+		batchWriter.open(_writer, null);
+		batchWriter.update(dirHandle);
+		assertEquals(2, batchWriter.getPending());
+		batchWriter.flush();
+		assertEquals(0, batchWriter.getPending());
+		assertEquals(2, countDocuments());
+	}
+
+	/**
+	 * A remerge like stream of changes indexed in batches ends up with the
+	 * same documents as when it is indexed one change at a time.
+	 */
+	public void testBatched() throws IOException {
+		ArrayList<Object[]> changes = buildChanges(DIRECTORIES, FILES);
+		IndexDocument document = IndexDocument.get();
+
+		for (Object[] change : changes) {
+			ImmutableInodeHandle inode = (ImmutableInodeHandle) change[1];
+			if (((Integer) change[0]) == ADD) {
+				_writer.addDocument(document.fill(inode));
+			} else {
+				_writer.updateDocument(new Term(IndexDocument.FULL_PATH,
+						IndexDocument.getFullPath(inode.getPath(), true)), document.fill(inode));
+			}
+		}
+		_writer.commit();
+		int documents = countDocuments();
+
+		_writer.deleteAll();
+		_writer.commit();
+
+		LuceneBatchWriter batchWriter = new LuceneBatchWriter();
+		batchWriter.open(_writer, null);
+		for (Object[] change : changes) {
+			ImmutableInodeHandle inode = (ImmutableInodeHandle) change[1];
+			if (((Integer) change[0]) == ADD) {
+				batchWriter.add(inode);
+			} else {
+				batchWriter.update(inode);
+			}
+		}
+		batchWriter.flush();
+
+		assertEquals(DIRECTORIES * (FILES + 1), documents);
+		assertEquals(documents, countDocuments());
+		assertTrue(batchWriter.getMerged() > 0);
+	}
+
+	static class NamedDirectory extends VirtualFileSystemDirectory {
+		NamedDirectory(String name, String user) {
+			super(user, "group");
+			setName(name);
+		}
+	}
+
+	static class NamedFile extends VirtualFileSystemFile {
+		NamedFile(String name, String user, long size, String slave) {
+			super(user, "group", size, slave);
+			setName(name);
+		}
+	}
+}
@@ -19,7 +19,6 @@
 package org.drftpd.vfs.index.lucene;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.text.DateFormat;
@@ -39,7 +38,6 @@ import org.apache.lucene.analysis.tokenattributes.TermAttribute;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -67,7 +65,6 @@ import org.drftpd.Bytes;
 import org.drftpd.GlobalContext;
 import org.drftpd.io.PhysicalFile;
 import org.drftpd.vfs.DirectoryHandle;
-import org.drftpd.vfs.FileHandle;
 import org.drftpd.vfs.InodeHandle;
 import org.drftpd.vfs.VirtualFileSystem;
 import org.drftpd.vfs.event.ImmutableInodeHandle;
@@ -82,9 +79,9 @@ import org.drftpd.vfs.index.lucene.analysis.AlphanumericalAnalyzer;
 /**
  * Implementation of an Index engine based on <a href="http://lucene.apache.org">Apache Lucene</a>
  * 
- * This engine reuses {@link Field}s and {@link Document} instances as suggested by
- * <a href="http://wiki.apache.org/lucene-java/ImproveIndexingSpeed">this article</a>
- * in order to have better Indexing performance.
+ * This engine reuses {@link Field}s and {@link Document} instances per thread, see
+ * {@link IndexDocument}, and merges the changes to the index in batches, see
+ * {@link LuceneBatchWriter}, in order to have better Indexing performance.
  * 
  * @author fr0w
  * @version $Id$
@@ -96,37 +93,7 @@ public class LuceneEngine implements IndexEngineInterface {
 
 	private static final Analyzer ANALYZER = new AlphanumericalAnalyzer();
 	protected static final String INDEX_DIR = "index";
-
-	private static final Document INDEX_DOCUMENT = new Document();
-
-	private static final Field FIELD_NAME = new Field("name", "", Field.Store.YES, Field.Index.ANALYZED);
-	private static final Field FIELD_FULL_NAME = new Field("fullName", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_FULL_NAME_REVERSE = new Field("fullNameReverse", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_PARENT_PATH = new Field("parentPath", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_FULL_PATH = new Field("fullPath", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_OWNER = new Field("owner", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_GROUP = new Field("group", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_TYPE = new Field("type", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_SLAVES = new Field("slaves", "", Field.Store.YES, Field.Index.ANALYZED);
-	private static final NumericField FIELD_SLAVES_NBR = new NumericField("nbrOfSlaves", Field.Store.YES, Boolean.TRUE);
-	private static final NumericField FIELD_LASTMODIFIED = new NumericField("lastModified", Field.Store.YES, Boolean.TRUE);
-	private static final NumericField FIELD_SIZE = new NumericField("size", Field.Store.YES, Boolean.TRUE);
-
-	private static final Field[] FIELDS = new Field[] {
-		FIELD_NAME, FIELD_FULL_NAME, FIELD_FULL_NAME_REVERSE, FIELD_PARENT_PATH, FIELD_FULL_PATH, FIELD_OWNER, FIELD_GROUP, FIELD_TYPE, FIELD_SLAVES
-	};
-	private static final NumericField[] NUMERICFIELDS = new NumericField[] {
-		FIELD_SLAVES_NBR, FIELD_LASTMODIFIED, FIELD_SIZE
-	};
-
-	static {
-		for (Field field : FIELDS) {
-			INDEX_DOCUMENT.add(field);
-		}
-		for (NumericField field : NUMERICFIELDS) {
-			INDEX_DOCUMENT.add(field);
-		}
-	}
+	private static final String REBUILD_DIR = "index.rebuild";
 
 	private Directory _storage;
 	private IndexWriter _iWriter;
@@ -146,19 +113,23 @@ public class LuceneEngine implements IndexEngineInterface {
 	private static final SimpleSearchFieldSelector SIMPLE_FIELD_SELECTOR = new SimpleSearchFieldSelector();
 	private static final AdvancedSearchFieldSelector ADVANCED_FIELD_SELECTOR = new AdvancedSearchFieldSelector();
 
-	private Sort SORT = new Sort();
-
 	private int _maxHitsNumber;
 	private int _maxDocsBuffer;
 	private int _maxRAMBufferSize;
 
 	private boolean _nativeLocking;
+	private long _searcherRefresh;
+
+	private LuceneSearcherManager _searcherManager;
 
 	private LuceneMaintenanceThread _maintenanceThread;
 	private LuceneBackupThread _backupThread;
+	private LuceneBatchWriter _batchWriter;
 
 	private IndexingVirtualFileSystemListener _listener;
-	private boolean _rebuilding;
+	private int _rebuildThreads;
+	private volatile boolean _rebuilding;
+	private volatile LuceneIndexBuilder _builder;
 
 	/**
 	 * Creates all the needed resources for the Index to work.
@@ -182,6 +153,7 @@ public class LuceneEngine implements IndexEngineInterface {
 		Runtime.getRuntime().addShutdownHook(new Thread(new IndexShutdownHookRunnable(), "IndexSaverThread"));
 		_maintenanceThread.start();
 		_backupThread.start();
+		_batchWriter.start();
 
 		_listener = new IndexingVirtualFileSystemListener();
 		_listener.init();
@@ -190,6 +162,7 @@ public class LuceneEngine implements IndexEngineInterface {
 	private void createThreads() {
 		_maintenanceThread = new LuceneMaintenanceThread();
 		_backupThread = new LuceneBackupThread();
+		_batchWriter = new LuceneBatchWriter();
 	}
 
 	/**
@@ -205,10 +178,10 @@ public class LuceneEngine implements IndexEngineInterface {
 				_storage = FSDirectory.open(new File(INDEX_DIR));
 			}
 
-			_iWriter = new IndexWriter(_storage, ANALYZER, MaxFieldLength.UNLIMITED);
+			_iWriter = openWriter();
 
-			_iWriter.setMaxBufferedDocs(_maxDocsBuffer);
-			_iWriter.setRAMBufferSizeMB(_maxRAMBufferSize);
+			_searcherManager = new LuceneSearcherManager(_iWriter, _searcherRefresh);
+			_batchWriter.open(_iWriter, _searcherManager);
 		} catch (IOException e) {
 			closeAll();
 
@@ -216,6 +189,13 @@ public class LuceneEngine implements IndexEngineInterface {
 		}
 	}
 
+	private IndexWriter openWriter() throws IOException {
+		IndexWriter writer = new IndexWriter(_storage, ANALYZER, MaxFieldLength.UNLIMITED);
+		writer.setMaxBufferedDocs(_maxDocsBuffer);
+		writer.setRAMBufferSizeMB(_maxRAMBufferSize);
+		return writer;
+	}
+
 	/**
 	 * Reads all tweak settings from <i>conf/plugins/lucene.conf</i> if found,
 	 * otherwise use default values.
@@ -226,6 +206,9 @@ public class LuceneEngine implements IndexEngineInterface {
 		_maxDocsBuffer = Integer.parseInt(cfg.getProperty("maxdocs_buffer", "-1"));
 		_maxRAMBufferSize = Integer.parseInt(cfg.getProperty("max_rambuffer", "16"));
 		_nativeLocking = cfg.getProperty("native_locking", "true").equals("true");
+		_searcherRefresh = Long.parseLong(cfg.getProperty("searcher_refresh", "1000"));
+		_rebuildThreads = Integer.parseInt(cfg.getProperty("rebuild_threads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
 
 		// in minutes, convert'em!
 		int optimizeInterval = Integer.parseInt(cfg.getProperty("optimize_interval", "15")) * 60 * 1000;
@@ -236,13 +219,20 @@ public class LuceneEngine implements IndexEngineInterface {
 		int maxNumber = Integer.parseInt(cfg.getProperty("max_backups", "2"));
 		_backupThread.setBackupInterval(interval);
 		_backupThread.setMaximumNumberBackup(maxNumber);
+
+		// in milliseconds
+		_batchWriter.setBatchWindow(Integer.parseInt(cfg.getProperty("batch_window", "1000")));
+		_batchWriter.setBatchSize(Integer.parseInt(cfg.getProperty("batch_size", "1000")));
 	}
 
 	/**
-	 * Closes all streams ignoring exceptions.
+	 * Closes all streams ignoring exceptions, pending changes are dropped.
 	 */
 	private void closeAll() {
 		try {
+			_batchWriter.close();
+			if (_searcherManager != null)
+				_searcherManager.close();
 			if (_iWriter != null)
 				_iWriter.close();
 			if (_storage != null)
@@ -251,128 +241,13 @@ public class LuceneEngine implements IndexEngineInterface {
 			logger.error(e, e);
 		}
 
+		_searcherManager = null;
 		_iWriter = null;
 		_storage = null;
 	}
 
-	/**
-	 * Shortcut to create Lucene Document from the Inode's data. The fields that
-	 * are stored in the index are:
-	 * <ul>
-	 * <li>name - The name of the inode</li>
-	 * <li>fullName - The full name of the inode</li>
-	 * <li>fullNameReverse - The full name of the inode in reverse order</li>
-	 * <li>parentPath - The full path of the parent inode</li>
-	 * <li>fullPath - The full path of the inode</li>
-	 * <li>owner - The user who owns the file</li>
-	 * <li>group - The group of the user who owns the file</li>
-	 * <li>type - File or Directory</li>
-	 * <li>slaves - If the inode is a file, then the slaves are stored</li>
-	 * <li>lastModified - Timestamp of when the inode was last modified</li>
-	 * <li>size - The size of the inode</li>
-	 * </ul>
-	 * 
-	 * @param inode
-	 * @throws FileNotFoundException
-	 */
-	private Document makeDocumentFromInode(ImmutableInodeHandle inode) throws FileNotFoundException {
-		InodeType inodeType = inode.isDirectory() ? InodeType.DIRECTORY : InodeType.FILE;
-
-		FIELD_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME_REVERSE.setValue(new StringBuilder(inode.getName()).reverse().toString());
-		if (inode.getPath().equals(VirtualFileSystem.separator)) {
-			FIELD_PARENT_PATH.setValue("");
-		} else {
-			FIELD_PARENT_PATH.setValue(inode.getParent().getPath() + VirtualFileSystem.separator);
-		}
-		if (inode.isDirectory())
-			FIELD_FULL_PATH.setValue(inode.getPath() + VirtualFileSystem.separator);
-		else
-			FIELD_FULL_PATH.setValue(inode.getPath());
-		FIELD_OWNER.setValue(inode.getUsername());
-		FIELD_GROUP.setValue(inode.getGroup());
-		FIELD_TYPE.setValue(inodeType.toString().toLowerCase().substring(0, 1));
-
-		if (inodeType == InodeType.FILE) {
-			StringBuffer sb = new StringBuffer();
-			for (String slaveName : inode.getSlaveNames()) {
-				sb.append(slaveName).append(",");
-			}
-			FIELD_SLAVES_NBR.setIntValue(inode.getSlaveNames().size());
-			FIELD_SLAVES.setValue(sb.toString());
-		} else {
-			FIELD_SLAVES_NBR.setIntValue(0);
-		}
-
-		FIELD_LASTMODIFIED.setLongValue(inode.lastModified());
-		FIELD_SIZE.setLongValue(inode.getSize());
-
-		return INDEX_DOCUMENT;
-	}
-	
-	/**
-	 * Shortcut to create Lucene Document from the Inode's data. The fields that
-	 * are stored in the index are:
-	 * <ul>
-	 * <li>name - The name of the inode</li>
-	 * <li>fullName - The full name of the inode</li>
-	 * <li>fullNameReverse - The full name of the inode in reverse order</li>
-	 * <li>parentPath - The full path of the parent inode</li>
-	 * <li>fullPath - The full path of the inode</li>
-	 * <li>owner - The user who owns the file</li>
-	 * <li>group - The group of the user who owns the file</li>
-	 * <li>type - File or Directory</li>
-	 * <li>slaves - If the inode is a file, then the slaves are stored</li>
-	 * <li>lastModified - Timestamp of when the inode was last modified</li>
-	 * <li>size - The size of the inode</li>
-	 * </ul>
-	 * 
-	 * @param inode
-	 * @throws FileNotFoundException
-	 */
-	private Document makeDocumentFromRealInode(InodeHandle inode) throws FileNotFoundException {
-		InodeType inodeType = inode.isDirectory() ? InodeType.DIRECTORY : InodeType.FILE;
-
-		FIELD_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME_REVERSE.setValue(new StringBuilder(inode.getName()).reverse().toString());
-		if (inode.getPath().equals(VirtualFileSystem.separator)) {
-			FIELD_PARENT_PATH.setValue("");
-		} else {
-			FIELD_PARENT_PATH.setValue(inode.getParent().getPath() + VirtualFileSystem.separator);
-		}
-		if (inode.isDirectory())
-			FIELD_FULL_PATH.setValue(inode.getPath() + VirtualFileSystem.separator);
-		else
-			FIELD_FULL_PATH.setValue(inode.getPath());
-		FIELD_OWNER.setValue(inode.getUsername());
-		FIELD_GROUP.setValue(inode.getGroup());
-		FIELD_TYPE.setValue(inodeType.toString().toLowerCase().substring(0, 1));
-
-		if (inodeType == InodeType.FILE) {
-			StringBuffer sb = new StringBuffer();
-			for (String slaveName : ((FileHandle) inode).getSlaveNames()) {
-				sb.append(slaveName).append(",");
-			}
-			FIELD_SLAVES_NBR.setIntValue(((FileHandle) inode).getSlaveNames().size());
-			FIELD_SLAVES.setValue(sb.toString());
-		} else {
-			FIELD_SLAVES_NBR.setIntValue(0);
-		}
-
-		FIELD_LASTMODIFIED.setLongValue(inode.lastModified());
-		FIELD_SIZE.setLongValue(inode.getSize());
-
-		return INDEX_DOCUMENT;
-	}
-	
 	private Term makeFullPathTermFromInode(ImmutableInodeHandle inode) {
-		if (inode.isDirectory()) {
-			return TERM_FULL.createTerm(inode.getPath() + VirtualFileSystem.separator);
-		}
-
-		return TERM_FULL.createTerm(inode.getPath());
+		return TERM_FULL.createTerm(IndexDocument.getFullPath(inode.getPath(), inode.isDirectory()));
 	}
 
 	private Term makeFullPathTermFromString(String path) {
@@ -404,134 +279,95 @@ public class LuceneEngine implements IndexEngineInterface {
 		return new TermQuery(TERM_GROUP.createTerm(group));
 	}
 
-	private void setSortField(boolean order) {
-		SORT.setSort(new SortField("fullPath", SortField.STRING, order));
+	private void setSortField(Sort sort, boolean order) {
+		sort.setSort(new SortField("fullPath", SortField.STRING, order));
 	}
 
-	private void setSortField(String field, int type, boolean order) {
-		SORT.setSort(new SortField(field, type, order),
+	private void setSortField(Sort sort, String field, int type, boolean order) {
+		sort.setSort(new SortField(field, type, order),
 				new SortField("fullPath", SortField.STRING));
 	}
 
 	/* {@inheritDoc} */
 	public void addInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			synchronized (INDEX_DOCUMENT) {
-				Document doc = makeDocumentFromInode(inode);
-				_iWriter.addDocument(doc);
-			}
-		} catch (FileNotFoundException e) {
-			logger.error("Unable to add " + inode.getPath() + " to the index", e);
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
-		}
+		_batchWriter.add(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void deleteInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			_iWriter.deleteDocuments(makeFullPathTermFromInode(inode));
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to delete " + inode.getPath() + " from the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to delete " + inode.getPath() + " from the index", e);
-		}
+		_batchWriter.delete(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void updateInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			synchronized (INDEX_DOCUMENT) {
-				_iWriter.updateDocument(makeFullPathTermFromInode(inode), makeDocumentFromInode(inode));
-			}
-		} catch (FileNotFoundException e) {
-			logger.error("The inode was here but now it isn't!", e);
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to update " + inode.getPath() + " in the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to update " + inode.getPath() + " in the index", e);
-		}
+		_batchWriter.update(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void renameInode(ImmutableInodeHandle fromInode, ImmutableInodeHandle toInode) throws IndexException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
-		try {
-			if (toInode.isDirectory()) {
-				PrefixQuery prefixQuery = new PrefixQuery(makeFullPathTermFromInode(fromInode));
+		// no batch and no index rebuild may be written in the middle of a rename
+		synchronized (_batchWriter.getWriteLock()) {
+			try {
+				LuceneIndexBuilder recorder = _batchWriter.getRecorder();
+				if (recorder != null) {
+					recorder.record(fromInode.getPath(), true);
+					recorder.record(toInode.getPath(), true);
+				}
 
-				iReader = _iWriter.getReader();
-				iSearcher = new IndexSearcher(iReader);
+				// the pending changes may be about the inodes being moved
+				_batchWriter.flush();
 
-				final BitSet bits = new BitSet(iReader.maxDoc());
-				iSearcher.search(prefixQuery, new Collector() {
-					private int docBase;
+				if (toInode.isDirectory()) {
+					PrefixQuery prefixQuery = new PrefixQuery(makeFullPathTermFromInode(fromInode));
 
-					// ignore scorer
-					public void setScorer(Scorer scorer) {
-					}
+					// every document below the directory has to be moved, including the ones just added
+					iSearcher = _searcherManager.acquire(true);
 
-					// accept docs out of order (for a BitSet it doesn't matter)
-					public boolean acceptsDocsOutOfOrder() {
-						return true;
-					}
+					final BitSet bits = new BitSet(iSearcher.maxDoc());
+					iSearcher.search(prefixQuery, new Collector() {
+						private int docBase;
 
-					public void collect(int doc) {
-						bits.set(doc + docBase);
-					}
+						// ignore scorer
+						public void setScorer(Scorer scorer) {
+						}
 
-					public void setNextReader(IndexReader reader, int docBase) {
-						this.docBase = docBase;
-					}
-				});
-
-				for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
-					Document doc = iSearcher.doc(i, SIMPLE_FIELD_SELECTOR);
-
-					String oldPath = doc.getFieldable(FIELD_FULL_PATH.name()).stringValue();
-					String newPath = toInode.getPath() + oldPath.substring(fromInode.getPath().length());
-					doc.removeField(FIELD_FULL_PATH.name());
-					doc.removeField(FIELD_PARENT_PATH.name());
-
-					synchronized (INDEX_DOCUMENT) {
-						FIELD_FULL_PATH.setValue(newPath);
-						if (newPath.equals(VirtualFileSystem.separator)) {
-							FIELD_PARENT_PATH.setValue("");
-						} else {
-							FIELD_PARENT_PATH.setValue(VirtualFileSystem.stripLast(newPath) + VirtualFileSystem.separator);
+						// accept docs out of order (for a BitSet it doesn't matter)
+						public boolean acceptsDocsOutOfOrder() {
+							return true;
+						}
+
+						public void collect(int doc) {
+							bits.set(doc + docBase);
+						}
+
+						public void setNextReader(IndexReader reader, int docBase) {
+							this.docBase = docBase;
 						}
-						doc.add(FIELD_FULL_PATH);
-						doc.add(FIELD_PARENT_PATH);
+					});
+
+					IndexDocument document = IndexDocument.get();
+					for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
+						Document doc = iSearcher.doc(i, SIMPLE_FIELD_SELECTOR);
+
+						String oldPath = doc.getFieldable(IndexDocument.FULL_PATH).stringValue();
+						String newPath = toInode.getPath() + oldPath.substring(fromInode.getPath().length());
+						document.move(doc, newPath);
 						_iWriter.updateDocument(makeFullPathTermFromString(oldPath), doc);
 					}
+				} else {
+					_iWriter.updateDocument(makeFullPathTermFromInode(fromInode), IndexDocument.get().fill(toInode));
 				}
-			} else {
-				synchronized (INDEX_DOCUMENT) {
-					_iWriter.updateDocument(makeFullPathTermFromInode(fromInode), makeDocumentFromInode(toInode));
-				}
-			}
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
-					toInode.getPath() + " in the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
-					toInode.getPath() + " in the index", e);
-		} finally {
-			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
+				_searcherManager.setChanged();
+			} catch (CorruptIndexException e) {
+				throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
+						toInode.getPath() + " in the index", e);
+			} catch (IOException e) {
+				throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
+						toInode.getPath() + " in the index", e);
+			} finally {
+				if (iSearcher != null) {
+					_searcherManager.release(iSearcher);
 				}
 			}
 		}
@@ -539,10 +375,11 @@ public class LuceneEngine implements IndexEngineInterface {
 
 	/**
 	 * {@inheritDoc}
-	 * Forces the Index to be saved. Simply calls {@link IndexWriter}.commit();
+	 * Forces the Index to be saved. Writes the pending changes and calls {@link IndexWriter}.commit();
 	 */
 	public void commit() throws IndexException {
 		try {
+			_batchWriter.flush();
 			_iWriter.commit();
 		} catch (CorruptIndexException e) {
 			throw new IndexException("Unable to commit the index", e);
@@ -551,67 +388,107 @@ public class LuceneEngine implements IndexEngineInterface {
 		}
 	}
 
-	/* {@inheritDoc} */
+	/**
+	 * {@inheritDoc}
+	 * The new index is built by {@link LuceneIndexBuilder} in <i>index.rebuild</i>,
+	 * the current one keeps serving queries until it is replaced.
+	 */
 	public void rebuildIndex() throws IndexException {
-		if (_rebuilding) {
-			throw new IndexException("A previous rebuildindex command is already in progress.");
+		synchronized (this) {
+			if (_rebuilding) {
+				throw new IndexException("A previous rebuildindex command is already in progress.");
+			}
+			_rebuilding = true;
 		}
-		_rebuilding = true;
-
-		closeAll();
 
-		PhysicalFile f = new PhysicalFile(INDEX_DIR);
+		PhysicalFile f = new PhysicalFile(REBUILD_DIR);
 		f.deleteRecursive();
 
-		openStreams();
-
+		Directory storage = null;
+		IndexWriter writer = null;
 		try {
-			recurseAndBuild(GlobalContext.getGlobalContext().getRoot());
-			commit(); // commit the writer so that the searcher can see the new stuff.
-		} catch (IndexException e) {
-			logger.error("Exception whilst rebuilding lucene index",e);
-			throw e;
+			storage = FSDirectory.open(new File(REBUILD_DIR));
+			writer = new IndexWriter(storage, ANALYZER, true, MaxFieldLength.UNLIMITED);
+			writer.setRAMBufferSizeMB(_maxRAMBufferSize);
+
+			LuceneIndexBuilder builder = new LuceneIndexBuilder(writer, _rebuildThreads);
+			_builder = builder;
+			_batchWriter.setRecorder(builder);
+			builder.build(GlobalContext.getGlobalContext().getRoot());
+			writer.close();
+			writer = null;
+
+			try {
+				replaceIndex(builder, storage);
+			} catch (IOException e) {
+				logger.warn("Unable to replace the index by the rebuilt one, trying again", e);
+				replaceIndex(builder, storage);
+			}
+		} catch (IOException e) {
+			logger.error("Exception whilst rebuilding lucene index", e);
+			throw new IndexException("Unable to rebuild the index", e);
 		} finally {
+			_batchWriter.setRecorder(null);
+			_builder = null;
+			try {
+				if (writer != null)
+					writer.rollback();
+				if (storage != null)
+					storage.close();
+			} catch (IOException e) {
+				logger.error(e, e);
+			}
+			f.deleteRecursive();
 			_rebuilding = false;
 		}
 	}
 
 	/**
-	 * Inner function called by rebuildIndex().
-	 * 
-	 * @param dir
-	 * @throws FileNotFoundException
-	 * @throws IndexException
+	 * Replaces the content of the index by the rebuilt one and indexes again
+	 * what changed during the rebuild. Queries see the old index until it is done.<br>
+	 * If it fails the index is rolled back to what it was and the changes are
+	 * recorded again, so it can be replaced later on.
 	 */
-	private void recurseAndBuild(DirectoryHandle dir) throws IndexException {
+	private void replaceIndex(LuceneIndexBuilder builder, Directory rebuilt) throws IOException {
+		_searcherManager.setFrozen(true);
 		try {
-			for (InodeHandle inode : dir.getInodeHandlesUnchecked()) {
-				if (inode.isDirectory()) {
-					addRealInode(inode);
-					recurseAndBuild((DirectoryHandle) inode);
-				} else if (inode.isFile()) {
-					addRealInode(inode);
+			synchronized (_batchWriter.getWriteLock()) {
+				// recorded like the changes before, replayed below
+				_batchWriter.flush();
+				// a failed replace rolls back to this commit
+				_iWriter.commit();
+				_batchWriter.setRecorder(null);
+
+				try {
+					_iWriter.deleteAll();
+					_iWriter.addIndexesNoOptimize(rebuilt);
+					builder.replay(_iWriter);
+					_iWriter.commit();
+				} catch (IOException e) {
+					restoreWriter(builder);
+					throw e;
 				}
 			}
-		} catch (FileNotFoundException e) {
-			// Dir gone, error logged in addInode(inode) call from parent dir,
-			// ignore and continue to build index.
+		} finally {
+			_searcherManager.setFrozen(false);
+			_searcherManager.setChanged();
 		}
 	}
-	
-	private void addRealInode(InodeHandle inode) throws IndexException {
+
+	/**
+	 * Rolls back the changes of a failed {@link #replaceIndex(LuceneIndexBuilder, Directory)},
+	 * which also closes the writer, and opens it again.
+	 */
+	private void restoreWriter(LuceneIndexBuilder builder) throws IOException {
 		try {
-			synchronized (INDEX_DOCUMENT) {
-				Document doc = makeDocumentFromRealInode(inode);
-				_iWriter.addDocument(doc);
-			}
-		} catch (FileNotFoundException e) {
-			logger.error("Unable to add " + inode.getPath() + " to the index", e);
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
+			_iWriter.rollback();
 		} catch (IOException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
+			logger.error("Unable to roll back the index", e);
 		}
+		_iWriter = openWriter();
+		_searcherManager.setWriter(_iWriter);
+		_batchWriter.open(_iWriter, _searcherManager);
+		_batchWriter.setRecorder(builder);
 	}
 
 	/*
@@ -630,7 +507,7 @@ public class LuceneEngine implements IndexEngineInterface {
 	public Map<String,String> advancedFind(DirectoryHandle startNode, AdvancedSearchParams params)
 	throws IndexException, IllegalArgumentException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
+		long start = System.nanoTime();
 		try {
 			Map<String,String> inodes = new LinkedHashMap<String,String>();
 
@@ -705,19 +582,21 @@ public class LuceneEngine implements IndexEngineInterface {
 				query.add(makeFullNameReversePrefixQueryFromString(params.getEndsWith()), Occur.MUST);
 			}
 
+			// the searcher is shared, so is this engine, keep the sort of each query apart
+			Sort sort = new Sort();
 			if (params.getSortField() != null) {
 				if (params.getSortField().equalsIgnoreCase("lastModified") ||
 						params.getSortField().equalsIgnoreCase("size")) {
-					setSortField(params.getSortField(), SortField.LONG, params.getSortOrder());
+					setSortField(sort, params.getSortField(), SortField.LONG, params.getSortOrder());
 				} else if (params.getSortField().equalsIgnoreCase("nbrOfSlaves")) {
-					setSortField(params.getSortField(), SortField.INT, params.getSortOrder());
+					setSortField(sort, params.getSortField(), SortField.INT, params.getSortOrder());
 				} else if (params.getSortField().equalsIgnoreCase("parentPath") ||
 						params.getSortField().equalsIgnoreCase("owner") ||
 						params.getSortField().equalsIgnoreCase("group") ||
 						params.getSortField().equalsIgnoreCase("type")) {
-					setSortField(params.getSortField(), SortField.STRING, params.getSortOrder());
+					setSortField(sort, params.getSortField(), SortField.STRING, params.getSortOrder());
 				} else {
-					setSortField(params.getSortOrder());
+					setSortField(sort, params.getSortOrder());
 				}
 			}
 
@@ -727,9 +606,8 @@ public class LuceneEngine implements IndexEngineInterface {
 				limit = params.getLimit();
 			}
 
-			iReader = _iWriter.getReader();
-			iSearcher = new IndexSearcher(iReader);
-			TopFieldCollector topFieldCollector = TopFieldCollector.create(SORT, limit, true, false, false, false);
+			iSearcher = _searcherManager.acquire(false);
+			TopFieldCollector topFieldCollector = TopFieldCollector.create(sort, limit, true, false, false, false);
 			iSearcher.search(query, topFieldCollector);
 			logger.debug("Query: " + query);
 
@@ -747,18 +625,8 @@ public class LuceneEngine implements IndexEngineInterface {
 			throw new IndexException("Unable to search the index", e);
 		} finally {
 			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
+				_searcherManager.release(iSearcher);
+				_searcherManager.addQueryTime(System.nanoTime() - start);
 			}
 		}
 	}
@@ -773,7 +641,7 @@ public class LuceneEngine implements IndexEngineInterface {
 	 */
 	public Set<String> findInode(DirectoryHandle startNode, String text, InodeType inodeType) throws IndexException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
+		long start = System.nanoTime();
 		try {
 			Set<String> inodes = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 
@@ -801,8 +669,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				query.add(QUERY_FILE, Occur.MUST);
 			}
 
-			iReader = _iWriter.getReader();
-			iSearcher = new IndexSearcher(iReader);
+			iSearcher = _searcherManager.acquire(false);
 			TopScoreDocCollector topScoreDocsCollector = TopScoreDocCollector.create(_maxHitsNumber, false);
 			iSearcher.search(query, topScoreDocsCollector);
 			logger.debug("Query: " + query);
@@ -821,18 +688,8 @@ public class LuceneEngine implements IndexEngineInterface {
 			throw new IndexException("Unable to search the index", e);
 		} finally {
 			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
+				_searcherManager.release(iSearcher);
+				_searcherManager.addQueryTime(System.nanoTime() - start);
 			}
 		}
 	}
@@ -886,6 +743,13 @@ public class LuceneEngine implements IndexEngineInterface {
 	 * <li>Amount of cached documents (key => "cached inodes")</li>
 	 * <li>Amount of used memory (key => "ram usage")</li>
 	 * <li>The size in disk of the index (key => "disk usage")</li>
+	 * <li>Changes waiting to be written (key => "pending updates")</li>
+	 * <li>Changes written, the batches and the changes merged (key => "written updates")</li>
+	 * <li>Number of searches (key => "searches")</li>
+	 * <li>Percentiles of the time the last searches took (key => "search time")</li>
+	 * <li>Number of times the shared searcher was reopened (key => "searcher refreshes")</li>
+	 * <li>Average time a reopen of the searcher took (key => "searcher refresh time")</li>
+	 * <li>Progress of the index rebuild if one is running (key => "rebuild")</li>
 	 * </ul>
 	 */
 	public Map<String, String> getStatus() {
@@ -902,6 +766,20 @@ public class LuceneEngine implements IndexEngineInterface {
 		status.put("last backup", lastBackup);
 		status.put("cached inodes", String.valueOf(_iWriter.numRamDocs()));
 		status.put("ram usage", Bytes.formatBytes(_iWriter.ramSizeInBytes()));
+		status.put("pending updates", String.valueOf(_batchWriter.getPending()));
+		status.put("written updates", _batchWriter.getWritten() + " in " + _batchWriter.getBatches()
+				+ " batches, " + _batchWriter.getMerged() + " merged");
+		status.put("searches", String.valueOf(_searcherManager.getQueries()));
+		status.put("search time", String.format("%.1fms median, %.1fms 95th, %.1fms 99th percentile",
+				_searcherManager.getQueryTime(50), _searcherManager.getQueryTime(95),
+				_searcherManager.getQueryTime(99)));
+		status.put("searcher refreshes", String.valueOf(_searcherManager.getRefreshes()));
+		status.put("searcher refresh time", String.format("%.1fms average",
+				_searcherManager.getAverageRefreshTime()));
+		LuceneIndexBuilder builder = _builder;
+		if (builder != null) {
+			status.put("rebuild", builder.getProgress());
+		}
 
 		long size = 0L;
 		String[] paths;
@@ -935,6 +813,7 @@ public class LuceneEngine implements IndexEngineInterface {
 		public void run() {
 			_backupThread.stopBackup();
 			_maintenanceThread.stopMaintenance();
+			_batchWriter.stopWriter();
 
 			// obtaining the objects' lock.
 			// doing that we ensure that no operations are running while closing the streams.
@@ -945,7 +824,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				_backupThread.notify();
 			}
 
-			while (_maintenanceThread.isAlive() || _backupThread.isAlive()) {
+			while (_maintenanceThread.isAlive() || _backupThread.isAlive() || _batchWriter.isAlive()) {
 				try {
 					logger.debug("Waiting for the index maintenance threads to die...");
 					Thread.sleep(100);
@@ -954,6 +833,11 @@ public class LuceneEngine implements IndexEngineInterface {
 			}
 
 			logger.debug("Saving index...");
+			try {
+				_batchWriter.flush();
+			} catch (IOException e) {
+				logger.error("Unable to write the pending changes to the index", e);
+			}
 			closeAll();
 		}
 	}
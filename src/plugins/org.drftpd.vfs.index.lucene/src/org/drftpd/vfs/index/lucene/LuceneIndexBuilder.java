@@ -0,0 +1,276 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.InodeHandle;
+import org.drftpd.vfs.VirtualFileSystem;
+
+/**
+ * Rebuilds the index from the VFS into a new index on several threads.<br>
+ * The threads share a queue of directories, each thread indexes the inodes
+ * of the directory it took and queues the directories found in it, so a
+ * large section keeps all the threads busy. They all add to the same
+ * {@link IndexWriter} which builds its segments in parallel.<br>
+ * The current index keeps serving queries and taking changes while the new
+ * one is built. The paths changed meanwhile are recorded and are indexed
+ * again from the VFS, once the new index replaced the current one, see
+ * {@link #replay(IndexWriter)}.
+ * @version $Id$
+ */
+public class LuceneIndexBuilder {
+	private static final Logger logger = Logger.getLogger(LuceneIndexBuilder.class);
+
+	private static final long PROGRESS_INTERVAL = 30000L;
+
+	private final IndexWriter _writer;
+
+	private int _threads;
+
+	// guarded by this
+	private LinkedList<DirectoryHandle> _queue = new LinkedList<DirectoryHandle>();
+	private int _active;
+	private IOException _failure;
+
+	private AtomicLong _inodes = new AtomicLong();
+	private AtomicLong _directories = new AtomicLong();
+	private long _started;
+
+	// paths changed while building and if the inodes below them changed too, guarded by itself
+	private LinkedHashMap<String, Boolean> _changes = new LinkedHashMap<String, Boolean>();
+
+	/**
+	 * @param writer the writer of the new index
+	 * @param threads how many directories are indexed at once
+	 */
+	public LuceneIndexBuilder(IndexWriter writer, int threads) {
+		_writer = writer;
+		_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Indexes everything below the given directory and returns once it is done.
+	 * @throws IOException if the index could not be written, the build is aborted
+	 */
+	public void build(DirectoryHandle root) throws IOException {
+		_started = System.currentTimeMillis();
+		synchronized (this) {
+			_queue.add(root);
+		}
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < _threads; i++) {
+			Thread worker = new Thread(new Worker(), "IndexRebuildThread-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+		try {
+			synchronized (this) {
+				while (_failure == null && !(_queue.isEmpty() && _active == 0)) {
+					wait(PROGRESS_INTERVAL);
+					logger.info("Rebuilding the index - " + getProgress());
+				}
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while rebuilding the index");
+		}
+		synchronized (this) {
+			if (_failure != null) {
+				throw _failure;
+			}
+		}
+		logger.info("Index rebuilt - " + getProgress());
+	}
+
+	private synchronized DirectoryHandle take() {
+		while (_failure == null && _queue.isEmpty() && _active > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+		if (_failure != null || _queue.isEmpty()) {
+			// nothing left and nobody can queue more
+			notifyAll();
+			return null;
+		}
+		_active++;
+		return _queue.removeFirst();
+	}
+
+	private synchronized void queue(DirectoryHandle dir) {
+		_queue.add(dir);
+		notify();
+	}
+
+	private synchronized void done(IOException failure) {
+		_active--;
+		if (failure != null && _failure == null) {
+			_failure = failure;
+		}
+		if (_failure != null || (_queue.isEmpty() && _active == 0)) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Indexes the inodes of the directory, the directories found are queued
+	 * when subdirectories should be indexed too or are indexed by this thread.
+	 */
+	private void index(IndexWriter writer, DirectoryHandle dir, boolean parallel) throws IOException {
+		IndexDocument document = IndexDocument.get();
+		try {
+			for (InodeHandle inode : dir.getInodeHandlesUnchecked()) {
+				if (!inode.isDirectory() && !inode.isFile()) {
+					continue;
+				}
+				try {
+					writer.addDocument(document.fill(inode));
+					_inodes.incrementAndGet();
+				} catch (FileNotFoundException e) {
+					logger.error("Unable to add " + inode.getPath() + " to the index", e);
+					continue;
+				}
+				if (inode.isDirectory()) {
+					if (parallel) {
+						queue((DirectoryHandle) inode);
+					} else {
+						index(writer, (DirectoryHandle) inode, false);
+					}
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// Dir gone, its removal is recorded and replayed
+		}
+		_directories.incrementAndGet();
+	}
+
+	/**
+	 * Records a path changed while the index is being built.
+	 * @param subtree if the inodes below the path changed too, like after a rename
+	 */
+	public void record(String path, boolean subtree) {
+		synchronized (_changes) {
+			Boolean previous = _changes.remove(path);
+			_changes.put(path, subtree || (previous != null && previous));
+		}
+	}
+
+	/**
+	 * Indexes again the paths recorded, as they are in the VFS now.<br>
+	 * Must be called while no other change can be written to the index. The
+	 * paths are kept, the replay can be retried if the index could not be replaced.
+	 * @param writer the writer of the index which replaced the current one
+	 */
+	public void replay(IndexWriter writer) throws IOException {
+		ArrayList<Map.Entry<String, Boolean>> changes;
+		synchronized (_changes) {
+			changes = new ArrayList<Map.Entry<String, Boolean>>(_changes.entrySet());
+		}
+		IndexDocument document = IndexDocument.get();
+		for (Map.Entry<String, Boolean> change : changes) {
+			String path = change.getKey();
+			boolean subtree = change.getValue();
+			if (path.equals(VirtualFileSystem.separator)) {
+				// the root itself is not indexed
+				continue;
+			}
+			String dirPath = IndexDocument.getFullPath(path, true);
+			writer.deleteDocuments(new Term(IndexDocument.FULL_PATH, path));
+			writer.deleteDocuments(new Term(IndexDocument.FULL_PATH, dirPath));
+			if (subtree) {
+				writer.deleteDocuments(new PrefixQuery(new Term(IndexDocument.FULL_PATH, dirPath)));
+			}
+
+			InodeHandle inode;
+			try {
+				if (InodeHandle.isDirectory(path)) {
+					inode = new DirectoryHandle(path);
+				} else if (InodeHandle.isFile(path)) {
+					inode = new FileHandle(path);
+				} else {
+					continue;
+				}
+				writer.addDocument(document.fill(inode));
+			} catch (FileNotFoundException e) {
+				// deleted since, removed above
+				continue;
+			}
+			if (subtree && inode.isDirectory()) {
+				index(writer, (DirectoryHandle) inode, false);
+			}
+		}
+		logger.info("Indexed again " + changes.size() + " paths changed during the index rebuild");
+	}
+
+	public long getIndexedInodes() {
+		return _inodes.get();
+	}
+
+	public long getIndexedDirectories() {
+		return _directories.get();
+	}
+
+	/**
+	 * Returns a description of how far the build went.
+	 */
+	public String getProgress() {
+		int queued;
+		synchronized (this) {
+			queued = _queue.size() + _active;
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - _started);
+		long inodes = _inodes.get();
+		return inodes + " inodes in " + _directories.get() + " directories indexed, " + queued
+				+ " directories left, " + (inodes * 1000 / elapsed) + " inodes/s, "
+				+ (elapsed / 1000) + "s elapsed";
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			DirectoryHandle dir;
+			while ((dir = take()) != null) {
+				IOException failure = null;
+				try {
+					index(_writer, dir, true);
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					logger.error("Unable to index " + dir.getPath(), e);
+				} finally {
+					done(failure);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Shares one near real time {@link IndexSearcher} between all the queries
+ * instead of opening a reader from the {@link IndexWriter} for each of them.<br>
+ * The searcher is reopened on the next query after the index changed, at most
+ * once every refresh interval, so a search may miss changes made during the
+ * last interval. Callers which can not miss anything, like renames, ask for a
+ * current searcher.<br>
+ * Each searcher handed out holds a reference on its reader, the reader is
+ * closed once it has been replaced and the last query using it released it.
+ * @version $Id$
+ */
+public class LuceneSearcherManager {
+	private static final Logger logger = Logger.getLogger(LuceneSearcherManager.class);
+
+	private static final int LATENCY_SAMPLES = 1024;
+
+	private IndexWriter _writer;
+
+	private long _refreshInterval;
+
+	private IndexSearcher _searcher;
+
+	private volatile boolean _changed = true;
+
+	private boolean _frozen;
+
+	private long _lastRefresh;
+
+	private long _refreshes;
+
+	private long _refreshTime;
+
+	// the last query times in nanoseconds, a ring buffer
+	private long[] _latencies = new long[LATENCY_SAMPLES];
+
+	private long _queries;
+
+	/**
+	 * @param refreshInterval the minimum milliseconds between two reopens of the searcher
+	 */
+	public LuceneSearcherManager(IndexWriter writer, long refreshInterval) {
+		_writer = writer;
+		_refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Tells the manager the index was changed and the searcher is out of date.
+	 */
+	public void setChanged() {
+		_changed = true;
+	}
+
+	/**
+	 * Returns a searcher which must be given back with {@link #release(IndexSearcher)}.
+	 * @param current if the searcher must see all the changes made so far
+	 */
+	public synchronized IndexSearcher acquire(boolean current) throws IOException {
+		if (_writer == null) {
+			throw new IOException("The index is closed");
+		}
+		if (_searcher == null || (_changed && !_frozen
+				&& (current || System.currentTimeMillis() - _lastRefresh >= _refreshInterval))) {
+			refresh();
+		}
+		_searcher.getIndexReader().incRef();
+		return _searcher;
+	}
+
+	/**
+	 * While frozen the searcher is not reopened, queries keep seeing the index as
+	 * it was, even the ones asking for a current searcher.
+	 */
+	public synchronized void setFrozen(boolean frozen) {
+		_frozen = frozen;
+	}
+
+	public void release(IndexSearcher searcher) {
+		try {
+			searcher.getIndexReader().decRef();
+		} catch (IOException e) {
+			logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
+		}
+	}
+
+	private void refresh() throws IOException {
+		long start = System.nanoTime();
+		// cleared first, a change made while the reader opens is seen by the next refresh
+		_changed = false;
+		IndexReader reader;
+		try {
+			reader = _writer.getReader();
+		} catch (IOException e) {
+			_changed = true;
+			throw e;
+		}
+		IndexSearcher old = _searcher;
+		_searcher = new IndexSearcher(reader);
+		if (old != null) {
+			release(old);
+		}
+		_lastRefresh = System.currentTimeMillis();
+		_refreshTime += System.nanoTime() - start;
+		_refreshes++;
+	}
+
+	/**
+	 * Records how long a query took, from asking for the searcher until the results were read.
+	 */
+	public synchronized void addQueryTime(long nanos) {
+		_latencies[(int) (_queries++ % LATENCY_SAMPLES)] = nanos;
+	}
+
+	/**
+	 * Returns the percentile of the time the last queries took in milliseconds.
+	 */
+	public synchronized double getQueryTime(int percentile) {
+		int count = (int) Math.min(_queries, LATENCY_SAMPLES);
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = new long[count];
+		System.arraycopy(_latencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted[Math.min(count - 1, count * percentile / 100)] / 1000000d;
+	}
+
+	public synchronized long getQueries() {
+		return _queries;
+	}
+
+	public synchronized long getRefreshes() {
+		return _refreshes;
+	}
+
+	/**
+	 * Returns the average time a reopen of the searcher took in milliseconds.
+	 */
+	public synchronized double getAverageRefreshTime() {
+		return _refreshes == 0 ? 0 : _refreshTime / 1000000d / _refreshes;
+	}
+
+	/**
+	 * Replaces the writer the searchers are opened from, after it had to be reopened.
+	 */
+	public synchronized void setWriter(IndexWriter writer) {
+		if (_searcher != null) {
+			release(_searcher);
+			_searcher = null;
+		}
+		_writer = writer;
+		_changed = true;
+	}
+
+	/**
+	 * Releases the searcher, queries still running finish on their reader.
+	 */
+	public synchronized void close() {
+		if (_searcher != null) {
+			release(_searcher);
+			_searcher = null;
+		}
+		_writer = null;
+	}
+}
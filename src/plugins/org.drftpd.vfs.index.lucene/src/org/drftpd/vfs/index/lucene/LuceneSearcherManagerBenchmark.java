@@ -0,0 +1,144 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Compares concurrent searches sharing a searcher through the
+ * {@link LuceneSearcherManager} against opening a reader for each search.
+ * Not part of the unit tests, run it by hand:
+ * LuceneSearcherManagerBenchmark [documents] [threads] [searches per thread]
+ * @version $Id$
+ */
+public class LuceneSearcherManagerBenchmark {
+
+	private IndexWriter _writer;
+
+	private int _threads;
+
+	private int _searches;
+
+	private LuceneSearcherManagerBenchmark(IndexWriter writer, int threads, int searches) {
+		_writer = writer;
+		_threads = threads;
+		_searches = searches;
+	}
+
+	private void addDocument(int i) throws IOException {
+		Document doc = new Document();
+		doc.add(new Field("fullPath", "/section/Release.Name-" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("name", "release name group" + (i % 100), Field.Store.YES, Field.Index.ANALYZED));
+		_writer.addDocument(doc);
+	}
+
+	private int count(IndexSearcher searcher, String name) throws IOException {
+		return searcher.search(new TermQuery(new Term("name", name)), 10).totalHits;
+	}
+
+	private void run(final boolean shared) throws InterruptedException, IOException {
+		final LuceneSearcherManager manager = new LuceneSearcherManager(_writer, 1000L);
+		Thread[] threads = new Thread[_threads];
+		final Throwable[] failure = new Throwable[1];
+		long start = System.currentTimeMillis();
+		for (int t = 0; t < _threads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < _searches; i++) {
+							long queryStart = System.nanoTime();
+							if (shared) {
+								IndexSearcher searcher = manager.acquire(false);
+								try {
+									count(searcher, "group" + ((thread + i) % 100));
+								} finally {
+									manager.release(searcher);
+								}
+							} else {
+								IndexReader reader = _writer.getReader();
+								IndexSearcher searcher = new IndexSearcher(reader);
+								try {
+									count(searcher, "group" + ((thread + i) % 100));
+								} finally {
+									searcher.close();
+									reader.close();
+								}
+							}
+							manager.addQueryTime(System.nanoTime() - queryStart);
+							if (thread == 0 && i % 10 == 0) {
+								// uploads keep changing the index while searching
+								addDocument(i);
+								manager.setChanged();
+							}
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		if (failure[0] != null) {
+			throw new IllegalStateException("Search failed", failure[0]);
+		}
+		System.out.println((shared ? "shared searcher " : "reader per query") + " - "
+				+ _threads * _searches * 1000L / Math.max(1, elapsed) + " searches/s, "
+				+ String.format("%.2fms median, %.2fms 95th, %.2fms 99th percentile",
+						manager.getQueryTime(50), manager.getQueryTime(95), manager.getQueryTime(99))
+				+ (shared ? ", " + manager.getRefreshes() + " refreshes of "
+						+ String.format("%.2fms", manager.getAverageRefreshTime()) : ""));
+		manager.close();
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		int documents = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int searches = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+		IndexWriter writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true,
+				MaxFieldLength.UNLIMITED);
+		try {
+			LuceneSearcherManagerBenchmark benchmark = new LuceneSearcherManagerBenchmark(writer, threads, searches);
+			for (int i = 0; i < documents; i++) {
+				benchmark.addDocument(i);
+			}
+			writer.commit();
+			System.out.println(threads + " threads searching " + searches + " times each in "
+					+ documents + " documents");
+			benchmark.run(false);
+			benchmark.run(true);
+		} finally {
+			writer.close();
+		}
+	}
+}
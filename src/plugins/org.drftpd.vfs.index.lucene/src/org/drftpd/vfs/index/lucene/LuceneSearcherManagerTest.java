@@ -0,0 +1,142 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Tests for the {@link LuceneSearcherManager}.
+ * @version $Id$
+ */
+public class LuceneSearcherManagerTest extends TestCase {
+
+	private static final int DOCUMENTS = 5000;
+
+	private static final int THREADS = 8;
+
+	private static final int SEARCHES = 100;
+
+	private IndexWriter _writer;
+
+	public LuceneSearcherManagerTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true,
+				MaxFieldLength.UNLIMITED);
+		for (int i = 0; i < DOCUMENTS; i++) {
+			addDocument(i);
+		}
+		_writer.commit();
+	}
+
+	protected void tearDown() throws IOException {
+		_writer.close();
+	}
+
+	private void addDocument(int i) throws IOException {
+		Document doc = new Document();
+		doc.add(new Field("fullPath", "/section/Release.Name-" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("name", "release name group" + (i % 100), Field.Store.YES, Field.Index.ANALYZED));
+		_writer.addDocument(doc);
+	}
+
+	private int count(IndexSearcher searcher, String name) throws IOException {
+		return searcher.search(new TermQuery(new Term("name", name)), 10).totalHits;
+	}
+
+	public void testRefresh() throws IOException {
+		LuceneSearcherManager manager = new LuceneSearcherManager(_writer, 60000L);
+		IndexSearcher first = manager.acquire(false);
+		assertEquals(DOCUMENTS / 100, count(first, "group1"));
+
+		addDocument(1);
+		manager.setChanged();
+		// within the refresh interval, the same searcher is shared
+		IndexSearcher stale = manager.acquire(false);
+		assertSame(first, stale);
+		manager.release(stale);
+
+		IndexSearcher current = manager.acquire(true);
+		assertNotSame(first, current);
+		assertEquals(DOCUMENTS / 100 + 1, count(current, "group1"));
+		// the replaced reader stays open until released
+		assertEquals(DOCUMENTS / 100, count(first, "group1"));
+		manager.release(first);
+		assertEquals(0, first.getIndexReader().getRefCount());
+		manager.release(current);
+		manager.close();
+		assertEquals(0, current.getIndexReader().getRefCount());
+	}
+
+	/**
+	 * Searches from several threads while the index keeps changing.
+	 */
+	public void testConcurrent() throws InterruptedException, IOException {
+		final LuceneSearcherManager manager = new LuceneSearcherManager(_writer, 0L);
+		Thread[] threads = new Thread[THREADS];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < SEARCHES; i++) {
+							IndexSearcher searcher = manager.acquire(false);
+							try {
+								assertTrue(count(searcher, "group" + ((thread + i) % 100)) >= DOCUMENTS / 100);
+							} finally {
+								manager.release(searcher);
+							}
+							if (thread == 0 && i % 10 == 0) {
+								// uploads keep changing the index while searching
+								addDocument(i);
+								manager.setChanged();
+							}
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure[0]);
+		IndexSearcher last = manager.acquire(true);
+		assertEquals(DOCUMENTS / 100 + 1, count(last, "group0"));
+		manager.release(last);
+		manager.close();
+		assertEquals(0, last.getIndexReader().getRefCount());
+	}
+}
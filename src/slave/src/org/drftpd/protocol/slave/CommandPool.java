@@ -0,0 +1,153 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.protocol.slave;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool running one class of commands received from the master,
+ * keeping the number of threads and queued commands in check and counting
+ * how long the commands take.
+ * @version $Id$
+ */
+public class CommandPool {
+
+	private String _name;
+
+	private ThreadPoolExecutor _pool;
+
+	private AtomicLong _completed = new AtomicLong();
+
+	private AtomicLong _rejected = new AtomicLong();
+
+	private AtomicLong _totalTime = new AtomicLong();
+
+	private AtomicLong _maxTime = new AtomicLong();
+
+	/**
+	 * @param name
+	 * @param threads maximum number of commands running at the same time.
+	 * @param queueSize maximum number of commands waiting for a thread, 0 to
+	 * reject commands as soon as all threads are busy.
+	 */
+	public CommandPool(String name, int threads, int queueSize) {
+		_name = name;
+		BlockingQueue<Runnable> queue = queueSize > 0 ? new LinkedBlockingQueue<Runnable>(queueSize)
+				: new SynchronousQueue<Runnable>();
+		_pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+				new CommandThreadFactory(name), new ThreadPoolExecutor.AbortPolicy());
+		_pool.allowCoreThreadTimeOut(true);
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * @param command
+	 * @return false if the pool and its queue are full and the command was not accepted.
+	 */
+	public boolean execute(final String commandName, final Runnable command) {
+		final long queued = System.currentTimeMillis();
+		try {
+			_pool.execute(new Runnable() {
+				public void run() {
+					Thread currThread = Thread.currentThread();
+					currThread.setName("AsyncCommandHandler - " + _name + " - " + commandName);
+					try {
+						command.run();
+					} finally {
+						long elapsed = System.currentTimeMillis() - queued;
+						_completed.incrementAndGet();
+						_totalTime.addAndGet(elapsed);
+						long max = _maxTime.get();
+						while (elapsed > max && !_maxTime.compareAndSet(max, elapsed)) {
+							max = _maxTime.get();
+						}
+						currThread.setName(CommandThreadFactory.getIdleThreadName(_name, currThread.getId()));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			_rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public int getActiveCount() {
+		return _pool.getActiveCount();
+	}
+
+	public int getQueueSize() {
+		return _pool.getQueue().size();
+	}
+
+	public long getCompleted() {
+		return _completed.get();
+	}
+
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	/**
+	 * @return the average time, in milliseconds, between a command being
+	 * received and its handler returning.
+	 */
+	public long getAverageTime() {
+		long completed = _completed.get();
+		return completed == 0 ? 0 : _totalTime.get() / completed;
+	}
+
+	public long getMaxTime() {
+		return _maxTime.get();
+	}
+
+	public String toString() {
+		return "CommandPool[name=" + _name + ",active=" + getActiveCount() + ",queued=" + getQueueSize()
+				+ ",completed=" + getCompleted() + ",rejected=" + getRejected() + ",avgTime="
+				+ getAverageTime() + "ms,maxTime=" + getMaxTime() + "ms]";
+	}
+
+	static class CommandThreadFactory implements ThreadFactory {
+
+		private String _name;
+
+		CommandThreadFactory(String name) {
+			_name = name;
+		}
+
+		public static String getIdleThreadName(String name, long threadId) {
+			return "AsyncCommandHandler - " + name + " - " + threadId + " - Waiting for commands";
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName(getIdleThreadName(_name, t.getId()));
+			return t;
+		}
+	}
+}
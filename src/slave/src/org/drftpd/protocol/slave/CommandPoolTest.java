@@ -0,0 +1,68 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.protocol.slave;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class CommandPoolTest extends TestCase {
+
+	private CountDownLatch _release;
+
+	private Runnable createBlockingCommand() {
+		return new Runnable() {
+			public void run() {
+				try {
+					_release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+	}
+
+	protected void setUp() {
+		_release = new CountDownLatch(1);
+	}
+
+	public void testQueueLimit() throws InterruptedException {
+		CommandPool pool = new CommandPool("test", 2, 1);
+		assertTrue(pool.execute("a", createBlockingCommand()));
+		assertTrue(pool.execute("b", createBlockingCommand()));
+		assertTrue(pool.execute("c", createBlockingCommand()));
+		assertFalse(pool.execute("d", createBlockingCommand()));
+		assertEquals(1, pool.getRejected());
+		assertEquals(1, pool.getQueueSize());
+		_release.countDown();
+		for (int i = 0; i < 100 && pool.getCompleted() < 3; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(3, pool.getCompleted());
+		assertTrue(pool.execute("e", createBlockingCommand()));
+	}
+
+	public void testNoQueue() {
+		CommandPool pool = new CommandPool("test", 1, 0);
+		assertTrue(pool.execute("a", createBlockingCommand()));
+		assertFalse(pool.execute("b", createBlockingCommand()));
+		_release.countDown();
+	}
+}
@@ -23,15 +23,20 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 import org.drftpd.protocol.HandshakeWrapper;
 import org.drftpd.protocol.ProtocolException;
 import org.drftpd.slave.Slave;
+import org.drftpd.slave.async.AsyncCodec;
 import org.drftpd.slave.async.AsyncCommandArgument;
 import org.drftpd.slave.async.AsyncResponse;
 import org.drftpd.slave.async.AsyncResponseException;
+import org.drftpd.slave.async.AsyncResponseRejected;
 import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.util.PluginObjectContainer;
 
@@ -51,15 +56,48 @@ public class SlaveProtocolCentral {
 	private static final Class<?>[] CONSTRUCTORPARMS = { SlaveProtocolCentral.class };
 	private static final Class<?>[] METHODPARMS = { AsyncCommandArgument.class };
 	
+	private static final String DEFAULT_POOL = "metadata";
+
+	/**
+	 * The pools created by default and their default threads and queue sizes.
+	 */
+	private static final String[][] POOLS = {
+		{ "transfer", "1000", "0" },
+		{ "checksum", "4", "1000" },
+		{ "metadata", "20", "1000" },
+		{ "control", "20", "1000" } };
+
+	/**
+	 * The default pool of the commands shipped with the slave, commands added
+	 * by plugins run in the metadata pool unless configured otherwise.
+	 */
+	private static final String[][] COMMAND_POOLS = {
+		{ "send", "transfer" }, { "receive", "transfer" },
+		{ "checksum", "checksum" }, { "sfvfile", "checksum" }, { "zipcrc", "checksum" },
+		{ "mp3file", "checksum" }, { "zipdiz", "checksum" },
+		{ "delete", "metadata" }, { "rename", "metadata" }, { "remerge", "metadata" },
+		{ "remergeDigest", "metadata" }, { "remergePaths", "metadata" },
+		{ "ping", "control" }, { "abort", "control" }, { "connect", "control" },
+		{ "listen", "control" }, { "maxpath", "control" }, { "checkSSL", "control" },
+		{ "remergePause", "control" }, { "remergeResume", "control" },
+		{ "remergeCredit", "control" }, { "bandwidth", "control" }, { "shutdown", "control" },
+		{ "error", "control" } };
+
 	private Slave _slave = null;
+
+	private Map<String, CommandPool> _pools;
+
+	private Map<String, CommandPool> _commandPools;
 	
 	/**
 	 * Instantiate the Central and load all connected handlers.
 	 * @param slave
+	 * @param p the slave configuration, used to size the command pools.
 	 */
-	public SlaveProtocolCentral(Slave slave) {
+	public SlaveProtocolCentral(Slave slave, Properties p) {
 		_slave = slave;
 		loadHandlers();
+		loadCommandPools(p);
 	}
 	
 	/**
@@ -73,6 +111,7 @@ public class SlaveProtocolCentral {
 	public void handshakeWithMaster() {
 		HandshakeWrapper hw = new HandshakeWrapper();
 		hw.setPluginStatus(true);
+		hw.setCodecVersion(getSlaveObject().isCodecEnabled() ? AsyncCodec.VERSION : 0);
 		
 		try {
 			// reading the plugin list from the socket
@@ -152,6 +191,92 @@ public class SlaveProtocolCentral {
 		}
 	}
 	
+	/**
+	 * Creates the pools running the commands received from the master.<br>
+	 * Each pool can be resized with pool.&lt;name&gt;.threads and
+	 * pool.&lt;name&gt;.queue, a command can be moved to another pool, new
+	 * pools included, with command.pool.&lt;command&gt;=&lt;name&gt;.
+	 */
+	private void loadCommandPools(Properties p) {
+		HashMap<String, String> poolNames = new HashMap<String, String>();
+		for (String[] commandPool : COMMAND_POOLS) {
+			poolNames.put(commandPool[0], commandPool[1]);
+		}
+		for (String command : _handlersMap.keySet()) {
+			poolNames.put(command, p.getProperty("command.pool." + command,
+					poolNames.containsKey(command) ? poolNames.get(command) : DEFAULT_POOL));
+		}
+
+		HashMap<String, String[]> poolDefaults = new HashMap<String, String[]>();
+		for (String[] pool : POOLS) {
+			poolDefaults.put(pool[0], pool);
+		}
+		HashMap<String, CommandPool> pools = new HashMap<String, CommandPool>();
+		HashMap<String, CommandPool> commandPools = new HashMap<String, CommandPool>();
+		poolNames.put(null, DEFAULT_POOL);
+		for (Entry<String, String> entry : poolNames.entrySet()) {
+			String name = entry.getValue();
+			CommandPool pool = pools.get(name);
+			if (pool == null) {
+				String[] defaults = poolDefaults.get(name);
+				int threads = Integer.parseInt(p.getProperty("pool." + name + ".threads",
+						defaults == null ? "20" : defaults[1]));
+				int queue = Integer.parseInt(p.getProperty("pool." + name + ".queue",
+						defaults == null ? "1000" : defaults[2]));
+				pool = new CommandPool(name, threads, queue);
+				pools.put(name, pool);
+				logger.debug("Created command pool " + name + " with " + threads
+						+ " threads and a queue of " + queue);
+			}
+			commandPools.put(entry.getKey(), pool);
+		}
+		_pools = Collections.unmodifiableMap(pools);
+		_commandPools = commandPools;
+
+		long interval = Long.parseLong(p.getProperty("pool.statistics.interval", "300")) * 1000L;
+		if (interval > 0) {
+			Timer timer = new Timer("CommandPoolStatistics", true);
+			timer.schedule(new TimerTask() {
+				public void run() {
+					for (CommandPool pool : _pools.values()) {
+						logger.info(pool);
+					}
+				}
+			}, interval, interval);
+		}
+	}
+
+	public Map<String, CommandPool> getCommandPools() {
+		return _pools;
+	}
+
+	/**
+	 * Runs the command in the pool of its class and sends the response to
+	 * the master once it's done.<br>
+	 * If the pool is full the command is not run and an
+	 * {@link AsyncResponseRejected} is sent right away.
+	 * @param ac
+	 */
+	public void dispatchCommand(final AsyncCommandArgument ac) {
+		CommandPool pool = _commandPools.get(ac.getName());
+		if (pool == null) {
+			pool = _commandPools.get(null);
+		}
+		boolean accepted = pool.execute(ac.getName(), new Runnable() {
+			public void run() {
+				try {
+					_slave.sendResponse(handleCommand(ac));
+				} catch (Throwable e) {
+					_slave.sendResponse(new AsyncResponseException(ac.getIndex(), e));
+				}
+			}
+		});
+		if (!accepted) {
+			logger.warn("Rejected " + ac + ", " + pool);
+			_slave.sendResponse(new AsyncResponseRejected(ac.getIndex(), ac.getName(), pool.getName()));
+		}
+	}
+
 	public Slave getSlaveObject() {
 		return _slave;
 	}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the bandwidth of the transfers with a hierarchy of
+ * {@link TokenBucket}s: each transfer, each user across their transfers,
+ * sections and the whole slave, each in one direction.<br>
+ * A transfer is charged in every bucket above it and waits for the slowest
+ * of them, the transfers sharing a bucket all send their chunk in turn so
+ * they get the same share of it.<br>
+ * The rates are read from slave.conf and can be changed by the master while
+ * transfers are running, in bytes per second, 0 being unlimited.
+ * @version $Id$
+ */
+public class BandwidthShaper {
+	private static final Logger logger = Logger.getLogger(BandwidthShaper.class);
+
+	/**
+	 * The most bytes sent at once by a limited transfer.
+	 */
+	public static final int QUANTUM = 65536;
+
+	private TokenBucket _upload;
+
+	private TokenBucket _download;
+
+	private long _userRate;
+
+	// guarded by this
+	private HashMap<String, Long> _userRates = new HashMap<String, Long>();
+
+	private HashMap<String, UserBucket> _users = new HashMap<String, UserBucket>();
+
+	// replaced on change, in the order they were added
+	private volatile ArrayList<Section> _sections = new ArrayList<Section>();
+
+	public BandwidthShaper(Properties p) {
+		_upload = new TokenBucket(Long.parseLong(p.getProperty("bandwidth.upload", "0")));
+		_download = new TokenBucket(Long.parseLong(p.getProperty("bandwidth.download", "0")));
+		_userRate = Long.parseLong(p.getProperty("bandwidth.user", "0"));
+		for (int i = 1;; i++) {
+			String path = p.getProperty("bandwidth.section." + i + ".path");
+			if (path == null) {
+				break;
+			}
+			setSectionRate(path, Long.parseLong(p.getProperty("bandwidth.section." + i + ".rate", "0")));
+		}
+	}
+
+	/**
+	 * Returns the chain of buckets a transfer is charged in, it must be closed
+	 * once the transfer is done.
+	 * @param user can be empty if the master didn't send it
+	 * @param maxSpeed the rate of the transfer itself
+	 */
+	public Chain open(char direction, String user, String path, long maxSpeed) {
+		ArrayList<TokenBucket> buckets = new ArrayList<TokenBucket>(4);
+		TokenBucket transfer = new TokenBucket(maxSpeed);
+		buckets.add(transfer);
+		UserBucket userBucket = null;
+		if (user != null && user.length() > 0) {
+			userBucket = acquireUser(direction + user);
+			buckets.add(userBucket._bucket);
+		}
+		for (Section section : _sections) {
+			if (isInSection(path, section._path)) {
+				buckets.add(direction == Transfer.TRANSFER_RECEIVING_UPLOAD
+						? section._upload : section._download);
+				break;
+			}
+		}
+		buckets.add(direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? _upload : _download);
+		return new Chain(transfer, buckets.toArray(new TokenBucket[buckets.size()]), userBucket);
+	}
+
+	/**
+	 * @return true if the path is the section or below it, /mp3s is not in /mp3
+	 */
+	static boolean isInSection(String path, String section) {
+		if (!path.startsWith(section)) {
+			return false;
+		}
+		return path.length() == section.length() || section.endsWith("/")
+				|| path.charAt(section.length()) == '/';
+	}
+
+	private synchronized UserBucket acquireUser(String key) {
+		UserBucket userBucket = _users.get(key);
+		if (userBucket == null) {
+			Long rate = _userRates.get(key.substring(1));
+			userBucket = new UserBucket(key, new TokenBucket(rate == null ? _userRate : rate));
+			_users.put(key, userBucket);
+		}
+		userBucket._transfers++;
+		return userBucket;
+	}
+
+	private synchronized void releaseUser(UserBucket userBucket) {
+		if (--userBucket._transfers == 0) {
+			_users.remove(userBucket._key);
+		}
+	}
+
+	/**
+	 * Sets the rate of the whole slave in one direction.
+	 */
+	public void setSlaveRate(char direction, long rate) {
+		(direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? _upload : _download).setRate(rate);
+	}
+
+	/**
+	 * Sets the rate of a user, in each direction.
+	 * @param user "*" sets the rate of the users without a rate of their own
+	 */
+	public synchronized void setUserRate(String user, long rate) {
+		if (user.equals("*")) {
+			_userRate = rate;
+		} else if (rate > 0) {
+			_userRates.put(user, rate);
+		} else {
+			_userRates.remove(user);
+		}
+		for (UserBucket userBucket : _users.values()) {
+			String name = userBucket._key.substring(1);
+			Long own = _userRates.get(name);
+			if (name.equals(user) || own == null) {
+				userBucket._bucket.setRate(own == null ? _userRate : own);
+			}
+		}
+	}
+
+	/**
+	 * Sets the rate of the transfers below a path, in each direction, 0 removes the section.
+	 */
+	public synchronized void setSectionRate(String path, long rate) {
+		logger.debug("Bandwidth of " + path + " set to " + rate + " bytes/s");
+		ArrayList<Section> sections = new ArrayList<Section>(_sections);
+		for (int i = 0; i < sections.size(); i++) {
+			Section section = sections.get(i);
+			if (section._path.equals(path)) {
+				section._upload.setRate(rate);
+				section._download.setRate(rate);
+				if (rate <= 0) {
+					// transfers still holding it are unlimited now
+					sections.remove(i);
+					_sections = sections;
+				}
+				return;
+			}
+		}
+		if (rate > 0) {
+			sections.add(new Section(path, rate));
+			_sections = sections;
+		}
+	}
+
+	public long getSlaveRate(char direction) {
+		return (direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? _upload : _download).getRate();
+	}
+
+	/**
+	 * The buckets a transfer is charged in, from its own to the slave's.
+	 */
+	public class Chain {
+		private TokenBucket _transfer;
+
+		private TokenBucket[] _buckets;
+
+		private UserBucket _user;
+
+		private Chain(TokenBucket transfer, TokenBucket[] buckets, UserBucket user) {
+			_transfer = transfer;
+			_buckets = buckets;
+			_user = user;
+		}
+
+		/**
+		 * Charges the bytes sent in every bucket.
+		 * @param now {@link System#nanoTime()}
+		 * @return how many nanoseconds the transfer has to wait before sending more
+		 */
+		public long consume(long count, long now) {
+			long wait = 0;
+			for (TokenBucket bucket : _buckets) {
+				if (bucket.isLimited()) {
+					wait = Math.max(wait, bucket.consume(count, now));
+				}
+			}
+			return wait;
+		}
+
+		/**
+		 * @return if any of the buckets is limited, the transfer should then send
+		 * at most {@link BandwidthShaper#QUANTUM} bytes at once
+		 */
+		public boolean isLimited() {
+			for (TokenBucket bucket : _buckets) {
+				if (bucket.isLimited()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void setRate(long rate) {
+			_transfer.setRate(rate);
+		}
+
+		public void close() {
+			if (_user != null) {
+				releaseUser(_user);
+				_user = null;
+			}
+		}
+	}
+
+	private static class UserBucket {
+		private String _key;
+
+		private TokenBucket _bucket;
+
+		private int _transfers;
+
+		private UserBucket(String key, TokenBucket bucket) {
+			_key = key;
+			_bucket = bucket;
+		}
+	}
+
+	private static class Section {
+		private String _path;
+
+		private TokenBucket _upload;
+
+		private TokenBucket _download;
+
+		private Section(String path, long rate) {
+			_path = path;
+			_upload = new TokenBucket(rate);
+			_download = new TokenBucket(rate);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.util.Properties;
+
+/**
+ * Measures how fairly real transfer threads sharing a {@link BandwidthShaper}
+ * limit are served on the wall clock and what the shaping costs per chunk.
+ * Not part of the unit tests, run it by hand:
+ * BandwidthShaperBenchmark [duration in ms]
+ * @version $Id$
+ */
+public class BandwidthShaperBenchmark {
+
+	private static final long MB = 1000000L;
+
+	/**
+	 * Sends as much as the chain lets through until the deadline, the way a transfer does.
+	 */
+	private static class Sender extends Thread {
+		private BandwidthShaper.Chain _chain;
+
+		private long _sent;
+
+		private long _until;
+
+		private Sender(BandwidthShaper.Chain chain, long until) {
+			_chain = chain;
+			_until = until;
+		}
+
+		public void run() {
+			while (System.currentTimeMillis() < _until) {
+				long now = System.nanoTime();
+				long wait = _chain.consume(BandwidthShaper.QUANTUM, now);
+				_sent += BandwidthShaper.QUANTUM;
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+			_chain.close();
+		}
+	}
+
+	private static long[] run(Sender[] senders) throws InterruptedException {
+		for (Sender sender : senders) {
+			sender.start();
+		}
+		long[] sent = new long[senders.length];
+		for (int i = 0; i < senders.length; i++) {
+			senders[i].join();
+			sent[i] = senders[i]._sent;
+		}
+		return sent;
+	}
+
+	private static void fairness(long duration) throws InterruptedException {
+		Properties p = new Properties();
+		p.setProperty("bandwidth.download", String.valueOf(8 * MB));
+		BandwidthShaper shaper = new BandwidthShaper(p);
+		long until = System.currentTimeMillis() + duration;
+		Sender[] senders = new Sender[8];
+		for (int i = 0; i < senders.length; i++) {
+			senders[i] = new Sender(shaper.open(Transfer.TRANSFER_SENDING_DOWNLOAD, "user" + i,
+					"/section/file" + i, 0), until);
+		}
+		long[] sent = run(senders);
+		long total = 0;
+		for (int i = 0; i < sent.length; i++) {
+			total += sent[i];
+			System.out.println("transfer " + i + " - " + sent[i] * 1000 / duration / 1000 + "KB/s");
+		}
+		System.out.println("total " + total * 1000 / duration / 1000 + "KB/s of " + 8 * MB / 1000
+				+ "KB/s, fairness index " + BandwidthShaperTest.jain(sent));
+	}
+
+	private static void hierarchy(long duration) throws InterruptedException {
+		Properties p = new Properties();
+		p.setProperty("bandwidth.upload", String.valueOf(6 * MB));
+		p.setProperty("bandwidth.user", String.valueOf(2 * MB));
+		BandwidthShaper shaper = new BandwidthShaper(p);
+		long until = System.currentTimeMillis() + duration;
+		char up = Transfer.TRANSFER_RECEIVING_UPLOAD;
+		Sender[] senders = new Sender[] {
+				new Sender(shaper.open(up, "leecher", "/a", 0), until),
+				new Sender(shaper.open(up, "leecher", "/b", 0), until),
+				new Sender(shaper.open(up, "racer", "/c", MB), until),
+				new Sender(shaper.open(up, "", "/d", 0), until) };
+		long[] sent = run(senders);
+		long leecher = (sent[0] + sent[1]) * 1000 / duration;
+		long racer = sent[2] * 1000 / duration;
+		long other = sent[3] * 1000 / duration;
+		System.out.println("user limited (2000KB/s) - " + leecher / 1000
+				+ "KB/s, transfer limited (1000KB/s) - " + racer / 1000
+				+ "KB/s, rest of the slave (3000KB/s) - " + other / 1000 + "KB/s");
+	}
+
+	/**
+	 * The cost of charging a chunk, which has to stay far below the time it takes to send it.
+	 */
+	private static void cost() {
+		Properties p = new Properties();
+		p.setProperty("bandwidth.download", String.valueOf(1000000 * MB));
+		p.setProperty("bandwidth.user", String.valueOf(1000000 * MB));
+		BandwidthShaper shaper = new BandwidthShaper(p);
+		BandwidthShaper.Chain chain = shaper.open(Transfer.TRANSFER_SENDING_DOWNLOAD, "user", "/file",
+				1000000 * MB);
+		int chunks = 5000000;
+		long start = System.nanoTime();
+		for (int i = 0; i < chunks; i++) {
+			chain.consume(BandwidthShaper.QUANTUM, System.nanoTime());
+		}
+		long perChunk = (System.nanoTime() - start) / chunks;
+		// sending 64KB takes 65us at 1GB/s
+		double share = perChunk / 65536d * 100;
+		System.out.println(perChunk + "ns per chunk, " + share + "% of the time a chunk takes at 1GB/s");
+		chain.close();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long duration = args.length > 0 ? Long.parseLong(args[0]) : 2000L;
+		fairness(duration);
+		hierarchy(duration);
+		cost();
+	}
+}
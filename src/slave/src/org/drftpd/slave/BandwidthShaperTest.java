@@ -0,0 +1,143 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the {@link BandwidthShaper}. Transfers are run against a
+ * simulated clock so the results do not depend on the scheduler.
+ * @version $Id$
+ */
+public class BandwidthShaperTest extends TestCase {
+
+	private static final long MB = 1000000L;
+
+	private static final long NANOS = 1000000000L;
+
+	// simulated, in nanoseconds
+	private static final long DURATION = 2 * NANOS;
+
+	// the time it takes to send a chunk once the chain lets it through
+	private static final long SEND = 1000L;
+
+	public BandwidthShaperTest(String fName) {
+		super(fName);
+	}
+
+	public void testTokenBucket() {
+		TokenBucket bucket = new TokenBucket(MB);
+		long now = System.nanoTime();
+		// a tenth of a second is allowed as a burst
+		assertEquals(0, bucket.consume(MB / 10, now));
+		assertEquals(100000000L, bucket.consume(MB / 10, now), 1000000L);
+		// paid back after the wait
+		assertEquals(0, bucket.consume(0, now + 100000000L));
+		assertEquals(0, new TokenBucket(0).consume(100 * MB, now));
+	}
+
+	/**
+	 * Lets every chain send as much as it is allowed to during the duration,
+	 * the way a transfer does, and returns the bytes sent per second by each.
+	 */
+	private static long[] run(BandwidthShaper.Chain[] chains) {
+		long start = System.nanoTime();
+		long[] ready = new long[chains.length];
+		long[] sent = new long[chains.length];
+		Arrays.fill(ready, start);
+		while (true) {
+			int next = 0;
+			for (int i = 1; i < chains.length; i++) {
+				if (ready[i] < ready[next]) {
+					next = i;
+				}
+			}
+			if (ready[next] >= start + DURATION) {
+				break;
+			}
+			long wait = chains[next].consume(BandwidthShaper.QUANTUM, ready[next]);
+			sent[next] += BandwidthShaper.QUANTUM;
+			ready[next] += wait + SEND;
+		}
+		for (int i = 0; i < chains.length; i++) {
+			chains[i].close();
+			sent[i] = sent[i] * NANOS / DURATION;
+		}
+		return sent;
+	}
+
+	static double jain(long[] sent) {
+		double sum = 0;
+		double squares = 0;
+		for (long s : sent) {
+			sum += s;
+			squares += (double) s * s;
+		}
+		return sum * sum / (sent.length * squares);
+	}
+
+	public void testFairness() {
+		Properties p = new Properties();
+		p.setProperty("bandwidth.download", String.valueOf(8 * MB));
+		BandwidthShaper shaper = new BandwidthShaper(p);
+		BandwidthShaper.Chain[] chains = new BandwidthShaper.Chain[8];
+		for (int i = 0; i < chains.length; i++) {
+			chains[i] = shaper.open(Transfer.TRANSFER_SENDING_DOWNLOAD, "user" + i, "/section/file" + i, 0);
+		}
+		long[] sent = run(chains);
+		long total = 0;
+		for (long s : sent) {
+			total += s;
+		}
+		// the initial burst lets a little more through than the rate
+		assertEquals(8 * MB, total, 8 * MB * 0.15);
+		assertTrue(jain(sent) > 0.95);
+	}
+
+	public void testHierarchy() {
+		Properties p = new Properties();
+		p.setProperty("bandwidth.upload", String.valueOf(6 * MB));
+		p.setProperty("bandwidth.user", String.valueOf(2 * MB));
+		BandwidthShaper shaper = new BandwidthShaper(p);
+		char up = Transfer.TRANSFER_RECEIVING_UPLOAD;
+		long[] sent = run(new BandwidthShaper.Chain[] {
+				shaper.open(up, "leecher", "/a", 0),
+				shaper.open(up, "leecher", "/b", 0),
+				shaper.open(up, "racer", "/c", MB),
+				shaper.open(up, "", "/d", 0) });
+		// user limited
+		assertEquals(2 * MB, sent[0] + sent[1], 2 * MB * 0.15);
+		// transfer limited
+		assertEquals(MB, sent[2], MB * 0.15);
+		// the rest of the slave
+		assertEquals(3 * MB, sent[3], 3 * MB * 0.15);
+	}
+
+	public void testSection() {
+		BandwidthShaper shaper = new BandwidthShaper(new Properties());
+		shaper.setSectionRate("/mp3", MB);
+		char down = Transfer.TRANSFER_SENDING_DOWNLOAD;
+		assertTrue(shaper.open(down, "", "/mp3", 0).isLimited());
+		assertTrue(shaper.open(down, "", "/mp3/release/file", 0).isLimited());
+		assertFalse(shaper.open(down, "", "/mp3s/release/file", 0).isLimited());
+		assertTrue(BandwidthShaper.isInSection("/mp3/file", "/"));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the buffers used by uploads so a transfer doesn't allocate any
+ * memory once the pool is warm.<br>
+ * Buffers are handed out in batches, an upload fills every buffer of its
+ * batch before writing them all to the file with a single gathering write.
+ * @version $Id$
+ */
+public class BufferPool {
+
+	private int _bufferSize;
+
+	private int _batchSize;
+
+	private int _maxIdle;
+
+	private ConcurrentLinkedQueue<ByteBuffer[]> _idle = new ConcurrentLinkedQueue<ByteBuffer[]>();
+
+	private AtomicInteger _idleCount = new AtomicInteger();
+
+	private AtomicInteger _allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize size of each buffer
+	 * @param batchSize number of buffers in a batch
+	 * @param maxIdle maximum number of batches kept once released
+	 */
+	public BufferPool(int bufferSize, int batchSize, int maxIdle) {
+		_bufferSize = bufferSize;
+		_batchSize = Math.max(1, batchSize);
+		_maxIdle = maxIdle;
+	}
+
+	/**
+	 * The buffers are backed by arrays so a checksum can be calculated
+	 * without copying them.
+	 * @return a batch of cleared buffers
+	 */
+	public ByteBuffer[] acquire() {
+		ByteBuffer[] batch = _idle.poll();
+		if (batch == null) {
+			batch = new ByteBuffer[_batchSize];
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = ByteBuffer.allocate(_bufferSize);
+			}
+			_allocated.incrementAndGet();
+			return batch;
+		}
+		_idleCount.decrementAndGet();
+		return batch;
+	}
+
+	public void release(ByteBuffer[] batch) {
+		if (_idleCount.incrementAndGet() > _maxIdle) {
+			_idleCount.decrementAndGet();
+			return;
+		}
+		for (ByteBuffer buffer : batch) {
+			buffer.clear();
+		}
+		_idle.offer(batch);
+	}
+
+	public int getBufferSize() {
+		return _bufferSize;
+	}
+
+	public int getBatchSize() {
+		return _batchSize;
+	}
+
+	/**
+	 * @return the number of batches allocated since the pool was created
+	 */
+	public int getAllocated() {
+		return _allocated.get();
+	}
+}
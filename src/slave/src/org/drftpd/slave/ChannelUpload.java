@@ -0,0 +1,109 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an upload to a file through a batch of pooled buffers.<br>
+ * The checksum is updated straight from the buffers as they are filled and
+ * the file is only written once the whole batch is full, with a single
+ * gathering write.
+ * @version $Id$
+ */
+public class ChannelUpload {
+
+	private BufferPool _pool;
+
+	private ByteBuffer[] _batch;
+
+	private int _current = 0;
+
+	private FileChannel _file;
+
+	private CRC32 _checksum;
+
+	/**
+	 * @param pool
+	 * @param file
+	 * @param checksum updated with every byte read, may be null
+	 */
+	public ChannelUpload(BufferPool pool, FileChannel file, CRC32 checksum) {
+		_pool = pool;
+		_batch = pool.acquire();
+		_file = file;
+		_checksum = checksum;
+	}
+
+	/**
+	 * Reads from the stream once.
+	 * @return the number of bytes read, -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int read(InputStream in) throws IOException {
+		ByteBuffer buffer = _batch[_current];
+		int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		if (count <= 0) {
+			return count;
+		}
+		if (_checksum != null) {
+			_checksum.update(buffer.array(), buffer.position(), count);
+		}
+		buffer.position(buffer.position() + count);
+		if (!buffer.hasRemaining() && ++_current == _batch.length) {
+			flush();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the buffered data to the file.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		int used = Math.min(_current + 1, _batch.length);
+		for (int i = 0; i < used; i++) {
+			_batch[i].flip();
+		}
+		long remaining = 0;
+		for (int i = 0; i < used; i++) {
+			remaining += _batch[i].remaining();
+		}
+		while (remaining > 0) {
+			remaining -= _file.write(_batch, 0, used);
+		}
+		for (int i = 0; i < used; i++) {
+			_batch[i].clear();
+		}
+		_current = 0;
+	}
+
+	/**
+	 * Gives the buffers back to the pool, the upload can't be used anymore.
+	 */
+	public void release() {
+		if (_batch != null) {
+			_pool.release(_batch);
+			_batch = null;
+		}
+	}
+}
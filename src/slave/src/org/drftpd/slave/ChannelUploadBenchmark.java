@@ -0,0 +1,108 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compares the throughput of a {@link ChannelUpload} with the stream copy
+ * used before.
+ * Not part of the unit tests, run it by hand:
+ * ChannelUploadBenchmark [size in MB] [rounds]
+ * @version $Id$
+ */
+public class ChannelUploadBenchmark {
+
+	private File _file;
+
+	private byte[] _data;
+
+	private ChannelUploadBenchmark(File file, int size) {
+		_file = file;
+		_data = new byte[size];
+		new Random(1).nextBytes(_data);
+	}
+
+	/**
+	 * Returns small and uneven reads like a socket does.
+	 */
+	private InputStream createInput(final int maxRead) {
+		return new ByteArrayInputStream(_data) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, maxRead));
+			}
+		};
+	}
+
+	private long upload(BufferPool pool, InputStream in, CRC32 checksum) throws IOException {
+		FileOutputStream out = new FileOutputStream(_file);
+		ChannelUpload upload = new ChannelUpload(pool, out.getChannel(), checksum);
+		try {
+			long start = System.currentTimeMillis();
+			while (upload.read(in) != -1) {
+			}
+			upload.flush();
+			return System.currentTimeMillis() - start;
+		} finally {
+			upload.release();
+			out.close();
+		}
+	}
+
+	private long uploadStream(InputStream in, CRC32 checksum) throws IOException {
+		OutputStream out = new CheckedOutputStream(new FileOutputStream(_file), checksum);
+		try {
+			long start = System.currentTimeMillis();
+			byte[] buff = new byte[65535];
+			int count;
+			while ((count = in.read(buff)) != -1) {
+				out.write(buff, 0, count);
+			}
+			out.flush();
+			return System.currentTimeMillis() - start;
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		File file = File.createTempFile("upload", "");
+		try {
+			ChannelUploadBenchmark benchmark = new ChannelUploadBenchmark(file, size * 1024 * 1024);
+			BufferPool pool = new BufferPool(65536, 16, 1);
+			for (int i = 0; i < rounds; i++) {
+				long stream = benchmark.uploadStream(benchmark.createInput(65536), new CRC32());
+				long batched = benchmark.upload(pool, benchmark.createInput(65536), new CRC32());
+				System.out.println("upload of " + size + "MB - stream " + stream
+						+ "ms, batched " + batched + "ms");
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
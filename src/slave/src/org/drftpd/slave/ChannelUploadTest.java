@@ -0,0 +1,123 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the data written by a {@link ChannelUpload}.
+ * @version $Id$
+ */
+public class ChannelUploadTest extends TestCase {
+
+	private static final int SIZE = 4 * 1024 * 1024;
+
+	private File _file;
+
+	private byte[] _data;
+
+	protected void setUp() throws IOException {
+		_file = File.createTempFile("upload", "");
+		_data = new byte[SIZE];
+		new Random(1).nextBytes(_data);
+	}
+
+	protected void tearDown() {
+		_file.delete();
+	}
+
+	/**
+	 * Returns small and uneven reads like a socket does.
+	 */
+	private InputStream createInput(final int maxRead) {
+		return new ByteArrayInputStream(_data) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, maxRead));
+			}
+		};
+	}
+
+	private void upload(BufferPool pool, InputStream in, CRC32 checksum) throws IOException {
+		FileOutputStream out = new FileOutputStream(_file);
+		ChannelUpload upload = new ChannelUpload(pool, out.getChannel(), checksum);
+		try {
+			while (upload.read(in) != -1) {
+			}
+			upload.flush();
+		} finally {
+			upload.release();
+			out.close();
+		}
+	}
+
+	public void testUpload() throws IOException {
+		BufferPool pool = new BufferPool(65536, 4, 1);
+		CRC32 checksum = new CRC32();
+		upload(pool, createInput(10000), checksum);
+		CRC32 expected = new CRC32();
+		expected.update(_data);
+		assertEquals(expected.getValue(), checksum.getValue());
+		assertEquals(SIZE, _file.length());
+
+		byte[] written = new byte[SIZE];
+		FileInputStream in = new FileInputStream(_file);
+		int pos = 0;
+		int count;
+		while ((count = in.read(written, pos, SIZE - pos)) > 0) {
+			pos += count;
+		}
+		in.close();
+		assertTrue(Arrays.equals(_data, written));
+
+		// the second upload reuses the batch
+		upload(pool, createInput(10000), new CRC32());
+		assertEquals(1, pool.getAllocated());
+	}
+
+	/**
+	 * An aborted upload keeps exactly what has been read so far.
+	 */
+	public void testAbort() throws IOException {
+		BufferPool pool = new BufferPool(65536, 4, 1);
+		FileOutputStream out = new FileOutputStream(_file);
+		ChannelUpload upload = new ChannelUpload(pool, out.getChannel(), null);
+		InputStream in = createInput(10000);
+		long transfered = 0;
+		try {
+			// stop in the middle of a batch
+			while (transfered < 300000) {
+				transfered += upload.read(in);
+			}
+			upload.flush();
+		} finally {
+			upload.release();
+			out.close();
+		}
+		assertEquals(transfered, _file.length());
+	}
+}
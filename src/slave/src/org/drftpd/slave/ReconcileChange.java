@@ -0,0 +1,99 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.Serializable;
+
+/**
+ * A file or directory added, removed or renamed on a slave without drftpd
+ * being involved, as found by {@link RemergeDigests#findChanges(java.util.Map)}.
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class ReconcileChange implements Serializable {
+	/**
+	 * Created, or for a file changed in place.
+	 */
+	public static final int ADD = 0;
+
+	public static final int REMOVE = 1;
+
+	public static final int RENAME = 2;
+
+	private int _type;
+
+	private String _path;
+
+	private String _target;
+
+	private LightRemoteInode _inode;
+
+	private ReconcileChange(int type, String path, String target, LightRemoteInode inode) {
+		_type = type;
+		_path = path;
+		_target = target;
+		_inode = inode;
+	}
+
+	public static ReconcileChange add(String path, LightRemoteInode inode) {
+		return new ReconcileChange(ADD, path, null, inode);
+	}
+
+	public static ReconcileChange remove(String path, LightRemoteInode inode) {
+		return new ReconcileChange(REMOVE, path, null, inode);
+	}
+
+	/**
+	 * @param inode as found at the target
+	 */
+	public static ReconcileChange rename(String path, String target, LightRemoteInode inode) {
+		return new ReconcileChange(RENAME, path, target, inode);
+	}
+
+	public int getType() {
+		return _type;
+	}
+
+	/**
+	 * @return the full path of the file or directory, its source for a rename
+	 */
+	public String getPath() {
+		return _path;
+	}
+
+	/**
+	 * @return the full path a file or directory was renamed to, null for
+	 * other changes
+	 */
+	public String getTarget() {
+		return _target;
+	}
+
+	/**
+	 * @return the name, size and last modified time of the file or
+	 * directory, for a removal the last ones seen
+	 */
+	public LightRemoteInode getInode() {
+		return _inode;
+	}
+
+	public String toString() {
+		return getClass().getName() + "[type=" + getType() + "][path=" + getPath()
+				+ (getTarget() == null ? "" : "][target=" + getTarget()) + "]";
+	}
+}
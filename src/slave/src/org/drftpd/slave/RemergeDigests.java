@@ -0,0 +1,613 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.drftpd.io.PhysicalFile;
+
+/**
+ * A hash tree of the directories in the roots, the digest of a directory
+ * covers the name, size and last modified time of its files and the digests
+ * of its subdirectories.<br>
+ * The master keeps the digests it last merged, on reconnect it only
+ * descends into the directories whose digest changed so an unchanged slave
+ * is merged without listing a single file.<br>
+ * The tree is kept on disk between restarts, a directory is listed again
+ * when its last modified time on any root changed or a transfer wrote to it.
+ * Files changed in place by something else than drftpd are not noticed.<br>
+ * When asked to, the name, size and last modified time of the files are
+ * kept too, so the changes made outside drftpd can be told to the master
+ * one by one instead of remerging the directories holding them.
+ * @version $Id$
+ */
+public class RemergeDigests {
+	private static final Logger logger = Logger.getLogger(RemergeDigests.class);
+
+	private static final int MAGIC = 0x44524d44;
+
+	private static final int VERSION = 2;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private RootCollection _roots;
+
+	private File _file;
+
+	private HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+
+	private boolean _modified;
+
+	private boolean _listFiles;
+
+	public RemergeDigests(RootCollection roots, File file) {
+		this(roots, file, false);
+	}
+
+	/**
+	 * @param listFiles keep the files of each directory, needed by
+	 * {@link #findChanges(Map)}
+	 */
+	public RemergeDigests(RootCollection roots, File file, boolean listFiles) {
+		_roots = roots;
+		_file = file;
+		_listFiles = listFiles;
+		load();
+	}
+
+	private void load() {
+		if (!_file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.warn(_file.getPath() + " is not a remerge digest file, ignoring it");
+				return;
+			}
+			boolean listed = in.readBoolean();
+			if (_listFiles && !listed) {
+				logger.info(_file.getPath() + " has no file listings, every directory will be listed");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long stamp = in.readLong();
+				long digest = in.readLong();
+				String[] dirs = new String[in.readInt()];
+				for (int j = 0; j < dirs.length; j++) {
+					dirs[j] = in.readUTF();
+				}
+				FileEntry[] files = null;
+				if (listed) {
+					files = new FileEntry[in.readInt()];
+					for (int j = 0; j < files.length; j++) {
+						files[j] = new FileEntry(in.readUTF(), in.readLong(), in.readLong());
+					}
+				}
+				_entries.put(path, new Entry(stamp, digest, dirs, _listFiles ? files : null));
+			}
+			logger.info("Loaded remerge digests of " + count + " directories");
+		} catch (IOException e) {
+			logger.warn("Unable to read " + _file.getPath() + ", every directory will be listed", e);
+			_entries.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the tree to disk if it changed since it was last written.
+	 */
+	public synchronized void save() {
+		if (!_modified) {
+			return;
+		}
+		File tmp = new File(_file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(_listFiles);
+			out.writeInt(_entries.size());
+			for (Map.Entry<String, Entry> mapEntry : _entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(entry._stamp);
+				out.writeLong(entry._digest);
+				out.writeInt(entry._dirs.length);
+				for (String dir : entry._dirs) {
+					out.writeUTF(dir);
+				}
+				if (_listFiles) {
+					out.writeInt(entry._files.length);
+					for (FileEntry file : entry._files) {
+						out.writeUTF(file._name);
+						out.writeLong(file._length);
+						out.writeLong(file._lastModified);
+					}
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(_file)) {
+				_file.delete();
+				if (!tmp.renameTo(_file)) {
+					throw new IOException("Unable to rename " + tmp.getPath() + " to " + _file.getPath());
+				}
+			}
+			_modified = false;
+		} catch (IOException e) {
+			logger.error("Unable to write the remerge digests to " + _file.getPath(), e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the directory holding the file, and all its parents, to be
+	 * listed again. Called after drftpd itself changed the file, the new
+	 * last modified times of the directories are taken as seen so they are
+	 * not reported by {@link #findChanges(Map)}.
+	 * @param path of a file or directory
+	 */
+	public synchronized void invalidate(String path) {
+		String dir = getParent(normalize(path));
+		while (dir != null) {
+			Entry entry = _entries.get(dir);
+			if (entry != null) {
+				entry._dirty = true;
+				entry._stamp = getStamp(dir);
+			}
+			dir = getParent(dir);
+		}
+	}
+
+	/**
+	 * Looks for the known directories whose last modified time changed on a
+	 * root without drftpd being involved and compares them with the files
+	 * and directories they held when last listed. A file gone from one place
+	 * and found in another with the same size and last modified time is
+	 * reported as renamed, so is a directory with the same digest.<br>
+	 * The changed directories and their parents are listed again, so a change
+	 * is only reported once. The first call lists the roots to have something
+	 * to compare to.
+	 * @param digests filled with the new digests of the changed directories
+	 * and of the directories above them
+	 * @return the renames first, then what was added and what was removed
+	 */
+	public synchronized ArrayList<ReconcileChange> findChanges(Map<String, Long> digests) {
+		if (!_listFiles) {
+			throw new IllegalStateException("Files are not listed");
+		}
+		ArrayList<ReconcileChange> changes = new ArrayList<ReconcileChange>();
+		if (!_entries.containsKey("/")) {
+			getDigest("/");
+			save();
+			return changes;
+		}
+		ArrayList<String> changed = new ArrayList<String>();
+		findChanged("/", changed);
+		if (changed.isEmpty()) {
+			return changes;
+		}
+		ArrayList<ReconcileChange> added = new ArrayList<ReconcileChange>();
+		ArrayList<ReconcileChange> removed = new ArrayList<ReconcileChange>();
+		// digests of the directories added and removed, to match renames
+		HashMap<String, Long> dirDigests = new HashMap<String, Long>();
+		for (String path : changed) {
+			compare(path, added, removed, dirDigests);
+		}
+
+		HashMap<String, LinkedList<ReconcileChange>> gone = new HashMap<String, LinkedList<ReconcileChange>>();
+		for (ReconcileChange change : removed) {
+			String key = getRenameKey(change, dirDigests);
+			LinkedList<ReconcileChange> list = gone.get(key);
+			if (list == null) {
+				list = new LinkedList<ReconcileChange>();
+				gone.put(key, list);
+			}
+			list.add(change);
+		}
+		HashSet<ReconcileChange> renamed = new HashSet<ReconcileChange>();
+		HashSet<String> renamedDirs = new HashSet<String>();
+		for (ReconcileChange change : added) {
+			if (isBelow(change.getPath(), renamedDirs)) {
+				// moved along with its directory
+				renamed.add(change);
+				continue;
+			}
+			LinkedList<ReconcileChange> list = gone.get(getRenameKey(change, dirDigests));
+			if (list == null || list.isEmpty()) {
+				continue;
+			}
+			ReconcileChange source = list.removeFirst();
+			changes.add(ReconcileChange.rename(source.getPath(), change.getPath(), change.getInode()));
+			renamed.add(source);
+			renamed.add(change);
+			if (change.getInode().isDirectory()) {
+				renamedDirs.add(change.getPath());
+			}
+		}
+		for (ReconcileChange change : added) {
+			if (!renamed.contains(change)) {
+				changes.add(change);
+			}
+		}
+		for (ReconcileChange change : removed) {
+			if (!renamed.contains(change)) {
+				changes.add(change);
+			}
+		}
+
+		for (String path : changed) {
+			for (String dir = path; dir != null; dir = getParent(dir)) {
+				Entry entry = _entries.get(dir);
+				if (entry != null) {
+					entry._dirty = true;
+				}
+			}
+		}
+		getDigest("/");
+		for (String path : changed) {
+			for (String dir = path; dir != null && !digests.containsKey(dir); dir = getParent(dir)) {
+				digests.put(dir, getDigest(dir));
+			}
+		}
+		save();
+		return changes;
+	}
+
+	/**
+	 * Lists the directory and adds what is not as it was last listed to
+	 * added and removed, the directories added are listed entirely.
+	 */
+	private void compare(String path, ArrayList<ReconcileChange> added, ArrayList<ReconcileChange> removed,
+			HashMap<String, Long> dirDigests) {
+		Entry entry = _entries.get(path);
+		HashMap<String, FileEntry> files = new HashMap<String, FileEntry>();
+		for (FileEntry file : entry._files) {
+			files.put(file._name, file);
+		}
+		HashSet<String> dirs = new HashSet<String>(Arrays.asList(entry._dirs));
+		for (String name : _roots.getLocalInodes(path)) {
+			String child = getChild(path, name);
+			PhysicalFile file;
+			try {
+				file = _roots.getFile(child);
+				if (file.isSymbolicLink()) {
+					continue;
+				}
+			} catch (FileNotFoundException e) {
+				continue;
+			} catch (IOException e) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				if (!dirs.remove(name)) {
+					dirDigests.put(child, getDigest(child));
+					addTree(child, new LightRemoteInode(file), added);
+				}
+			} else {
+				FileEntry old = files.remove(name);
+				if (old == null || old._length != file.length() || old._lastModified != file.lastModified()) {
+					added.add(ReconcileChange.add(child, new LightRemoteInode(file)));
+				}
+			}
+		}
+		for (FileEntry file : files.values()) {
+			removed.add(ReconcileChange.remove(getChild(path, file._name),
+					new LightRemoteInode(file._name, file._lastModified, file._length)));
+		}
+		for (String dir : dirs) {
+			String child = getChild(path, dir);
+			Entry old = _entries.get(child);
+			if (old != null) {
+				dirDigests.put(child, old._digest);
+			}
+			removed.add(ReconcileChange.remove(child,
+					new LightRemoteInode(dir, "drftpd", "drftpd", true, 0L, 0L)));
+		}
+	}
+
+	/**
+	 * Adds the new directory and everything below it, as just listed.
+	 */
+	private void addTree(String path, LightRemoteInode dir, ArrayList<ReconcileChange> added) {
+		added.add(ReconcileChange.add(path, dir));
+		Entry entry = _entries.get(path);
+		for (FileEntry file : entry._files) {
+			added.add(ReconcileChange.add(getChild(path, file._name),
+					new LightRemoteInode(file._name, file._lastModified, file._length)));
+		}
+		for (String name : entry._dirs) {
+			String child = getChild(path, name);
+			try {
+				addTree(child, new LightRemoteInode(_roots.getFile(child)), added);
+			} catch (FileNotFoundException e) {
+				// removed since it was listed
+			}
+		}
+	}
+
+	private static String getRenameKey(ReconcileChange change, HashMap<String, Long> dirDigests) {
+		LightRemoteInode inode = change.getInode();
+		if (inode.isDirectory()) {
+			return "d" + dirDigests.get(change.getPath());
+		}
+		return inode.length() + ":" + inode.lastModified();
+	}
+
+	private static boolean isBelow(String path, HashSet<String> dirs) {
+		for (String dir = getParent(path); dir != null; dir = getParent(dir)) {
+			if (dirs.contains(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void findChanged(String path, ArrayList<String> changed) {
+		Entry entry = _entries.get(path);
+		if (entry == null) {
+			return;
+		}
+		if (entry._stamp != getStamp(path)) {
+			try {
+				_roots.getFile(path);
+				changed.add(path);
+			} catch (FileNotFoundException e) {
+				// gone, reported through its parent
+			}
+		}
+		for (String dir : entry._dirs) {
+			findChanged(getChild(path, dir), changed);
+		}
+	}
+
+	/**
+	 * Compares the last modified time of every known directory against the
+	 * one seen when it was last listed, only directories are looked at.
+	 * @param path
+	 */
+	public synchronized void validate(String path) {
+		validateRecursive(normalize(path));
+	}
+
+	/**
+	 * @return true if the directory or one below it changed
+	 */
+	private boolean validateRecursive(String path) {
+		Entry entry = _entries.get(path);
+		if (entry == null) {
+			return true;
+		}
+		boolean changed = entry._dirty || entry._stamp != getStamp(path);
+		for (String dir : entry._dirs) {
+			changed |= validateRecursive(getChild(path, dir));
+		}
+		if (changed) {
+			entry._dirty = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * @param path
+	 * @return the digest of the directory, listing it and the directories
+	 * below it which changed.
+	 */
+	public synchronized long getDigest(String path) {
+		path = normalize(path);
+		Entry entry = _entries.get(path);
+		if (entry != null && !entry._dirty) {
+			return entry._digest;
+		}
+		return compute(path)._digest;
+	}
+
+	/**
+	 * @param path
+	 * @return the digest of the directory and those of the directories
+	 * directly in it.
+	 */
+	public synchronized HashMap<String, Long> getDigests(String path) {
+		path = normalize(path);
+		HashMap<String, Long> digests = new HashMap<String, Long>();
+		digests.put(path, getDigest(path));
+		Entry entry = _entries.get(path);
+		for (String dir : entry._dirs) {
+			String child = getChild(path, dir);
+			digests.put(child, getDigest(child));
+		}
+		return digests;
+	}
+
+	private Entry compute(String path) {
+		long stamp = getStamp(path);
+		long digest = FNV_OFFSET;
+		ArrayList<String> dirs = new ArrayList<String>();
+		ArrayList<FileEntry> files = _listFiles ? new ArrayList<FileEntry>() : null;
+		// sorted the same way for every root layout
+		for (String name : _roots.getLocalInodes(path)) {
+			String child = getChild(path, name);
+			PhysicalFile file;
+			try {
+				file = _roots.getFile(child);
+				if (file.isSymbolicLink()) {
+					continue;
+				}
+			} catch (FileNotFoundException e) {
+				continue;
+			} catch (IOException e) {
+				continue;
+			}
+			digest = hash(digest, name.toLowerCase());
+			if (file.isDirectory()) {
+				dirs.add(name);
+				digest = hash(digest, getDigest(child));
+			} else {
+				digest = hash(digest, file.length());
+				digest = hash(digest, file.lastModified());
+				if (files != null) {
+					files.add(new FileEntry(name, file.length(), file.lastModified()));
+				}
+			}
+		}
+		Entry entry = new Entry(stamp, digest, dirs.toArray(new String[dirs.size()]),
+				files == null ? null : files.toArray(new FileEntry[files.size()]));
+		Entry old = _entries.put(path, entry);
+		if (old != null && old._dirs.length > 0) {
+			// forget the directories which are gone
+			for (String dir : old._dirs) {
+				if (!dirs.contains(dir)) {
+					remove(getChild(path, dir));
+				}
+			}
+		}
+		_modified = true;
+		return entry;
+	}
+
+	private void remove(String path) {
+		Entry entry = _entries.remove(path);
+		if (entry != null) {
+			for (String dir : entry._dirs) {
+				remove(getChild(path, dir));
+			}
+		}
+	}
+
+	/**
+	 * Combines the last modified time of the directory on each root, a
+	 * change on any root changes the stamp.
+	 */
+	private long getStamp(String path) {
+		long stamp = FNV_OFFSET;
+		for (Root root : _roots.getRootList()) {
+			stamp = hash(stamp, root.getFile(path).lastModified());
+		}
+		return stamp;
+	}
+
+	private static long hash(long hash, long value) {
+		for (int i = 0; i < 8; i++) {
+			hash ^= (value >>> (i * 8)) & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= c & 0xff;
+			hash *= FNV_PRIME;
+			hash ^= c >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * A remerge of / names the directories below it //dir
+	 */
+	private static String normalize(String path) {
+		int start = 0;
+		while (start + 1 < path.length() && path.charAt(start + 1) == '/') {
+			start++;
+		}
+		return path.substring(start);
+	}
+
+	private static String getChild(String path, String name) {
+		return path.equals("/") ? "/" + name : path + "/" + name;
+	}
+
+	private static String getParent(String path) {
+		int index = path.lastIndexOf('/');
+		if (index < 0 || path.equals("/")) {
+			return null;
+		}
+		return index == 0 ? "/" : path.substring(0, index);
+	}
+
+	private static class Entry {
+		private long _stamp;
+
+		private long _digest;
+
+		private String[] _dirs;
+
+		// null unless files are listed
+		private FileEntry[] _files;
+
+		private boolean _dirty;
+
+		private Entry(long stamp, long digest, String[] dirs, FileEntry[] files) {
+			_stamp = stamp;
+			_digest = digest;
+			_dirs = dirs;
+			_files = files;
+		}
+	}
+
+	private static class FileEntry {
+		private String _name;
+
+		private long _length;
+
+		private long _lastModified;
+
+		private FileEntry(String name, long length, long lastModified) {
+			_name = name;
+			_length = length;
+			_lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a change only alters the digests of the directories above it,
+ * that only changes made outside drftpd are reported, one by one, and that
+ * the digests survive a restart.
+ * @version $Id$
+ */
+public class RemergeDigestsTest extends TestCase {
+
+	private File _root;
+
+	private File _file;
+
+	private RootCollection _roots;
+
+	protected void setUp() throws IOException {
+		_root = File.createTempFile("digests", "");
+		_root.delete();
+		for (int x = 0; x < 3; x++) {
+			for (int y = 0; y < 3; y++) {
+				File dir = new File(_root, "section" + x + "/release" + y);
+				dir.mkdirs();
+				write(new File(dir, "file.r00"), 100);
+			}
+		}
+		_file = File.createTempFile("digests", ".db");
+		_file.delete();
+		_roots = new RootCollection(new Slave(), Collections.singletonList(new Root(_root.getPath())));
+	}
+
+	protected void tearDown() {
+		delete(_root);
+		_file.delete();
+	}
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void write(File file, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[length]);
+		out.close();
+	}
+
+	public void testChanges() throws IOException {
+		RemergeDigests digests = new RemergeDigests(_roots, _file);
+		HashMap<String, Long> before = digests.getDigests("/section1");
+		long root = digests.getDigest("/");
+		long other = digests.getDigest("/section0");
+		assertEquals(4, before.size());
+
+		// an upload growing a file doesn't touch the directory
+		write(new File(_root, "section1/release2/file.r00"), 10);
+		digests.invalidate("/section1/release2/file.r00");
+		HashMap<String, Long> after = digests.getDigests("/section1");
+		assertFalse(before.get("/section1").equals(after.get("/section1")));
+		assertFalse(before.get("/section1/release2").equals(after.get("/section1/release2")));
+		assertEquals(before.get("/section1/release1"), after.get("/section1/release1"));
+		assertEquals(other, digests.getDigest("/section0"));
+		assertTrue(root != digests.getDigest("/"));
+
+		// a directory changed while the slave was down
+		root = digests.getDigest("/");
+		File dir = new File(_root, "section0/release0");
+		write(new File(dir, "file.r01"), 10);
+		dir.setLastModified(dir.lastModified() - 10000);
+		digests.validate("/");
+		assertTrue(other != digests.getDigest("/section0"));
+		assertTrue(root != digests.getDigest("/"));
+	}
+
+	private void touch(String path) {
+		File dir = new File(_root, path);
+		dir.setLastModified(dir.lastModified() - 10000);
+	}
+
+	private ReconcileChange find(ArrayList<ReconcileChange> changes, int type, String path) {
+		for (ReconcileChange change : changes) {
+			if (change.getType() == type && change.getPath().equals(path)) {
+				return change;
+			}
+		}
+		return null;
+	}
+
+	public void testFindChanges() throws IOException {
+		RemergeDigests digests = new RemergeDigests(_roots, _file, true);
+		HashMap<String, Long> found = new HashMap<String, Long>();
+		// the first call only lists the roots
+		assertTrue(digests.findChanges(found).isEmpty());
+		long other = digests.getDigest("/section0");
+
+		// changed by drftpd
+		write(new File(_root, "section1/release0/file.r01"), 10);
+		touch("section1/release0");
+		digests.invalidate("/section1/release0/file.r01");
+		assertTrue(digests.findChanges(found).isEmpty());
+
+		// changed by something else
+		write(new File(_root, "section0/release1/file.r01"), 10);
+		touch("section0/release1");
+		File moved = new File(_root, "section2/release0/moved.r00");
+		assertTrue(new File(_root, "section1/release1/file.r00").renameTo(moved));
+		touch("section1/release1");
+		touch("section2/release0");
+		assertTrue(new File(_root, "section0/release2").renameTo(new File(_root, "section0/renamed")));
+		touch("section0");
+		delete(new File(_root, "section2/release2"));
+		touch("section2");
+
+		ArrayList<ReconcileChange> changes = digests.findChanges(found);
+		assertEquals(4, changes.size());
+		ReconcileChange added = find(changes, ReconcileChange.ADD, "/section0/release1/file.r01");
+		assertEquals(10, added.getInode().length());
+		assertFalse(added.getInode().isDirectory());
+		ReconcileChange renamed = find(changes, ReconcileChange.RENAME, "/section1/release1/file.r00");
+		assertEquals("/section2/release0/moved.r00", renamed.getTarget());
+		assertEquals(moved.lastModified(), renamed.getInode().lastModified());
+		renamed = find(changes, ReconcileChange.RENAME, "/section0/release2");
+		assertEquals("/section0/renamed", renamed.getTarget());
+		assertTrue(renamed.getInode().isDirectory());
+		assertTrue(find(changes, ReconcileChange.REMOVE, "/section2/release2").getInode().isDirectory());
+
+		// reported once, with the digests of the directories holding them
+		assertTrue(digests.findChanges(new HashMap<String, Long>()).isEmpty());
+		assertEquals(digests.getDigest("/"), found.get("/").longValue());
+		assertEquals(digests.getDigest("/section0"), found.get("/section0").longValue());
+		assertTrue(other != found.get("/section0"));
+		assertEquals(digests.getDigest("/section2/release0"), found.get("/section2/release0").longValue());
+		assertFalse(found.containsKey("/section1/release2"));
+
+		// a new directory comes with everything in it
+		File dir = new File(_root, "section1/new/sub");
+		dir.mkdirs();
+		write(new File(dir, "file.r00"), 5);
+		touch("section1");
+		changes = digests.findChanges(found);
+		assertEquals(3, changes.size());
+		assertEquals("/section1/new", changes.get(0).getPath());
+		assertEquals("/section1/new/sub", changes.get(1).getPath());
+		assertEquals("/section1/new/sub/file.r00", changes.get(2).getPath());
+
+		// the listings survive a restart
+		digests.save();
+		digests = new RemergeDigests(_roots, _file, true);
+		assertTrue(new File(dir, "file.r00").delete());
+		touch("section1/new/sub");
+		changes = digests.findChanges(found);
+		assertEquals(1, changes.size());
+		assertEquals(ReconcileChange.REMOVE, changes.get(0).getType());
+		assertEquals(5, changes.get(0).getInode().length());
+	}
+
+	public void testSave() throws IOException {
+		RemergeDigests digests = new RemergeDigests(_roots, _file);
+		long root = digests.getDigest("/");
+		digests.save();
+		assertTrue(_file.exists());
+		delete(new File(_root, "section2"));
+		// loaded as is until validated
+		digests = new RemergeDigests(_roots, _file);
+		assertEquals(root, digests.getDigest("/"));
+		digests.validate("/");
+		assertTrue(root != digests.getDigest("/"));
+		assertFalse(digests.getDigests("/").containsKey("/section2"));
+	}
+}
@@ -36,6 +36,12 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
@@ -52,10 +58,12 @@ import org.drftpd.io.PermissionDeniedException;
 import org.drftpd.io.PhysicalFile;
 import org.drftpd.master.QueuedOperation;
 import org.drftpd.protocol.slave.SlaveProtocolCentral;
+import org.drftpd.slave.async.AsyncCodec;
 import org.drftpd.slave.async.AsyncCommandArgument;
 import org.drftpd.slave.async.AsyncResponse;
 import org.drftpd.slave.async.AsyncResponseDiskStatus;
 import org.drftpd.slave.async.AsyncResponseException;
+import org.drftpd.slave.async.AsyncResponseReconcile;
 import org.drftpd.slave.async.AsyncResponseTransferStatus;
 import org.drftpd.slave.diskselection.DiskSelectionInterface;
 import org.drftpd.util.CommonPluginUtils;
@@ -86,14 +94,28 @@ public class Slave {
 
 	private boolean _downloadChecksums;
 
+	private boolean _zeroCopy;
+
+	private ThreadPoolExecutor _checksumPool;
+
+	private BandwidthShaper _bandwidthShaper;
+
+	private BufferPool _uploadBufferPool;
+
 	private RootCollection _roots;
 
 	private Socket _s;
+
+	private volatile boolean _connected = true;
 	
 	private ObjectInputStream _sin;
 
 	private ObjectOutputStream _sout;
 
+	private AsyncCodec _codec;
+
+	private boolean _codecEnabled;
+
 	private HashMap<TransferIndex, Transfer> _transfers;
 
 	private boolean _uploadChecksums;
@@ -112,6 +134,10 @@ public class Slave {
 
 	private boolean _ignorePartialRemerge;
 
+	private RemergeDigests _remergeDigests;
+
+	private long _reconcileInterval;
+
 	private boolean _concurrentRootIteration;
 
 	protected Slave() {
@@ -188,8 +214,11 @@ public class Slave {
 		_sout = new ObjectOutputStream(new BufferedOutputStream(_s.getOutputStream()));
 		_sout.flush();
 		_sin = new ObjectInputStream(new BufferedInputStream(_s.getInputStream()));
+		_codecEnabled = p.getProperty("protocol.codec", "true").equalsIgnoreCase("true");
+		_codec = new AsyncCodec(_sin, _sout,
+				p.getProperty("protocol.compression", "true").equalsIgnoreCase("true"));
 
-		_central = new SlaveProtocolCentral(this);
+		_central = new SlaveProtocolCentral(this, p);
 		
 		_sout.writeObject(slavename);
 		_sout.flush();
@@ -198,9 +227,27 @@ public class Slave {
 		_uploadChecksums = p.getProperty("enableuploadchecksums", "true").equals("true");
 		_downloadChecksums = p.getProperty("enabledownloadchecksums", "true").equals("true");
 		_bufferSize = Integer.parseInt(p.getProperty("bufferSize", "0"));
+		_zeroCopy = p.getProperty("transfer.zerocopy", "true").equalsIgnoreCase("true");
+		if (_zeroCopy && _downloadChecksums) {
+			int checksumThreads = Integer.parseInt(p.getProperty("transfer.zerocopy.checksum.threads", "8"));
+			// no queue, a download which finds every thread busy checksums the file itself
+			_checksumPool = new ThreadPoolExecutor(checksumThreads, checksumThreads, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ChecksumThreadFactory(),
+					new ThreadPoolExecutor.AbortPolicy());
+			_checksumPool.allowCoreThreadTimeOut(true);
+		}
+		_bandwidthShaper = new BandwidthShaper(p);
+		int uploadBatch = Integer.parseInt(p.getProperty("transfer.upload.batch", "16"));
+		if (uploadBatch > 0) {
+			_uploadBufferPool = new BufferPool(Math.max(_bufferSize, 65536), uploadBatch,
+					Integer.parseInt(p.getProperty("transfer.upload.pool", "32")));
+		}
 
 		_concurrentRootIteration = p.getProperty("concurrent.root.iteration", "false").equalsIgnoreCase("true");
 		_roots = getDefaultRootBasket(p);
+		_reconcileInterval = Long.parseLong(p.getProperty("reconcile.interval", "300")) * 1000L;
+		_remergeDigests = new RemergeDigests(_roots, new File(p.getProperty("remerge.digest.file",
+				"remerge.digests")), _reconcileInterval > 0);
 		loadDiskSelection(p);
 
 		_transfers = new HashMap<TransferIndex, Transfer>();
@@ -266,6 +313,9 @@ public class Slave {
 		if (isWin32) {
 			s.startFileLockThread();
 		}
+		if (s._reconcileInterval > 0) {
+			s.startReconcileThread();
+		}
 		try {
 			s.sendResponse(new AsyncResponseDiskStatus(s.getDiskStatus()));
 		} catch (Throwable t) {
@@ -336,6 +386,35 @@ public class Slave {
 		t.start();
 	}
 
+	/**
+	 * Reports the files and directories changed outside drftpd, the master
+	 * applies them to its filesystem without waiting for the next connect.
+	 */
+	public class ReconcileRunnable implements Runnable {
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(_reconcileInterval);
+				} catch (InterruptedException e) {
+				}
+				HashMap<String, Long> digests = new HashMap<String, Long>();
+				ArrayList<ReconcileChange> changes = _remergeDigests.findChanges(digests);
+				if (!changes.isEmpty()) {
+					logger.info("Found " + changes.size() + " changes made outside drftpd");
+					sendResponse(new AsyncResponseReconcile(changes, digests));
+				}
+			}
+		}
+	}
+
+	private void startReconcileThread() {
+		Thread t = new Thread(new ReconcileRunnable());
+		t.setName("ReconcileThread");
+		t.setDaemon(true);
+		t.start();
+	}
+
 	public void addTransfer(Transfer transfer) {
 		synchronized (_transfers) {
 			_transfers.put(transfer.getTransferIndex(), transfer);
@@ -418,6 +497,7 @@ public class Slave {
 				}
 			}
 		}
+		_remergeDigests.invalidate(path);
 	}
 
 	public int getBufferSize() {
@@ -428,10 +508,38 @@ public class Slave {
 		return _downloadChecksums;
 	}
 
+	public boolean getZeroCopy() {
+		return _zeroCopy;
+	}
+
+	/**
+	 * @return the threads calculating the checksums of zero-copy downloads,
+	 * null if those are disabled.
+	 */
+	public Executor getChecksumPool() {
+		return _checksumPool;
+	}
+
+	public BandwidthShaper getBandwidthShaper() {
+		return _bandwidthShaper;
+	}
+
+	/**
+	 * @return the pool of buffers used by uploads, null if uploads are
+	 * copied through a stream instead.
+	 */
+	public BufferPool getUploadBufferPool() {
+		return _uploadBufferPool;
+	}
+
 	public RootCollection getRoots() {
 		return _roots;
 	}
 
+	public RemergeDigests getRemergeDigests() {
+		return _remergeDigests;
+	}
+
 	public DiskStatus getDiskStatus() {
 		return new DiskStatus(_roots.getTotalDiskSpaceAvailable(), _roots.getTotalDiskSpaceCapacity());
 	}
@@ -446,22 +554,37 @@ public class Slave {
 		return _uploadChecksums;
 	}
 
-	private AsyncResponse handleCommand(AsyncCommandArgument ac) {
-		return _central.handleCommand(ac);
+	/**
+	 * @return false once the connection to the master was lost
+	 */
+	public boolean isConnected() {
+		return _connected;
 	}
-	
+
 	private void listenForCommands() throws IOException {
+		try {
+			listenForCommands2();
+		} finally {
+			_connected = false;
+		}
+	}
+
+	private void listenForCommands2() throws IOException {
 		long lastCommandReceived = System.currentTimeMillis();
 		while (true) {
 			AsyncCommandArgument ac = null;
 
 			try {
-				ac = (AsyncCommandArgument) _sin.readObject();
+				ac = (AsyncCommandArgument) _codec.readMessage();
 
 				if (ac == null) {
 					continue;
 				}
 				lastCommandReceived = System.currentTimeMillis();
+				if (AsyncCodec.CODEC_COMMAND.equals(ac.getName())) {
+					switchCodec(Integer.parseInt(ac.getArgs()));
+					continue;
+				}
 			} catch (ClassNotFoundException e) {
 				throw new RuntimeException(e);
 			} catch (EOFException e) {
@@ -483,24 +606,7 @@ public class Slave {
 			}
 
 			logger.debug("Slave fetched " + ac);
-			class AsyncCommandHandler implements Runnable {
-				private AsyncCommandArgument _command = null;
-
-				public AsyncCommandHandler(AsyncCommandArgument command) {
-					_command = command;
-				}
-
-				public void run() {
-					try {
-						sendResponse(handleCommand(_command));
-					} catch (Throwable e) {
-						sendResponse(new AsyncResponseException(_command.getIndex(), e));
-					}
-				}
-			}
-			Thread t = new Thread(new AsyncCommandHandler(ac));
-			t.setName("AsyncCommandHandler - " + ac.getClass());
-			t.start();
+			_central.dispatchCommand(ac);
 		}
 	}
 
@@ -559,6 +665,25 @@ public class Slave {
 						+ ", " + tofile + ") failed");
 			}
 		}
+		_remergeDigests.invalidate(from);
+		_remergeDigests.invalidate(toDirPath + "/" + toName);
+	}
+
+	/**
+	 * Called when the master asks to switch to the binary codec, everything
+	 * it sends after this command is in the new format, the acknowledgement
+	 * tells the master the same about what we send.
+	 * @param version
+	 */
+	private synchronized void switchCodec(int version) {
+		_codec.setReadVersion(version);
+		try {
+			_codec.writeMessage(new AsyncResponse(AsyncCodec.CODEC_ACK));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		_codec.setWriteVersion(version);
+		logger.info("Using message codec version " + version);
 	}
 
 	public synchronized void sendResponse(AsyncResponse response) {
@@ -569,9 +694,7 @@ public class Slave {
 		}
 
 		try {
-			_sout.writeObject(response);
-			_sout.flush();
-			_sout.reset();
+			_codec.writeMessage(response);
 			if (!(response instanceof AsyncResponseTransferStatus)) {
 				logger.debug("Slave wrote response - " + response);
 			}
@@ -627,6 +750,13 @@ public class Slave {
 		return _sout;
 	}
 	
+	/**
+	 * @return true if the binary message codec may be used with the master.
+	 */
+	public boolean isCodecEnabled() {
+		return _codecEnabled;
+	}
+
 	public SlaveProtocolCentral getProtocolCentral() {
 		return _central;
 	}
@@ -639,3 +769,12 @@ public class Slave {
 		return _concurrentRootIteration;
 	}
 }
+
+class ChecksumThreadFactory implements ThreadFactory {
+	public Thread newThread(Runnable r) {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setName("DownloadChecksum - " + t.getId());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave;
+
+/**
+ * A token bucket which lets the bytes through at a rate, with bursts of up
+ * to a tenth of a second.<br>
+ * Bytes are taken after they were sent, the bucket can go into debt and the
+ * sender waits until the debt is paid back, so a sender never has to guess
+ * how much it will be able to send.
+ * @version $Id$
+ */
+public class TokenBucket {
+
+	private static final long NANOS = 1000000000L;
+
+	// bytes per second, 0 is unlimited
+	private volatile long _rate;
+
+	private long _burst;
+
+	private double _tokens;
+
+	private long _last = System.nanoTime();
+
+	/**
+	 * @param rate bytes per second, 0 is unlimited
+	 */
+	public TokenBucket(long rate) {
+		setRate(rate);
+		_tokens = _burst;
+	}
+
+	public synchronized void setRate(long rate) {
+		_rate = Math.max(0, rate);
+		_burst = Math.max(BandwidthShaper.QUANTUM, _rate / 10);
+		_tokens = Math.min(_tokens, _burst);
+	}
+
+	public long getRate() {
+		return _rate;
+	}
+
+	public boolean isLimited() {
+		return _rate > 0;
+	}
+
+	/**
+	 * Takes the bytes sent from the bucket.
+	 * @param now {@link System#nanoTime()}
+	 * @return how many nanoseconds the sender has to wait before sending more
+	 */
+	public synchronized long consume(long count, long now) {
+		long rate = _rate;
+		if (rate == 0) {
+			return 0;
+		}
+		long elapsed = now - _last;
+		_last = now;
+		if (elapsed > 0) {
+			_tokens = Math.min(_burst, _tokens + (double) elapsed * rate / NANOS);
+		}
+		_tokens -= count;
+		return _tokens >= 0 ? 0 : (long) (-_tokens * NANOS / rate);
+	}
+}
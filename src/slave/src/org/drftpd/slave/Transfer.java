@@ -23,13 +23,19 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 
+import org.apache.log4j.Logger;
 import org.apache.oro.text.regex.MalformedPatternException;
 import org.drftpd.PassiveConnection;
 import org.drftpd.exceptions.FileExistsException;
@@ -46,6 +52,14 @@ import org.drftpd.util.HostMask;
  * @version $Id$
  */
 public class Transfer {
+	private static final Logger logger = Logger.getLogger(Transfer.class);
+
+	/**
+	 * Maximum number of bytes sent by a single transferTo() call, small
+	 * enough to check for aborts and send status updates every second.
+	 */
+	private static final long ZEROCOPY_CHUNK = 1024 * 1024;
+
 	private String _abortReason = null;
 
 	private CRC32 _checksum = null;
@@ -86,6 +100,10 @@ public class Transfer {
 	
 	private long _maxSpeed = 0L;
 
+	private String _user = "";
+
+	private BandwidthShaper.Chain _shaper;
+
 	/**
 	 * Start undefined transfer.
 	 */
@@ -230,8 +248,56 @@ public class Transfer {
 		_minSpeed = minSpeed;
 	}
 	
-	public void setMaxSpeed(long maxSpeed) {
+	public synchronized void setMaxSpeed(long maxSpeed) {
 		_maxSpeed = maxSpeed;
+		if (_shaper != null) {
+			_shaper.setRate(maxSpeed);
+		}
+	}
+
+	/**
+	 * Sets the user the transfer is shaped with, if any.
+	 */
+	public void setUser(String user) {
+		_user = user;
+	}
+
+	/**
+	 * Charges the bytes sent to the bandwidth of the transfer and waits until
+	 * it may send more. Returns early if the transfer is aborted, an interrupt
+	 * fails the transfer.
+	 */
+	private void throttle(long count) throws InterruptedIOException {
+		if (_shaper == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		long until = now + _shaper.consume(count, now);
+		while (now < until && _abortReason == null) {
+			long wait = Math.min(until - now, 100000000L);
+			try {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e) {
+				// whoever interrupted the transfer wants it to stop
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Transfer was interrupted");
+			}
+			now = System.nanoTime();
+		}
+	}
+
+	private synchronized void openShaper(String path) {
+		BandwidthShaper shaper = _slave.getBandwidthShaper();
+		if (shaper != null) {
+			_shaper = shaper.open(_direction, _user, path, _maxSpeed);
+		}
+	}
+
+	private synchronized void closeShaper() {
+		if (_shaper != null) {
+			_shaper.close();
+			_shaper = null;
+		}
 	}
 
 	public boolean isReceivingUploading() {
@@ -254,12 +320,16 @@ public class Transfer {
 		String root = _slave.getRoots().getARootFileDir(dirname).getPath();
 
 		try {
-			_out = new FileOutputStream(new File(root + separator
+			FileOutputStream fileOut = new FileOutputStream(new File(root + separator
 					+ filename));
+			_out = fileOut;
+			BufferPool pool = _slave.getUploadBufferPool();
 
 			if (_slave.getUploadChecksums()) {
 				_checksum = new CRC32();
-				_out = new CheckedOutputStream(_out, _checksum);
+				if (pool == null) {
+					_out = new CheckedOutputStream(_out, _checksum);
+				}
 			}
 			accept(_slave.getCipherSuites(), _slave.getBufferSize());
 			
@@ -271,9 +341,14 @@ public class Transfer {
 			synchronized (this) {
 				_direction = Transfer.TRANSFER_RECEIVING_UPLOAD;
 			}
+			openShaper(_pathForUpload);
 
 			System.out.println(dirname + "/" + filename);
-			transfer(null);
+			if (pool != null) {
+				transferUpload(new ChannelUpload(pool, fileOut.getChannel(), _checksum));
+			} else {
+				transfer(null);
+			}
 			_slave.sendResponse(new AsyncResponseDiskStatus(_slave
 					.getDiskStatus()));
 			return getTransferStatus();
@@ -296,6 +371,9 @@ public class Transfer {
 				} catch (IOException e) {
 				}
 			}
+			closeShaper();
+			// the directory isn't touched while the file grows
+			_slave.getRemergeDigests().invalidate(_pathForUpload);
 		}
 	}
 
@@ -303,8 +381,9 @@ public class Transfer {
 			throws IOException, TransferDeniedException {
 		try {
 
-			_in = new FileInputStream(new PhysicalFile(_slave.getRoots()
+			FileInputStream fileIn = new FileInputStream(new PhysicalFile(_slave.getRoots()
 					.getFile(path)));
+			_in = fileIn;
 
 			if (_slave.getDownloadChecksums()) {
 				_checksum = new CRC32();
@@ -322,15 +401,23 @@ public class Transfer {
 			synchronized (this) {
 				_direction = Transfer.TRANSFER_SENDING_DOWNLOAD;
 			}
+			openShaper(path);
 
 			System.out.println("DL:" + path);
+			Transfer associatedUpload = null;
 			try {
-				transfer(getUploadForPath(path));
+				associatedUpload = getUploadForPath(path);
 			} catch (ObjectNotFoundException e) {
-				transfer(null);
+			}
+			// SSL sockets never have a channel
+			if (type == 'I' && _slave.getZeroCopy() && _sock.getChannel() != null) {
+				transferZeroCopy(fileIn.getChannel(), associatedUpload);
+			} else {
+				transfer(associatedUpload);
 			}
 			return getTransferStatus();
 		} finally {
+			closeShaper();
 			if (_sock != null) {
 				try {
 					_sock.close();
@@ -430,6 +517,7 @@ public class Transfer {
 					}
 					_transfered += count;
 					_out.write(buff, 0, count);
+					throttle(count);
 				}
 
 				_out.flush();
@@ -444,6 +532,246 @@ public class Transfer {
 		}
 	}
 	
+	/**
+	 * Receives an upload through a {@link ChannelUpload}, the data is
+	 * checksummed as it's read and written to the file in batches.
+	 */
+	private void transferUpload(ChannelUpload upload) throws IOException {
+		try {
+			_started = System.currentTimeMillis();
+			int count;
+			long currentTime = System.currentTimeMillis();
+
+			try {
+				while (true) {
+					if (_abortReason != null) {
+						throw new TransferFailedException(
+								"Transfer was aborted - " + _abortReason,
+								getTransferStatus());
+					}
+					count = upload.read(_in);
+					if (count == -1) {
+						break; // done transferring
+					}
+					if ((System.currentTimeMillis() - currentTime) >= 1000) {
+						TransferStatus ts = getTransferStatus();
+						if (ts.isFinished()) {
+							throw new TransferFailedException(
+									"Transfer was aborted - " + _abortReason,
+									ts);
+						}
+						_slave
+								.sendResponse(new AsyncResponseTransferStatus(
+										ts));
+						currentTime = System.currentTimeMillis();
+					}
+					_transfered += count;
+					throttle(count);
+				}
+
+				upload.flush();
+			} catch (IOException e) {
+				// write what was counted as received, also when aborted, so the
+				// size of the partial file matches the transfer status
+				try {
+					upload.flush();
+				} catch (IOException e1) {
+				}
+				throw new TransferFailedException(e, getTransferStatus());
+			}
+		} finally {
+			upload.release();
+			_finished = System.currentTimeMillis();
+			_slave.removeTransfer(this); // transfers are added in setting up
+											// the transfer,
+											// issueListenToSlave()/issueConnectToSlave()
+		}
+	}
+
+	/**
+	 * Sends the file from its current position using
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * the data is never copied into the JVM.<br>
+	 * If checksums are enabled they are calculated by a
+	 * {@link DownloadChecksum} which reads the file separately, usually from
+	 * the page cache.
+	 */
+	private void transferZeroCopy(FileChannel file, Transfer associatedUpload) throws IOException {
+		try {
+			_started = System.currentTimeMillis();
+			SocketChannel out = _sock.getChannel();
+			long position = file.position();
+			long chunk = Math.max(_slave.getBufferSize(), ZEROCOPY_CHUNK);
+			long currentTime = System.currentTimeMillis();
+			DownloadChecksum checksum = null;
+			boolean checksumStarted = false;
+			if (_checksum != null) {
+				checksum = new DownloadChecksum(file, position, _checksum);
+				try {
+					_slave.getChecksumPool().execute(checksum);
+					checksumStarted = true;
+				} catch (RejectedExecutionException e) {
+					// every checksum thread is busy, read the file once it has been sent
+				}
+			}
+
+			try {
+				while (true) {
+					if (_abortReason != null) {
+						throw new TransferFailedException(
+								"Transfer was aborted - " + _abortReason,
+								getTransferStatus());
+					}
+					// a limited transfer sends small chunks, the others share the bandwidth in between
+					long count = file.transferTo(position, _shaper != null && _shaper.isLimited()
+							? BandwidthShaper.QUANTUM : chunk, out);
+					if (count == 0 && position >= file.size()) {
+						if (associatedUpload == null) {
+							break; // done transferring
+						}
+						if (associatedUpload.getTransferStatus().isFinished()
+								&& position >= file.size()) {
+							break; // done transferring
+						}
+						try {
+							Thread.sleep(500);
+						} catch (InterruptedException e) {
+						}
+						continue; // waiting for upload to catch up
+					}
+					if ((System.currentTimeMillis() - currentTime) >= 1000) {
+						TransferStatus ts = getTransferStatus();
+						if (ts.isFinished()) {
+							throw new TransferFailedException(
+									"Transfer was aborted - " + _abortReason,
+									ts);
+						}
+						_slave
+								.sendResponse(new AsyncResponseTransferStatus(
+										ts));
+						currentTime = System.currentTimeMillis();
+					}
+					position += count;
+					_transfered += count;
+					throttle(count);
+				}
+				if (checksum != null) {
+					checksum.finish(position);
+					if (checksumStarted) {
+						checksum.waitFor();
+					} else {
+						checksum.run();
+					}
+					if (checksum.getException() != null) {
+						logger.warn("Unable to calculate the checksum of " + _transferIndex,
+								checksum.getException());
+						_checksum = null;
+					}
+				}
+			} catch (InterruptedException e) {
+				_checksum = null;
+			} catch (IOException e) {
+				throw new TransferFailedException(e, getTransferStatus());
+			} finally {
+				if (checksum != null) {
+					checksum.finish(-1);
+				}
+			}
+		} finally {
+			_finished = System.currentTimeMillis();
+			_slave.removeTransfer(this); // transfers are added in setting up
+											// the transfer,
+											// issueListenToSlave()/issueConnectToSlave()
+		}
+	}
+
+	/**
+	 * Calculates the checksum of a download sent with transferTo(), reading
+	 * ahead of the socket when it can so the pages are already cached when
+	 * the kernel sends them.
+	 */
+	private class DownloadChecksum implements Runnable {
+		private FileChannel _file;
+
+		private long _position;
+
+		private CRC32 _crc;
+
+		private long _end = Long.MAX_VALUE;
+
+		private IOException _exception;
+
+		private boolean _done;
+
+		public DownloadChecksum(FileChannel file, long position, CRC32 crc) {
+			_file = file;
+			_position = position;
+			_crc = crc;
+		}
+
+		/**
+		 * @param end the position the transfer stopped at, -1 to stop right away.
+		 */
+		public synchronized void finish(long end) {
+			if (_end == Long.MAX_VALUE || end == -1) {
+				_end = end;
+			}
+			notifyAll();
+		}
+
+		public IOException getException() {
+			return _exception;
+		}
+
+		/**
+		 * Waits until {@link #run()} returned.
+		 */
+		public synchronized void waitFor() throws InterruptedException {
+			while (!_done) {
+				wait();
+			}
+		}
+
+		public void run() {
+			byte[] buff = new byte[Math.max(_slave.getBufferSize(), 65535)];
+			ByteBuffer buffer = ByteBuffer.wrap(buff);
+			try {
+				while (true) {
+					long end;
+					synchronized (this) {
+						end = _end;
+						if (_position >= end) {
+							return;
+						}
+						if (end == Long.MAX_VALUE && _position >= _file.size()) {
+							// file is still being uploaded
+							try {
+								wait(500);
+							} catch (InterruptedException e) {
+							}
+							continue;
+						}
+					}
+					buffer.clear();
+					buffer.limit((int) Math.min(buff.length, end - _position));
+					int count = _file.read(buffer, _position);
+					if (count == -1) {
+						throw new IOException("File was truncated during the transfer");
+					}
+					_crc.update(buff, 0, count);
+					_position += count;
+				}
+			} catch (IOException e) {
+				_exception = e;
+			} finally {
+				synchronized (this) {
+					_done = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
 	private boolean checkMasks(String maskString, InetAddress connectedAddress) {
 		HostMask mask = new HostMask(maskString);
 		
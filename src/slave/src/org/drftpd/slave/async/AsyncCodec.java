@@ -0,0 +1,643 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.drftpd.slave.ConnectInfo;
+import org.drftpd.slave.DiskStatus;
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.TransferIndex;
+import org.drftpd.slave.TransferStatus;
+
+/**
+ * Reads and writes the messages exchanged between master and slave.<br>
+ * Until a version has been negotiated during the handshake everything is sent
+ * using plain Java serialization, exactly like older masters and slaves do.
+ * Once both sides agreed on a version the frequent messages (commands,
+ * transfer status, checksums and remerge lists) are sent as length prefixed
+ * binary frames written in the block data of the same object streams, any
+ * other message (plugin responses, exceptions) is still sent as an object.<br>
+ * Each direction switches independently, the master sends a
+ * {@link #CODEC_COMMAND} command as its last serialized message and the slave
+ * answers with a {@link #CODEC_ACK} response as its last serialized message.<br>
+ * Directory paths in remerge responses are sent relative to the longest
+ * previously sent path and large remerge lists can be deflated.<br>
+ * Writes must be serialized by the caller, as it was already the case for the
+ * object streams.
+ * @version $Id$
+ */
+public class AsyncCodec {
+
+	/**
+	 * Highest frame version understood by this codec.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Name of the command the master uses to switch to frames.
+	 */
+	public static final String CODEC_COMMAND = "codec";
+
+	/**
+	 * Index of the response the slave uses to switch to frames.
+	 */
+	public static final String CODEC_ACK = "Codec";
+
+	private static final byte FRAME_OBJECT = 0;
+
+	private static final byte FRAME_COMMAND = 1;
+
+	private static final byte FRAME_COMMAND_NOARGS = 2;
+
+	private static final byte FRAME_RESPONSE = 3;
+
+	private static final byte FRAME_CHECKSUM = 4;
+
+	private static final byte FRAME_MAXPATH = 5;
+
+	private static final byte FRAME_SSLCHECK = 6;
+
+	private static final byte FRAME_DISKSTATUS = 7;
+
+	private static final byte FRAME_TRANSFERSTATUS = 8;
+
+	private static final byte FRAME_TRANSFER = 9;
+
+	private static final byte FRAME_REMERGE = 10;
+
+	private static final int FLAG_DEFLATE = 1;
+
+	private static final int FLAG_RESET_PATHS = 2;
+
+	private static final int INODE_DIRECTORY = 1;
+
+	private static final int INODE_OWNER = 2;
+
+	private static final String DEFAULT_OWNER = "drftpd";
+
+	/**
+	 * Both sides forget the interned paths once this many have been sent.
+	 */
+	private static final int MAX_PATHS = 65536;
+
+	/**
+	 * Remerge frames smaller than this are never deflated.
+	 */
+	private static final int DEFLATE_THRESHOLD = 512;
+
+	private ObjectInputStream _in;
+
+	private ObjectOutputStream _out;
+
+	private boolean _deflate;
+
+	private volatile int _readVersion;
+
+	private volatile int _writeVersion;
+
+	private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream(8192);
+
+	private final HashMap<String, Integer> _sentPaths = new HashMap<String, Integer>();
+
+	private final ArrayList<String> _receivedPaths = new ArrayList<String>();
+
+	private final HashSet<String> _receivedPathSet = new HashSet<String>();
+
+	private Deflater _deflater;
+
+	private Inflater _inflater;
+
+	private long _messagesWritten;
+
+	private long _bytesWritten;
+
+	private long _messagesRead;
+
+	private long _bytesRead;
+
+	/**
+	 * @param in
+	 * @param out
+	 * @param deflate if remerge lists should be compressed when frames are used.
+	 */
+	public AsyncCodec(ObjectInputStream in, ObjectOutputStream out, boolean deflate) {
+		_in = in;
+		_out = out;
+		_deflate = deflate;
+	}
+
+	public ObjectInputStream getInputStream() {
+		return _in;
+	}
+
+	public ObjectOutputStream getOutputStream() {
+		return _out;
+	}
+
+	/**
+	 * @param version the version used for messages read from now on, 0 for
+	 * Java serialization.
+	 */
+	public void setReadVersion(int version) {
+		checkVersion(version);
+		_readVersion = version;
+	}
+
+	/**
+	 * @param version the version used for messages written from now on, 0 for
+	 * Java serialization.
+	 */
+	public void setWriteVersion(int version) {
+		checkVersion(version);
+		_writeVersion = version;
+	}
+
+	public int getReadVersion() {
+		return _readVersion;
+	}
+
+	public int getWriteVersion() {
+		return _writeVersion;
+	}
+
+	private static void checkVersion(int version) {
+		if (version < 0 || version > VERSION) {
+			throw new IllegalArgumentException("Unsupported codec version " + version);
+		}
+	}
+
+	/**
+	 * Writes and flushes a single message.
+	 * @param message
+	 * @throws IOException
+	 */
+	public void writeMessage(Object message) throws IOException {
+		if (_writeVersion == 0) {
+			writeObject(message);
+			return;
+		}
+		_buffer.reset();
+		DataOutputStream data = new DataOutputStream(_buffer);
+		int flags = 0;
+		byte type;
+		if (message instanceof AsyncCommandArgument) {
+			type = encodeCommand(data, (AsyncCommandArgument) message);
+		} else if (message instanceof AsyncResponse) {
+			type = encodeResponse(data, (AsyncResponse) message);
+			if (type == FRAME_REMERGE) {
+				if (_sentPaths.size() >= MAX_PATHS) {
+					_sentPaths.clear();
+					flags |= FLAG_RESET_PATHS;
+				}
+				encodeRemerge(data, (AsyncResponseRemerge) message);
+				if (_deflate && _buffer.size() > DEFLATE_THRESHOLD && deflateBuffer()) {
+					flags |= FLAG_DEFLATE;
+				}
+			}
+		} else {
+			type = FRAME_OBJECT;
+		}
+		if (type == FRAME_OBJECT) {
+			_out.writeByte(FRAME_OBJECT);
+			writeObject(message);
+			return;
+		}
+		data.flush();
+		_out.writeByte(type);
+		_out.writeByte(flags);
+		_out.writeInt(_buffer.size());
+		_buffer.writeTo(_out);
+		_out.flush();
+		_messagesWritten++;
+		_bytesWritten += _buffer.size() + 6;
+	}
+
+	private void writeObject(Object message) throws IOException {
+		_out.writeObject(message);
+		_out.flush();
+		_out.reset();
+		_messagesWritten++;
+	}
+
+	/**
+	 * Reads a single message.
+	 * @return the next message
+	 * @throws SocketTimeoutException if nothing was received before the socket timed out.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Object readMessage() throws IOException, ClassNotFoundException {
+		if (_readVersion == 0) {
+			Object o = _in.readObject();
+			_messagesRead++;
+			return o;
+		}
+		byte type = _in.readByte();
+		try {
+			if (type == FRAME_OBJECT) {
+				Object o = _in.readObject();
+				_messagesRead++;
+				return o;
+			}
+			int flags = _in.readUnsignedByte();
+			int length = _in.readInt();
+			if (length < 0) {
+				throw new IOException("Invalid frame length " + length);
+			}
+			byte[] payload = new byte[length];
+			_in.readFully(payload);
+			_messagesRead++;
+			_bytesRead += length + 6;
+			if ((flags & FLAG_DEFLATE) != 0) {
+				payload = inflate(payload);
+			}
+			if ((flags & FLAG_RESET_PATHS) != 0) {
+				_receivedPaths.clear();
+				_receivedPathSet.clear();
+			}
+			return decode(type, new DataInputStream(new ByteArrayInputStream(payload)));
+		} catch (SocketTimeoutException e) {
+			// part of the frame has already been consumed, the stream can't be used anymore
+			throw new IOException("Timed out in the middle of a message", e);
+		}
+	}
+
+	private byte encodeCommand(DataOutputStream data, AsyncCommandArgument command)
+			throws IOException {
+		if (command.getClass() == AsyncCommand.class) {
+			writeString(data, command.getIndex());
+			writeString(data, command.getName());
+			return FRAME_COMMAND_NOARGS;
+		}
+		if (command.getClass() != AsyncCommandArgument.class) {
+			return FRAME_OBJECT;
+		}
+		writeString(data, command.getIndex());
+		writeString(data, command.getName());
+		String[] args = command.getArgsArray();
+		writeVarLong(data, args.length);
+		for (String arg : args) {
+			writeString(data, arg);
+		}
+		return FRAME_COMMAND;
+	}
+
+	private byte encodeResponse(DataOutputStream data, AsyncResponse response)
+			throws IOException {
+		Class<?> clazz = response.getClass();
+		if (clazz == AsyncResponseRemerge.class) {
+			// encoded by the caller, it needs to handle the path table
+			return FRAME_REMERGE;
+		}
+		if (clazz == AsyncResponseTransferStatus.class) {
+			TransferStatus status = ((AsyncResponseTransferStatus) response).getTransferStatus();
+			if (status.threwException()) {
+				return FRAME_OBJECT;
+			}
+			encodeTransferStatus(data, status);
+			return FRAME_TRANSFERSTATUS;
+		}
+		if (clazz == AsyncResponseTransfer.class) {
+			ConnectInfo info = ((AsyncResponseTransfer) response).getConnectInfo();
+			TransferStatus status = info.getTransferStatus();
+			if (status != null && status.threwException()) {
+				return FRAME_OBJECT;
+			}
+			writeString(data, response.getIndex());
+			writeVarLong(data, info.getPort());
+			writeVarLong(data, Integer.parseInt(info.getTransferIndex().toString()));
+			data.writeBoolean(status != null);
+			if (status != null) {
+				encodeTransferStatus(data, status);
+			}
+			return FRAME_TRANSFER;
+		}
+		if (clazz == AsyncResponseChecksum.class) {
+			writeString(data, response.getIndex());
+			data.writeLong(((AsyncResponseChecksum) response).getChecksum());
+			return FRAME_CHECKSUM;
+		}
+		if (clazz == AsyncResponseMaxPath.class) {
+			writeString(data, response.getIndex());
+			writeVarLong(data, ((AsyncResponseMaxPath) response).getMaxPath());
+			return FRAME_MAXPATH;
+		}
+		if (clazz == AsyncResponseSSLCheck.class) {
+			writeString(data, response.getIndex());
+			data.writeBoolean(((AsyncResponseSSLCheck) response).isSSLReady());
+			return FRAME_SSLCHECK;
+		}
+		if (clazz == AsyncResponseDiskStatus.class) {
+			DiskStatus status = ((AsyncResponseDiskStatus) response).getDiskStatus();
+			writeVarLong(data, status.getBytesAvailable());
+			writeVarLong(data, status.getBytesCapacity());
+			return FRAME_DISKSTATUS;
+		}
+		if (clazz == AsyncResponse.class) {
+			writeString(data, response.getIndex());
+			return FRAME_RESPONSE;
+		}
+		return FRAME_OBJECT;
+	}
+
+	private void encodeTransferStatus(DataOutputStream data, TransferStatus status)
+			throws IOException {
+		writeVarLong(data, Integer.parseInt(status.getTransferIndex().toString()));
+		writeVarLong(data, status.getElapsed());
+		writeVarLong(data, status.getTransfered());
+		data.writeLong(status.getChecksum());
+		data.writeBoolean(status.isFinished());
+	}
+
+	private void encodeRemerge(DataOutputStream data, AsyncResponseRemerge remerge)
+			throws IOException {
+		String path = remerge.getPath();
+		long lastModified = remerge.getLastModified();
+		writePath(data, path);
+		writeVarLong(data, lastModified);
+		List<LightRemoteInode> inodes = remerge.getFiles();
+		writeVarLong(data, inodes.size());
+		for (LightRemoteInode inode : inodes) {
+			String username = inode.getUsername();
+			String group = inode.getGroup();
+			boolean owner = !DEFAULT_OWNER.equals(username) || !DEFAULT_OWNER.equals(group);
+			data.writeByte((inode.isDirectory() ? INODE_DIRECTORY : 0) | (owner ? INODE_OWNER : 0));
+			writeString(data, inode.getName());
+			// files in a directory are usually modified around the same time
+			writeVarLong(data, inode.lastModified() - lastModified);
+			writeVarLong(data, inode.length());
+			if (owner) {
+				writeString(data, username);
+				writeString(data, group);
+			}
+		}
+	}
+
+	/**
+	 * Writes the path as the id of the longest path already sent and the
+	 * remaining part.
+	 */
+	private void writePath(DataOutputStream data, String path) throws IOException {
+		String prefix = path;
+		Integer id = null;
+		while (id == null) {
+			int slash = prefix.lastIndexOf('/');
+			if (slash <= 0) {
+				prefix = "";
+				break;
+			}
+			prefix = prefix.substring(0, slash);
+			id = _sentPaths.get(prefix);
+		}
+		if (id == null) {
+			writeVarLong(data, 0);
+			writeString(data, path);
+		} else {
+			writeVarLong(data, id + 1);
+			writeString(data, path.substring(prefix.length()));
+		}
+		if (!_sentPaths.containsKey(path)) {
+			_sentPaths.put(path, _sentPaths.size());
+		}
+	}
+
+	private String readPath(DataInputStream data) throws IOException {
+		int id = (int) readVarLong(data) - 1;
+		String path = readString(data);
+		if (id >= 0) {
+			if (id >= _receivedPaths.size()) {
+				throw new IOException("Unknown path reference " + id);
+			}
+			path = _receivedPaths.get(id) + path;
+		}
+		// mirrors the put in writePath
+		if (_receivedPathSet.add(path)) {
+			_receivedPaths.add(path);
+		}
+		return path;
+	}
+
+	private Object decode(byte type, DataInputStream data) throws IOException {
+		switch (type) {
+		case FRAME_COMMAND: {
+			String index = readString(data);
+			String name = readString(data);
+			String[] args = new String[(int) readVarLong(data)];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = readString(data);
+			}
+			return new AsyncCommandArgument(index, name, args);
+		}
+		case FRAME_COMMAND_NOARGS: {
+			String index = readString(data);
+			return new AsyncCommand(index, readString(data));
+		}
+		case FRAME_RESPONSE:
+			return new AsyncResponse(readString(data));
+		case FRAME_CHECKSUM:
+			return new AsyncResponseChecksum(readString(data), data.readLong());
+		case FRAME_MAXPATH:
+			return new AsyncResponseMaxPath(readString(data), (int) readVarLong(data));
+		case FRAME_SSLCHECK:
+			return new AsyncResponseSSLCheck(readString(data), data.readBoolean());
+		case FRAME_DISKSTATUS:
+			return new AsyncResponseDiskStatus(new DiskStatus(readVarLong(data), readVarLong(data)));
+		case FRAME_TRANSFERSTATUS:
+			return new AsyncResponseTransferStatus(decodeTransferStatus(data));
+		case FRAME_TRANSFER: {
+			String index = readString(data);
+			int port = (int) readVarLong(data);
+			TransferIndex transferIndex = new TransferIndex((int) readVarLong(data));
+			TransferStatus status = data.readBoolean() ? decodeTransferStatus(data) : null;
+			return new AsyncResponseTransfer(index, new ConnectInfo(port, transferIndex, status));
+		}
+		case FRAME_REMERGE: {
+			String path = readPath(data);
+			long lastModified = readVarLong(data);
+			int count = (int) readVarLong(data);
+			ArrayList<LightRemoteInode> inodes = new ArrayList<LightRemoteInode>(count);
+			for (int i = 0; i < count; i++) {
+				int flags = data.readByte();
+				String name = readString(data);
+				long inodeLastModified = readVarLong(data) + lastModified;
+				long length = readVarLong(data);
+				String username = DEFAULT_OWNER;
+				String group = DEFAULT_OWNER;
+				if ((flags & INODE_OWNER) != 0) {
+					username = readString(data);
+					group = readString(data);
+				}
+				inodes.add(new LightRemoteInode(name, username, group,
+						(flags & INODE_DIRECTORY) != 0, inodeLastModified, length));
+			}
+			return new AsyncResponseRemerge(path, inodes, lastModified);
+		}
+		default:
+			throw new IOException("Unknown frame type " + type);
+		}
+	}
+
+	private TransferStatus decodeTransferStatus(DataInputStream data) throws IOException {
+		TransferIndex transferIndex = new TransferIndex((int) readVarLong(data));
+		long elapsed = readVarLong(data);
+		long transfered = readVarLong(data);
+		long checksum = data.readLong();
+		boolean finished = data.readBoolean();
+		return new TransferStatus(elapsed, transfered, checksum, finished, transferIndex);
+	}
+
+	/**
+	 * Replaces the buffer content with its deflated form if that is smaller.
+	 * @return true if the buffer was replaced.
+	 */
+	private boolean deflateBuffer() throws IOException {
+		if (_deflater == null) {
+			_deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		byte[] raw = _buffer.toByteArray();
+		_deflater.reset();
+		_deflater.setInput(raw);
+		_deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2);
+		DataOutputStream data = new DataOutputStream(compressed);
+		writeVarLong(data, raw.length);
+		byte[] chunk = new byte[8192];
+		while (!_deflater.finished()) {
+			int len = _deflater.deflate(chunk);
+			compressed.write(chunk, 0, len);
+			if (compressed.size() >= raw.length) {
+				return false;
+			}
+		}
+		_buffer.reset();
+		compressed.writeTo(_buffer);
+		return true;
+	}
+
+	private byte[] inflate(byte[] payload) throws IOException {
+		if (_inflater == null) {
+			_inflater = new Inflater();
+		}
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		int rawLength = (int) readVarLong(data);
+		int headerLength = payload.length - data.available();
+		byte[] raw = new byte[rawLength];
+		_inflater.reset();
+		_inflater.setInput(payload, headerLength, payload.length - headerLength);
+		try {
+			int offset = 0;
+			while (offset < rawLength && !_inflater.finished()) {
+				int len = _inflater.inflate(raw, offset, rawLength - offset);
+				if (len == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) {
+					break;
+				}
+				offset += len;
+			}
+			if (offset != rawLength) {
+				throw new IOException("Truncated compressed frame");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted compressed frame", e);
+		}
+		return raw;
+	}
+
+	private static void writeString(DataOutputStream data, String s) throws IOException {
+		if (s == null) {
+			writeVarLong(data, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		writeVarLong(data, bytes.length + 1);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = (int) readVarLong(data) - 1;
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Zigzag encoded variable length long, small values of either sign use
+	 * few bytes.
+	 */
+	private static void writeVarLong(DataOutputStream data, long value) throws IOException {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			data.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		data.writeByte((int) v);
+	}
+
+	private static long readVarLong(DataInputStream data) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = data.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (v >>> 1) ^ -(v & 1);
+			}
+		}
+		throw new IOException("Malformed variable length number");
+	}
+
+	public long getMessagesWritten() {
+		return _messagesWritten;
+	}
+
+	/**
+	 * @return the number of bytes written in frames, messages sent as objects
+	 * are not counted.
+	 */
+	public long getBytesWritten() {
+		return _bytesWritten;
+	}
+
+	public long getMessagesRead() {
+		return _messagesRead;
+	}
+
+	/**
+	 * @return the number of bytes read in frames, messages sent as objects
+	 * are not counted.
+	 */
+	public long getBytesRead() {
+		return _bytesRead;
+	}
+}
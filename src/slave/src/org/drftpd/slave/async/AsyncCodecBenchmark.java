@@ -0,0 +1,115 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.TransferIndex;
+import org.drftpd.slave.TransferStatus;
+
+/**
+ * Compares the size of a remerge and the transfer status throughput of the
+ * {@link AsyncCodec} against plain Java serialization.
+ * Not part of the unit tests, run it by hand:
+ * AsyncCodecBenchmark [directories] [files per directory] [messages]
+ * @version $Id$
+ */
+public class AsyncCodecBenchmark {
+
+	private ByteArrayOutputStream _bytes;
+
+	private AsyncCodec _writer;
+
+	private void createWriter(int version, boolean deflate) throws IOException {
+		_bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(_bytes);
+		out.flush();
+		_writer = new AsyncCodec(null, out, deflate);
+		_writer.setWriteVersion(version);
+	}
+
+	private AsyncCodec createReader(int version) throws IOException {
+		AsyncCodec reader = new AsyncCodec(new ObjectInputStream(
+				new ByteArrayInputStream(_bytes.toByteArray())), null, false);
+		reader.setReadVersion(version);
+		return reader;
+	}
+
+	private long writeRemerge(int version, boolean deflate, int directories, int files) throws IOException {
+		createWriter(version, deflate);
+		int start = _bytes.size();
+		long now = System.currentTimeMillis();
+		for (int x = 0; x < directories; x++) {
+			ArrayList<LightRemoteInode> inodes = new ArrayList<LightRemoteInode>();
+			for (int y = 0; y < files; y++) {
+				inodes.add(new LightRemoteInode("release.name-group.r" + y, now - y * 1000, 15000000L + y));
+			}
+			inodes.add(new LightRemoteInode("Sample", "user", "group", true, now, 4096));
+			_writer.writeMessage(new AsyncResponseRemerge("/SECTION/" + (x / 100) + "/Release.Name-" + x,
+					inodes, now));
+		}
+		return _bytes.size() - start;
+	}
+
+	private void size(int directories, int files) throws IOException {
+		long serialized = writeRemerge(0, false, directories, files);
+		long frames = writeRemerge(AsyncCodec.VERSION, false, directories, files);
+		long deflated = writeRemerge(AsyncCodec.VERSION, true, directories, files);
+		System.out.println("remerge of " + directories + " directories with " + files + " files each");
+		System.out.println("serialization - " + serialized + " bytes, " + serialized / directories + " per directory");
+		System.out.println("codec         - " + frames + " bytes, " + frames / directories + " per directory");
+		System.out.println("codec+deflate - " + deflated + " bytes, " + deflated / directories + " per directory");
+	}
+
+	private void throughput(int messages) throws IOException, ClassNotFoundException {
+		for (int version = 0; version <= AsyncCodec.VERSION; version++) {
+			createWriter(version, false);
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < messages; i++) {
+				_writer.writeMessage(new AsyncResponseTransferStatus(new TransferStatus(i, i * 1000L, i, false,
+						new TransferIndex(i % 100))));
+			}
+			long written = System.currentTimeMillis() - start;
+			AsyncCodec reader = createReader(version);
+			start = System.currentTimeMillis();
+			for (int i = 0; i < messages; i++) {
+				reader.readMessage();
+			}
+			long read = System.currentTimeMillis() - start;
+			System.out.println((version == 0 ? "serialization" : "codec        ") + " - "
+					+ messages * 1000L / Math.max(1, written) + " msg/s written, "
+					+ messages * 1000L / Math.max(1, read) + " msg/s read, "
+					+ _bytes.size() / messages + " bytes per transfer status");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int directories = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		AsyncCodecBenchmark benchmark = new AsyncCodecBenchmark();
+		benchmark.size(directories, files);
+		benchmark.throughput(messages);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.TransferIndex;
+import org.drftpd.slave.TransferStatus;
+
+/**
+ * Round trip tests for the {@link AsyncCodec} and a size comparison against
+ * Java serialization.
+ * @version $Id$
+ */
+public class AsyncCodecTest extends TestCase {
+
+	private static final int DIRECTORIES = 100;
+
+	private static final int FILES = 50;
+
+	private ByteArrayOutputStream _bytes;
+
+	private AsyncCodec _writer;
+
+	private void createWriter(int version, boolean deflate) throws IOException {
+		_bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(_bytes);
+		out.flush();
+		_writer = new AsyncCodec(null, out, deflate);
+		_writer.setWriteVersion(version);
+	}
+
+	private AsyncCodec createReader(int version) throws IOException {
+		AsyncCodec reader = new AsyncCodec(new ObjectInputStream(
+				new ByteArrayInputStream(_bytes.toByteArray())), null, false);
+		reader.setReadVersion(version);
+		return reader;
+	}
+
+	private List<AsyncResponseRemerge> buildRemerge() {
+		ArrayList<AsyncResponseRemerge> remerge = new ArrayList<AsyncResponseRemerge>();
+		long now = System.currentTimeMillis();
+		for (int x = 0; x < DIRECTORIES; x++) {
+			ArrayList<LightRemoteInode> inodes = new ArrayList<LightRemoteInode>();
+			for (int y = 0; y < FILES; y++) {
+				inodes.add(new LightRemoteInode("release.name-group.r" + y, now - y * 1000, 15000000L + y));
+			}
+			inodes.add(new LightRemoteInode("Sample", "user", "group", true, now, 4096));
+			remerge.add(new AsyncResponseRemerge("/SECTION/" + (x / 100) + "/Release.Name-" + x,
+					inodes, now));
+		}
+		return remerge;
+	}
+
+	public void testRoundTrip() throws Exception {
+		createWriter(AsyncCodec.VERSION, true);
+		_writer.writeMessage(new AsyncCommandArgument("0a", "rename", new String[] { "/a", "/b", "c" }));
+		_writer.writeMessage(new AsyncCommand("0b", "ping"));
+		_writer.writeMessage(new AsyncResponseChecksum("0c", 0xCAFEBABEL));
+		_writer.writeMessage(new AsyncResponseTransferStatus(new TransferStatus(1000, 5000, 42, true,
+				new TransferIndex(7))));
+		_writer.writeMessage(new AsyncResponseException("0d", new IOException("failed")));
+		List<AsyncResponseRemerge> remerge = buildRemerge();
+		for (AsyncResponseRemerge response : remerge) {
+			_writer.writeMessage(response);
+		}
+
+		AsyncCodec reader = createReader(AsyncCodec.VERSION);
+		AsyncCommandArgument command = (AsyncCommandArgument) reader.readMessage();
+		assertEquals("0a", command.getIndex());
+		assertEquals("rename", command.getName());
+		assertEquals(3, command.getArgsArray().length);
+		assertEquals("c", command.getArgsArray()[2]);
+		assertTrue(reader.readMessage() instanceof AsyncCommand);
+		assertEquals(0xCAFEBABEL, ((AsyncResponseChecksum) reader.readMessage()).getChecksum());
+		TransferStatus status = ((AsyncResponseTransferStatus) reader.readMessage()).getTransferStatus();
+		assertEquals(5000, status.getTransfered());
+		assertEquals(new TransferIndex(7), status.getTransferIndex());
+		assertTrue(status.isFinished());
+		assertEquals("failed", ((AsyncResponseException) reader.readMessage()).getThrowable().getMessage());
+		for (AsyncResponseRemerge expected : remerge) {
+			AsyncResponseRemerge actual = (AsyncResponseRemerge) reader.readMessage();
+			assertEquals(expected.getPath(), actual.getPath());
+			assertEquals(expected.getLastModified(), actual.getLastModified());
+			assertEquals(expected.getFiles().size(), actual.getFiles().size());
+			for (int i = 0; i < expected.getFiles().size(); i++) {
+				LightRemoteInode e = expected.getFiles().get(i);
+				LightRemoteInode a = actual.getFiles().get(i);
+				assertEquals(e.getName(), a.getName());
+				assertEquals(e.lastModified(), a.lastModified());
+				assertEquals(e.length(), a.length());
+				assertEquals(e.isDirectory(), a.isDirectory());
+				assertEquals(e.getUsername(), a.getUsername());
+				assertEquals(e.getGroup(), a.getGroup());
+			}
+		}
+	}
+
+	/**
+	 * Serialized messages written before the switch must still be readable.
+	 */
+	public void testSwitch() throws Exception {
+		createWriter(0, false);
+		_writer.writeMessage(new AsyncCommandArgument("", AsyncCodec.CODEC_COMMAND, "1"));
+		_writer.setWriteVersion(1);
+		_writer.writeMessage(new AsyncCommand("00", "ping"));
+
+		AsyncCodec reader = createReader(0);
+		AsyncCommandArgument command = (AsyncCommandArgument) reader.readMessage();
+		assertEquals(AsyncCodec.CODEC_COMMAND, command.getName());
+		reader.setReadVersion(Integer.parseInt(command.getArgs()));
+		assertEquals("ping", ((AsyncCommand) reader.readMessage()).getName());
+	}
+
+	private long writeRemerge(int version, boolean deflate) throws IOException {
+		createWriter(version, deflate);
+		int start = _bytes.size();
+		for (AsyncResponseRemerge response : buildRemerge()) {
+			_writer.writeMessage(response);
+		}
+		return _bytes.size() - start;
+	}
+
+	public void testSize() throws Exception {
+		long serialized = writeRemerge(0, false);
+		long frames = writeRemerge(AsyncCodec.VERSION, false);
+		long deflated = writeRemerge(AsyncCodec.VERSION, true);
+		assertTrue(frames < serialized);
+		assertTrue(deflated < frames);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.slave.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.drftpd.slave.ReconcileChange;
+
+/**
+ * Sent by the slave on its own with the changes made outside drftpd, and
+ * the digests of the directories holding them once the changes are applied.
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseReconcile extends AsyncResponse {
+	private ArrayList<ReconcileChange> _changes;
+
+	private HashMap<String, Long> _digests;
+
+	public AsyncResponseReconcile(ArrayList<ReconcileChange> changes, HashMap<String, Long> digests) {
+		super("Reconcile");
+		_changes = changes;
+		_digests = digests;
+	}
+
+	public ArrayList<ReconcileChange> getChanges() {
+		return _changes;
+	}
+
+	public HashMap<String, Long> getDigests() {
+		return _digests;
+	}
+
+	public String toString() {
+		return getClass().getName() + "[changes=" + getChanges().size() + "]";
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave.async;
+
+/**
+ * Sent instead of the normal response when the slave is too busy to run a
+ * command, the command was not run at all.
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseRejected extends AsyncResponse {
+	private String _command;
+
+	private String _pool;
+
+	public AsyncResponseRejected(String index, String command, String pool) {
+		super(index);
+		_command = command;
+		_pool = pool;
+	}
+
+	public String getCommand() {
+		return _command;
+	}
+
+	public String getPool() {
+		return _pool;
+	}
+
+	public String toString() {
+		return getClass().getName() + "[index=" + getIndex() + ",command=" + getCommand()
+				+ ",pool=" + getPool() + "]";
+	}
+}